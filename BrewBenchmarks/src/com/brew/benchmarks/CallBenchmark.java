@@ -0,0 +1,95 @@
+package com.brew.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.brew.compiler.Compiler;
+import com.brew.vm.VerifiedProgram;
+import com.brew.vm.Verifier;
+import com.brew.vm.VirtualMachine;
+
+/**
+ * This benchmark measures what calls cost. Recursive fibonacci and ackermann are almost nothing but calls,
+ * and are set against the same work done without any. Squaring in a loop is measured calling a function,
+ * with the function inlined by the compiler, and with the square written out in place by hand.
+ * @author Jonathan Force
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallBenchmark {
+	
+	private VirtualMachine vm;
+	private VerifiedProgram fibonacci, fibonacciLoop, ackermann, squareCalls, squareCallsInlined, squareInlined;
+	
+	@Setup
+	public void setup() {
+		vm = new VirtualMachine();
+		fibonacci = compile(Programs.FIBONACCI);
+		fibonacciLoop = compile(Programs.FIBONACCI_LOOP);
+		ackermann = compile(Programs.ACKERMANN);
+		// Below INLINE square is really called.
+		squareCalls = compile(Programs.SQUARE_CALLS, Compiler.SUPERINSTRUCTIONS);
+		squareCallsInlined = compile(Programs.SQUARE_CALLS);
+		squareInlined = compile(Programs.SQUARE_INLINED);
+	}
+	
+	@Benchmark
+	public int fibonacci() {
+		vm.run(fibonacci);
+		return vm.runtime().callDepth();
+	}
+	
+	@Benchmark
+	public int fibonacciLoop() {
+		vm.run(fibonacciLoop);
+		return vm.runtime().callDepth();
+	}
+	
+	@Benchmark
+	public int ackermann() {
+		vm.run(ackermann);
+		return vm.runtime().callDepth();
+	}
+	
+	@Benchmark
+	public int squareCalls() {
+		vm.run(squareCalls);
+		return vm.runtime().callDepth();
+	}
+	
+	@Benchmark
+	public int squareCallsInlined() {
+		vm.run(squareCallsInlined);
+		return vm.runtime().callDepth();
+	}
+	
+	@Benchmark
+	public int squareInlined() {
+		vm.run(squareInlined);
+		return vm.runtime().callDepth();
+	}
+	
+	private static VerifiedProgram compile(String[] source) {
+		return compile(source, Compiler.DEFAULT_OPTIMIZATION);
+	}
+	
+	private static VerifiedProgram compile(String[] source, int optimizationLevel) {
+		Compiler compiler = new Compiler();
+		compiler.setOptimizationLevel(optimizationLevel);
+		return Verifier.verify(compiler.compile(source));
+	}
+}
@@ -0,0 +1,68 @@
+package com.brew.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.brew.compiler.CompiledProgram;
+import com.brew.compiler.Compiler;
+import com.brew.compiler.IncrementalCompiler;
+import com.brew.compiler.ProgramCache;
+
+/**
+ * This benchmark measures Compiler.compile on large generated sources, looking the same sources up in
+ * a ProgramCache once they have been compiled, and an IncrementalCompiler compiling a one line edit in the
+ * middle of them.
+ * @author Jonathan Force
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompilerBenchmark {
+	
+	@Param({ "100", "1000", "10000" })
+	public int lines;
+	
+	private String[] source;
+	private ProgramCache cache;
+	private IncrementalCompiler incremental;
+	
+	@Setup
+	public void setup() {
+		source = Programs.generateSource(lines);
+		cache = new ProgramCache(16);
+		cache.compile(source);
+		incremental = new IncrementalCompiler();
+		incremental.compile(source);
+	}
+	
+	@Benchmark
+	public byte[] compile() {
+		return new Compiler().compile(source);
+	}
+	
+	@Benchmark
+	public CompiledProgram cached() {
+		return cache.compile(source);
+	}
+	
+	@Benchmark
+	public CompiledProgram edit() {
+		int line = lines / 2;
+		incremental.edit(line, line + 1, source[line]);
+		return incremental.program();
+	}
+}
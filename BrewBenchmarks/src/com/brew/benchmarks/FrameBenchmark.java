@@ -0,0 +1,64 @@
+package com.brew.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.brew.compiler.Compiler;
+import com.brew.vm.VerifiedProgram;
+import com.brew.vm.Verifier;
+import com.brew.vm.VirtualMachine;
+
+/**
+ * This benchmark measures a loop full of blocks with variables of their own, compiled with a frame for
+ * every block and with the blocks sharing the program's frame, on the interpreter and on the JIT.
+ * @author Jonathan Force
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+	
+	private VirtualMachine vm;
+	private VerifiedProgram ownFrames, sharedFrame;
+	
+	@Setup
+	public void setup() {
+		vm = new VirtualMachine();
+		ownFrames = compile(Compiler.SUPERINSTRUCTIONS);
+		sharedFrame = compile(Compiler.INLINE);
+	}
+	
+	@Benchmark
+	public byte ownFrames() {
+		vm.run(ownFrames);
+		return vm.runtime().pullVar((byte) 0, (byte) 0);
+	}
+	
+	@Benchmark
+	public byte sharedFrame() {
+		vm.run(sharedFrame);
+		return vm.runtime().pullVar((byte) 0, (byte) 0);
+	}
+	
+	private static VerifiedProgram compile(int optimizationLevel) {
+		Compiler compiler = new Compiler();
+		compiler.setOptimizationLevel(optimizationLevel);
+		byte[] code = compiler.compile(Programs.BLOCKS);
+		// Leave the program's frame behind, so the total can be read once it has run.
+		return Verifier.verify(Arrays.copyOf(code, code.length - 1));
+	}
+}
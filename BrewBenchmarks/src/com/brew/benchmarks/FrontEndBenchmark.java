@@ -0,0 +1,54 @@
+package com.brew.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.brew.compiler.Utilities;
+
+/**
+ * This benchmark measures the compiler's front end; breaking an expression into tokens and converting
+ * those tokens to postfix notation.
+ * @author Jonathan Force
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrontEndBenchmark {
+	
+	private Utilities util;
+	private String[] tokens;
+	
+	@Setup
+	public void setup() {
+		util = new Utilities();
+		tokens = util.tokenize(Programs.EXPRESSION, true);
+	}
+	
+	@Benchmark
+	public String[] tokenize() {
+		return util.tokenize(Programs.EXPRESSION, true);
+	}
+	
+	@Benchmark
+	public String[] toPostfix() {
+		return util.toPostfix(tokens);
+	}
+	
+	@Benchmark
+	public String[] tokenizeAndConvert() {
+		return util.toPostfix(util.tokenize(Programs.EXPRESSION, true));
+	}
+}
@@ -0,0 +1,180 @@
+package com.brew.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.brew.compiler.Peephole;
+import com.brew.vm.ExecutionBudget;
+import com.brew.vm.Interpreter;
+import com.brew.vm.VerifiedProgram;
+import com.brew.vm.Verifier;
+import com.brew.vm.VirtualMachine;
+
+/**
+ * This benchmark measures Interpreter.interpret on loop heavy programs, both as raw bytecode and after
+ * verification, with and without superinstructions, translated to register instructions, compiled to a
+ * tree of nodes, and compiled to JVM bytecode once hot.
+ * @author Jonathan Force
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+	
+	/** The variable loop never ends; this is how many instructions it gets. */
+	private static final ExecutionBudget LOOP_BUDGET = ExecutionBudget.instructions(300);
+	
+	private VirtualMachine vm, registerVM, closureVM, jitVM;
+	private byte[] nestedIfsFused;
+	private VerifiedProgram doubler, variableLoop, nestedIfs, nestedIfsFusedVerified;
+	
+	@Setup
+	public void setup() {
+		vm = new VirtualMachine();
+		// The interpreted benchmarks stay interpreted, the JIT benchmarks compile on the first run.
+		vm.interpreter().setJitThreshold(Interpreter.JIT_NEVER);
+		jitVM = new VirtualMachine();
+		jitVM.interpreter().setJitThreshold(0);
+		registerVM = new VirtualMachine();
+		registerVM.setEngine(VirtualMachine.Engine.REGISTER);
+		closureVM = new VirtualMachine();
+		closureVM.setEngine(VirtualMachine.Engine.CLOSURE);
+		doubler = Verifier.verify(Programs.DOUBLER);
+		variableLoop = Verifier.verify(Programs.VARIABLE_LOOP);
+		nestedIfs = Verifier.verify(Programs.NESTED_IFS);
+		nestedIfsFused = Peephole.optimize(Programs.NESTED_IFS);
+		nestedIfsFusedVerified = Verifier.verify(nestedIfsFused);
+	}
+	
+	@Benchmark
+	public byte doubler() {
+		vm.interpreter().interpret(Programs.DOUBLER);
+		return clear();
+	}
+	
+	@Benchmark
+	public byte doublerVerified() {
+		vm.interpreter().interpret(doubler);
+		return clear();
+	}
+	
+	@Benchmark
+	public byte variableLoop() {
+		vm.interpreter().interpret(Programs.VARIABLE_LOOP, LOOP_BUDGET);
+		return clear();
+	}
+	
+	@Benchmark
+	public byte variableLoopVerified() {
+		vm.interpreter().interpret(variableLoop, LOOP_BUDGET);
+		return clear();
+	}
+	
+	@Benchmark
+	public byte nestedIfs() {
+		vm.interpreter().interpret(Programs.NESTED_IFS);
+		return clear();
+	}
+	
+	@Benchmark
+	public byte nestedIfsVerified() {
+		vm.interpreter().interpret(nestedIfs);
+		return clear();
+	}
+	
+	@Benchmark
+	public byte nestedIfsFused() {
+		vm.interpreter().interpret(nestedIfsFused);
+		return clear();
+	}
+	
+	@Benchmark
+	public byte nestedIfsFusedVerified() {
+		vm.interpreter().interpret(nestedIfsFusedVerified);
+		return clear();
+	}
+	
+	@Benchmark
+	public byte doublerRegister() {
+		registerVM.run(doubler);
+		return clear(registerVM);
+	}
+	
+	@Benchmark
+	public byte nestedIfsRegister() {
+		registerVM.run(nestedIfs);
+		return clear(registerVM);
+	}
+	
+	@Benchmark
+	public byte nestedIfsFusedRegister() {
+		registerVM.run(nestedIfsFusedVerified);
+		return clear(registerVM);
+	}
+	
+	@Benchmark
+	public byte doublerClosure() {
+		closureVM.run(doubler);
+		return clear(closureVM);
+	}
+	
+	@Benchmark
+	public byte nestedIfsClosure() {
+		closureVM.run(nestedIfs);
+		return clear(closureVM);
+	}
+	
+	@Benchmark
+	public byte nestedIfsFusedClosure() {
+		closureVM.run(nestedIfsFusedVerified);
+		return clear(closureVM);
+	}
+	
+	@Benchmark
+	public byte doublerJit() {
+		jitVM.run(doubler);
+		return clear(jitVM);
+	}
+	
+	@Benchmark
+	public byte variableLoopJit() {
+		jitVM.run(variableLoop, LOOP_BUDGET);
+		return clear(jitVM);
+	}
+	
+	@Benchmark
+	public byte nestedIfsJit() {
+		jitVM.run(nestedIfs);
+		return clear(jitVM);
+	}
+	
+	@Benchmark
+	public byte nestedIfsFusedJit() {
+		jitVM.run(nestedIfsFusedVerified);
+		return clear(jitVM);
+	}
+	
+	/** Empty the stack so runs don't pile up values, and return the top so the work can't be skipped. */
+	private byte clear() {
+		return clear(vm);
+	}
+	
+	private byte clear(VirtualMachine vm) {
+		byte top = vm.stack().isEmpty()? 0 : vm.stack().peek();
+		vm.stack().clear();
+		return top;
+	}
+}
@@ -0,0 +1,23 @@
+package com.brew.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * This is the entry point of the benchmark jar. It takes the usual JMH command line but always adds the
+ * GC profiler, so every run reports the allocation rate next to the throughput.
+ * @author Jonathan Force
+ */
+public class Main {
+	
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,62 @@
+package com.brew.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.brew.vm.ExecutionResult;
+import com.brew.vm.VerifiedProgram;
+import com.brew.vm.Verifier;
+import com.brew.vm.VirtualMachine;
+import com.brew.vm.VirtualMachinePool;
+
+/**
+ * This benchmark measures many threads running one shared program at once, through a VirtualMachinePool
+ * and with a new VirtualMachine for every run. It runs on every processor; run it with -t 1, -t 2 and so
+ * on to see how it scales.
+ * @author Jonathan Force
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(Threads.MAX)
+@Fork(1)
+public class PoolBenchmark {
+	
+	@Param({ "STACK", "REGISTER", "CLOSURE" })
+	public VirtualMachine.Engine engine;
+	
+	private VerifiedProgram nestedIfs;
+	private VirtualMachinePool pool;
+	
+	@Setup
+	public void setup() {
+		nestedIfs = Verifier.verify(Programs.NESTED_IFS);
+		pool = new VirtualMachinePool(engine, VirtualMachinePool.DEFAULT_MAXIMUM_IDLE);
+	}
+	
+	@Benchmark
+	public ExecutionResult pooled() {
+		return pool.run(nestedIfs);
+	}
+	
+	@Benchmark
+	public ExecutionResult newMachine() {
+		VirtualMachine vm = new VirtualMachine();
+		vm.setEngine(engine);
+		return vm.run(nestedIfs);
+	}
+}
@@ -0,0 +1,65 @@
+package com.brew.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.brew.compiler.Compiler;
+import com.brew.compiler.ProgramFile;
+import com.brew.vm.VerifiedProgram;
+
+/**
+ * This benchmark measures getting a generated program ready to run, by compiling its source and by mapping
+ * the .brewc file it was compiled to earlier.
+ * @author Jonathan Force
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProgramFileBenchmark {
+	
+	@Param({ "100", "1000" })
+	public int lines;
+	
+	private String[] source;
+	private Path file;
+	
+	@Setup
+	public void setup() throws IOException {
+		source = Programs.generateSource(lines);
+		file = Files.createTempFile("benchmark", ProgramFile.EXTENSION);
+		ProgramFile.write(new Compiler().compileProgram(source), file);
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.delete(file);
+	}
+	
+	@Benchmark
+	public VerifiedProgram compile() {
+		return new Compiler().compileProgram(source).verified();
+	}
+	
+	@Benchmark
+	public VerifiedProgram map() throws IOException {
+		return ProgramFile.map(file).verified();
+	}
+}
@@ -0,0 +1,173 @@
+package com.brew.benchmarks;
+
+import com.brew.vm.InstructionSet;
+
+/**
+ * This class holds the programs and sources the benchmarks run.
+ * @author Jonathan Force
+ */
+public class Programs {
+	
+	/** Doubles 1 until it reaches 32. */
+	public static final byte[] DOUBLER = new byte[] {
+			InstructionSet.PUSH, 1,
+			InstructionSet.DUPLICATE,
+			InstructionSet.ADD,
+			
+			InstructionSet.DUPLICATE,
+			InstructionSet.PUSH, 32,
+			InstructionSet.GREATER_THAN,
+			InstructionSet.IF, 2,
+			InstructionSet.GOTO, 2,
+	};
+	
+	/** Doubles a variable forever. It has to be run with a budget. */
+	public static final byte[] VARIABLE_LOOP = new byte[] {
+			InstructionSet.PUSH_FRAME, 1,
+			InstructionSet.PUSH, 7,
+			InstructionSet.PUSH_VAR, 0, 0,
+			
+			InstructionSet.PULL_VAR, 0, 0,
+			InstructionSet.PULL_VAR, 0, 0,
+			InstructionSet.ADD,
+			InstructionSet.PUSH_VAR, 0, 0,
+			InstructionSet.GOTO, 7,
+	};
+	
+	/** Counts i from 1 to 100, and counts how many times 50 < i < 75 with two nested ifs. */
+	public static final byte[] NESTED_IFS = new byte[] {
+			InstructionSet.PUSH_FRAME, 2,
+			
+			// i = i + 1
+			InstructionSet.PULL_VAR, 0, 0,
+			InstructionSet.PUSH, 1,
+			InstructionSet.ADD,
+			InstructionSet.PUSH_VAR, 0, 0,
+			
+			// if (i > 50)
+			InstructionSet.PUSH, 50,
+			InstructionSet.PULL_VAR, 0, 0,
+			InstructionSet.GREATER_THAN,
+			InstructionSet.IF, 17,
+			
+			// if (i < 75)
+			InstructionSet.PUSH, 75,
+			InstructionSet.PULL_VAR, 0, 0,
+			InstructionSet.LESS_THAN,
+			InstructionSet.IF, 9,
+			
+			// count = count + 1
+			InstructionSet.PULL_VAR, 0, 1,
+			InstructionSet.PUSH, 1,
+			InstructionSet.ADD,
+			InstructionSet.PUSH_VAR, 0, 1,
+			
+			// Loop while i < 100
+			InstructionSet.PUSH, 100,
+			InstructionSet.PULL_VAR, 0, 0,
+			InstructionSet.LESS_THAN,
+			InstructionSet.IF, 2,
+			InstructionSet.GOTO, 2,
+			InstructionSet.POP_FRAME,
+	};
+	
+	/** Works out the 20th fibonacci number by calling fib recursively, 21891 calls in all. */
+	public static final String[] FIBONACCI = new String[] {
+		"int fib(int n) {",
+		"	if (n < 2) {",
+		"		return n",
+		"	}",
+		"	return fib(n - 1) + fib(n - 2)",
+		"}",
+		"int answer = fib(20)",
+	};
+	
+	/** Works out the 20th fibonacci number with a loop, without any calls. */
+	public static final String[] FIBONACCI_LOOP = new String[] {
+		"int a = 0",
+		"int b = 1",
+		"for (byte i = 0; i < 20; i = i + 1) {",
+		"	int next = a + b",
+		"	a = b",
+		"	b = next",
+		"}",
+		"int answer = a",
+	};
+	
+	/** Works out ackermann(2, 20), which calls deeply and often. */
+	public static final String[] ACKERMANN = new String[] {
+		"int ackermann(int m, int n) {",
+		"	if (m == 0) {",
+		"		return n + 1",
+		"	}",
+		"	if (n == 0) {",
+		"		return ackermann(m - 1, 1)",
+		"	}",
+		"	return ackermann(m - 1, ackermann(m, n - 1))",
+		"}",
+		"int answer = ackermann(2, 20)",
+	};
+	
+	/** Adds up the squares of 0 to 99 by calling a function for each. */
+	public static final String[] SQUARE_CALLS = new String[] {
+		"int square(int x) {",
+		"	return x * x",
+		"}",
+		"int sum = 0",
+		"for (int i = 0; i < 100; i = i + 1) {",
+		"	sum = sum + square(i)",
+		"}",
+	};
+	
+	/** Adds up the squares of 0 to 99 with the square written out in the loop. */
+	public static final String[] SQUARE_INLINED = new String[] {
+		"int sum = 0",
+		"for (int i = 0; i < 100; i = i + 1) {",
+		"	sum = sum + i * i",
+		"}",
+	};
+	
+	/** Counts to 100, working out a few values in blocks of their own every time round. */
+	public static final String[] BLOCKS = new String[] {
+		"byte total = 0",
+		"for (byte i = 0; i < 100; i = i + 1) {",
+		"	if (i > 10) {",
+		"		byte a = i / 2",
+		"		total = total + a",
+		"	}",
+		"	if (i < 90) {",
+		"		byte b = i - 1",
+		"		if (b > 5) {",
+		"			total = total - b",
+		"		}",
+		"	}",
+		"}",
+	};
+	
+	/** The expression the front end benchmarks tokenize and convert. */
+	public static final String EXPRESSION = "1 - -87 * (-5 + 1) + alpha * beta / 3 - (gamma + 4) * 2";
+	
+	/** @return a Brew source of roughly the specified number of lines. It declares a few variables and then
+	 * updates them over and over, with an if statement every few lines. */
+	public static String[] generateSource(int lines) {
+		String[] source = new String[Math.max(lines, 3)];
+		source[0] = "byte a = 1";
+		source[1] = "byte b = 2";
+		source[2] = "byte c = 3";
+		
+		int line = 3;
+		while (line < source.length) {
+			if (line + 3 <= source.length && line % 8 == 0) {
+				source[line++] = "if (a + 1 > b * 2) {";
+				source[line++] = "	c = c + a - 1";
+				source[line++] = "}";
+			} else if (line % 3 == 0)
+				source[line++] = "a = a + b * 2 - c";
+			else if (line % 3 == 1)
+				source[line++] = "b = (b - a) / 3 + 7";
+			else
+				source[line++] = "c = c * 2 + (a - b)";
+		}
+		return source;
+	}
+}
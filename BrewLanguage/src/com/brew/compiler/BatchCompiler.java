@@ -0,0 +1,243 @@
+package com.brew.compiler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import com.brew.compiler.exceptions.CompilationException;
+
+/**
+ * This class compiles every .brew file under a directory ahead of time, writing each program to a .brewc
+ * file next to its source. The files are compiled in parallel on a fork/join pool, each with a compiler of
+ * its own, since a compiler can't be shared. A file whose .brewc was compiled from the same source at the
+ * same optimization level is skipped : the digest of its source is kept in the .brewc's header.
+ *
+ * It can be run from the command line :
+ *
+ * java com.brew.compiler.BatchCompiler [-O level] [-j threads] directory ...
+ *
+ * It prints a line for every file, with how long it took or what was wrong with it, and exits with 1 if any
+ * file failed to compile.
+ * @author Jonathan Force
+ */
+public class BatchCompiler {
+	
+	/** The end of the name of every Brew source file. */
+	public static final String SOURCE_EXTENSION = ".brew";
+	
+	private final int optimizationLevel;
+	private final ForkJoinPool pool;
+	
+	/** Compile at the default optimization level, on every processor. */
+	public BatchCompiler() {
+		this(Compiler.DEFAULT_OPTIMIZATION, java.lang.Runtime.getRuntime().availableProcessors());
+	}
+	
+	/** @param optimizationLevel One of the optimization levels in {@link Compiler}.
+	 * @param parallelism The number of files that may be compiled at the same time. */
+	public BatchCompiler(int optimizationLevel, int parallelism) {
+		// Find out now if the level is wrong, rather than once for every file.
+		new Compiler().setOptimizationLevel(optimizationLevel);
+		this.optimizationLevel = optimizationLevel;
+		this.pool = new ForkJoinPool(parallelism);
+	}
+	
+	/** Compile every source file under the directory, or the file if it is one.
+	 * @return what happened to each file, in the order of their paths. */
+	public List<FileResult> compile(Path root) throws IOException {
+		if (!Files.exists(root))
+			throw new IOException(root + " doesn't exist.");
+		List<FileResult> results = pool.invoke(new PathTask(root));
+		Collections.sort(results, new Comparator<FileResult>() {
+			public int compare(FileResult a, FileResult b) {
+				return a.source().compareTo(b.source());
+			}
+		});
+		return results;
+	}
+	
+	/** Stop the threads. The compiler can't be used afterwards. */
+	public void shutdown() {
+		pool.shutdown();
+	}
+	
+	/** @return the .brewc file a source file is compiled to. */
+	public static Path outputOf(Path source) {
+		String name = source.getFileName().toString();
+		if (name.endsWith(SOURCE_EXTENSION))
+			name = name.substring(0, name.length() - SOURCE_EXTENSION.length());
+		return source.resolveSibling(name + ProgramFile.EXTENSION);
+	}
+	
+	/** Compile a single file, unless it is compiled already. Never throws, anything that goes wrong is
+	 * part of the result. */
+	FileResult compileFile(Path source) {
+		long start = System.nanoTime();
+		try {
+			byte[] bytes = Files.readAllBytes(source);
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+			Path output = outputOf(source);
+			if (ProgramFile.isCompiledFrom(output, digest, optimizationLevel))
+				return new FileResult(source, FileResult.Status.SKIPPED, System.nanoTime() - start, null, -1);
+			
+			String[] lines = new String(bytes, StandardCharsets.UTF_8).split("\r?\n");
+			Compiler compiler = new Compiler();
+			compiler.setOptimizationLevel(optimizationLevel);
+			ProgramFile.write(compiler.compileProgram(lines), digest, output);
+			return new FileResult(source, FileResult.Status.COMPILED, System.nanoTime() - start, null, -1);
+		} catch (CompilationException e) {
+			return new FileResult(source, FileResult.Status.FAILED, System.nanoTime() - start, e.getMessage(), e.line());
+		} catch (IOException e) {
+			return new FileResult(source, FileResult.Status.FAILED, System.nanoTime() - start, e.toString(), -1);
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM has to have SHA-256.
+			throw new RuntimeException(e);
+		} catch (RuntimeException | StackOverflowError e) {
+			// A bug in the compiler, or a program nested too deep for it, is only the end of this file.
+			return new FileResult(source, FileResult.Status.FAILED, System.nanoTime() - start, e.toString(), -1);
+		}
+	}
+	
+	public static void main(String[] args) throws IOException {
+		int level = Compiler.DEFAULT_OPTIMIZATION, threads = java.lang.Runtime.getRuntime().availableProcessors();
+		List<Path> roots = new ArrayList<Path>();
+		for (int i = 0; i < args.length; i ++) {
+			if (args[i].equals("-O") && i + 1 < args.length)
+				level = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-j") && i + 1 < args.length)
+				threads = Integer.parseInt(args[++i]);
+			else
+				roots.add(Paths.get(args[i]));
+		}
+		if (roots.isEmpty()) {
+			System.err.println("Usage : BatchCompiler [-O level] [-j threads] directory ...");
+			System.exit(2);
+		}
+		
+		BatchCompiler compiler = new BatchCompiler(level, threads);
+		long start = System.nanoTime();
+		int compiled = 0, skipped = 0, failed = 0;
+		try {
+			for (Path root : roots)
+				for (FileResult result : compiler.compile(root)) {
+					System.out.println(result);
+					switch (result.status()) {
+					case COMPILED : compiled ++; break;
+					case SKIPPED : skipped ++; break;
+					case FAILED : failed ++; break;
+					}
+				}
+		} finally {
+			compiler.shutdown();
+		}
+		System.out.printf("%d compiled, %d skipped, %d failed in %.1f ms%n", compiled, skipped, failed, (System.nanoTime() - start) / 1e6);
+		if (failed > 0)
+			System.exit(1);
+	}
+	
+	/** Compiles a source file, or everything under a directory with a task for each entry. */
+	private final class PathTask extends RecursiveTask<List<FileResult>> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final Path path;
+		
+		PathTask(Path path) {
+			this.path = path;
+		}
+		
+		@Override
+		protected List<FileResult> compute() {
+			List<FileResult> results = new ArrayList<FileResult>();
+			if (!Files.isDirectory(path)) {
+				results.add(compileFile(path));
+				return results;
+			}
+			
+			List<PathTask> tasks = new ArrayList<PathTask>();
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+				for (Path entry : entries)
+					if (Files.isDirectory(entry) || entry.getFileName().toString().endsWith(SOURCE_EXTENSION))
+						tasks.add(new PathTask(entry));
+			} catch (IOException e) {
+				results.add(new FileResult(path, FileResult.Status.FAILED, 0, e.toString(), -1));
+				return results;
+			}
+			for (PathTask task : ForkJoinTask.invokeAll(tasks))
+				results.addAll(task.join());
+			return results;
+		}
+	}
+	
+	/** What happened to a source file. */
+	public static final class FileResult {
+		
+		/** The things that can happen to a source file. */
+		public enum Status {
+			/** The file was compiled and its .brewc written. */
+			COMPILED,
+			/** The file's .brewc was compiled from the same source already. */
+			SKIPPED,
+			/** The file couldn't be read, compiled or written. */
+			FAILED
+		}
+		
+		private final Path source;
+		private final Status status;
+		private final long nanos;
+		private final String error;
+		private final int line;
+		
+		FileResult(Path source, Status status, long nanos, String error, int line) {
+			this.source = source;
+			this.status = status;
+			this.nanos = nanos;
+			this.error = error;
+			this.line = line;
+		}
+		
+		/** @return the source file. */
+		public Path source() {
+			return source;
+		}
+		
+		/** @return what happened to the file. */
+		public Status status() {
+			return status;
+		}
+		
+		/** @return how long the file took, in nanoseconds. */
+		public long nanos() {
+			return nanos;
+		}
+		
+		/** @return what was wrong with the file, or null if nothing was. */
+		public String error() {
+			return error;
+		}
+		
+		/** @return the line the problem is on, starting at 1, or -1 if it isn't known or there was none. */
+		public int line() {
+			return line;
+		}
+		
+		@Override
+		public String toString() {
+			if (status == Status.FAILED)
+				return "FAILED    " + source + (line > 0? ":" + line : "") + " : " + error;
+			return String.format("%-9s %s (%.2f ms)", status, source, nanos / 1e6);
+		}
+	}
+}
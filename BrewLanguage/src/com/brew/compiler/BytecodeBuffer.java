@@ -0,0 +1,149 @@
+package com.brew.compiler;
+
+import java.util.Arrays;
+
+import com.brew.compiler.exceptions.CompilationException;
+import com.brew.vm.InstructionSet;
+
+/**
+ * This class is where the compiler writes its bytecode. It grows by doubling, so emitting a program of
+ * any length costs time proportional to its length. Instructions whose parameter isn't known yet, like
+ * the offset of an IF whose body hasn't been compiled, are emitted with a placeholder and patched later.
+ * @author Jonathan Force
+ */
+public class BytecodeBuffer {
+	
+	private byte[] code;
+	private int length;
+	
+	public BytecodeBuffer() {
+		this(64);
+	}
+	
+	public BytecodeBuffer(int initialCapacity) {
+		this.code = new byte[Math.max(initialCapacity, 1)];
+		this.length = 0;
+	}
+	
+	/** Append a single byte. */
+	public void emit(byte b) {
+		ensureCapacity(1);
+		code[length++] = b;
+	}
+	
+	/** Append an instruction with one parameter. */
+	public void emit(byte instruction, byte parameter) {
+		ensureCapacity(2);
+		code[length++] = instruction;
+		code[length++] = parameter;
+	}
+	
+	/** Append an instruction with two parameters. */
+	public void emit(byte instruction, byte a, byte b) {
+		ensureCapacity(3);
+		code[length++] = instruction;
+		code[length++] = a;
+		code[length++] = b;
+	}
+	
+	/** Append every byte of the instructions. */
+	public void emit(byte[] instructions) {
+		ensureCapacity(instructions.length);
+		System.arraycopy(instructions, 0, code, length, instructions.length);
+		length += instructions.length;
+	}
+	
+	/** Insert an instruction with one parameter at the index, moving everything after it along. Nothing
+	 * after the index may be a jump or the target of one, because they would no longer line up. */
+	public void insert(int index, byte instruction, byte parameter) {
+		insert(index, new byte[] { instruction, parameter });
+	}
+	
+	/** Insert the bytes at the index, moving everything after it along. The same care is needed as for
+	 * {@link #insert(int, byte, byte)}. */
+	public void insert(int index, byte[] bytes) {
+		if (index < 0 || index > length)
+			throw new IndexOutOfBoundsException("Can't insert at " + index + ", only " + length + " bytes have been emitted.");
+		ensureCapacity(bytes.length);
+		System.arraycopy(code, index, code, index + bytes.length, length - index);
+		System.arraycopy(bytes, 0, code, index, bytes.length);
+		length += bytes.length;
+	}
+	
+	/** Take the bytes from the index up to (not including) the end index out of the buffer, moving
+	 * everything after them back. The same care is needed as for {@link #insert(int, byte, byte)}.
+	 * @return the bytes that were taken out. */
+	public byte[] cut(int from, int to) {
+		if (from < 0 || to < from || to > length)
+			throw new IndexOutOfBoundsException("Can't cut " + from + " to " + to + ", only " + length + " bytes have been emitted.");
+		byte[] bytes = Arrays.copyOfRange(code, from, to);
+		System.arraycopy(code, to, code, from, length - to);
+		length -= to - from;
+		return bytes;
+	}
+	
+	/** Append an instruction whose single parameter will be filled in later with {@link #patch(int, byte)}.
+	 * @return the index of the parameter. */
+	public int emitPlaceholder(byte instruction) {
+		emit(instruction, (byte) 0);
+		return length - 1;
+	}
+	
+	/** Overwrite the byte at the index. */
+	public void patch(int index, byte value) {
+		if (index < 0 || index >= length)
+			throw new IndexOutOfBoundsException("Can't patch index " + index + ", only " + length + " bytes have been emitted.");
+		code[index] = value;
+	}
+	
+	/** Fill in the offset of an IF emitted with {@link #emitPlaceholder(byte)} so that, when its condition is
+	 * false, it jumps to the current end of the buffer. If the offset doesn't fit in a byte the IF becomes an
+	 * IF_WIDE, which is a byte longer, so everything after it moves along by one. Jumps after it that are
+	 * counted from where they are, like IF, still line up.
+	 * @return the number of bytes everything after the IF moved by, 0 or 1. */
+	public int patchJumpToHere(int parameterIndex) {
+		// IF offsets are counted from the end of the IF instruction.
+		int offset = length - (parameterIndex + 1);
+		if (offset <= Byte.MAX_VALUE) {
+			patch(parameterIndex, (byte) offset);
+			return 0;
+		}
+		
+		if (offset > Short.MAX_VALUE)
+			throw new CompilationException("Unfortunately, at this time Brew supports a maximum of " + Short.MAX_VALUE + " bytes of code inside a conditional block.");
+		insert(parameterIndex + 1, new byte[1]);
+		patch(parameterIndex - 1, InstructionSet.IF_WIDE);
+		patch(parameterIndex, (byte) (offset >> 8));
+		patch(parameterIndex + 1, (byte) offset);
+		return 1;
+	}
+	
+	/** @return the byte at the index. */
+	public byte get(int index) {
+		if (index < 0 || index >= length)
+			throw new IndexOutOfBoundsException("Index " + index + " is not valid, only " + length + " bytes have been emitted.");
+		return code[index];
+	}
+	
+	/** @return the number of bytes emitted so far. This is also the index the next byte will be written to. */
+	public int position() {
+		return length;
+	}
+	
+	/** Forget everything after the position, so it can be emitted again. */
+	public void truncate(int position) {
+		if (position < 0 || position > length)
+			throw new IndexOutOfBoundsException("Can't truncate to " + position + ", only " + length + " bytes have been emitted.");
+		length = position;
+	}
+	
+	/** @return a copy of the bytes emitted so far. */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(code, length);
+	}
+	
+	private void ensureCapacity(int extra) {
+		if (length + extra > code.length)
+			code = Arrays.copyOf(code, Math.max(code.length * 2, length + extra));
+	}
+}
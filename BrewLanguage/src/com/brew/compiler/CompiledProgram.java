@@ -0,0 +1,247 @@
+package com.brew.compiler;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.brew.vm.InstructionSet;
+import com.brew.vm.VerifiedProgram;
+import com.brew.vm.Verifier;
+
+/**
+ * This class is a whole Brew program compiled to bytecode. It never changes once it has been made, so it can
+ * be handed to any number of threads at once, and kept for as long as the source it came from is wanted.
+ * The {@link ProgramCache} hands these out so that each distinct program is only compiled once, and a
+ * {@link ProgramFile} keeps them on disk between runs.
+ *
+ * Besides the bytecode a program knows the constants it uses, the size of every frame it pushes, where each
+ * of its variables lives, and the line of source each instruction came from. The bytecode is held in a
+ * read-only buffer. A program read from a file with {@link ProgramFile#map} reads its bytecode straight out
+ * of the file.
+ *
+ * The program is verified the first time somebody asks for its {@link #verified()} form, and that form is
+ * kept too, along with everything the virtual machine works out about it as it runs.
+ * @author Jonathan Force
+ */
+public final class CompiledProgram {
+	
+	private final ByteBuffer code;
+	private final int optimizationLevel;
+	/** Every value the program pushes, adds or compares with, smallest first. */
+	private final byte[] constants;
+	/** Every int or long value the program pushes, smallest first. */
+	private final long[] wideConstants;
+	/** The index of every PUSH_FRAME in the program, and the size of the frame it pushes. */
+	private final int[] framePositions;
+	private final byte[] frameSizes;
+	/** The name of every variable, and where it lives. */
+	private final String[] variableNames;
+	private final StackPointer[] variables;
+	/** The index in the bytecode where each line starts, in order, and the number of the line. */
+	private final int[] linePositions, lineNumbers;
+	/** The program after verification, once somebody has asked for it. */
+	private volatile VerifiedProgram verified;
+	
+	/** Make a program that knows nothing about where it came from.
+	 * @param bytecode The compiled program. It is copied, so the caller may go on to change it.
+	 * @param optimizationLevel The level the program was compiled at, one of those in {@link Compiler}. */
+	public CompiledProgram(byte[] bytecode, int optimizationLevel) {
+		this(bytecode.clone(), optimizationLevel, new String[0], new StackPointer[0], new int[0], new int[0]);
+	}
+	
+	/** Make a program from what the compiler knows about it. The arrays are kept, not copied. */
+	CompiledProgram(byte[] bytecode, int optimizationLevel, String[] variableNames, StackPointer[] variables,
+			int[] linePositions, int[] lineNumbers) {
+		this.code = ByteBuffer.wrap(bytecode).asReadOnlyBuffer();
+		this.optimizationLevel = optimizationLevel;
+		this.variableNames = variableNames;
+		this.variables = variables;
+		this.linePositions = linePositions;
+		this.lineNumbers = lineNumbers;
+		
+		// Walk the program for its constants and frames. A program that can't be decoded just has fewer.
+		boolean[] isConstant = new boolean[256];
+		long[] wideConstants = new long[4];
+		int wideCount = 0, frameCount = 0;
+		int[] framePositions = new int[4];
+		byte[] frameSizes = new byte[4];
+		for (int pc = 0; pc < bytecode.length; ) {
+			int length = InstructionSet.lengthOf(bytecode[pc]);
+			if (length == -1 || pc + length > bytecode.length)
+				break;
+			switch (bytecode[pc]) {
+			case InstructionSet.PUSH :
+			case InstructionSet.ADD_CONSTANT :
+				isConstant[bytecode[pc + 1] & 0xFF] = true;
+				break;
+			case InstructionSet.INCREMENT_VAR :
+				isConstant[bytecode[pc + 3] & 0xFF] = true;
+				break;
+			case InstructionSet.IF_VAR :
+				isConstant[bytecode[pc + 4] & 0xFF] = true;
+				break;
+			case InstructionSet.PUSH_INT :
+			case InstructionSet.PUSH_LONG :
+				if (wideCount == wideConstants.length)
+					wideConstants = Arrays.copyOf(wideConstants, wideCount * 2);
+				wideConstants[wideCount ++] = InstructionSet.read(bytecode, pc + 1, length - 1);
+				break;
+			case InstructionSet.PUSH_FRAME :
+				if (frameCount == framePositions.length) {
+					framePositions = Arrays.copyOf(framePositions, frameCount * 2);
+					frameSizes = Arrays.copyOf(frameSizes, frameCount * 2);
+				}
+				framePositions[frameCount] = pc;
+				frameSizes[frameCount ++] = bytecode[pc + 1];
+				break;
+			}
+			pc += length;
+		}
+		this.constants = constantsOf(isConstant);
+		this.wideConstants = wideConstantsOf(Arrays.copyOf(wideConstants, wideCount));
+		this.framePositions = Arrays.copyOf(framePositions, frameCount);
+		this.frameSizes = Arrays.copyOf(frameSizes, frameCount);
+	}
+	
+	/** Make a program read from a {@link ProgramFile}. The buffers and arrays are kept, not copied. */
+	CompiledProgram(ByteBuffer code, int optimizationLevel, byte[] constants, long[] wideConstants, int[] framePositions,
+			byte[] frameSizes, String[] variableNames, StackPointer[] variables, int[] linePositions, int[] lineNumbers) {
+		this.code = code.asReadOnlyBuffer();
+		this.optimizationLevel = optimizationLevel;
+		this.constants = constants;
+		this.wideConstants = wideConstants;
+		this.framePositions = framePositions;
+		this.frameSizes = frameSizes;
+		this.variableNames = variableNames;
+		this.variables = variables;
+		this.linePositions = linePositions;
+		this.lineNumbers = lineNumbers;
+	}
+	
+	/** @return a copy of the bytecode. */
+	public byte[] bytecode() {
+		byte[] copy = new byte[code.capacity()];
+		code.duplicate().get(copy);
+		return copy;
+	}
+	
+	/** @return the bytecode, as a read-only buffer positioned at its first byte. */
+	public ByteBuffer code() {
+		return code.duplicate();
+	}
+	
+	/** @return the number of bytes of bytecode. */
+	public int length() {
+		return code.capacity();
+	}
+	
+	/** @return the level the program was compiled at. */
+	public int optimizationLevel() {
+		return optimizationLevel;
+	}
+	
+	/** @return every value the program pushes, adds or compares a variable with, smallest first. */
+	public byte[] constants() {
+		return constants.clone();
+	}
+	
+	/** @return every int or long value the program pushes, smallest first. */
+	public long[] wideConstants() {
+		return wideConstants.clone();
+	}
+	
+	/** @return the number of PUSH_FRAME instructions in the program. */
+	public int frameCount() {
+		return frameSizes.length;
+	}
+	
+	/** @return the index in the bytecode of the n'th PUSH_FRAME. */
+	public int framePosition(int n) {
+		return framePositions[n];
+	}
+	
+	/** @return the size of the frame pushed by the n'th PUSH_FRAME. */
+	public int frameSize(int n) {
+		return frameSizes[n] & 0xFF;
+	}
+	
+	/** @return the number of variables the program declares. */
+	public int variableCount() {
+		return variables.length;
+	}
+	
+	/** @return the name of the n'th variable. Variables are in the order they live in. */
+	public String variableName(int n) {
+		return variableNames[n];
+	}
+	
+	/** @return where the n'th variable lives. */
+	public StackPointer variable(int n) {
+		return variables[n];
+	}
+	
+	/** @return where the variable with the name lives, or null if the program has no such variable. */
+	public StackPointer variable(String name) {
+		for (int i = 0; i < variableNames.length; i ++)
+			if (variableNames[i].equals(name))
+				return variables[i];
+		return null;
+	}
+	
+	/** @return the number of entries in the line table. */
+	public int lineTableSize() {
+		return linePositions.length;
+	}
+	
+	/** @return the index in the bytecode where the n'th entry of the line table starts. */
+	public int linePosition(int n) {
+		return linePositions[n];
+	}
+	
+	/** @return the number of the line, starting at 1, of the n'th entry of the line table. */
+	public int lineNumber(int n) {
+		return lineNumbers[n];
+	}
+	
+	/** @return the line of source, starting at 1, that the instruction at the index in the bytecode came
+	 * from, or -1 if it isn't known. */
+	public int lineOf(int pc) {
+		int index = Arrays.binarySearch(linePositions, pc);
+		if (index < 0)
+			index = -index - 2;
+		return (index < 0)? -1 : lineNumbers[index];
+	}
+	
+	/** @return the program after verification, ready to be run on the fast path. Two threads asking at once
+	 * may both verify it, either answer is as good as the other. */
+	public VerifiedProgram verified() {
+		VerifiedProgram program = verified;
+		if (program == null) {
+			program = Verifier.verify(code.duplicate());
+			verified = program;
+		}
+		return program;
+	}
+	
+	private static byte[] constantsOf(boolean[] isConstant) {
+		int count = 0;
+		for (boolean constant : isConstant)
+			if (constant)
+				count ++;
+		byte[] constants = new byte[count];
+		// Go from -128 up, so the constants come out smallest first.
+		for (int value = Byte.MIN_VALUE, i = 0; value <= Byte.MAX_VALUE; value ++)
+			if (isConstant[value & 0xFF])
+				constants[i ++] = (byte) value;
+		return constants;
+	}
+	
+	/** @return the values sorted, each only once. */
+	private static long[] wideConstantsOf(long[] values) {
+		Arrays.sort(values);
+		int count = 0;
+		for (int i = 0; i < values.length; i ++)
+			if (i == 0 || values[i] != values[i - 1])
+				values[count ++] = values[i];
+		return Arrays.copyOf(values, count);
+	}
+}
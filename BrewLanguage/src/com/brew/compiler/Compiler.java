@@ -1,9 +1,22 @@
 package com.brew.compiler;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 import com.brew.compiler.exceptions.CompilationException;
+import com.brew.compiler.ir.CommonSubexpressionElimination;
+import com.brew.compiler.ir.CopyPropagation;
+import com.brew.compiler.ir.DeadStoreElimination;
+import com.brew.compiler.ir.FramePacking;
+import com.brew.compiler.ir.Graph;
+import com.brew.compiler.ir.JumpThreading;
+import com.brew.compiler.ir.Pass;
 import com.brew.vm.InstructionSet;
 
 /**
@@ -13,153 +26,868 @@ import com.brew.vm.InstructionSet;
  */
 public class Compiler {
 	
+	/** The optimization levels. Each level does everything the levels below it do. */
+	public static final int
+		/** The bytecode is a direct translation of the source. */
+		NO_OPTIMIZATION = 0,
+		/** Expressions are worked out at compile time as far as they can be, and if statements whose
+		 * condition is always true or always false lose their IF. Inside loops, the parts of expressions
+		 * that can't change while the loop runs are worked out once, in front of it. */
+		FOLD_CONSTANTS = 1,
+		/** Common sequences of instructions are replaced with superinstructions by the {@link Peephole} pass. */
+		SUPERINSTRUCTIONS = 2,
+		/** The bodies of if statements and loops share the frame they are in, unless it is full, instead of
+		 * pushing their own. Short functions that just return a value are compiled in place of their calls. */
+		INLINE = 3,
+		/** The program goes through the {@link Pass}es of its control flow {@link Graph} : by default copy
+		 * propagation, common subexpression elimination, dead store elimination and jump threading. */
+		DATA_FLOW = 4,
+		
+		DEFAULT_OPTIMIZATION = DATA_FLOW;
+	
+	/** What compileIfStatement returns instead of the IF's offset when the condition is known at compile time. */
+	private static final int ALWAYS_TRUE = -1, ALWAYS_FALSE = -2;
+	
 	private final HashMap<String, StackPointer> variableToPointerMap;
+	/** Every function declared so far in the program being compiled, by name. */
+	private final HashMap<String, Function> functions;
+	/** The function being compiled, or null outside of functions. */
+	private Function function;
 	private final Utilities util;
-	private int pointerID, frameID;
+	private final Lexer lexer;
+	/** The frame variables are being put in, and its id. */
+	private Frame frame;
+	private int frameID;
+	/** The number of if statements and loops around the line being compiled. */
+	private int depth;
+	/** The names of the variables declared in the blocks being compiled, innermost last, and the names of
+	 * the variables whose blocks are over, which can't be used any more. */
+	private final ArrayList<String> declared;
+	private final HashSet<String> hidden;
+	/** The names in hidden, in the order they were hidden, so a statement compiled again can take back its own. */
+	private final ArrayList<String> hiddenOrder;
+	private int optimizationLevel;
+	/** The passes the graph goes through from {@link #DATA_FLOW} up. */
+	private Pass[] passes;
+	/** The names of the variables whoever runs a program reads once it has run, or null for all of them. */
+	private HashSet<String> outputs;
+	/** The id each byte of the program's own frame ended up with in the last program compiled, by the id it
+	 * was given. The passes may move the outputs. */
+	private final int[] outputPlaces;
+	/** Where the variables declared at the top level go, when an {@link IncrementalCompiler} lays out the
+	 * program's frame. Otherwise null. */
+	private HashMap<String, StackPointer> places;
+	/** The index in the bytecode where each line of the last program compiled starts, and the line's number. */
+	private int[] linePositions, lineNumbers;
+	private int lineCount;
 	
 	public Compiler() {
 		this.variableToPointerMap = new HashMap<String, StackPointer>();
+		this.functions = new HashMap<String, Function>();
 		this.util = new Utilities();
-		pointerID = frameID = 0;
+		this.util.setFunctions(functions);
+		this.lexer = new Lexer();
+		this.linePositions = new int[16];
+		this.lineNumbers = new int[16];
+		this.declared = new ArrayList<String>();
+		this.hidden = new HashSet<String>();
+		this.hiddenOrder = new ArrayList<String>();
+		this.outputPlaces = new int[InstructionSet.MAX_FRAME_SIZE + 1];
+		frameID = lineCount = 0;
+		enter(new Frame((byte) 0));
+		setOptimizationLevel(DEFAULT_OPTIMIZATION);
+		setPasses(new CopyPropagation(), new CommonSubexpressionElimination(), new DeadStoreElimination(), new JumpThreading(),
+				new FramePacking());
+	}
+	
+	/** Set how hard the compiler tries to optimize the bytecode it produces.
+	 * @param level One of the optimization levels in this class, like {@link #FOLD_CONSTANTS}. */
+	public void setOptimizationLevel(int level) {
+		if (level < NO_OPTIMIZATION || level > DATA_FLOW)
+			throw new IllegalArgumentException("No such optimization level : " + level);
+		this.optimizationLevel = level;
+		util.setOptimizationLevel(level);
 	}
 	
+	/** @return the optimization level, {@link #DEFAULT_OPTIMIZATION} unless it has been changed. */
+	public int getOptimizationLevel() {
+		return optimizationLevel;
+	}
+	
+	/** Set the passes the program's graph goes through from {@link #DATA_FLOW} up, in the order they run.
+	 * Each time round, every pass runs once, and they all run again if any of them changed something. */
+	public void setPasses(Pass ... passes) {
+		this.passes = passes.clone();
+	}
+	
+	/** @return the passes the program's graph goes through from {@link #DATA_FLOW} up. */
+	public Pass[] getPasses() {
+		return passes.clone();
+	}
 	
+	/** Name the variables declared at the top level of a program that whoever runs it reads once it has run.
+	 * From {@link #DATA_FLOW} up, the passes treat every other variable like one declared in a body : stores
+	 * nobody reads are taken out, and its slot can be shared with variables that don't hold anything at the
+	 * same time. A {@link CompiledProgram} only knows where its outputs live.
+	 * @param names The names of the outputs, or null for every variable declared at the top level, which is
+	 * what they are unless this is set. */
+	public void setOutputs(String ... names) {
+		this.outputs = (names == null)? null : new HashSet<String>(Arrays.asList(names));
+	}
+	
+	/** Compile the Brew source code to bytecode. The program runs in its own frame, which is pushed
+	 * at the start and popped at the end. The code of every line is then built into the program's control
+	 * flow {@link Graph}, which goes through the passes from {@link #DATA_FLOW} up, and lowered back to
+	 * bytecode. From {@link #SUPERINSTRUCTIONS} up, the whole program then goes through the peephole pass.
+	 * The methods that compile a single statement skip both, since the caller pieces their output together
+	 * and works out the jumps itself.
+	 * @param sourceLines The source code, one statement per line.
+	 * @return The compiled byte code.
+	 */
 	public byte[] compile(String ... sourceLines) {
-		byte[] total = new byte[0];
-		byte neededFrameSize = 0;
+		BytecodeBuffer out = new BytecodeBuffer(sourceLines.length * 8);
+		lineCount = 0;
+		// Functions live at a place in the bytecode, so they only belong to the program they are declared in.
+		functions.clear();
+		compileBlock(sourceLines, 0, sourceLines.length, out);
+		
+		// The lines move along with the instructions they start at.
+		int[] positions = Arrays.copyOf(linePositions, lineCount);
+		byte[] code = out.toByteArray();
+		Graph graph = Graph.build(code);
+		for (int id = 0; id < outputPlaces.length; id ++)
+			outputPlaces[id] = id;
+		if (graph != null) {
+			if (optimizationLevel >= DATA_FLOW) {
+				graph.setOutputs(outputBytes());
+				graph.optimize(passes);
+				for (int id = 0; id < outputPlaces.length; id ++)
+					outputPlaces[id] = graph.placeOf(id);
+			}
+			code = graph.lower(positions);
+		}
+		if (optimizationLevel >= SUPERINSTRUCTIONS)
+			code = Peephole.optimize(code, positions);
+		System.arraycopy(positions, 0, linePositions, 0, lineCount);
+		return code;
+	}
+	
+	/** Compile the Brew source code to a {@link CompiledProgram}, which also keeps the line of source each
+	 * instruction came from and where each variable lives, or from {@link #DATA_FLOW} up where each of its
+	 * {@link #setOutputs outputs} lives. The compiler forgets every variable it knew first, so the program is
+	 * compiled on its own.
+	 * @param sourceLines The source code, one statement per line.
+	 * @return The compiled program.
+	 */
+	public CompiledProgram compileProgram(String ... sourceLines) {
+		reset();
+		byte[] code = compile(sourceLines);
+		
+		// From DATA_FLOW up the variables may have been taken out or moved, so only the outputs are kept, where
+		// they have gone.
+		final HashMap<String, StackPointer> places = new HashMap<String, StackPointer>();
+		for (String name : variableToPointerMap.keySet()) {
+			StackPointer p = variableToPointerMap.get(name);
+			if (optimizationLevel < DATA_FLOW)
+				places.put(name, p);
+			else if (isOutput(name))
+				places.put(name, (p.frame() == 0)? new StackPointer(p.frame(), (byte) outputPlaces[p.variableID() & 0xFF], p.size()) : p);
+		}
+		
+		// Keep the variables in the order they live in, so the same source always gives the same program.
+		List<String> names = new ArrayList<String>(places.keySet());
+		Collections.sort(names, new Comparator<String>() {
+			public int compare(String a, String b) {
+				StackPointer p = places.get(a), q = places.get(b);
+				if (p.frame() != q.frame())
+					return p.frame() - q.frame();
+				if (p.variableID() != q.variableID())
+					return (p.variableID() & 0xFF) - (q.variableID() & 0xFF);
+				return a.compareTo(b);
+			}
+		});
+		StackPointer[] pointers = new StackPointer[names.size()];
+		for (int i = 0; i < pointers.length; i ++)
+			pointers[i] = places.get(names.get(i));
+		
+		return new CompiledProgram(code, optimizationLevel, names.toArray(new String[names.size()]), pointers,
+				Arrays.copyOf(linePositions, lineCount), Arrays.copyOf(lineNumbers, lineCount));
+	}
+	
+	/** Compile the lines as statements at the top level of a program that an {@link IncrementalCompiler} puts
+	 * together a piece at a time. Like the methods that compile a single statement, nothing goes through the
+	 * graph, and the caller pieces the code together and works out the jumps itself. From
+	 * {@link #SUPERINSTRUCTIONS} up the code still goes through the peephole pass. The compiler forgets every
+	 * variable it knew first.
+	 * @param variables The variables the lines can see, by name.
+	 * @param functions The functions the lines can call, by name.
+	 * @param hidden The variables the lines can't use, because the block that declared them is over.
+	 * @param places Where each variable the lines declare at the top level goes.
+	 * @param bodyStart The first byte of the program's frame the variables of bodies, and temporaries, may use.
+	 * @return the code of the lines, laid out as if it starts at index 0. Where each line starts, the size
+	 * of the program's frame it needs and the functions it declares are left behind. */
+	byte[] compileFragment(String[] lines, HashMap<String, StackPointer> variables, HashMap<String, Function> functions,
+			HashSet<String> hidden, HashMap<String, StackPointer> places, int bodyStart) {
+		reset();
+		enter(new Frame((byte) 0, bodyStart));
+		variableToPointerMap.putAll(variables);
+		this.functions.putAll(functions);
+		this.hidden.addAll(hidden);
+		this.places = places;
+		lineCount = 0;
+		BytecodeBuffer out = new BytecodeBuffer(lines.length * 8);
+		try {
+			compileStatements(lines, 0, lines.length, out);
+		} finally {
+			this.places = null;
+		}
+		byte[] code = out.toByteArray();
+		if (optimizationLevel < SUPERINSTRUCTIONS)
+			return code;
+		
+		// The functions the lines declare move along with the lines. Those compiled in place of their calls
+		// have no code to move.
+		ArrayList<Function> declared = new ArrayList<Function>();
+		for (Function f : this.functions.values())
+			if (!functions.containsKey(f.name) && f.inline == null)
+				declared.add(f);
+		int[] positions = Arrays.copyOf(linePositions, lineCount + declared.size());
+		for (int i = 0; i < declared.size(); i ++)
+			positions[lineCount + i] = declared.get(i).address;
+		code = Peephole.optimize(code, positions);
+		System.arraycopy(positions, 0, linePositions, 0, lineCount);
+		for (int i = 0; i < declared.size(); i ++) {
+			Function f = declared.get(i);
+			this.functions.put(f.name, new Function(f.name, positions[lineCount + i], f.parameterNames, f.parameterSizes,
+					f.resultSize, f.inline));
+		}
+		return code;
+	}
+	
+	/** @return the index in the code of the last fragment compiled where each of its lines starts. */
+	int[] fragmentLinePositions() {
+		return Arrays.copyOf(linePositions, lineCount);
+	}
+	
+	/** @return the number of each line of the last fragment compiled, counting from 1 at its first line. */
+	int[] fragmentLineNumbers() {
+		return Arrays.copyOf(lineNumbers, lineCount);
+	}
+	
+	/** @return the number of bytes of the program's frame the last fragment compiled uses. */
+	int fragmentFrameSize() {
+		return frame.size();
+	}
+	
+	/** @return the variables the last fragment compiled can't use any more, those it was given and those
+	 * declared in its bodies. */
+	HashSet<String> fragmentHidden() {
+		return new HashSet<String>(hidden);
+	}
+	
+	/** @return the function the last fragment compiled declared with the name, or null. */
+	Function fragmentFunction(String name) {
+		return functions.get(name);
+	}
+	
+	/** Compile the lines from start up to (not including) end as a block that pushes the current frame,
+	 * writing the bytecode to the end of the buffer. */
+	private void compileBlock(String[] sourceLines, int start, int end, BytecodeBuffer out) {
+		// The size of the frame isn't known until every line has been compiled, so fill it in later.
+		int frameSize = out.emitPlaceholder(InstructionSet.PUSH_FRAME);
+		compileStatements(sourceLines, start, end, out);
+		out.patch(frameSize, (byte) frame.size());
+		out.emit(InstructionSet.POP_FRAME);
+	}
+	
+	/** Compile the lines from start up to (not including) end as the body of an if statement or a loop,
+	 * writing the bytecode to the end of the buffer. A shared body uses the frame it is in, and gives back
+	 * the slots of its variables when it is over. Otherwise it has a frame of its own. Either way, its
+	 * variables can't be used once it is over. */
+	private void compileBody(String[] sourceLines, int start, int end, boolean share, BytecodeBuffer out) {
+		int scope = declared.size();
+		depth ++;
+		if (share) {
+			int mark = frame.mark();
+			compileStatements(sourceLines, start, end, out);
+			frame.release(mark);
+		} else {
+			Frame outer = enter(new Frame((byte) ++frameID));
+			compileBlock(sourceLines, start, end, out);
+			enter(outer);
+			frameID --;
+		}
+		depth --;
+		hide(scope);
+	}
+	
+	/** Compile the lines from start up to (not including) end to the end of the buffer. Their variables
+	 * go in the current frame. */
+	private void compileStatements(String[] sourceLines, int start, int end, BytecodeBuffer out) {
+		for (int line = start; line < end; line ++) {
+			// Blank lines don't do anything.
+			if (lexer.tokenize(sourceLines[line], line + 1) == 0)
+				continue;
+			recordLine(out.position(), line + 1);
+			
+			if (lexer.textEquals(0, "DEBUG")) {
+				out.emit(InstructionSet.DEBUG_STACK);
+			} else if (lexer.textEquals(0, "if") || lexer.textEquals(0, "while") || lexer.textEquals(0, "for")) {
+				line = compileBlockStatement(sourceLines, line, end, out);
+			} else if (lexer.textEquals(0, "return")) {
+				compileReturnStatement(out);
+			} else if (lexer.count() > 2 && lexer.kind(0) == Lexer.IDENTIFIER && lexer.kind(1) == Lexer.IDENTIFIER
+					&& lexer.kind(2) == Lexer.LEFT_PARENTHESIS) {
+				line = compileFunction(sourceLines, line, end, out);
+			} else {
+				compileAssignmentStatement(0, lexer.count(), out);
+			}
+		}
+	}
+	
+	/** Compile the if statement or loop that starts on the line, and its body, to the end of the buffer.
+	 * From {@link #INLINE} up its variables share the frame it is in. If there isn't room left for them
+	 * there, everything the statement did is forgotten and it is compiled again with a frame of its own,
+	 * the way it is below INLINE.
+	 * @return the index of the line that closes its body. */
+	private int compileBlockStatement(String[] sourceLines, int line, int end, BytecodeBuffer out) {
+		boolean share = optimizationLevel >= INLINE;
+		Frame shared = frame;
+		int position = out.position(), mark = frame.mark(), size = frame.size(), id = frameID, level = depth;
+		int scope = declared.size(), hiddenScope = hiddenOrder.size();
+		try {
+			return compileBlockStatement(sourceLines, line, end, share, out);
+		} catch (CompilationException e) {
+			if (!share || !shared.isFull())
+				throw e;
+		}
+		
+		out.truncate(position);
+		forgetLines(position);
+		recordLine(position, line + 1);
+		enter(shared);
+		shared.rollBack(mark, size);
+		frameID = id;
+		depth = level;
+		while (declared.size() > scope)
+			variableToPointerMap.remove(declared.remove(declared.size() - 1));
+		while (hiddenOrder.size() > hiddenScope) {
+			String name = hiddenOrder.remove(hiddenOrder.size() - 1);
+			hidden.remove(name);
+			variableToPointerMap.remove(name);
+		}
+		lexer.tokenize(sourceLines[line], line + 1);
+		return compileBlockStatement(sourceLines, line, end, false, out);
+	}
+	
+	private int compileBlockStatement(String[] sourceLines, int line, int end, boolean share, BytecodeBuffer out) {
+		if (!lexer.textEquals(0, "if"))
+			return compileLoop(sourceLines, line, end, share, out);
+		
+		int ifStart = out.position();
+		int jump = compileIfStatement(out);
+		int bodyEnd = endOfBlock(sourceLines, line, end, "if statement");
+		compileBody(sourceLines, line + 1, bodyEnd, share, out);
 		
-		for (int line = 0; line < sourceLines.length; line ++) {
-			String source = sourceLines[line];
+		// The body is still compiled when the condition is always false, so that it is checked for errors.
+		if (jump == ALWAYS_FALSE) {
+			out.truncate(ifStart);
+			forgetLines(ifStart);
+		}
+		else if (jump != ALWAYS_TRUE && out.patchJumpToHere(jump) > 0) {
+			// The IF had to be widened, so the lines in its body moved along.
+			shiftLines(jump, 1);
+		}
+		return bodyEnd;
+	}
+	
+	/** @return the index of the line that closes the block opened on the line. Blocks opened and closed
+	 * inside it are skipped over, so bodies can be nested. */
+	private int endOfBlock(String[] sourceLines, int line, int end, String statement) {
+		int depth = 0;
+		for (int i = line + 1; i < end; i ++) {
+			String text = sourceLines[i].trim();
+			if (text.startsWith("}") && depth-- == 0)
+				return i;
+			if (text.endsWith("{"))
+				depth ++;
+		}
+		throw new CompilationException("The " + statement + " is never closed with a }.", line + 1, -1);
+	}
+	
+	/** Compile the while or for loop that starts on the line, and its body, to the end of the buffer.
+	 * The loop is compiled upside down. Its condition is tested once in front of the body, to skip the loop
+	 * when it doesn't run at all, and then at the bottom of every iteration, where a single IF jumps back to
+	 * the top for as long as the condition holds. So each iteration only takes one jump.
+	 *
+	 * PUSH_FRAME                       The loop's own frame, for the variable a for loop declares and for temporaries.
+	 *                                  Only for a loop that doesn't share the frame it is in.
+	 * initialization                   For loops only.
+	 * preheader                        Everything the loop works out that can't change while it runs.
+	 * opposite of condition, IF        Over the loop.
+	 * body                             The top of the loop.
+	 * step                             For loops only.
+	 * condition, IF                    Back to the top.
+	 * POP_FRAME
+	 *
+	 * while loops take the form :
+	 * while (condition) {
+	 * and for loops :
+	 * for (initialization; condition; step) {
+	 * where the initialization and the step are optional assignment statements. The body shares the frame
+	 * of a loop that has its own from {@link #INLINE} up.
+	 * @return the index of the line that closes the loop's body.
+	 */
+	private int compileLoop(String[] sourceLines, int line, int end, boolean share, BytecodeBuffer out) {
+		String source = sourceLines[line];
+		String statement = lexer.textEquals(0, "for")? "for loop" : "while loop";
+		int close = closeCondition(statement);
+		
+		// A for loop's parenthesis hold its initialization, condition and step, split by semicolons.
+		int initializationEnd = 2, conditionStart = 2, conditionEnd = close;
+		if (statement.equals("for loop")) {
+			int first = -1, second = -1;
+			for (int i = 2; i < close; i ++)
+				if (lexer.kind(i) == Lexer.SEMICOLON) {
+					if (first == -1)
+						first = i;
+					else if (second == -1)
+						second = i;
+					else
+						throw lexer.error(i, "A for loop has three parts, split by two semicolons.");
+				}
+			if (second == -1)
+				throw lexer.error(close, "A for loop has three parts, split by two semicolons.");
+			initializationEnd = first;
+			conditionStart = first + 1;
+			conditionEnd = second;
+		}
+		if (conditionStart == conditionEnd)
+			throw lexer.error(conditionEnd, "The " + statement + " has no condition.");
+		int bodyEnd = endOfBlock(sourceLines, line, end, statement);
+		
+		// The loop's frame is pushed once, not every iteration. Its size is known once the loop is compiled.
+		// A loop that shares the frame it is in has no frame of its own.
+		int loopStart = out.position(), frameSize = -1, mark = frame.mark(), scope = declared.size();
+		Frame outerFrame = frame;
+		if (!share) {
+			frameSize = out.emitPlaceholder(InstructionSet.PUSH_FRAME);
+			enter(new Frame((byte) ++frameID));
+		}
+		if (initializationEnd > 2)
+			compileAssignmentStatement(2, initializationEnd, out);
+		
+		// Hoisting is the expression compiler's job, it only needs to know which variables the loop changes.
+		Loop loop = new Loop(frame, assignedIn(sourceLines, line, bodyEnd));
+		Loop outer = util.setLoop(loop);
+		Frame loopFrame = frame;
+		loopFrame.enterLoop();
+		int preheader = out.position();
+		try {
+			checkScope(conditionStart, conditionEnd);
+			int exit = -1;
+			switch (util.compileConditional(lexer, conditionStart, conditionEnd, variableToPointerMap, out)) {
+			case 1 : exit = ALWAYS_TRUE; break;
+			case 0 : exit = ALWAYS_FALSE; break;
+			default : exit = out.emitPlaceholder(InstructionSet.IF);
+			}
 			
-			source = util.removeLeadingWhitespace(source);
+			int top = out.position();
+			compileBody(sourceLines, line + 1, bodyEnd, optimizationLevel >= INLINE, out);
+			
+			// The body has been through the lexer since, so the loop's own line is lexed again.
+			recordLine(out.position(), line + 1);
+			lexer.tokenize(source, line + 1);
+			if (conditionEnd + 1 < close) {
+				int step = conditionEnd + 1;
+				if (lexer.kind(step) == Lexer.IDENTIFIER && step + 1 < close && lexer.kind(step + 1) == Lexer.IDENTIFIER)
+					throw lexer.error(step, "The step of a for loop can't declare a variable.");
+				compileAssignmentStatement(step, close, out);
+			}
+			checkScope(conditionStart, conditionEnd);
+			if (util.compileConditional(lexer, conditionStart, conditionEnd, variableToPointerMap, true, out) == 0)
+				// The loop never stops on its own, the opposite of its condition is never true.
+				out.emit(InstructionSet.PUSH, (byte) 0);
+			emitJumpBack(top, out);
 			
-			if (source.startsWith("DEBUG")) {
-				total = compose(total, new byte[] { InstructionSet.DEBUG_STACK });
-			} else if (source.startsWith("if")) {
-				ArrayList<String> block = new ArrayList<String>();
-				line ++;
-				while (!util.removeLeadingWhitespace(sourceLines[line]).startsWith("}")) {
-					block.add(sourceLines[line]);
-					line ++;
+			if (exit == ALWAYS_FALSE) {
+				// Like an if statement, the loop was still compiled so that it is checked for errors.
+				out.truncate(preheader);
+				forgetLines(preheader);
+				if (!share) {
+					if (preheader == loopStart + 2)
+						out.truncate(loopStart);
+					else {
+						out.patch(frameSize, (byte) frame.size());
+						out.emit(InstructionSet.POP_FRAME);
+					}
 				}
-				
-				int old = pointerID;
-				pointerID = 0;
-				frameID ++;
-				byte[] blockCompiled = compile(block.toArray(new String[0]));
-				frameID --;
-				pointerID = old;
-				
-				total = compose(total, compileIfStatement(source, blockCompiled.length), blockCompiled);
 			} else {
-				int oldNumberOfVariables = variableToPointerMap.size();
-				total = compose(total, compileAssignmentStatement(source));
-				int numberOfVariables = variableToPointerMap.size();
-				if (numberOfVariables > oldNumberOfVariables && neededFrameSize++ == Byte.MAX_VALUE)
-					throw new CompilationException("Cannot compile, there is a maximum number of " + Byte.MAX_VALUE + " variables per closure.");
+				if (exit != ALWAYS_TRUE && out.patchJumpToHere(exit) > 0)
+					shiftLines(exit, 1);
+				if (!share)
+					out.emit(InstructionSet.POP_FRAME);
+				
+				byte[] hoisted = loop.preheader();
+				out.insert(preheader, hoisted);
+				shiftLines(preheader - 1, hoisted.length);
+				if (!share)
+					out.patch(frameSize, (byte) frame.size());
 			}
+		} finally {
+			util.setLoop(outer);
+			loopFrame.leaveLoop();
+		}
+		
+		if (share)
+			frame.release(mark);
+		else {
+			enter(outerFrame);
+			frameID --;
 		}
+		hide(scope);
+		return bodyEnd;
+	}
+	
+	/** Compile the function declared on the line, and its body, to the end of the buffer. The program
+	 * jumps over the function's code, which only runs when it is called.
+	 *
+	 * GOTO_WIDE                        Over the function.
+	 * PUSH_FRAME                       The function's body. Its parameters are in the frame the CALL made.
+	 * body
+	 * POP_FRAME
+	 * PUSH 0, RETURN                   For a function that doesn't return on its own.
+	 *
+	 * From {@link #INLINE} up, a function without any variables doesn't push a frame, and a function that
+	 * is compiled in place of its calls has no code of its own at all. Its body is still compiled, so that
+	 * it is checked for errors.
+	 *
+	 * Functions take the form :
+	 * T name(T parameter, T parameter) {
+	 * where each T is byte, int or long. They are declared at the top of the program, before they are
+	 * called, and only see their own parameters and variables. A function can call itself.
+	 * @return the index of the line that closes the function's body.
+	 */
+	private int compileFunction(String[] sourceLines, int line, int end, BytecodeBuffer out) {
+		if (depth != 0 || function != null)
+			throw lexer.error(1, "Functions can only be declared at the top level of a program.");
+		String name = lexer.text(1);
+		if (functions.containsKey(name))
+			throw lexer.error(1, "Function \"" + name + "\" already exists.");
+		int resultSize = sizeOfType(0);
 		
-		return compose(
-				new byte[] { InstructionSet.PUSH_FRAME, neededFrameSize },
-				total,
-				new byte[] { InstructionSet.POP_FRAME });
+		// The parameters are pairs of a type and a name, split by commas.
+		int count = lexer.count(), i = 3;
+		int[] sizes = new int[count];
+		String[] names = new String[count];
+		int parameters = 0, argumentSize = 0;
+		while (i < count && lexer.kind(i) != Lexer.RIGHT_PARENTHESIS) {
+			if (parameters > 0) {
+				if (lexer.kind(i) != Lexer.COMMA)
+					throw lexer.error(i, "The parameters of a function are split by commas.");
+				i ++;
+			}
+			if (i + 1 >= count || lexer.kind(i) != Lexer.IDENTIFIER || lexer.kind(i + 1) != Lexer.IDENTIFIER)
+				throw lexer.error(i, "Each parameter of a function is a data type and a name.");
+			names[parameters] = lexer.text(i + 1);
+			for (int k = 0; k < parameters; k ++)
+				if (names[k].equals(names[parameters]))
+					throw lexer.error(i + 1, "Parameter \"" + names[k] + "\" already exists.");
+			sizes[parameters] = sizeOfType(i);
+			argumentSize += sizes[parameters++];
+			i += 2;
+		}
+		if (i == count)
+			throw lexer.error(count, "The parameters of the function are never closed.");
+		if (i + 2 != count || lexer.kind(i + 1) != Lexer.LEFT_BRACE)
+			throw lexer.error(i + 1, "A function's parameters are followed by the { that opens its body.");
+		if (argumentSize > Byte.MAX_VALUE)
+			throw lexer.error(3, "Cannot compile, there is a maximum of " + Byte.MAX_VALUE + " bytes of parameters per function.");
+		int bodyEnd = endOfBlock(sourceLines, line, end, "function");
+		
+		// The function is known before its body is compiled, so that it can call itself.
+		int jump = out.emitPlaceholder(InstructionSet.GOTO_WIDE);
+		out.emit((byte) 0);
+		if (out.position() > 0xFFFF)
+			throw lexer.error(1, "Unfortunately, at this time Brew only supports functions in the first " + 0xFFFF + " bytes of code.");
+		String inline = (optimizationLevel >= INLINE)? inlineSource(name, sourceLines, line + 1, bodyEnd) : null;
+		function = new Function(name, out.position(), Arrays.copyOf(names, parameters), Arrays.copyOf(sizes, parameters),
+				resultSize, inline);
+		functions.put(name, function);
+		
+		// The parameters are the first frame of the function's activation, in the order they are passed.
+		HashMap<String, StackPointer> outside = new HashMap<String, StackPointer>(variableToPointerMap);
+		HashSet<String> outsideHidden = new HashSet<String>(hidden);
+		int scope = declared.size();
+		Frame outerFrame = enter(new Frame((byte) 1));
+		variableToPointerMap.clear();
+		hidden.clear();
+		for (int k = 0, at = 0; k < parameters; at += sizes[k++])
+			variableToPointerMap.put(names[k], new StackPointer((byte) 0, (byte) at, sizes[k]));
+		try {
+			frameID = 1;
+			int body = out.position();
+			compileBlock(sourceLines, line + 1, bodyEnd, out);
+			if (optimizationLevel >= INLINE && frame.size() == 0) {
+				// Nothing uses the function's frame. RETURN drops every frame anyway, so nothing else changes.
+				out.truncate(out.position() - 1);
+				out.cut(body, body + 2);
+				shiftLines(body, -2);
+			}
+			out.emit(Utilities.push(0, resultSize));
+			out.emit(InstructionSet.RETURN);
+		} finally {
+			variableToPointerMap.clear();
+			variableToPointerMap.putAll(outside);
+			hidden.clear();
+			hidden.addAll(outsideHidden);
+			while (declared.size() > scope)
+				declared.remove(declared.size() - 1);
+			enter(outerFrame);
+			frameID = 0;
+			function = null;
+		}
+		
+		if (inline != null) {
+			out.truncate(jump - 1);
+			forgetLines(jump - 1);
+			return bodyEnd;
+		}
+		
+		int after = out.position();
+		if (after > 0xFFFF)
+			throw new CompilationException("Unfortunately, at this time Brew only supports functions in the first " + 0xFFFF + " bytes of code.", line + 1, -1);
+		out.patch(jump, (byte) (after >> 8));
+		out.patch(jump + 1, (byte) after);
+		return bodyEnd;
+	}
+	
+	/** @return the line of the function's body, the lines from start up to (not including) end, if the
+	 * whole body is one return statement short enough to compile in place of the function's calls. It
+	 * mustn't call the function, or it would be compiled in place of itself forever. Otherwise null. */
+	private static String inlineSource(String name, String[] sourceLines, int start, int end) {
+		Lexer scanner = new Lexer();
+		String statement = null;
+		for (int i = start; i < end; i ++) {
+			int count = scanner.tokenize(sourceLines[i], i + 1);
+			if (count == 0)
+				continue;
+			if (statement != null || !scanner.textEquals(0, "return") || count == 1 || count - 1 > Function.INLINE_LIMIT)
+				return null;
+			for (int k = 1; k < count; k ++)
+				if (scanner.textEquals(k, name))
+					return null;
+			statement = sourceLines[i];
+		}
+		return statement;
+	}
+	
+	/** Compile the return statement in the lexer to the end of the buffer. Return statements take the form :
+	 * return ex
+	 * where "ex" is a valid expression, worked out at the size the function returns. */
+	private void compileReturnStatement(BytecodeBuffer out) {
+		if (function == null)
+			throw lexer.error(0, "A return statement is only allowed inside a function.");
+		int count = lexer.count();
+		if (count == 1)
+			throw lexer.error(1, "A return statement needs a value to return.");
+		checkScope(1, count);
+		util.compileExpression(lexer, 1, count, variableToPointerMap, function.resultSize, out);
+		out.emit(InstructionSet.RETURN);
+	}
+	
+	/** Emit the IF that jumps back to the top of a loop, an IF_WIDE if the loop is too long for a byte offset. */
+	private void emitJumpBack(int top, BytecodeBuffer out) {
+		int offset = top - (out.position() + 2);
+		if (offset >= Byte.MIN_VALUE) {
+			out.emit(InstructionSet.IF, (byte) offset);
+			return;
+		}
+		offset = top - (out.position() + 3);
+		if (offset < Short.MIN_VALUE)
+			throw new CompilationException("Unfortunately, at this time Brew supports a maximum of " + Short.MAX_VALUE + " bytes of code inside a loop.");
+		out.emit(InstructionSet.IF_WIDE, (byte) (offset >> 8), (byte) offset);
+	}
+	
+	/** @return the names of every variable assigned to from the line up to (not including) the end line. */
+	private HashSet<String> assignedIn(String[] sourceLines, int line, int end) {
+		HashSet<String> assigned = new HashSet<String>();
+		Lexer scanner = new Lexer();
+		for (int i = line; i < end; i ++) {
+			int count = scanner.tokenize(sourceLines[i], i + 1);
+			for (int k = 1; k < count; k ++)
+				if (scanner.kind(k) == Lexer.ASSIGN && scanner.kind(k - 1) == Lexer.IDENTIFIER)
+					assigned.add(scanner.text(k - 1));
+		}
+		return assigned;
+	}
+	
+	/** Forget every line that starts at or after the index in the bytecode, its code has been thrown away. */
+	private void forgetLines(int index) {
+		while (lineCount > 0 && linePositions[lineCount - 1] >= index)
+			lineCount --;
+	}
+	
+	/** Move every line that starts after the index in the bytecode along by the distance. */
+	private void shiftLines(int index, int distance) {
+		for (int i = lineCount - 1; i >= 0 && linePositions[i] > index; i --)
+			linePositions[i] += distance;
 	}
 	
 	/** Compile an if-statement into bytecode from its Brew source code.
 	 * if statements take the form :
 	 * if (condition)
 	 * @param source The source code to compile.
-	 * @param bodyInstructionsLength The number of byte code instructions in the if statement's body.
+	 * @param bodyInstructionsLength The number of bytes of code in the if statement's body. Over 127 the
+	 * IF is an IF_WIDE.
 	 * @return The compiled byte code.
 	 */
 	public byte[] compileIfStatement(String source, int bodyInstructionsLength) {
-		source = util.removeLeadingWhitespace(source);
-		
-		// Make sure it's an if statement at the very least.
-		if (!source.startsWith("if"))
-			throw new CompilationException("Can't compile this. It's not an if statement.");
+		if (bodyInstructionsLength > Short.MAX_VALUE)
+			throw new CompilationException("Unfortunately, at this time Brew supports a maximum of " + Short.MAX_VALUE + " bytes of code inside a conditional block.");
 		
-		// Remove the head of the if statement. We don't need it any more.
-		source = source.substring(2);
-		source = util.removeLeadingWhitespace(source);
-		
-		// Define the end index of to be the first time we see a close-parenthesis.
-		int endIndex = 0;
-		while (source.charAt(endIndex++) != ')');
+		BytecodeBuffer out = new BytecodeBuffer();
+		lexer.tokenize(source);
+		int jump = compileIfStatement(out);
+		if (jump == ALWAYS_FALSE) {
+			// The caller is putting the body after this, so it still has to be jumped over.
+			out.emit(InstructionSet.PUSH, (byte) 0);
+			jump = out.emitPlaceholder(InstructionSet.IF);
+		}
+		if (jump != ALWAYS_TRUE && bodyInstructionsLength > Byte.MAX_VALUE) {
+			// The offset doesn't fit in a byte, so the IF becomes an IF_WIDE.
+			out.patch(jump - 1, InstructionSet.IF_WIDE);
+			out.patch(jump, (byte) (bodyInstructionsLength >> 8));
+			out.emit((byte) bodyInstructionsLength);
+		} else if (jump != ALWAYS_TRUE)
+			out.patch(jump, (byte) bodyInstructionsLength);
+		return out.toByteArray();
+	}
+	
+	/** Compile the head of the if-statement in the lexer to the end of the buffer. The IF instruction's
+	 * offset is left for the caller to patch once the body has been compiled.
+	 * @return the index of the IF instruction's offset in the buffer. If the condition was worked out at
+	 * compile time there is no IF, and this is {@link #ALWAYS_TRUE} or {@link #ALWAYS_FALSE} instead.
+	 */
+	private int compileIfStatement(BytecodeBuffer out) {
+		int count = lexer.count();
 		
-		// Get the crud from inside the if statement's parenthesis.
-		String insideTheParenthesis = source.substring(1, endIndex-1);
+		// Make sure it's an if statement at the very least.
+		if (count == 0 || !lexer.textEquals(0, "if"))
+			throw lexer.error(0, "Can't compile this. It's not an if statement.");
+		int close = closeCondition("if statement");
 		
-		byte[] compiledCondition = util.compileConditional(insideTheParenthesis, variableToPointerMap);
+		checkScope(2, close);
+		switch (util.compileConditional(lexer, 2, close, variableToPointerMap, out)) {
+		case 1 : return ALWAYS_TRUE;
+		case 0 : return ALWAYS_FALSE;
+		default : return out.emitPlaceholder(InstructionSet.IF);
+		}
+	}
+	
+	/** Find the parenthesis that closes the condition of the if statement or loop in the lexer, whose
+	 * condition starts at the second token.
+	 * @param statement What the statement is called in errors, like "if statement".
+	 * @return the index of the closing parenthesis. */
+	private int closeCondition(String statement) {
+		int count = lexer.count();
+		if (count == 1 || lexer.kind(1) != Lexer.LEFT_PARENTHESIS)
+			throw lexer.error(1, "The condition of the " + statement + " must be inside parenthesis.");
 		
-		if (bodyInstructionsLength >= Byte.MAX_VALUE)
-			throw new CompilationException("Unfortunately, at this time Brew supports a maximum of " + Byte.MAX_VALUE + " instructions inside a conditional block.");
+		int close = 1, depth = 0;
+		do {
+			if (lexer.kind(close) == Lexer.LEFT_PARENTHESIS)
+				depth ++;
+			else if (lexer.kind(close) == Lexer.RIGHT_PARENTHESIS)
+				depth --;
+		} while (depth > 0 && ++close < count);
+		if (close == count)
+			throw lexer.error(count, "The condition of the " + statement + " is never closed.");
 		
-		return compose(
-				compiledCondition,
-				new byte[] { InstructionSet.IF, (byte) bodyInstructionsLength });
+		// The only thing allowed after the condition is the { that opens the body.
+		if (close + 1 < count && (lexer.kind(close + 1) != Lexer.LEFT_BRACE || close + 2 < count))
+			throw lexer.error(close + 1, "Unexpected \"" + lexer.text(close + 1) + "\" after the condition of the " + statement + ".");
+		return close;
 	}
 	
 	/** This method will compile and compose a simple assignment statement into its bytecode form.
 	 * A valid assignment statement is of the following form :
 	 * <b>T name = ex</b>
 	 * Where :
-	 * "T" is a valid type identifier.
+	 * "T" is a valid type identifier : byte, int or long.
 	 * "name" is a valid variable name identifier.
-	 * "ex" is a valid expression.
+	 * "ex" is a valid expression. It is worked out as wide as the variable or its own widest variable,
+	 * whichever is wider, and then cut down to fit the variable.
 	 * @param source The assignment statement to compile.
 	 * @return The compiled bytecode for the assignment statement.
 	 */
 	public byte[] compileAssignmentStatement(String source) {
-		if (!source.contains("="))
-			throw new CompilationException("Valid assignment statements contain the = operator.");
-		
-		// Split the assignment into its left hand side and right hand side.
-		String[] splitByAssignmentOp = source.split("=");
-		
-		if (splitByAssignmentOp.length != 2)
-			throw new CompilationException("Valid assignment statements contain exactly one = operator. Yours contains " + splitByAssignmentOp.length);
-		
-		// Left and right hand sides.
-		String lhs = splitByAssignmentOp[0];
-		String rhs = splitByAssignmentOp[1];
-		
-		// Compile the right hand expression.
-		byte[] compiledRHS = compileExpression(rhs);
-		// Tokenize the left hand side of the expression.
-		String[] lhsTokens = lhs.split(" ");
+		BytecodeBuffer out = new BytecodeBuffer();
+		compileAssignmentStatement(0, lexer.tokenize(source), out);
+		return out.toByteArray();
+	}
+	
+	/** Compile the assignment statement made of the tokens in the lexer from start up to (not including)
+	 * end to the end of the buffer. */
+	private void compileAssignmentStatement(int start, int end, BytecodeBuffer out) {
+		// Find the assignment operator, it splits the statement into its left and right hand sides.
+		int assignment = -1;
+		for (int i = start; i < end; i ++)
+			if (lexer.kind(i) == Lexer.ASSIGN) {
+				if (assignment != -1)
+					throw lexer.error(i, "Valid assignment statements contain exactly one = operator.");
+				assignment = i;
+			}
+		if (assignment == -1)
+			throw lexer.error(start, "Valid assignment statements contain the = operator.");
 		
-		StackPointer p;
+		StackPointer p = null;
+		String name;
+		int size;
 		
-		if (lhsTokens.length == 1) {
+		if (assignment == start + 1 && lexer.kind(start) == Lexer.IDENTIFIER) {
 			// This means that we should be assigning to the value of a variable that already exists.
-			if (!variableToPointerMap.containsKey(lhsTokens[0]))
-				throw new CompilationException("Unknown variable \"" + lhsTokens[0] + "\".");
-			p = variableToPointerMap.get(lhsTokens[0]);
-		} else if (lhsTokens.length == 2) {
+			name = lexer.text(start);
+			// The variable of a body that is over is still known, it just can't be used any more.
+			checkScope(start, start + 1);
+			if (!variableToPointerMap.containsKey(name))
+				throw lexer.error(start, "Unknown variable \"" + name + "\".");
+			p = variableToPointerMap.get(name);
+			size = p.size();
+		} else if (assignment == start + 2 && lexer.kind(start) == Lexer.IDENTIFIER && lexer.kind(start + 1) == Lexer.IDENTIFIER) {
 			// This means that we are creating a new variable.
-			if (!lhsTokens[0].equals("byte"))
-				throw new CompilationException("Invalid data type \"" + lhsTokens[0] + "\".");
-			else if (variableToPointerMap.containsKey(lhsTokens[1]))
-				throw new CompilationException("Variable \"" + lhsTokens[1] + "\" already exists.");
-			variableToPointerMap.put(lhsTokens[1], generatePointer());
-			p = variableToPointerMap.get(lhsTokens[1]);
+			name = lexer.text(start + 1);
+			size = sizeOfType(start);
+			if (variableToPointerMap.containsKey(name) || hidden.contains(name))
+				throw lexer.error(start + 1, "Variable \"" + name + "\" already exists.");
+			if (functions.containsKey(name))
+				throw lexer.error(start + 1, "\"" + name + "\" is already the name of a function.");
 		} else
-			throw new CompilationException(
+			throw lexer.error(start,
 					"Problem on the left hand side of the assignment statement. There are too many tokens (Or too few)."
 					+ " The left hand side of an assignment statement should only contain a data type and the variable name.");
 		
-		// Define the final size of the output. This accounts for the 3 bytes needed to push a variable.
-		int length = compiledRHS.length + 3;
-		byte[] output = new byte[length]; 
-		
-		util.copyInto(compiledRHS, output, 0);
-		output[length - 3] = InstructionSet.PUSH_VAR;
-		output[length - 2] = p.frame();
-		output[length - 1] = p.variableID();
+		// Compile the right hand expression. A new variable doesn't exist until it has been assigned.
+		checkScope(assignment + 1, end);
+		util.compileExpression(lexer, assignment + 1, end, variableToPointerMap, size, out);
 		
-		return output;
+		if (p == null) {
+			p = placeFor(name, size);
+			variableToPointerMap.put(name, p);
+			declared.add(name);
+		}
+		out.emit(Utilities.storeFor(size), p.frame(), p.variableID());
+	}
+	
+	/** @return the number of bytes a value of the type named by the i'th token takes up. */
+	private int sizeOfType(int i) {
+		if (lexer.textEquals(i, "byte"))
+			return InstructionSet.BYTE_SIZE;
+		else if (lexer.textEquals(i, "int"))
+			return InstructionSet.INT_SIZE;
+		else if (lexer.textEquals(i, "long"))
+			return InstructionSet.LONG_SIZE;
+		throw lexer.error(i, "Invalid data type \"" + lexer.text(i) + "\".");
 	}
 	
 	/** Compose the instructions into a single array of instructions. */
@@ -171,7 +899,7 @@ public class Compiler {
 		int i = 0;
 		byte[] store = new byte[length];
 		for (byte[] inst : instructions) {
-			util.copyInto(inst, store, i);
+			System.arraycopy(inst, 0, store, i, inst.length);
 			i += inst.length;
 		}
 		return store;
@@ -183,36 +911,100 @@ public class Compiler {
 	 * @param source The source code to compile.
 	 * @return The compiled byte code to be put into the Brew Virtual Machine. */
 	public byte[] compileExpression(String source) {
-		// First, break apart the source into its pieces. This is called tokenization. 
-		String[] tokens = util.tokenize(source, true);
-		
-		// Next, for every token in the expression,
-		for (String token : tokens)
-			// If the token is a variable,
-			if (variableToPointerMap.containsKey(token)) {
-				// If the token is out of scope, throw a compilation error.
-				StackPointer p = variableToPointerMap.get(token);
-				if (p.frame() > frameID)
-					throw new CompilationException("Variable \"" + token + "\" is not visible from this scope.");
-			}
-		
-		// Next, convert to postfix notation. This is a necessary step to compile an expression.
-		String[] postfix = util.toPostfix(tokens);
-		// Finally, compile and return.
-		byte[] compiledCode = util.compileExpression(postfix, variableToPointerMap);
-		return compiledCode;
+		BytecodeBuffer out = new BytecodeBuffer();
+		compileExpression(source, out);
+		return out.toByteArray();
+	}
+	
+	/** Compile the expression to the end of the buffer. */
+	private void compileExpression(String source, BytecodeBuffer out) {
+		int count = lexer.tokenize(source);
+		checkScope(0, count);
+		util.compileExpression(lexer, 0, count, variableToPointerMap, out);
+	}
+	
+	/** Make sure every variable among the tokens from start up to (not including) end is visible from the
+	 * current scope. Variables that don't exist at all are reported when the expression is compiled. */
+	private void checkScope(int start, int end) {
+		for (int i = start; i < end; i ++)
+			if (lexer.kind(i) == Lexer.IDENTIFIER && hidden.contains(lexer.text(i)))
+				throw lexer.error(i, "Variable \"" + lexer.text(i) + "\" is not visible from this scope.");
+	}
+	
+	/** @return true if the variable is one of the outputs of the program, which have to be declared at its
+	 * top level. */
+	private boolean isOutput(String name) {
+		return !hidden.contains(name) && (outputs == null || outputs.contains(name));
+	}
+	
+	/** @return the ids of the bytes of the program's own frame that its outputs live in. */
+	private BitSet outputBytes() {
+		BitSet bytes = new BitSet();
+		for (String name : variableToPointerMap.keySet()) {
+			StackPointer p = variableToPointerMap.get(name);
+			if (p.frame() == 0 && isOutput(name))
+				bytes.set(p.variableID() & 0xFF, (p.variableID() & 0xFF) + p.size());
+		}
+		return bytes;
+	}
+	
+	/** The block that declared every variable after the first few is over, so they can't be used any more.
+	 * @param scope The number of variables declared before the block started. */
+	private void hide(int scope) {
+		while (declared.size() > scope) {
+			String name = declared.remove(declared.size() - 1);
+			hidden.add(name);
+			hiddenOrder.add(name);
+		}
 	}
 	
 	/** This method resets the Compiler to its factory settings. It will forget any variables that were
 	 * created. */
 	public void reset() {
 		this.variableToPointerMap.clear();
-		pointerID = frameID = 0;
+		this.functions.clear();
+		this.declared.clear();
+		this.hidden.clear();
+		this.hiddenOrder.clear();
+		frameID = depth = 0;
+		enter(new Frame((byte) 0));
+	}
+	
+	/** Remember that the line starts at the index in the bytecode. A line that didn't compile to anything
+	 * gives its place to the next. */
+	private void recordLine(int position, int line) {
+		if (lineCount > 0 && linePositions[lineCount - 1] == position)
+			lineCount --;
+		if (lineCount == linePositions.length) {
+			linePositions = Arrays.copyOf(linePositions, lineCount * 2);
+			lineNumbers = Arrays.copyOf(lineNumbers, lineCount * 2);
+		}
+		linePositions[lineCount] = position;
+		lineNumbers[lineCount ++] = line;
+	}
+	
+	/** @return where a new variable goes : where the {@link IncrementalCompiler} laid it out, if it is declared
+	 * at the top level of a program it compiles, or else the next free bytes of the current frame. */
+	private StackPointer placeFor(String name, int size) {
+		StackPointer place = (places != null && depth == 0 && function == null)? places.get(name) : null;
+		return (place != null && place.size() == size)? place : generatePointer(size);
+	}
+	
+	/** Generate a new and unique pointer to a variable of the size, in the current frame. */
+	private StackPointer generatePointer(int size) {
+		StackPointer pointer = frame.allocate(size);
+		if (pointer == null)
+			throw new CompilationException("Cannot compile, there is a maximum of " + InstructionSet.MAX_FRAME_SIZE + " bytes of variables per closure.");
+		return pointer;
 	}
 	
-	/** Generate a new and unique pointer. */
-	private StackPointer generatePointer() {
-		return new StackPointer((byte)frameID, (byte)pointerID++);
+	/** Make the frame the one variables are put in.
+	 * @return the frame they were put in before. */
+	private Frame enter(Frame frame) {
+		Frame old = this.frame;
+		this.frame = frame;
+		util.setFrame(frame);
+		return old;
 	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,86 @@
+package com.brew.compiler;
+
+import com.brew.vm.InstructionSet;
+
+/**
+ * This class hands out the bytes of a frame to the variables and temporaries that live in it. The
+ * blocks that share a frame take their slots in order and give them back when they end, so the next
+ * block can reuse them, and the frame only has to be as big as the most that is ever in use at once.
+ *
+ * Nothing is given back while a loop is being compiled. The loop's preheader fills its temporaries before
+ * any of the loop runs, so every slot the loop takes has to be left alone until the loop is over.
+ * @author Jonathan Force
+ */
+class Frame {
+	
+	/** The id of the frame. */
+	final byte id;
+	/** The first byte that isn't in use, and the most bytes that have ever been in use at once. */
+	private int next, size;
+	/** The number of loops being compiled in the frame. */
+	private int loops;
+	/** Whether the frame ever ran out of room. */
+	private boolean full;
+	
+	Frame(byte id) {
+		this.id = id;
+	}
+	
+	/** Make a frame whose bytes before the start are laid out by somebody else. Nothing is allocated there. */
+	Frame(byte id, int start) {
+		this.id = id;
+		this.next = start;
+	}
+	
+	/** @return a pointer to the next free bytes of the frame, or null if the frame has no room left for
+	 * a value of the size. */
+	StackPointer allocate(int size) {
+		if (next + size > InstructionSet.MAX_FRAME_SIZE) {
+			full = true;
+			return null;
+		}
+		StackPointer pointer = new StackPointer(id, (byte) next, size);
+		next += size;
+		this.size = Math.max(this.size, next);
+		return pointer;
+	}
+	
+	/** @return where the free bytes start, to give back everything allocated after now with {@link #release(int)}. */
+	int mark() {
+		return next;
+	}
+	
+	/** Give back every byte allocated since the mark, unless a loop is being compiled. */
+	void release(int mark) {
+		if (loops == 0)
+			next = Math.min(next, mark);
+	}
+	
+	/** Forget every byte allocated since the mark, even if a loop is being compiled, and that the frame
+	 * ran out of room. The frame goes back to needing the size. */
+	void rollBack(int mark, int size) {
+		this.next = mark;
+		this.size = size;
+		this.full = false;
+	}
+	
+	/** @return true if the frame has ever run out of room since it was made or rolled back. */
+	boolean isFull() {
+		return full;
+	}
+	
+	/** Start compiling a loop, nothing is given back until it is over. */
+	void enterLoop() {
+		loops ++;
+	}
+	
+	/** Finish compiling a loop. */
+	void leaveLoop() {
+		loops --;
+	}
+	
+	/** @return the number of bytes the frame needs, the most that have ever been in use at once. */
+	int size() {
+		return size;
+	}
+}
@@ -0,0 +1,42 @@
+package com.brew.compiler;
+
+/**
+ * This class is what the compiler knows about a function once it has been declared : where its code
+ * starts, and how big its parameters and its result are. That is all a call needs. A function small
+ * enough to be inlined also keeps its source, which is compiled again in place of each call.
+ * @author Jonathan Force
+ */
+class Function {
+	
+	/** The most tokens the expression a function returns can have, for the function to be inlined. */
+	static final int INLINE_LIMIT = 24;
+	
+	final String name;
+	/** The index in the bytecode the function's code starts at, where its calls jump to. */
+	final int address;
+	/** The name and size of each parameter, in the order the arguments are passed. */
+	final String[] parameterNames;
+	final int[] parameterSizes;
+	/** The number of bytes the function returns. */
+	final int resultSize;
+	/** The return statement that is the function's whole body, when it is compiled in place of every call
+	 * instead of being called. Otherwise null. */
+	final String inline;
+	
+	Function(String name, int address, String[] parameterNames, int[] parameterSizes, int resultSize, String inline) {
+		this.name = name;
+		this.address = address;
+		this.parameterNames = parameterNames;
+		this.parameterSizes = parameterSizes;
+		this.resultSize = resultSize;
+		this.inline = inline;
+	}
+	
+	/** @return the number of bytes of arguments each call passes, which is the size of the function's first frame. */
+	int argumentSize() {
+		int size = 0;
+		for (int parameter : parameterSizes)
+			size += parameter;
+		return size;
+	}
+}
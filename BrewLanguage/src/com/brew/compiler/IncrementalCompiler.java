@@ -0,0 +1,622 @@
+package com.brew.compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+import com.brew.compiler.exceptions.CompilationException;
+import com.brew.vm.InstructionSet;
+
+/**
+ * This class compiles a program that is being edited, like the one open in an editor, and keeps it compiled
+ * as it changes. The program is split into its top level statements, an if statement, loop or function
+ * counting as one statement along with its body, and each statement is compiled on its own. When some lines
+ * change, only the statements they are in are compiled again, along with the statements that use what
+ * those declared if that changed. A one line edit that doesn't change what its statement declares compiles
+ * that one statement, however long the program is. The statements are only put back together into a
+ * {@link CompiledProgram} when somebody asks for the {@link #program()}, their jumps and calls pointed at
+ * where everything ended up. That copies the whole program, so an editor that only wants to know whether
+ * the source compiles doesn't have to.
+ *
+ * Every variable declared at the top level keeps the same place in the program's frame for as long as it is
+ * declared, so that the statements that use it don't have to change when it moves. The variables of bodies,
+ * and temporaries, go after the last of them. Once the frame runs out of room every variable is laid out
+ * again, and the whole program is compiled again.
+ *
+ * Statements are compiled up to {@link Compiler#INLINE}. The passes from {@link Compiler#DATA_FLOW} up work
+ * on the whole program's graph, which would have to be built again on every edit. A program is kept to the
+ * same rules as one compiled in one go : a statement can only use the variables and functions declared
+ * above it, and the problem is reported on the line of the whole program it is on.
+ *
+ * A statement that doesn't compile stays as it is until an edit fixes it, and until then every edit throws
+ * its problem. Like a compiler, one of these can't be shared between threads.
+ * @author Jonathan Force
+ */
+public class IncrementalCompiler {
+	
+	/** The address the first function of another statement is called at while a statement is compiled, the
+	 * next is called one below it and so on. Nothing is that far into a statement's own code, so the calls
+	 * can be told apart from its own and pointed at the function once it is known where it ended up. */
+	private static final int OUTSIDE = 0xFFFF;
+	
+	private final Compiler compiler;
+	private final Lexer lexer;
+	/** The source of the program, one statement per line. */
+	private final ArrayList<String> lines;
+	/** The top level statements of the program, in order. */
+	private final ArrayList<Fragment> fragments;
+	/** The statements that have to be compiled again, first to last. */
+	private final TreeSet<Fragment> dirty;
+	/** The statements that mention each name, and those that declare something with it. */
+	private final HashMap<String, HashSet<Fragment>> mentions, definers;
+	/** Where each variable declared at the top level lives, and the first byte of the frame after them. */
+	private final HashMap<String, StackPointer> places;
+	private int placed;
+	/** The number of statements compiled by the last compile or edit. */
+	private int recompiled;
+	/** The program as it was last put together, or null if it has changed since. */
+	private CompiledProgram program;
+	
+	/** Compile at {@link Compiler#INLINE}. */
+	public IncrementalCompiler() {
+		this(Compiler.INLINE);
+	}
+	
+	/** @param optimizationLevel One of the optimization levels in {@link Compiler}, up to {@link Compiler#INLINE}. */
+	public IncrementalCompiler(int optimizationLevel) {
+		if (optimizationLevel > Compiler.INLINE)
+			throw new IllegalArgumentException("Programs are compiled a statement at a time up to optimization level "
+					+ Compiler.INLINE + ", not " + optimizationLevel + ".");
+		this.compiler = new Compiler();
+		compiler.setOptimizationLevel(optimizationLevel);
+		this.lexer = new Lexer();
+		this.lines = new ArrayList<String>();
+		this.fragments = new ArrayList<Fragment>();
+		this.dirty = new TreeSet<Fragment>(new Comparator<Fragment>() {
+			public int compare(Fragment a, Fragment b) {
+				return a.index - b.index;
+			}
+		});
+		this.mentions = new HashMap<String, HashSet<Fragment>>();
+		this.definers = new HashMap<String, HashSet<Fragment>>();
+		this.places = new HashMap<String, StackPointer>();
+	}
+	
+	/** Forget the program being edited and compile this one from scratch.
+	 * @param sourceLines The source code, one statement per line.
+	 * @throws CompilationException if a statement of the program doesn't compile. */
+	public void compile(String ... sourceLines) {
+		lines.clear();
+		fragments.clear();
+		dirty.clear();
+		mentions.clear();
+		definers.clear();
+		places.clear();
+		placed = 0;
+		edit(0, 0, sourceLines);
+	}
+	
+	/** Replace some lines of the program being edited, and compile the statements that changed.
+	 * @param start The index of the first line replaced, counting from 0.
+	 * @param end The index of the line after the last one replaced. If it is start, the lines are inserted
+	 * in front of the line at start.
+	 * @param replacement The lines that take their place, one statement per line.
+	 * @throws CompilationException if a statement of the program doesn't compile. The edit is still made. */
+	public void edit(int start, int end, String ... replacement) {
+		if (start < 0 || end < start || end > lines.size())
+			throw new IndexOutOfBoundsException("Can't replace lines " + start + " to " + end + " of " + lines.size() + ".");
+		
+		// The statements the edit touches.
+		int first = fragmentAt(start), last = first;
+		while (last < fragments.size() && (fragments.get(last).start < end || fragments.get(last).start < start))
+			last ++;
+		int from = (first < fragments.size())? Math.min(fragments.get(first).start, start) : start;
+		
+		lines.subList(start, end).clear();
+		lines.addAll(start, Arrays.asList(replacement));
+		int delta = replacement.length - (end - start);
+		
+		// Split the lines again from the first statement touched, until a statement starts where one that
+		// wasn't touched did. Everything from there on is as it was.
+		ArrayList<Fragment> split = new ArrayList<Fragment>();
+		int line = from, kept = last;
+		while (true) {
+			while (kept < fragments.size() && fragments.get(kept).start + delta < line)
+				kept ++;
+			if (line == lines.size() || (kept < fragments.size() && fragments.get(kept).start + delta == line))
+				break;
+			Fragment f = split(line);
+			split.add(f);
+			line = f.end();
+		}
+		
+		// When the statements taken out are replaced one for one, each new statement is compared with the old
+		// one once it has compiled, and what comes after it is only compiled again if what it declares changed.
+		// Otherwise everything after them that uses what they declared has to be compiled again.
+		List<Fragment> removed = fragments.subList(first, kept);
+		HashSet<String> changed = new HashSet<String>();
+		for (int i = 0; i < removed.size(); i ++) {
+			Fragment f = removed.get(i);
+			if (removed.size() == split.size())
+				split.get(i).replace(f);
+			else
+				changed.addAll(f.definitions());
+			forget(f);
+			dirty.remove(f);
+		}
+		fragments.subList(first, kept).clear();
+		fragments.addAll(first, split);
+		// The statements after them only move if the edit changed the number of lines or statements.
+		boolean moved = delta != 0 || split.size() != kept - first;
+		for (int i = first; i < (moved? fragments.size() : first + split.size()); i ++) {
+			Fragment f = fragments.get(i);
+			f.index = i;
+			if (i >= first + split.size())
+				f.start += delta;
+		}
+		for (Fragment f : split) {
+			for (String name : f.names)
+				mentionsOf(name).add(f);
+			dirty.add(f);
+		}
+		for (String name : changed)
+			invalidate(name, first - 1);
+		
+		// Give the new variables their places before anything is compiled, so nothing has to make room for them.
+		for (Fragment f : split) {
+			try {
+				declaration(f);
+			} catch (CompilationException e) {
+				// Reported when the statement is compiled.
+			}
+		}
+		
+		recompiled = 0;
+		program = null;
+		compileDirty();
+	}
+	
+	/** @return the program as it is now, put together from its statements.
+	 * @throws CompilationException if a statement of the program doesn't compile. */
+	public CompiledProgram program() {
+		compileDirty();
+		if (program == null)
+			program = link();
+		return program;
+	}
+	
+	/** @return the source of the program being edited, one statement per line. */
+	public String[] source() {
+		return lines.toArray(new String[lines.size()]);
+	}
+	
+	/** @return the number of top level statements the last compile or edit compiled. */
+	public int recompiled() {
+		return recompiled;
+	}
+	
+	/** @return the index of the statement the line is in. A statement that is never closed runs to the end
+	 * of the program, so lines added after it are in it too. Other lines after the end of the program aren't
+	 * in any statement, and this is the number of statements. */
+	private int fragmentAt(int line) {
+		int low = 0, high = fragments.size();
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (fragments.get(middle).end() > line)
+				high = middle;
+			else
+				low = middle + 1;
+		}
+		if (low == fragments.size() && low > 0 && fragments.get(low - 1).open)
+			low --;
+		return low;
+	}
+	
+	/** @return the statement that starts on the line, and runs to the } that closes its body if it has one. */
+	private Fragment split(int line) {
+		int end = line + 1;
+		boolean open = false;
+		if (opensBlock(lines.get(line))) {
+			// The same rule the compiler uses to find the end of a body.
+			int depth = 0;
+			open = true;
+			for (int i = line + 1; i < lines.size() && open; i ++) {
+				String text = lines.get(i).trim();
+				if (text.startsWith("}") && depth-- == 0) {
+					end = i + 1;
+					open = false;
+				} else if (text.endsWith("{"))
+					depth ++;
+			}
+			if (open)
+				end = lines.size();
+		}
+		
+		Fragment f = new Fragment(line, end - line, open);
+		for (int i = line; i < end; i ++) {
+			try {
+				int count = lexer.tokenize(lines.get(i), i + 1);
+				for (int k = 0; k < count; k ++)
+					if (lexer.kind(k) == Lexer.IDENTIFIER)
+						f.names.add(lexer.text(k));
+			} catch (CompilationException e) {
+				// The statement is compiled anyway, which reports the problem.
+			}
+		}
+		return f;
+	}
+	
+	/** @return true if the line starts an if statement, loop or function, whose body follows it. */
+	private boolean opensBlock(String line) {
+		try {
+			int count = lexer.tokenize(line);
+			return count > 0 && (lexer.textEquals(0, "if") || lexer.textEquals(0, "while") || lexer.textEquals(0, "for")
+					|| (count > 2 && lexer.kind(0) == Lexer.IDENTIFIER && lexer.kind(1) == Lexer.IDENTIFIER
+							&& lexer.kind(2) == Lexer.LEFT_PARENTHESIS));
+		} catch (CompilationException e) {
+			return false;
+		}
+	}
+	
+	/** Compile every statement that has to be, first to last. */
+	private void compileDirty() {
+		while (!dirty.isEmpty()) {
+			Fragment f = dirty.first();
+			HashSet<String> before = f.definitions();
+			HashMap<String, StackPointer> variables = new HashMap<String, StackPointer>(f.variables);
+			HashMap<String, Function> functions = new HashMap<String, Function>(f.functions);
+			HashSet<String> hides = new HashSet<String>(f.hides);
+			for (String name : before)
+				definersOf(name).remove(f);
+			f.variables.clear();
+			f.functions.clear();
+			f.hides.clear();
+			
+			recompiled ++;
+			try {
+				compile(f);
+			} catch (CompilationException e) {
+				f.code = null;
+				for (String name : before)
+					invalidate(name, f.index);
+				throw e.movedDown(f.start);
+			}
+			dirty.remove(f);
+			
+			// Only what comes after the statement can see what it declares.
+			for (String name : f.definitions()) {
+				definersOf(name).add(f);
+				if (!sameDefinition(name, f, variables, functions, hides))
+					invalidate(name, f.index);
+			}
+			for (String name : before)
+				if (!f.defines(name))
+					invalidate(name, f.index);
+		}
+	}
+	
+	/** Compile the statement, with what the statements above it declared. */
+	private void compile(Fragment f) {
+		// Everything the statement may use is declared by a statement above it that mentions the same name.
+		HashMap<String, StackPointer> variables = new HashMap<String, StackPointer>();
+		HashMap<String, Function> functions = new HashMap<String, Function>();
+		HashSet<String> hidden = new HashSet<String>();
+		ArrayList<String> outside = new ArrayList<String>();
+		for (String name : f.names) {
+			Fragment definer = null;
+			for (Fragment d : definersOf(name))
+				if (d.index < f.index && (definer == null || d.index < definer.index))
+					definer = d;
+			if (definer == null)
+				continue;
+			if (definer.variables.containsKey(name))
+				variables.put(name, definer.variables.get(name));
+			if (definer.hides.contains(name))
+				hidden.add(name);
+			Function function = definer.functions.get(name);
+			if (function != null) {
+				functions.put(name, new Function(name, OUTSIDE - outside.size(), function.parameterNames,
+						function.parameterSizes, function.resultSize, function.inline));
+				outside.add(name);
+			}
+		}
+		
+		String[] source = lines.subList(f.start, f.end()).toArray(new String[f.length]);
+		String declared = declaration(f);
+		byte[] code = compiler.compileFragment(source, variables, functions, hidden, places, placed);
+		
+		f.code = code;
+		f.frameSize = compiler.fragmentFrameSize();
+		f.linePositions = compiler.fragmentLinePositions();
+		f.lineNumbers = compiler.fragmentLineNumbers();
+		f.outside = outside.toArray(new String[outside.size()]);
+		if (declared != null)
+			f.variables.put(declared, places.get(declared));
+		if (opensBlock(source[0]) && lexer.kind(0) == Lexer.IDENTIFIER && lexer.kind(1) == Lexer.IDENTIFIER) {
+			Function function = compiler.fragmentFunction(lexer.text(1));
+			if (function != null)
+				f.functions.put(function.name, function);
+		}
+		for (String name : compiler.fragmentHidden())
+			if (!hidden.contains(name))
+				f.hides.add(name);
+		
+		// Find every jump and call whose target depends on where the statement ends up.
+		if (outside.size() > 0 && code.length > OUTSIDE - outside.size())
+			throw new CompilationException("Unfortunately, at this time Brew only supports statements of up to "
+					+ (OUTSIDE - outside.size()) + " bytes of code that call functions.", 1, -1);
+		int count = 0;
+		int[] jumps = new int[4];
+		for (int pc = 0; pc < code.length; pc += InstructionSet.lengthOf(code[pc])) {
+			if (code[pc] != InstructionSet.GOTO_WIDE && code[pc] != InstructionSet.CALL)
+				continue;
+			if (count == jumps.length)
+				jumps = Arrays.copyOf(jumps, count * 2);
+			jumps[count ++] = pc;
+		}
+		f.jumps = Arrays.copyOf(jumps, count);
+	}
+	
+	/** Find the variable the statement declares at the top level, and make sure it has a place in the frame.
+	 * @return its name, or null if the statement doesn't declare one. */
+	private String declaration(Fragment f) {
+		String line = lines.get(f.start);
+		int size;
+		try {
+			if (f.length != 1 || lexer.tokenize(line) < 3 || lexer.kind(0) != Lexer.IDENTIFIER
+					|| lexer.kind(1) != Lexer.IDENTIFIER || lexer.kind(2) != Lexer.ASSIGN)
+				return null;
+			if (lexer.textEquals(0, "byte"))
+				size = InstructionSet.BYTE_SIZE;
+			else if (lexer.textEquals(0, "int"))
+				size = InstructionSet.INT_SIZE;
+			else if (lexer.textEquals(0, "long"))
+				size = InstructionSet.LONG_SIZE;
+			else
+				return null;
+		} catch (CompilationException e) {
+			return null;
+		}
+		
+		String name = lexer.text(1);
+		StackPointer place = places.get(name);
+		if (place != null && place.size() == size)
+			return name;
+		if (placed + size > InstructionSet.MAX_FRAME_SIZE) {
+			layOut();
+			if (places.get(name) == null)
+				throw new CompilationException("Cannot compile, there is a maximum of " + InstructionSet.MAX_FRAME_SIZE
+						+ " bytes of variables per closure.", 1, -1);
+			return name;
+		}
+		
+		// The bodies of statements that go past the old end of the variables would run over the new one.
+		places.put(name, new StackPointer((byte) 0, (byte) placed, size));
+		for (Fragment other : fragments)
+			if (other != f && other.frameSize > placed)
+				dirty.add(other);
+		placed += size;
+		return name;
+	}
+	
+	/** Lay out every variable declared at the top level again, in the order they are declared, and compile
+	 * the whole program again to use the new places. */
+	private void layOut() {
+		places.clear();
+		placed = 0;
+		for (Fragment f : fragments) {
+			dirty.add(f);
+			if (f.length != 1)
+				continue;
+			try {
+				if (lexer.tokenize(lines.get(f.start)) < 3 || lexer.kind(0) != Lexer.IDENTIFIER
+						|| lexer.kind(1) != Lexer.IDENTIFIER || lexer.kind(2) != Lexer.ASSIGN)
+					continue;
+			} catch (CompilationException e) {
+				continue;
+			}
+			int size = lexer.textEquals(0, "byte")? InstructionSet.BYTE_SIZE : lexer.textEquals(0, "int")? InstructionSet.INT_SIZE
+					: lexer.textEquals(0, "long")? InstructionSet.LONG_SIZE : 0;
+			String name = lexer.text(1);
+			if (size == 0 || places.containsKey(name) || placed + size > InstructionSet.MAX_FRAME_SIZE)
+				continue;
+			places.put(name, new StackPointer((byte) 0, (byte) placed, size));
+			placed += size;
+		}
+	}
+	
+	/** Put the statements together into the program : a frame for the whole program, with every statement in
+	 * it one after the other. */
+	private CompiledProgram link() {
+		int length = 3, frameSize = placed, lineCount = 0;
+		for (Fragment f : fragments) {
+			length += f.code.length;
+			frameSize = Math.max(frameSize, f.frameSize);
+			lineCount += f.linePositions.length;
+		}
+		
+		// Every function is called where its statement ended up.
+		HashMap<String, Integer> addresses = new HashMap<String, Integer>();
+		int at = 2;
+		for (Fragment f : fragments) {
+			if (!f.functions.isEmpty())
+				for (Function function : f.functions.values())
+					if (function.inline == null)
+						addresses.put(function.name, at + function.address);
+			at += f.code.length;
+		}
+		
+		byte[] code = new byte[length];
+		int[] linePositions = new int[lineCount], lineNumbers = new int[lineCount];
+		HashMap<String, StackPointer> variables = new HashMap<String, StackPointer>();
+		code[0] = InstructionSet.PUSH_FRAME;
+		code[1] = (byte) frameSize;
+		at = 2;
+		lineCount = 0;
+		for (Fragment f : fragments) {
+			System.arraycopy(f.code, 0, code, at, f.code.length);
+			for (int pc : f.jumps) {
+				int target = (int) InstructionSet.read(f.code, pc + 1, 2) & 0xFFFF;
+				if (code[at + pc] == InstructionSet.CALL && target > f.code.length)
+					target = addresses.get(f.outside[OUTSIDE - target]);
+				else
+					target += at;
+				if (target > 0xFFFF)
+					throw new CompilationException("Unfortunately, at this time Brew only supports functions in the first "
+							+ 0xFFFF + " bytes of code.", f.start + f.lineOf(pc), -1);
+				code[at + pc + 1] = (byte) (target >> 8);
+				code[at + pc + 2] = (byte) target;
+			}
+			for (int i = 0; i < f.linePositions.length; i ++) {
+				// A line that didn't compile to anything gives its place to the next, like in a whole program.
+				if (lineCount > 0 && linePositions[lineCount - 1] == at + f.linePositions[i])
+					lineCount --;
+				linePositions[lineCount] = at + f.linePositions[i];
+				lineNumbers[lineCount ++] = f.start + f.lineNumbers[i];
+			}
+			if (!f.variables.isEmpty())
+				variables.putAll(f.variables);
+			at += f.code.length;
+		}
+		code[at] = InstructionSet.POP_FRAME;
+		
+		// Keep the variables in the order they live in, like a program compiled in one go.
+		final HashMap<String, StackPointer> found = variables;
+		List<String> names = new ArrayList<String>(variables.keySet());
+		Collections.sort(names, new Comparator<String>() {
+			public int compare(String a, String b) {
+				int difference = (found.get(a).variableID() & 0xFF) - (found.get(b).variableID() & 0xFF);
+				return (difference != 0)? difference : a.compareTo(b);
+			}
+		});
+		StackPointer[] pointers = new StackPointer[names.size()];
+		for (int i = 0; i < pointers.length; i ++)
+			pointers[i] = variables.get(names.get(i));
+		return new CompiledProgram(code, compiler.getOptimizationLevel(), names.toArray(new String[names.size()]),
+				pointers, Arrays.copyOf(linePositions, lineCount), Arrays.copyOf(lineNumbers, lineCount));
+	}
+	
+	/** Compile again every statement after the one at the index that mentions the name. */
+	private void invalidate(String name, int index) {
+		for (Fragment f : mentionsOf(name))
+			if (f.index > index)
+				dirty.add(f);
+	}
+	
+	/** Take the statement out of everything that knows about it. */
+	private void forget(Fragment f) {
+		for (String name : f.names)
+			mentionsOf(name).remove(f);
+		for (String name : f.definitions())
+			definersOf(name).remove(f);
+	}
+	
+	/** @return true if the statement declares the same thing with the name now as it did before. */
+	private static boolean sameDefinition(String name, Fragment f, HashMap<String, StackPointer> variables,
+			HashMap<String, Function> functions, HashSet<String> hides) {
+		if (f.hides.contains(name) != hides.contains(name))
+			return false;
+		StackPointer p = f.variables.get(name), q = variables.get(name);
+		if ((p == null) != (q == null) || (p != null && (p.frame() != q.frame() || p.variableID() != q.variableID()
+				|| p.size() != q.size())))
+			return false;
+		
+		// Where a function's code is doesn't matter, its calls are pointed at it when the program is put together.
+		Function g = f.functions.get(name), h = functions.get(name);
+		if (g == null || h == null)
+			return g == h;
+		return g.resultSize == h.resultSize && Arrays.equals(g.parameterNames, h.parameterNames)
+				&& Arrays.equals(g.parameterSizes, h.parameterSizes) && (g.inline == null? h.inline == null : g.inline.equals(h.inline));
+	}
+	
+	private HashSet<Fragment> mentionsOf(String name) {
+		return setOf(mentions, name);
+	}
+	
+	private HashSet<Fragment> definersOf(String name) {
+		return setOf(definers, name);
+	}
+	
+	private static HashSet<Fragment> setOf(HashMap<String, HashSet<Fragment>> map, String name) {
+		HashSet<Fragment> set = map.get(name);
+		if (set == null)
+			map.put(name, set = new HashSet<Fragment>());
+		return set;
+	}
+	
+	/** A top level statement of the program, and what it compiled to. */
+	private static final class Fragment {
+		
+		/** The index of the statement's first line, the number of lines it takes up, and whether it is a body
+		 * that is never closed, and so runs to the end of the program. */
+		int start;
+		final int length;
+		final boolean open;
+		/** The index of the statement in the program. */
+		int index;
+		/** Every name the statement mentions. */
+		final HashSet<String> names;
+		/** What the statement declares : a variable at the top level, a function, or the variables of its
+		 * bodies, which nothing after it may use. */
+		final HashMap<String, StackPointer> variables;
+		final HashMap<String, Function> functions;
+		final HashSet<String> hides;
+		/** The statement's code, laid out as if it starts at index 0, or null until it has compiled. */
+		byte[] code;
+		/** The number of bytes of the program's frame the statement uses. */
+		int frameSize;
+		/** Where each of its lines starts in its code, and the number of the line counting from 1 at its first. */
+		int[] linePositions, lineNumbers;
+		/** The index in its code of every GOTO_WIDE and CALL, and the functions of other statements it calls,
+		 * in the order of the addresses they were called at. */
+		int[] jumps;
+		String[] outside;
+		
+		Fragment(int start, int length, boolean open) {
+			this.start = start;
+			this.length = length;
+			this.open = open;
+			this.names = new HashSet<String>();
+			this.variables = new HashMap<String, StackPointer>();
+			this.functions = new HashMap<String, Function>();
+			this.hides = new HashSet<String>();
+		}
+		
+		/** @return the index of the line after the statement. */
+		int end() {
+			return start + length;
+		}
+		
+		/** @return every name the statement declares something with. */
+		HashSet<String> definitions() {
+			HashSet<String> names = new HashSet<String>(variables.keySet());
+			names.addAll(functions.keySet());
+			names.addAll(hides);
+			return names;
+		}
+		
+		/** Take the place of the statement, starting out declaring what it did. */
+		void replace(Fragment old) {
+			variables.putAll(old.variables);
+			functions.putAll(old.functions);
+			hides.addAll(old.hides);
+		}
+		
+		boolean defines(String name) {
+			return variables.containsKey(name) || functions.containsKey(name) || hides.contains(name);
+		}
+		
+		/** @return the number of the line, counting from 1 at the statement's first, the code at the index came from. */
+		int lineOf(int pc) {
+			int index = Arrays.binarySearch(linePositions, pc);
+			if (index < 0)
+				index = -index - 2;
+			return (index < 0)? 1 : lineNumbers[index];
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package com.brew.compiler;
+
+import java.util.Arrays;
+
+import com.brew.compiler.exceptions.CompilationException;
+
+/**
+ * This class breaks a line of Brew source into tokens in a single pass. Tokens aren't objects; the lexer
+ * keeps each token's kind, offset, length and numeric value in arrays that are reused from one line to
+ * the next, so lexing a line allocates nothing once the arrays are big enough. Text is only cut out of
+ * the source when somebody asks for it with {@link #text(int)}.
+ *
+ * A - is a negative sign, and part of the number that follows it, when it can't be a subtraction. That is
+ * when it is the first token, or follows anything other than a number, a variable or a close-parenthesis.
+ * @author Jonathan Force
+ */
+public class Lexer {
+	
+	public static final int
+		NUMBER = 0,
+		IDENTIFIER = 1,
+		
+		PLUS = 2,
+		MINUS = 3,
+		STAR = 4,
+		SLASH = 5,
+		
+		LEFT_PARENTHESIS = 6,
+		RIGHT_PARENTHESIS = 7,
+		
+		GREATER_THAN = 8,
+		GREATER_THAN_EQUAL = 9,
+		LESS_THAN = 10,
+		LESS_THAN_EQUAL = 11,
+		EQUAL_TO = 12,
+		
+		ASSIGN = 13,
+		LEFT_BRACE = 14,
+		RIGHT_BRACE = 15,
+		SEMICOLON = 16,
+		COMMA = 17;
+	
+	private String source = "";
+	private int line = -1;
+	private int count = 0;
+	private int[] kinds, offsets, lengths;
+	private long[] values;
+	
+	public Lexer() {
+		kinds = new int[16];
+		offsets = new int[16];
+		lengths = new int[16];
+		values = new long[16];
+	}
+	
+	/** Break the source into tokens. The source's position in a file is unknown, so errors only report columns.
+	 * @return the number of tokens. */
+	public int tokenize(String source) {
+		return tokenize(source, -1);
+	}
+	
+	/** Break the source into tokens. Any tokens from a previous call are forgotten.
+	 * @param source A single line of Brew source.
+	 * @param line The number of the line, starting at 1, used when reporting errors. -1 if it isn't known.
+	 * @return the number of tokens.
+	 */
+	public int tokenize(String source, int line) {
+		this.source = source;
+		this.line = line;
+		this.count = 0;
+		
+		int i = 0, length = source.length();
+		while (i < length) {
+			char c = source.charAt(i);
+			
+			if (Character.isWhitespace(c)) {
+				i ++;
+			} else if (Character.isLetter(c)) {
+				int start = i;
+				while (i < length && Character.isLetterOrDigit(source.charAt(i)))
+					i ++;
+				add(IDENTIFIER, start, i - start, 0);
+			} else if (isDigit(c) || (c == '-' && isNegativeSign())) {
+				i = number(i);
+			} else {
+				int kind, size = 1;
+				boolean equalsFollows = i + 1 < length && source.charAt(i + 1) == '=';
+				switch (c) {
+				case '+' : kind = PLUS; break;
+				case '-' : kind = MINUS; break;
+				case '*' : kind = STAR; break;
+				case '/' : kind = SLASH; break;
+				case '(' : kind = LEFT_PARENTHESIS; break;
+				case ')' : kind = RIGHT_PARENTHESIS; break;
+				case '{' : kind = LEFT_BRACE; break;
+				case '}' : kind = RIGHT_BRACE; break;
+				case ';' : kind = SEMICOLON; break;
+				case ',' : kind = COMMA; break;
+				case '>' :
+					kind = equalsFollows? GREATER_THAN_EQUAL : GREATER_THAN;
+					size = equalsFollows? 2 : 1;
+					break;
+				case '<' :
+					kind = equalsFollows? LESS_THAN_EQUAL : LESS_THAN;
+					size = equalsFollows? 2 : 1;
+					break;
+				case '=' :
+					kind = equalsFollows? EQUAL_TO : ASSIGN;
+					size = equalsFollows? 2 : 1;
+					break;
+				default :
+					throw errorAt(i, "Unexpected character '" + c + "'.");
+				}
+				add(kind, i, size, 0);
+				i += size;
+			}
+		}
+		
+		return count;
+	}
+	
+	/** @return the number of tokens in the current line. */
+	public int count() {
+		return count;
+	}
+	
+	/** @return the kind of the i'th token; one of the constants in this class. */
+	public int kind(int i) {
+		return kinds[check(i)];
+	}
+	
+	/** @return the index in the source of the first character of the i'th token. */
+	public int offset(int i) {
+		return offsets[check(i)];
+	}
+	
+	/** @return the number of characters in the source that make up the i'th token. */
+	public int length(int i) {
+		return lengths[check(i)];
+	}
+	
+	/** @return the value of the i'th token if it is a number. Numbers too big for an int read as Integer.MAX_VALUE,
+	 * and numbers too small as Integer.MIN_VALUE. */
+	public int value(int i) {
+		return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, values[check(i)]));
+	}
+	
+	/** @return the value of the i'th token if it is a number. */
+	public long longValue(int i) {
+		return values[check(i)];
+	}
+	
+	/** @return the column of the i'th token, starting at 1. */
+	public int column(int i) {
+		return offsets[check(i)] + 1;
+	}
+	
+	/** @return the number of the line being lexed, starting at 1, or -1 if it isn't known. */
+	public int line() {
+		return line;
+	}
+	
+	/** @return the line being lexed. */
+	public String source() {
+		return source;
+	}
+	
+	/** @return the text of the i'th token. Numbers are written without any whitespace between the sign and the digits. */
+	public String text(int i) {
+		check(i);
+		if (kinds[i] == NUMBER)
+			return Long.toString(values[i]);
+		return source.substring(offsets[i], offsets[i] + lengths[i]);
+	}
+	
+	/** @return true if the text of the i'th token is exactly the specified text. This doesn't allocate. */
+	public boolean textEquals(int i, String text) {
+		check(i);
+		return lengths[i] == text.length() && source.regionMatches(offsets[i], text, 0, lengths[i]);
+	}
+	
+	/** @return a CompilationException for the problem, pointing at the i'th token. */
+	public CompilationException error(int i, String message) {
+		return new CompilationException(message, line, (i < count ? offsets[i] : source.length()) + 1);
+	}
+	
+	/** @return true if the kind is one of + - * / */
+	public static boolean isArithmeticOperator(int kind) {
+		return kind >= PLUS && kind <= SLASH;
+	}
+	
+	/** @return true if the kind is one of > >= < <= == */
+	public static boolean isComparisonOperator(int kind) {
+		return kind >= GREATER_THAN && kind <= EQUAL_TO;
+	}
+	
+	/** @return the numerical precedence of the arithmetic operator, or -1 if it isn't one. */
+	public static int precedenceOf(int kind) {
+		return
+				(kind == PLUS || kind == MINUS)? 2 :
+				(kind == STAR || kind == SLASH)? 3 : -1;
+	}
+	
+	/** @return true if a - at this point would be a negative sign rather than a subtraction. return lexes
+	 * as an identifier, but nothing is ever taken away from it. */
+	private boolean isNegativeSign() {
+		if (count == 0)
+			return true;
+		int previous = kinds[count - 1];
+		if (previous == IDENTIFIER)
+			return textEquals(count - 1, "return");
+		return previous != NUMBER && previous != RIGHT_PARENTHESIS;
+	}
+	
+	/** Lex the number starting at i, which may begin with a negative sign.
+	 * @return the index just past the number. */
+	private int number(int i) {
+		int start = i, length = source.length();
+		boolean negative = source.charAt(i) == '-';
+		if (negative) {
+			i ++;
+			while (i < length && Character.isWhitespace(source.charAt(i)))
+				i ++;
+			if (i == length || !isDigit(source.charAt(i)))
+				throw errorAt(start, "Brew can only put a negative sign in front of a number.");
+		}
+		
+		// The value is built up negative, since a long reaches one further below 0 than above it.
+		long value = 0, limit = negative? Long.MIN_VALUE : -Long.MAX_VALUE;
+		while (i < length && isDigit(source.charAt(i))) {
+			int digit = source.charAt(i) - '0';
+			if (value < (limit + digit) / 10)
+				throw errorAt(start, "The number is too big, the biggest numbers Brew supports are longs.");
+			value = value * 10 - digit;
+			i ++;
+		}
+		if (i < length && (source.charAt(i) == '.' || Character.isLetter(source.charAt(i))))
+			throw errorAt(start, "Brew only supports whole numbers.");
+		
+		add(NUMBER, start, i - start, negative? value : -value);
+		return i;
+	}
+	
+	/** @return a CompilationException for the problem, pointing at the character at the offset. */
+	private CompilationException errorAt(int offset, String message) {
+		return new CompilationException(message, line, offset + 1);
+	}
+	
+	private void add(int kind, int offset, int length, long value) {
+		if (count == kinds.length) {
+			kinds = Arrays.copyOf(kinds, count * 2);
+			offsets = Arrays.copyOf(offsets, count * 2);
+			lengths = Arrays.copyOf(lengths, count * 2);
+			values = Arrays.copyOf(values, count * 2);
+		}
+		kinds[count] = kind;
+		offsets[count] = offset;
+		lengths[count] = length;
+		values[count] = value;
+		count ++;
+	}
+	
+	private int check(int i) {
+		if (i < 0 || i >= count)
+			throw new IndexOutOfBoundsException("Token " + i + " doesn't exist, there are " + count + " tokens.");
+		return i;
+	}
+	
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+}
@@ -0,0 +1,68 @@
+package com.brew.compiler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * This class is what the compiler knows about the innermost loop it is compiling, so that values which
+ * can't change from one iteration to the next are worked out once, before the loop starts. Such a value is
+ * moved into the loop's preheader, code that runs before the loop's first test, and stored in a temporary
+ * in the loop's frame. The loop reads the temporary instead. The loop's frame is either its own, or the
+ * one it shares with the blocks around it.
+ *
+ * Only expressions that can't fail are moved, since the preheader runs even when the loop doesn't.
+ * @author Jonathan Force
+ */
+class Loop {
+	
+	/** The loop's frame, where its temporaries live. */
+	final Frame frame;
+	/** The names of every variable assigned anywhere in the loop. Everything else stays the same while it runs. */
+	private final HashSet<String> modified;
+	/** The code that works out every temporary, in the order they were found. */
+	private final BytecodeBuffer preheader;
+	/** The temporary each piece of code was moved to, so code that is moved twice is only run once. */
+	private final HashMap<String, StackPointer> temporaries;
+	
+	/** @param frame The loop's frame.
+	 * @param modified The names of every variable assigned inside the loop. */
+	Loop(Frame frame, HashSet<String> modified) {
+		this.frame = frame;
+		this.modified = modified;
+		this.preheader = new BytecodeBuffer();
+		this.temporaries = new HashMap<String, StackPointer>();
+	}
+	
+	/** @return true if the variable keeps the same value the whole time the loop runs. */
+	boolean isInvariant(String variable) {
+		return !modified.contains(variable);
+	}
+	
+	/** Move the code, which leaves a value of the size on the stack, into the preheader.
+	 * @return the temporary that holds the value the code works out, or null if the frame has no room left
+	 * for it. The code stays where it is then. */
+	StackPointer hoist(byte[] code, int size) {
+		String key = size + ":" + new String(code, StandardCharsets.ISO_8859_1);
+		StackPointer temporary = temporaries.get(key);
+		if (temporary == null) {
+			temporary = frame.allocate(size);
+			if (temporary == null)
+				return null;
+			preheader.emit(code);
+			preheader.emit(Utilities.storeFor(size), temporary.frame(), temporary.variableID());
+			temporaries.put(key, temporary);
+		}
+		return temporary;
+	}
+	
+	/** @return the code of the preheader. */
+	byte[] preheader() {
+		return preheader.toByteArray();
+	}
+	
+	/** @return the code that loads the temporary. */
+	static byte[] load(StackPointer temporary) {
+		return new byte[] { Utilities.loadFor(temporary.size()), temporary.frame(), temporary.variableID() };
+	}
+}
@@ -0,0 +1,218 @@
+package com.brew.compiler;
+
+import java.util.Arrays;
+
+import com.brew.vm.InstructionSet;
+
+/**
+ * This class rewrites a program so that common sequences of instructions become a single superinstruction.
+ * Every instruction costs a dispatch in the interpreter, so doing the same work in fewer instructions is
+ * cheaper. The sequences it looks for are :
+ *
+ * PULL_VAR x, PUSH c, ADD or SUBTRACT, PUSH_VAR x becomes INCREMENT_VAR x c.
+ * PUSH c, PULL_VAR x, comparison, IF becomes IF_VAR x comparison c, and so does the mirror image with
+ * the PULL_VAR first.
+ * PUSH c, ADD or SUBTRACT becomes ADD_CONSTANT c.
+ * PULL_VAR x, PULL_VAR y becomes PULL_VARS x y.
+ *
+ * A sequence is only replaced if nothing jumps into the middle of it. The program gets shorter, so every
+ * GOTO, IF and CALL is moved to follow the instruction it pointed at. A CALL past the end of the code is to
+ * a function in code somebody else puts after it, and is left alone.
+ * @author Jonathan Force
+ */
+public class Peephole {
+	
+	/** Rewrite the program to use superinstructions.
+	 * @param code The program. It isn't changed.
+	 * @return the rewritten program. If the program can't be decoded, because it has an instruction that
+	 * doesn't exist or a jump that doesn't land on an instruction, it is returned as it is.
+	 */
+	public static byte[] optimize(byte[] code) {
+		return optimize(code, new int[0]);
+	}
+	
+	/** Rewrite the program to use superinstructions, and follow where the specified places in it end up.
+	 * @param code The program. It isn't changed.
+	 * @param positions Indexes in the program, each of which is replaced by its index in the rewritten
+	 * program. An index inside a sequence that became a superinstruction goes to the superinstruction.
+	 * @return the rewritten program. If the program can't be decoded it is returned as it is, and so are
+	 * the positions.
+	 */
+	public static byte[] optimize(byte[] code, int[] positions) {
+		boolean[] isInstruction = new boolean[code.length + 1];
+		boolean[] isTarget = new boolean[code.length + 1];
+		if (!decode(code, isInstruction, isTarget))
+			return code;
+		
+		// Where each instruction of the old program ended up in the new one.
+		int[] moved = new int[code.length + 1];
+		// Where each jump in the new program is, and the index in the old program it jumps to.
+		int[] jumps = new int[code.length], targets = new int[code.length];
+		int jumpCount = 0;
+		BytecodeBuffer out = new BytecodeBuffer(code.length);
+		
+		int pc = 0;
+		while (pc < code.length) {
+			int at = out.position();
+			moved[pc] = at;
+			int length = rewrite(code, pc, isTarget, out);
+			if (length == 0) {
+				length = InstructionSet.lengthOf(code[pc]);
+				out.emit(Arrays.copyOfRange(code, pc, pc + length));
+			}
+			
+			// Anything inside the sequence goes to where the sequence went.
+			Arrays.fill(moved, pc + 1, pc + length, at);
+			
+			int target = targetOf(code, pc);
+			if (out.get(at) == InstructionSet.IF_VAR && code[pc] != InstructionSet.IF_VAR)
+				// The IF is the last instruction of the sequence.
+				target = targetOf(code, pc + length - 2);
+			if (target != -1 && !isOutside(code, pc, target)) {
+				jumps[jumpCount] = at;
+				targets[jumpCount ++] = target;
+			}
+			pc += length;
+		}
+		moved[code.length] = out.position();
+		
+		// Now that everything has found its place, point the jumps at where their targets went.
+		for (int i = 0; i < jumpCount; i ++) {
+			int at = jumps[i], target = moved[targets[i]];
+			switch (out.get(at)) {
+			case InstructionSet.GOTO : out.patch(at + 1, (byte) target); break;
+			case InstructionSet.IF : out.patch(at + 1, (byte) (target - (at + 2))); break;
+			case InstructionSet.IF_VAR : out.patch(at + 5, (byte) (target - (at + 6))); break;
+			case InstructionSet.GOTO_WIDE : patchWide(out, at + 1, target); break;
+			case InstructionSet.IF_WIDE : patchWide(out, at + 1, target - (at + 3)); break;
+			case InstructionSet.CALL : patchWide(out, at + 1, target); break;
+			}
+		}
+		
+		for (int i = 0; i < positions.length; i ++)
+			positions[i] = moved[positions[i]];
+		return out.toByteArray();
+	}
+	
+	/** Try to replace the sequence that starts at pc with a superinstruction.
+	 * @return the number of bytes of the old program that were replaced, or 0 if nothing was. */
+	private static int rewrite(byte[] code, int pc, boolean[] isTarget, BytecodeBuffer out) {
+		if (matches(code, pc, isTarget, InstructionSet.PULL_VAR, InstructionSet.PUSH, -1, InstructionSet.PUSH_VAR)
+				&& isAddition(code[pc + 5])
+				&& code[pc + 1] == code[pc + 7] && code[pc + 2] == code[pc + 8]) {
+			out.emit(InstructionSet.INCREMENT_VAR, code[pc + 1], code[pc + 2]);
+			out.emit(amountOf(code[pc + 5], code[pc + 4]));
+			return 9;
+		}
+		
+		if (matches(code, pc, isTarget, InstructionSet.PUSH, InstructionSet.PULL_VAR, -1, InstructionSet.IF)
+				&& InstructionSet.isComparisonOperator(code[pc + 5])) {
+			// The variable is on top, so it is the left hand side.
+			emitIfVar(code[pc + 3], code[pc + 4], code[pc + 5], code[pc + 1], out);
+			return 8;
+		}
+		
+		if (matches(code, pc, isTarget, InstructionSet.PULL_VAR, InstructionSet.PUSH, -1, InstructionSet.IF)
+				&& InstructionSet.isComparisonOperator(code[pc + 5])) {
+			// The constant is on top, so the comparison has to be turned around.
+			emitIfVar(code[pc + 1], code[pc + 2], InstructionSet.mirrorOf(code[pc + 5]), code[pc + 4], out);
+			return 8;
+		}
+		
+		if (matches(code, pc, isTarget, InstructionSet.PUSH, -1) && isAddition(code[pc + 2])) {
+			out.emit(InstructionSet.ADD_CONSTANT, amountOf(code[pc + 2], code[pc + 1]));
+			return 3;
+		}
+		
+		if (matches(code, pc, isTarget, InstructionSet.PULL_VAR, InstructionSet.PULL_VAR)) {
+			out.emit(InstructionSet.PULL_VARS, code[pc + 1], code[pc + 2]);
+			out.emit(code[pc + 4]);
+			out.emit(code[pc + 5]);
+			return 6;
+		}
+		
+		return 0;
+	}
+	
+	/** Emit an IF_VAR whose offset will be filled in once every jump target is known. */
+	private static void emitIfVar(byte frameID, byte variableID, byte comparison, byte constant, BytecodeBuffer out) {
+		out.emit(InstructionSet.IF_VAR, frameID, variableID);
+		out.emit(comparison);
+		out.emit(constant);
+		out.emit((byte) 0);
+	}
+	
+	/** @return true if the instructions starting at pc are the specified instructions, and nothing jumps
+	 * to any of them but the first. -1 matches any instruction that is only 1 byte long. */
+	private static boolean matches(byte[] code, int pc, boolean[] isTarget, int ... instructions) {
+		for (int i = 0; i < instructions.length; i ++) {
+			if (pc >= code.length || (i > 0 && isTarget[pc]))
+				return false;
+			int length = InstructionSet.lengthOf(code[pc]);
+			if (instructions[i] == -1? length != 1 : code[pc] != instructions[i])
+				return false;
+			pc += length;
+		}
+		return true;
+	}
+	
+	/** Walk the program marking where instructions start and where jumps land.
+	 * @return false if the program can't be decoded. */
+	private static boolean decode(byte[] code, boolean[] isInstruction, boolean[] isTarget) {
+		int pc = 0;
+		while (pc < code.length) {
+			int length = InstructionSet.lengthOf(code[pc]);
+			if (length == -1 || pc + length > code.length)
+				return false;
+			isInstruction[pc] = true;
+			pc += length;
+		}
+		isInstruction[code.length] = true;
+		
+		for (pc = 0; pc < code.length; pc += InstructionSet.lengthOf(code[pc])) {
+			int target = targetOf(code, pc);
+			if (target == -1 || isOutside(code, pc, target))
+				continue;
+			if (target < 0 || target > code.length || !isInstruction[target])
+				return false;
+			isTarget[target] = true;
+		}
+		return true;
+	}
+	
+	/** @return the index the jump at pc goes to, or -1 if the instruction at pc isn't a jump. A CALL counts
+	 * as a jump to its function. A jump before the start of the program is reported as -2. */
+	private static int targetOf(byte[] code, int pc) {
+		int target;
+		switch (code[pc]) {
+		case InstructionSet.GOTO : target = code[pc + 1]; break;
+		case InstructionSet.IF : target = pc + 2 + code[pc + 1]; break;
+		case InstructionSet.IF_VAR : target = pc + 6 + code[pc + 5]; break;
+		case InstructionSet.GOTO_WIDE : target = (int) InstructionSet.read(code, pc + 1, 2) & 0xFFFF; break;
+		case InstructionSet.IF_WIDE : target = pc + 3 + (int) InstructionSet.read(code, pc + 1, 2); break;
+		case InstructionSet.CALL : target = (int) InstructionSet.read(code, pc + 1, 2) & 0xFFFF; break;
+		default : return -1;
+		}
+		return (target < 0)? -2 : target;
+	}
+	
+	/** @return true if the instruction at pc is a CALL to a function past the end of the code. */
+	private static boolean isOutside(byte[] code, int pc, int target) {
+		return code[pc] == InstructionSet.CALL && target > code.length;
+	}
+	
+	/** Write the 2 byte parameter of a wide jump or a call, most significant byte first. */
+	private static void patchWide(BytecodeBuffer out, int index, int value) {
+		out.patch(index, (byte) (value >> 8));
+		out.patch(index + 1, (byte) value);
+	}
+	
+	private static boolean isAddition(byte inst) {
+		return inst == InstructionSet.ADD || inst == InstructionSet.SUBTRACT;
+	}
+	
+	/** @return the amount to add that does the same as adding or subtracting the constant. */
+	private static byte amountOf(byte addition, byte constant) {
+		return (addition == InstructionSet.ADD)? constant : (byte) -constant;
+	}
+}
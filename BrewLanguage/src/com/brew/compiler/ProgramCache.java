@@ -0,0 +1,194 @@
+package com.brew.compiler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class compiles Brew programs and keeps what it compiled, so a program that is compiled again and
+ * again only pays for it the first time. It is safe to use from any number of threads.
+ *
+ * Programs are looked up by their source after it has been normalized : leading and trailing whitespace is
+ * taken off every line, and every other run of whitespace becomes a single space. Whitespace only ever
+ * separates tokens, so none of that changes the bytecode. Blank lines are kept, since a compiled program
+ * knows the line of every instruction. The optimization level is part of the key, since it changes the
+ * bytecode too.
+ *
+ * The cache holds up to a maximum number of programs, and makes room by throwing out the program that was
+ * used least recently. To keep threads from waiting on each other the programs are spread over a number of
+ * segments, each with its own lock and its own share of the maximum, so the program thrown out is the least
+ * recently used of its segment rather than of the whole cache.
+ * @author Jonathan Force
+ */
+public class ProgramCache {
+	
+	/** The most segments a cache is split into, and the fewest programs each segment holds. Programs don't
+	 * spread over the segments evenly, so a segment too small would throw programs out of a cache that is
+	 * nowhere near full. */
+	private static final int MAXIMUM_SEGMENTS = 16, MINIMUM_SEGMENT_SIZE = 16;
+	
+	private final Segment[] segments;
+	private final int maximumSize;
+	private final AtomicLong hits, misses, evictions;
+	
+	/** @param maximumSize The most programs the cache may hold. */
+	public ProgramCache(int maximumSize) {
+		if (maximumSize < 1)
+			throw new IllegalArgumentException("A cache can't hold " + maximumSize + " programs.");
+		this.maximumSize = maximumSize;
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+		this.evictions = new AtomicLong();
+		
+		int count = 1;
+		while (count < MAXIMUM_SEGMENTS && count * 2 * MINIMUM_SEGMENT_SIZE <= maximumSize)
+			count *= 2;
+		// Share out the maximum so that the segments add up to it exactly.
+		segments = new Segment[count];
+		for (int i = 0; i < count; i ++)
+			segments[i] = new Segment(maximumSize / count + (i < maximumSize % count? 1 : 0), evictions);
+	}
+	
+	/** Compile the program at the {@link Compiler#DEFAULT_OPTIMIZATION default optimization level}, unless
+	 * it has been compiled already.
+	 * @param sourceLines The source code, one statement per line.
+	 * @return the compiled program. */
+	public CompiledProgram compile(String ... sourceLines) {
+		return compile(Compiler.DEFAULT_OPTIMIZATION, sourceLines);
+	}
+	
+	/** Compile the program at the specified optimization level, unless it has been compiled already. The
+	 * program is compiled outside of any lock, so two threads that miss on the same program at once may both
+	 * compile it. Only the first to finish is kept, and both get that one.
+	 * @param optimizationLevel One of the optimization levels in {@link Compiler}.
+	 * @param sourceLines The source code, one statement per line.
+	 * @return the compiled program. */
+	public CompiledProgram compile(int optimizationLevel, String ... sourceLines) {
+		String key = optimizationLevel + "\n" + normalize(sourceLines);
+		Segment segment = segmentFor(key);
+		CompiledProgram program;
+		synchronized (segment) {
+			program = segment.get(key);
+		}
+		if (program != null) {
+			hits.incrementAndGet();
+			return program;
+		}
+		
+		misses.incrementAndGet();
+		// A compiler isn't safe to share between threads, so each program gets a new one.
+		Compiler compiler = new Compiler();
+		compiler.setOptimizationLevel(optimizationLevel);
+		CompiledProgram compiled = compiler.compileProgram(sourceLines);
+		synchronized (segment) {
+			program = segment.get(key);
+			if (program != null)
+				return program;
+			segment.put(key, compiled);
+		}
+		return compiled;
+	}
+	
+	/** Forget every program. The counts of hits, misses and evictions are kept. */
+	public void clear() {
+		for (Segment segment : segments)
+			synchronized (segment) {
+				segment.clear();
+			}
+	}
+	
+	/** @return the number of programs in the cache. */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments)
+			synchronized (segment) {
+				size += segment.size();
+			}
+		return size;
+	}
+	
+	/** @return the most programs the cache may hold. */
+	public int maximumSize() {
+		return maximumSize;
+	}
+	
+	/** @return the number of times a program was found in the cache. */
+	public long hitCount() {
+		return hits.get();
+	}
+	
+	/** @return the number of times a program wasn't found in the cache, and was compiled. */
+	public long missCount() {
+		return misses.get();
+	}
+	
+	/** @return the number of programs thrown out to make room for others. */
+	public long evictionCount() {
+		return evictions.get();
+	}
+	
+	/** @return the share of lookups that found their program in the cache, or 0 if there have been none. */
+	public double hitRate() {
+		long hits = this.hits.get(), lookups = hits + misses.get();
+		return lookups == 0? 0 : (double) hits / lookups;
+	}
+	
+	@Override
+	public String toString() {
+		return "Program cache of " + size() + "/" + maximumSize + " programs, " + hitCount() + " hits, "
+				+ missCount() + " misses, " + evictionCount() + " evictions";
+	}
+	
+	private Segment segmentFor(String key) {
+		int hash = key.hashCode();
+		// The low bits pick the segment, so mix the high bits into them.
+		hash ^= (hash >>> 16);
+		return segments[hash & (segments.length - 1)];
+	}
+	
+	/** Normalize the source, so that programs that differ only in the whitespace inside their lines share a key.
+	 * @return the lines with their whitespace normalized, each followed by a new line, blank or not. */
+	static String normalize(String[] sourceLines) {
+		StringBuilder builder = new StringBuilder();
+		for (String line : sourceLines) {
+			int start = builder.length();
+			boolean space = false;
+			for (int i = 0; i < line.length(); i ++) {
+				char c = line.charAt(i);
+				if (Character.isWhitespace(c))
+					space = true;
+				else {
+					if (space && builder.length() > start)
+						builder.append(' ');
+					builder.append(c);
+					space = false;
+				}
+			}
+			builder.append('\n');
+		}
+		return builder.toString();
+	}
+	
+	/** A share of the cache's programs, kept in the order they were last used. Guarded by itself. */
+	private static final class Segment extends LinkedHashMap<String, CompiledProgram> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final int capacity;
+		private final AtomicLong evictions;
+		
+		Segment(int capacity, AtomicLong evictions) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+			this.evictions = evictions;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CompiledProgram> eldest) {
+			if (size() <= capacity)
+				return false;
+			evictions.incrementAndGet();
+			return true;
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package com.brew.compiler;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import com.brew.compiler.exceptions.ProgramFileException;
+import com.brew.vm.InstructionSet;
+
+/**
+ * This class writes compiled programs to .brewc files and reads them back, so a program only has to be
+ * compiled once rather than every time the process starts. Reading a file maps it into memory, and the
+ * program's bytecode is read straight out of the mapping, so loading a file costs little more than
+ * opening it.
+ *
+ * Every number is big-endian. A file starts with a header :
+ *
+ * u4 magic, the bytes "BRWC".
+ * u2 version, the version of this format the file was written in.
+ * u1 optimization level the program was compiled at.
+ * u1 flags, 0 for now.
+ * u4 length of the body, everything after the header.
+ * u4 CRC-32 checksum of the body.
+ * 32 bytes of SHA-256 digest of the source the program was compiled from, or 0s if it isn't known. Files
+ * in version 1 of the format don't have this, their header ends at the checksum.
+ *
+ * And then the body, which is made of five tables, one after the other :
+ *
+ * Bytecode : u4 length, then the bytes of the program.
+ * Constants : u2 count, then a u1 for each byte value the program uses. Then a u2 count, and a u8 for each
+ * int or long value it pushes. Files before version 4 don't have the int and long values.
+ * Frames : u2 count, then for each PUSH_FRAME a u4 index in the bytecode and the u1 size of its frame.
+ * Variables : u2 count, then for each variable its u1 frame, u1 id, u1 size in bytes, u2 length of its
+ * name, and the name in UTF-8. Files before version 3 don't have the size, every variable in them is a byte.
+ * Lines : u4 count, then for each line a u4 index in the bytecode where it starts and its u4 number.
+ * @author Jonathan Force
+ */
+public class ProgramFile {
+	
+	/** The end of the name of every compiled program file. */
+	public static final String EXTENSION = ".brewc";
+	/** The first four bytes of every compiled program file. */
+	public static final int MAGIC = 0x42525743;
+	/** The version of the format files are written in. Files written in a later version can't be read. */
+	public static final int VERSION = 4;
+	/** The number of bytes in a source digest. */
+	public static final int DIGEST_SIZE = 32;
+	/** The number of bytes before the body, in the current version and in version 1. */
+	public static final int HEADER_SIZE = 16 + DIGEST_SIZE, VERSION_1_HEADER_SIZE = 16;
+	
+	/** Write the program to the file, replacing whatever was there. */
+	public static void write(CompiledProgram program, Path path) throws IOException {
+		write(program, null, path);
+	}
+	
+	/** Write the program to the file, replacing whatever was there.
+	 * @param sourceDigest The SHA-256 digest of the source the program was compiled from, or null. */
+	public static void write(CompiledProgram program, byte[] sourceDigest, Path path) throws IOException {
+		ByteBuffer buffer = encode(program, sourceDigest);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+	}
+	
+	/** Map the file into memory and read the program in it. The mapping lasts as long as the program does,
+	 * it isn't copied onto the heap.
+	 * @throws ProgramFileException if the file isn't a compiled program this version can read. */
+	public static CompiledProgram map(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return decode(buffer);
+		}
+	}
+	
+	/** Check whether the file holds a program compiled from the source with the digest, at the optimization
+	 * level. Only the header is read, so this is cheap enough to ask of every file before compiling it.
+	 * @return false if the file doesn't exist, isn't a compiled program of the current version, or was
+	 * compiled from something else or at another level. */
+	public static boolean isCompiledFrom(Path path, byte[] sourceDigest, int optimizationLevel) throws IOException {
+		if (!Files.isRegularFile(path))
+			return false;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			while (header.hasRemaining() && channel.read(header) != -1)
+				;
+		}
+		if (header.hasRemaining() || header.getInt(0) != MAGIC || (header.getShort(4) & 0xFFFF) != VERSION
+				|| header.get(6) != optimizationLevel)
+			return false;
+		byte[] digest = new byte[DIGEST_SIZE];
+		header.position(VERSION_1_HEADER_SIZE);
+		header.get(digest);
+		return Arrays.equals(digest, sourceDigest);
+	}
+	
+	/** @return the program in the format of a file, in a buffer ready to be read from. */
+	public static ByteBuffer encode(CompiledProgram program) {
+		return encode(program, null);
+	}
+	
+	/** @param sourceDigest The SHA-256 digest of the source the program was compiled from, or null.
+	 * @return the program in the format of a file, in a buffer ready to be read from. */
+	public static ByteBuffer encode(CompiledProgram program, byte[] sourceDigest) {
+		if (sourceDigest != null && sourceDigest.length != DIGEST_SIZE)
+			throw new IllegalArgumentException("A source digest is " + DIGEST_SIZE + " bytes, not " + sourceDigest.length + ".");
+		byte[] constants = program.constants();
+		long[] wideConstants = program.wideConstants();
+		byte[][] names = new byte[program.variableCount()][];
+		int size = HEADER_SIZE + 4 + program.length() + 2 + constants.length + 2 + wideConstants.length * 8
+				+ 2 + program.frameCount() * 5 + 2 + 4 + program.lineTableSize() * 8;
+		for (int i = 0; i < names.length; i ++) {
+			names[i] = program.variableName(i).getBytes(StandardCharsets.UTF_8);
+			size += 5 + names[i].length;
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.position(HEADER_SIZE);
+		buffer.putInt(program.length());
+		buffer.put(program.code());
+		
+		buffer.putShort((short) constants.length);
+		buffer.put(constants);
+		buffer.putShort((short) wideConstants.length);
+		for (long constant : wideConstants)
+			buffer.putLong(constant);
+		
+		buffer.putShort((short) program.frameCount());
+		for (int i = 0; i < program.frameCount(); i ++) {
+			buffer.putInt(program.framePosition(i));
+			buffer.put((byte) program.frameSize(i));
+		}
+		
+		buffer.putShort((short) names.length);
+		for (int i = 0; i < names.length; i ++) {
+			buffer.put(program.variable(i).frame());
+			buffer.put(program.variable(i).variableID());
+			buffer.put((byte) program.variable(i).size());
+			buffer.putShort((short) names[i].length);
+			buffer.put(names[i]);
+		}
+		
+		buffer.putInt(program.lineTableSize());
+		for (int i = 0; i < program.lineTableSize(); i ++) {
+			buffer.putInt(program.linePosition(i));
+			buffer.putInt(program.lineNumber(i));
+		}
+		
+		// Now that the body is written, the header can be.
+		CRC32 checksum = new CRC32();
+		checksum.update(buffer.array(), HEADER_SIZE, size - HEADER_SIZE);
+		buffer.position(0);
+		buffer.putInt(MAGIC);
+		buffer.putShort((short) VERSION);
+		buffer.put((byte) program.optimizationLevel());
+		buffer.put((byte) 0);
+		buffer.putInt(size - HEADER_SIZE);
+		buffer.putInt((int) checksum.getValue());
+		buffer.put(sourceDigest == null? new byte[DIGEST_SIZE] : sourceDigest);
+		buffer.position(0);
+		return buffer;
+	}
+	
+	/** Read a program in the format of a file, from the buffer's position to its limit. The program's
+	 * bytecode is a view of the buffer, not a copy.
+	 * @throws ProgramFileException if the buffer doesn't hold a compiled program this version can read. */
+	public static CompiledProgram decode(ByteBuffer file) {
+		ByteBuffer buffer = file.slice();
+		if (buffer.remaining() < VERSION_1_HEADER_SIZE || buffer.getInt() != MAGIC)
+			throw new ProgramFileException("This is not a compiled Brew program.");
+		int version = buffer.getShort() & 0xFFFF;
+		if (version == 0 || version > VERSION)
+			throw new ProgramFileException("The program is in version " + version + " of the format, only versions 1 to " + VERSION + " can be read.");
+		int optimizationLevel = buffer.get();
+		buffer.get();
+		int length = buffer.getInt(), checksum = buffer.getInt();
+		// The source digest is only for deciding whether to compile again, the program doesn't need it.
+		int headerSize = (version == 1)? VERSION_1_HEADER_SIZE : HEADER_SIZE;
+		if (buffer.limit() < headerSize)
+			throw new ProgramFileException("The program ends in the middle of its header.");
+		buffer.position(headerSize);
+		if (length != buffer.remaining())
+			throw new ProgramFileException("The program should be " + (headerSize + length) + " bytes long, but is " + buffer.limit() + ".");
+		
+		CRC32 crc = new CRC32();
+		crc.update(buffer.duplicate());
+		if ((int) crc.getValue() != checksum)
+			throw new ProgramFileException("The program is damaged, its checksum doesn't match.");
+		
+		try {
+			ByteBuffer code = slice(buffer, buffer.getInt());
+			
+			byte[] constants = new byte[buffer.getShort() & 0xFFFF];
+			buffer.get(constants);
+			long[] wideConstants = new long[(version < 4)? 0 : buffer.getShort() & 0xFFFF];
+			for (int i = 0; i < wideConstants.length; i ++)
+				wideConstants[i] = buffer.getLong();
+			
+			int frameCount = buffer.getShort() & 0xFFFF;
+			int[] framePositions = new int[frameCount];
+			byte[] frameSizes = new byte[frameCount];
+			for (int i = 0; i < frameCount; i ++) {
+				framePositions[i] = buffer.getInt();
+				frameSizes[i] = buffer.get();
+			}
+			
+			int variableCount = buffer.getShort() & 0xFFFF;
+			String[] names = new String[variableCount];
+			StackPointer[] variables = new StackPointer[variableCount];
+			for (int i = 0; i < variableCount; i ++) {
+				byte frame = buffer.get(), id = buffer.get();
+				int size = (version < 3)? InstructionSet.BYTE_SIZE : buffer.get();
+				if (!InstructionSet.isValueSize(size))
+					throw new ProgramFileException("Variable " + i + " is " + size + " bytes, no kind of value is that size.");
+				variables[i] = new StackPointer(frame, id, size);
+				byte[] name = new byte[buffer.getShort() & 0xFFFF];
+				buffer.get(name);
+				names[i] = new String(name, StandardCharsets.UTF_8);
+			}
+			
+			int lineCount = buffer.getInt();
+			if (lineCount < 0 || lineCount > buffer.remaining() / 8)
+				throw new BufferUnderflowException();
+			int[] linePositions = new int[lineCount], lineNumbers = new int[lineCount];
+			for (int i = 0; i < lineCount; i ++) {
+				linePositions[i] = buffer.getInt();
+				lineNumbers[i] = buffer.getInt();
+			}
+			
+			if (buffer.hasRemaining())
+				throw new ProgramFileException("There are " + buffer.remaining() + " bytes after the end of the program.");
+			return new CompiledProgram(code, optimizationLevel, constants, wideConstants, framePositions, frameSizes, names,
+					variables, linePositions, lineNumbers);
+		} catch (BufferUnderflowException e) {
+			throw new ProgramFileException("The program ends in the middle of a table.");
+		}
+	}
+	
+	/** @return the next length bytes of the buffer as a buffer of their own, moving the buffer past them. */
+	private static ByteBuffer slice(ByteBuffer buffer, int length) {
+		if (length < 0 || length > buffer.remaining())
+			throw new BufferUnderflowException();
+		ByteBuffer slice = buffer.slice();
+		slice.limit(length);
+		buffer.position(buffer.position() + length);
+		return slice.slice();
+	}
+}
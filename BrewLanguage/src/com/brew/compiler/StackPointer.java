@@ -1,18 +1,30 @@
 package com.brew.compiler;
 
+import com.brew.vm.InstructionSet;
+
 /**
  * This is a simple utility class that's sole purpose is to point to a variable in the stack.
  * Variables in the stack are stored in frames, which are arrays of bytes. To point to a variable
- * on the stack you must have the frame's ID and the variable's ID.
+ * on the stack you must have the frame's ID and the variable's ID. A variable wider than a byte takes up
+ * several bytes of its frame, and its ID is the first of them.
  * @author Jonathan Force
  */
 public class StackPointer {
 	
 	private final byte frame, variableID;
+	private final int size;
 	
 	public StackPointer(byte frame, byte variableID) {
+		this(frame, variableID, InstructionSet.BYTE_SIZE);
+	}
+	
+	/** @param size The number of bytes the variable takes up, one of the sizes in {@link InstructionSet}. */
+	public StackPointer(byte frame, byte variableID, int size) {
+		if (!InstructionSet.isValueSize(size))
+			throw new IllegalArgumentException("No kind of value is " + size + " bytes.");
 		this.frame = frame;
 		this.variableID = variableID;
+		this.size = size;
 	}
 	
 	/** @return the frame's ID that the pointer points to in the stack. */
@@ -25,4 +37,9 @@ public class StackPointer {
 		return variableID;
 	}
 	
+	/** @return the number of bytes the variable takes up. */
+	public int size() {
+		return size;
+	}
+	
 }
\ No newline at end of file
@@ -1,7 +1,6 @@
 package com.brew.compiler;
 
 import java.util.ArrayDeque;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Stack;
 
@@ -10,6 +9,17 @@ import com.brew.vm.InstructionSet;
 
 public class Utilities {
 	
+	private final Lexer lexer = new Lexer();
+	/** The value of the last expression {@link #compileValue} found to be constant. */
+	private long constant;
+	/** The innermost loop being compiled, or null outside of loops. */
+	private Loop loop = null;
+	/** Every function that can be called, by name. */
+	private HashMap<String, Function> functions = new HashMap<String, Function>();
+	/** The frame the temporaries of inlined functions go in. */
+	private Frame frame;
+	private int optimizationLevel = Compiler.DEFAULT_OPTIMIZATION;
+	
 	/** This method compiles a given conditional expression.
 	 * A conditional expression is given by :
 	 * L OP R
@@ -22,10 +32,75 @@ public class Utilities {
 	 * @return the compiled and composed bytecode for the expression.
 	 */
 	public byte[] compileConditional(String source, HashMap<String, StackPointer> variableMap) {
-		String[] split = this.splitConditionalExpression(source);
-		byte[] leftCompiled = compileExpression(toPostfix(tokenize(split[0], true)), variableMap);
-		byte[] rightCompiled = compileExpression(toPostfix(tokenize(split[2], true)), variableMap);
-		return composeConditional(leftCompiled, split[1], rightCompiled);
+		BytecodeBuffer out = new BytecodeBuffer();
+		compileConditional(source, variableMap, out);
+		return out.toByteArray();
+	}
+	
+	/** Compile the conditional expression to the end of the buffer. The right hand side is compiled
+	 * first so that the left hand side ends up on top of the stack, just like {@link #composeConditional}. */
+	public void compileConditional(String source, HashMap<String, StackPointer> variableMap, BytecodeBuffer out) {
+		int count = lexer.tokenize(source);
+		int truth = compileConditional(lexer, 0, count, variableMap, out);
+		if (truth != -1)
+			out.emit(InstructionSet.PUSH, (byte) truth);
+	}
+	
+	/** Compile the conditional expression made of the tokens from start up to (not including) end, writing
+	 * the bytecode to the end of the buffer. The right hand side is compiled first so that the left hand
+	 * side ends up on top of the stack, just like {@link #composeConditional}. Both sides are worked out at
+	 * the size of the wider one, so a byte can be compared with an int.
+	 * @return -1 if the outcome depends on variables. If constants are being folded and both sides are
+	 * constant, nothing is emitted and the outcome is returned instead : 1 if it is true and 0 if it is false.
+	 */
+	public int compileConditional(Lexer tokens, int start, int end, HashMap<String, StackPointer> variableMap, BytecodeBuffer out) {
+		return compileConditional(tokens, start, end, variableMap, false, out);
+	}
+	
+	/** Compile the conditional expression, or the opposite of it, to the end of the buffer. The opposite
+	 * is true exactly when the condition is false, which is what a loop needs to jump back to its start.
+	 * Each comparison but == has an opposite that costs nothing, == is followed by a comparison with 0.
+	 * @param negate Whether to compile the opposite of the condition.
+	 * @return -1 if the outcome depends on variables, otherwise the outcome, as for
+	 * {@link #compileConditional(Lexer, int, int, HashMap, BytecodeBuffer)}.
+	 */
+	public int compileConditional(Lexer tokens, int start, int end, HashMap<String, StackPointer> variableMap, boolean negate, BytecodeBuffer out) {
+		int operator = -1;
+		for (int i = start; i < end; i ++)
+			if (Lexer.isComparisonOperator(tokens.kind(i))) {
+				if (operator != -1)
+					throw tokens.error(i, "There is more than one conditional operator in this expression.");
+				operator = i;
+			}
+		if (operator == -1)
+			throw tokens.error(start, "A conditional expression needs a conditional operator : >, <, >=, <= or ==");
+		
+		byte comparison = instructionFor(tokens.kind(operator));
+		int size = Math.max(sizeOf(tokens, start, operator, variableMap), sizeOf(tokens, operator + 1, end, variableMap));
+		
+		int rightStart = out.position();
+		boolean rightIsConstant = compileValue(tokens, operator + 1, end, variableMap, size, out);
+		long right = constant;
+		if (rightIsConstant)
+			out.emit(push(right, size));
+		
+		boolean leftIsConstant = compileValue(tokens, start, operator, variableMap, size, out);
+		long left = constant;
+		if (leftIsConstant) {
+			if (rightIsConstant) {
+				out.truncate(rightStart);
+				return (compare(comparison, left, right) != negate)? 1 : 0;
+			}
+			out.emit(push(left, size));
+		}
+		
+		if (negate && comparison == InstructionSet.EQUAL_TO) {
+			emitOperator(comparison, size, out);
+			out.emit(InstructionSet.PUSH, (byte) 0);
+			out.emit(InstructionSet.EQUAL_TO);
+		} else
+			emitOperator(negate? oppositeOf(comparison) : comparison, size, out);
+		return -1;
 	}
 	
 	/** Translate an expression tokenized and given in postfix notation to machine instructions.
@@ -34,31 +109,386 @@ public class Utilities {
 	 * @return the compiled bytecode.
 	 */
 	public byte[] compileExpression(String[] postfix, HashMap<String, StackPointer> variableNameToPointerMap) {
-		ArrayList<Byte> list = new ArrayList<Byte>();
-		
+		BytecodeBuffer out = new BytecodeBuffer(postfix.length * 2);
+		compileExpression(postfix, variableNameToPointerMap, out);
+		return out.toByteArray();
+	}
+	
+	/** Translate an expression tokenized and given in postfix notation to machine instructions, writing
+	 * them to the end of the buffer. */
+	public void compileExpression(String[] postfix, HashMap<String, StackPointer> variableNameToPointerMap, BytecodeBuffer out) {
 		for (String token : postfix) {
 			if (isNumber(token)) {
-				list.add(InstructionSet.PUSH);
-				list.add(Byte.parseByte(token));
+				out.emit(InstructionSet.PUSH, Byte.parseByte(token));
 			} else if (token.length() == 1 && isSimpleOperator(token.charAt(0))) {
-				list.add(InstructionSet.getOperatorByName(token));
+				out.emit(InstructionSet.getOperatorByName(token));
 			} else {
 				StackPointer pointer = variableNameToPointerMap.get(token);
 				// Ensure that our variable actually exists.
 				if (pointer == null)
 					throw new CompilationException("The variable, \"" + token + "\" does not exist.");
 				
-				list.add(InstructionSet.PULL_VAR);
-				list.add(pointer.frame());
-				list.add(pointer.variableID());
+				out.emit(InstructionSet.PULL_VAR, pointer.frame(), pointer.variableID());
+			}
+		}
+	}
+	
+	/** Compile the expression made of the tokens from start up to (not including) end, writing the
+	 * bytecode to the end of the buffer. The value is as wide as the widest variable or number in it. */
+	public void compileExpression(Lexer tokens, int start, int end, HashMap<String, StackPointer> variableNameToPointerMap, BytecodeBuffer out) {
+		compileExpression(tokens, start, end, variableNameToPointerMap, sizeOf(tokens, start, end, variableNameToPointerMap), out);
+	}
+	
+	/** Compile the expression made of the tokens from start up to (not including) end, writing the
+	 * bytecode to the end of the buffer. The expression is worked out as wide as its widest variable, or
+	 * the specified size if that is wider, and then cut down to the specified size. Every number in it
+	 * has to fit in the specified size.
+	 * @param size The size the value must have on the stack, one of the sizes in {@link InstructionSet}.
+	 */
+	public void compileExpression(Lexer tokens, int start, int end, HashMap<String, StackPointer> variableNameToPointerMap, int size, BytecodeBuffer out) {
+		// The arguments of a call are checked against their own parameters when the call is compiled.
+		for (int i = start; i < end; i = skipCall(tokens, i, end) + 1)
+			if (tokens.kind(i) == Lexer.NUMBER && InstructionSet.wrap(tokens.longValue(i), size) != tokens.longValue(i))
+				throw tokens.error(i, "The number " + tokens.longValue(i) + " doesn't fit in " + nameOf(size) + ".");
+		
+		int working = Math.max(size, sizeOf(tokens, start, end, variableNameToPointerMap));
+		if (compileValue(tokens, start, end, variableNameToPointerMap, working, out))
+			out.emit(push(InstructionSet.wrap(constant, size), size));
+		else if (working != size)
+			out.emit(InstructionSet.CONVERT, (byte) working, (byte) size);
+	}
+	
+	/** @return the size of the widest variable, number or function result among the tokens from start up
+	 * to (not including) end. The arguments of a call don't count, they are worked out on their own.
+	 * Variables and functions that don't exist are left for {@link #compileValue} to report. */
+	public int sizeOf(Lexer tokens, int start, int end, HashMap<String, StackPointer> variableNameToPointerMap) {
+		int size = InstructionSet.BYTE_SIZE;
+		for (int i = start; i < end; i = skipCall(tokens, i, end) + 1)
+			if (tokens.kind(i) == Lexer.NUMBER)
+				size = Math.max(size, sizeOf(tokens.longValue(i)));
+			else if (isCall(tokens, i, end) && functions.containsKey(tokens.text(i)))
+				size = Math.max(size, functions.get(tokens.text(i)).resultSize);
+			else if (tokens.kind(i) == Lexer.IDENTIFIER && variableNameToPointerMap.containsKey(tokens.text(i)))
+				size = Math.max(size, variableNameToPointerMap.get(tokens.text(i)).size());
+		return size;
+	}
+	
+	/** Compile the call whose name is the token, and whose arguments follow it in parenthesis, to the end of
+	 * the buffer. Each argument is worked out at the size of its parameter, and they are pushed in order.
+	 * The result is left on the stack at the specified size. */
+	private void compileCall(Lexer tokens, int name, int end, HashMap<String, StackPointer> variableNameToPointerMap, int size, BytecodeBuffer out) {
+		Function function = functions.get(tokens.text(name));
+		if (function == null)
+			throw tokens.error(name, "The function, \"" + tokens.text(name) + "\" does not exist.");
+		
+		// Split the arguments at the commas that aren't inside parenthesis of their own.
+		int close = closingParenthesis(tokens, name + 1, end);
+		int[] starts = new int[close - name], ends = new int[close - name];
+		int arguments = 0, depth = 0, start = name + 2;
+		for (int i = start; i < close; i ++) {
+			int kind = tokens.kind(i);
+			if (kind == Lexer.LEFT_PARENTHESIS)
+				depth ++;
+			else if (kind == Lexer.RIGHT_PARENTHESIS)
+				depth --;
+			else if (kind == Lexer.COMMA && depth == 0) {
+				starts[arguments] = start;
+				ends[arguments++] = i;
+				start = i + 1;
+			}
+		}
+		if (close > name + 2) {
+			starts[arguments] = start;
+			ends[arguments++] = close;
+		}
+		int[] sizes = function.parameterSizes;
+		if (arguments != sizes.length)
+			throw tokens.error(name, "\"" + function.name + "\" takes " + sizes.length + " arguments, not " + arguments + ".");
+		if (function.inline != null) {
+			compileInline(function, tokens, starts, ends, variableNameToPointerMap, size, out);
+			return;
+		}
+		
+		for (int i = 0; i < arguments; i ++)
+			compileExpression(tokens, starts[i], ends[i], variableNameToPointerMap, sizes[i], out);
+		out.emit(InstructionSet.CALL, (byte) (function.address >> 8), (byte) function.address);
+		out.emit((byte) function.argumentSize());
+		out.emit((byte) function.resultSize);
+		if (function.resultSize != size)
+			out.emit(InstructionSet.CONVERT, (byte) function.resultSize, (byte) size);
+	}
+	
+	/** Compile the expression the function returns in place of a call to it. A parameter is read straight
+	 * from the caller's variable when that variable is its argument and is the same size. Any other argument
+	 * is worked out into a temporary first, so it is worked out once however often the parameter is used.
+	 * The temporaries are given back as soon as the expression is compiled. Nothing in the expression is
+	 * moved in front of a loop, since the temporaries change every time round.
+	 * @param starts The index of the first token of each argument, and ends the index after its last. */
+	private void compileInline(Function function, Lexer tokens, int[] starts, int[] ends, HashMap<String, StackPointer> variableNameToPointerMap, int size, BytecodeBuffer out) {
+		HashMap<String, StackPointer> parameters = new HashMap<String, StackPointer>();
+		int mark = frame.mark();
+		for (int i = 0; i < function.parameterSizes.length; i ++) {
+			int parameterSize = function.parameterSizes[i];
+			StackPointer argument = (ends[i] == starts[i] + 1 && tokens.kind(starts[i]) == Lexer.IDENTIFIER)?
+					variableNameToPointerMap.get(tokens.text(starts[i])) : null;
+			if (argument == null || argument.size() != parameterSize) {
+				compileExpression(tokens, starts[i], ends[i], variableNameToPointerMap, parameterSize, out);
+				argument = frame.allocate(parameterSize);
+				if (argument == null)
+					throw tokens.error(starts[i], "Cannot compile, there is a maximum of " + InstructionSet.MAX_FRAME_SIZE + " bytes of variables per closure.");
+				out.emit(storeFor(parameterSize), argument.frame(), argument.variableID());
+			}
+			parameters.put(function.parameterNames[i], argument);
+		}
+		
+		Lexer body = new Lexer();
+		int count = body.tokenize(function.inline);
+		Loop outer = setLoop(null);
+		try {
+			compileExpression(body, 1, count, parameters, function.resultSize, out);
+		} finally {
+			setLoop(outer);
+		}
+		frame.release(mark);
+		if (function.resultSize != size)
+			out.emit(InstructionSet.CONVERT, (byte) function.resultSize, (byte) size);
+	}
+	
+	/** @return true if the i'th token is the name of a function being called, so it is followed by an open-parenthesis. */
+	private static boolean isCall(Lexer tokens, int i, int end) {
+		return tokens.kind(i) == Lexer.IDENTIFIER && i + 1 < end && tokens.kind(i + 1) == Lexer.LEFT_PARENTHESIS;
+	}
+	
+	/** @return the index of the parenthesis that closes the call whose name is the i'th token, or i if
+	 * the token isn't a call. */
+	private static int skipCall(Lexer tokens, int i, int end) {
+		return isCall(tokens, i, end)? closingParenthesis(tokens, i + 1, end) : i;
+	}
+	
+	/** @return the index of the parenthesis that closes the one at the index. */
+	private static int closingParenthesis(Lexer tokens, int open, int end) {
+		int depth = 0;
+		for (int i = open; i < end; i ++)
+			if (tokens.kind(i) == Lexer.LEFT_PARENTHESIS)
+				depth ++;
+			else if (tokens.kind(i) == Lexer.RIGHT_PARENTHESIS && --depth == 0)
+				return i;
+		throw tokens.error(open, "Mismatched parenthesis.");
+	}
+	
+	/** Compile the expression made of the tokens from start up to (not including) end, writing the
+	 * bytecode to the end of the buffer. Every value in it is worked out at the specified size, narrower
+	 * variables are widened as they are read. When constants are being folded, every part of the expression
+	 * whose value is known at compile time is worked out here instead of by the VM, and x + 0, x - 0,
+	 * x * 1, x / 1 and x * 0 are simplified. The arithmetic wraps around exactly like the interpreter's.
+	 * Inside a loop, the biggest parts of the expression that only use variables the loop doesn't change
+	 * are moved in front of the loop, as long as they can't divide by zero.
+	 * @return true if the value of the expression is known at compile time. It is left in {@link #constant}
+	 * and nothing is emitted, so the caller decides where it goes.
+	 */
+	private boolean compileValue(Lexer tokens, int start, int end, HashMap<String, StackPointer> variableNameToPointerMap, int size, BytecodeBuffer out) {
+		int[] postfix = new int[end - start];
+		int length = toPostfix(tokens, start, end, postfix);
+		boolean fold = optimizationLevel >= Compiler.FOLD_CONSTANTS;
+		Loop hoistTo = fold? loop : null;
+		
+		// The values on the stack as the expression runs. A value is either a constant that hasn't been
+		// emitted, or code that starts at some index in the buffer and might divide by zero when run.
+		// Inside a loop, a value is invariant if it is the same every time round, and it is worth moving
+		// in front of the loop if it is invariant and its code does some arithmetic.
+		long[] values = new long[length];
+		boolean[] known = new boolean[length];
+		int[] starts = new int[length];
+		boolean[] mayFail = new boolean[length];
+		boolean[] invariant = new boolean[length];
+		boolean[] arithmetic = new boolean[length];
+		int depth = 0;
+		
+		for (int i = 0; i < length; i ++) {
+			int token = postfix[i];
+			int kind = tokens.kind(token);
+			if (kind == Lexer.NUMBER) {
+				long value = tokens.longValue(token);
+				starts[depth] = out.position();
+				mayFail[depth] = false;
+				invariant[depth] = hoistTo != null;
+				arithmetic[depth] = false;
+				if (fold) {
+					known[depth] = true;
+					values[depth++] = value;
+				} else {
+					out.emit(push(value, size));
+					known[depth++] = false;
+				}
+			} else if (isCall(tokens, token, end)) {
+				// A call might fail or never come back, so it is never moved or thrown away.
+				starts[depth] = out.position();
+				mayFail[depth] = true;
+				invariant[depth] = false;
+				arithmetic[depth] = false;
+				known[depth++] = false;
+				compileCall(tokens, token, end, variableNameToPointerMap, size, out);
+			} else if (kind == Lexer.IDENTIFIER) {
+				StackPointer pointer = variableNameToPointerMap.get(tokens.text(token));
+				// Ensure that our variable actually exists.
+				if (pointer == null)
+					throw tokens.error(token, "The variable, \"" + tokens.text(token) + "\" does not exist.");
+				
+				starts[depth] = out.position();
+				mayFail[depth] = false;
+				invariant[depth] = hoistTo != null && hoistTo.isInvariant(tokens.text(token));
+				arithmetic[depth] = false;
+				known[depth++] = false;
+				emitLoad(pointer, size, out);
+			} else {
+				byte operator = instructionFor(kind);
+				int a = depth - 2, b = depth - 1;
+				long x = values[a], y = values[b];
+				depth --;
+				
+				if (!invariant[a] || !invariant[b] || operator == InstructionSet.DIVIDE) {
+					// This is as far as the invariant parts go, so move them now.
+					if (invariant[b] && arithmetic[b] && !known[b])
+						hoist(starts[b], out.position(), size, out);
+					if (invariant[a] && arithmetic[a] && !known[a])
+						starts[b] += hoist(starts[a], starts[b], size, out);
+					invariant[a] = false;
+				}
+				
+				if (known[a] && known[b]) {
+					if (operator == InstructionSet.DIVIDE && y == 0) {
+						// Leave dividing by zero to fail when the program runs, like it always has.
+						starts[a] = out.position();
+						out.emit(push(x, size));
+						out.emit(push(y, size));
+						emitOperator(operator, size, out);
+						known[a] = false;
+						mayFail[a] = true;
+						arithmetic[a] = true;
+					} else
+						values[a] = arithmetic(operator, x, y, size);
+				} else if (known[b]) {
+					// x op constant.
+					if ((y == 0 && (operator == InstructionSet.ADD || operator == InstructionSet.SUBTRACT)) ||
+							(y == 1 && (operator == InstructionSet.MULTIPLY || operator == InstructionSet.DIVIDE))) {
+						// The value is just x.
+					} else if (y == 0 && operator == InstructionSet.MULTIPLY && !mayFail[a]) {
+						out.truncate(starts[a]);
+						known[a] = true;
+						values[a] = 0;
+					} else {
+						out.emit(push(y, size));
+						emitOperator(operator, size, out);
+						mayFail[a] |= operator == InstructionSet.DIVIDE && y == 0;
+						arithmetic[a] = true;
+					}
+				} else if (known[a]) {
+					// constant op y.
+					if ((x == 0 && operator == InstructionSet.ADD) || (x == 1 && operator == InstructionSet.MULTIPLY)) {
+						// The value is just y.
+						starts[a] = starts[b];
+						mayFail[a] = mayFail[b];
+						arithmetic[a] = arithmetic[b];
+						known[a] = false;
+					} else if (x == 0 && operator == InstructionSet.MULTIPLY && !mayFail[b]) {
+						out.truncate(starts[b]);
+						values[a] = 0;
+					} else {
+						if (operator == InstructionSet.ADD || operator == InstructionSet.MULTIPLY)
+							// The order doesn't matter, so the constant can go after y.
+							out.emit(push(x, size));
+						else
+							out.insert(starts[b], push(x, size));
+						emitOperator(operator, size, out);
+						starts[a] = starts[b];
+						mayFail[a] = mayFail[b] || operator == InstructionSet.DIVIDE;
+						arithmetic[a] = true;
+						known[a] = false;
+					}
+				} else {
+					emitOperator(operator, size, out);
+					mayFail[a] |= mayFail[b] || operator == InstructionSet.DIVIDE;
+					arithmetic[a] = true;
+				}
 			}
 		}
 		
-		byte[] out = new byte[list.size()];
-		for (int i = 0; i < list.size(); i ++)
-			out[i] = list.get(i);
+		if (invariant[0] && arithmetic[0] && !known[0])
+			hoist(starts[0], out.position(), size, out);
+		constant = values[0];
+		return known[0];
+	}
+	
+	/** Move the code from the index up to (not including) the end index in front of the current loop, and
+	 * load the value it works out from a temporary in its place.
+	 * @return the number of bytes the code after the end index moved by. */
+	private int hoist(int from, int to, int size, BytecodeBuffer out) {
+		byte[] code = out.cut(from, to);
+		StackPointer temporary = loop.hoist(code, size);
+		byte[] load = (temporary == null)? code : Loop.load(temporary);
+		out.insert(from, load);
+		return load.length - code.length;
+	}
+	
+	/** Translate the infix expression made of the tokens from start up to (not including) end to postfix
+	 * notation using Edsger Dijkstra's shunting-yard algorithm. The expression is checked as it goes, so a
+	 * missing operand, operator or parenthesis is reported where it happens.
+	 * @param postfix Where the output goes, as indices of tokens. It must hold at least end - start tokens.
+	 * @return the number of tokens in the postfix output.
+	 */
+	public int toPostfix(Lexer tokens, int start, int end, int[] postfix) {
+		int[] operatorStack = new int[end - start];
+		int operators = 0, length = 0;
+		// True when the next token must be a number, a variable or an open-parenthesis.
+		boolean expectingOperand = true;
+		
+		for (int i = start; i < end; i ++) {
+			int kind = tokens.kind(i);
+			
+			if (kind == Lexer.NUMBER || kind == Lexer.IDENTIFIER) {
+				if (!expectingOperand)
+					throw tokens.error(i, "Expected an operator before \"" + tokens.text(i) + "\".");
+				// A call is a single value, its arguments are compiled along with it.
+				postfix[length++] = i;
+				i = skipCall(tokens, i, end);
+				expectingOperand = false;
+			} else if (kind == Lexer.LEFT_PARENTHESIS) {
+				if (!expectingOperand)
+					throw tokens.error(i, "Expected an operator before \"(\".");
+				operatorStack[operators++] = i;
+			} else if (kind == Lexer.RIGHT_PARENTHESIS) {
+				if (expectingOperand)
+					throw tokens.error(i, "Expected a value before \")\".");
+				while (true) {
+					if (operators == 0)
+						throw tokens.error(i, "Mismatched parenthesis.");
+					int top = operatorStack[--operators];
+					if (tokens.kind(top) == Lexer.LEFT_PARENTHESIS)
+						break;
+					postfix[length++] = top;
+				}
+			} else if (Lexer.isArithmeticOperator(kind)) {
+				if (expectingOperand)
+					throw tokens.error(i, "Expected a value before \"" + tokens.text(i) + "\".");
+				while (operators > 0 && Lexer.precedenceOf(kind) <= Lexer.precedenceOf(tokens.kind(operatorStack[operators - 1])))
+					postfix[length++] = operatorStack[--operators];
+				operatorStack[operators++] = i;
+				expectingOperand = true;
+			} else
+				throw tokens.error(i, "Unexpected \"" + tokens.text(i) + "\" in an expression.");
+		}
+		
+		if (expectingOperand)
+			throw tokens.error(end, start == end? "Expected an expression." : "The expression is incomplete.");
+		
+		while (operators > 0) {
+			int top = operatorStack[--operators];
+			if (tokens.kind(top) == Lexer.LEFT_PARENTHESIS)
+				throw tokens.error(top, "Mismatched parenthesis.");
+			postfix[length++] = top;
+		}
 		
-		return out;
+		return length;
 	}
 	
 	/** Translate a infix expression to postfix notation using Edsger Dijkstra's shunting-yard algorithm.
@@ -112,38 +542,23 @@ public class Utilities {
 	 * side of the expression.
 	 * All whitespace is removed by this method if there is any. */
 	public String[] splitConditionalExpression(String expression) {
-		String[] out = new String[3];
+		int count = lexer.tokenize(expression);
 		
-		// Remove all whitespace.
-		expression = expression.replaceAll("\\s+","");
-		
-		// We need to find the index of the operator in the expression if we can possibly hope to split it.
-		int indexOfOperator = -1;
-		// Make an array of all the operators.
-		String[] operators = new String[] { ">", "<", ">=",  "<=", "==" };
-		// This is the operator that was found in the expression.
-		String operator = null;
-		
-		for (String op : operators)
-			// If the expression contains this operator.
-			if (expression.indexOf(op) != -1) {
+		int operator = -1;
+		for (int i = 0; i < count; i ++)
+			if (Lexer.isComparisonOperator(lexer.kind(i))) {
 				// If we already have found an operator, then this is the second operator we found. That is cause for an error.
-				if (indexOfOperator != -1 && indexOfOperator != expression.indexOf(op)) throw new RuntimeException("There is more than one conditional operator in this expression.");
-				// Else we found the correct index of the operator in the expression, so set it.
-				else {
-					indexOfOperator = expression.indexOf(op);
-					operator = op;
-				}
+				if (operator != -1)
+					throw new RuntimeException("There is more than one conditional operator in this expression.");
+				operator = i;
 			}
+		if (operator == -1)
+			throw new RuntimeException("There is no conditional operator in this expression.");
 		
-		// Set the 0 element to be the left hand side of the expression.
-		out[0] = expression.substring(0, indexOfOperator);
-		// Set the 1 element to be the operator of the expression.
-		out[1] = operator;
-		// Set the 2 element to be the right hand side of the expression.
-		out[2] = expression.substring(indexOfOperator + operator.length());
-		
-		return out;
+		return new String[] {
+				joinTokens(0, operator),
+				lexer.text(operator),
+				joinTokens(operator + 1, count) };
 	}
 	
 	/** Generates the bytecode for a simple conditional.
@@ -153,21 +568,16 @@ public class Utilities {
 	 */
 	public byte[] composeConditional(byte[] left, String conditional, byte[] right) {
 		// The + 1 accounts for the single conditional operator that must be appended.
-		byte[] returnValue = new byte[left.length + right.length + 1];
+		BytecodeBuffer out = new BytecodeBuffer(left.length + right.length + 1);
 		
-		// Copy over the right hand instructions.
-		copyInto(right, returnValue, 0);
-		
-		// Copy over the left hand instructions.
-		copyInto(left, returnValue, right.length);
-		
-		// This represents the starting place in the array where we can put the actual conditional instructions.
-		int p = left.length + right.length;
+		// Copy over the right hand instructions, then the left hand instructions.
+		out.emit(right);
+		out.emit(left);
 		
 		// Add the actual conditional operator.
-		returnValue[p] = InstructionSet.getConditionalByName(conditional);
+		out.emit(InstructionSet.getConditionalByName(conditional));
 		
-		return returnValue;
+		return out.toByteArray();
 	}
 	
 	/** Take the infix input and break it up into its pieces. Each token is
@@ -176,26 +586,12 @@ public class Utilities {
 	 * @return The infix expression broken up into its tokens.
 	 */
 	public String[] tokenize(String source, boolean removeSpaces) {
-		ArrayList<String> list = new ArrayList<String>();
-		
-		// Remove all whitespace.
-		if (removeSpaces)
-			source = source.replaceAll("\\s+","");
-		
-		int i = 0;
-		int numberOfTokens = 0;
-		while (i < source.length()) {
-			// This line determines whether or not the next token is potentially a negative sign.
-			// A - could actually be a negative sign if it's the first thing in the expression OR the previous token is not a number.
-			boolean isPossiblyANegativeSign = i == 0 || (!isNumber(list.get(numberOfTokens - 1)) && list.get(numberOfTokens-1).charAt(0) != ')' && !Character.isLetter(list.get(numberOfTokens-1).charAt(0)));
-			
-			String token = parseFirstTokenIn(source.substring(i), isPossiblyANegativeSign);
-			list.add(token);
-			numberOfTokens ++;
-			i += token.length();
-		}
-		
-		return list.toArray(new String[0]);
+		// The lexer always skips whitespace, tokens can't contain any.
+		int count = lexer.tokenize(source);
+		String[] tokens = new String[count];
+		for (int i = 0; i < count; i ++)
+			tokens[i] = lexer.text(i);
+		return tokens;
 	}
 	
 	/** This is a utility method that copies the source array into the destination array
@@ -214,43 +610,160 @@ public class Utilities {
 	/** @return a new String that is the same as the source but without any leading whitespace. */
 	public String removeLeadingWhitespace(String source) {
 		int i = 0;
-		while (Character.isWhitespace(source.charAt(i)))
+		while (i < source.length() && Character.isWhitespace(source.charAt(i)))
 			i ++;
 		return source.substring(i);
 	}
 	
-	/** @return the first token in the source. A token is either a operand or an operator. */
-	private String parseFirstTokenIn(String source, boolean isPotentialNegativeSign) {
-		if (Character.isLetter(source.charAt(0)))
-			return parseFirstVariableIn(source);
-		// If the first character in the source is parenthesis OR it's an operator and not a potential negative sign,
-		else if (isParenthesis(source.charAt(0)) || (isSimpleOperator(source.charAt(0)) && !isPotentialNegativeSign))
-			// Return the first character because it must be an operator.
-			return source.substring(0, 1);
-		// Else we have a number. But we need to find the length of the number so we can parse it out of the source.
-		else {
-			// i represents the size of the number. It will either start at 0 or 1 depending if the number starts with a negative sign or not.
-			int i = (source.charAt(0) == '-')? 1 : 0;
-			// While i is less than the length of our source and the current character is not an operator,
-			while (i < source.length() && !isSimpleOperator(source.charAt(i))) {
-				// Increase i
-				i ++;
-			}
-			// Finally, return the number now that we know its length.
-			return source.substring(0, i);
+	/** @return the text of the tokens from start up to (not including) end of the current line, without
+	 * any whitespace. */
+	private String joinTokens(int start, int end) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = start; i < end; i ++)
+			builder.append(lexer.text(i));
+		return builder.toString();
+	}
+	
+	/** Set the innermost loop being compiled. Parts of expressions that don't change while it runs are
+	 * moved in front of it when constants are being folded.
+	 * @param loop The loop, or null once it has been compiled.
+	 * @return the loop that was being compiled before, so it can be put back. */
+	Loop setLoop(Loop loop) {
+		Loop old = this.loop;
+		this.loop = loop;
+		return old;
+	}
+	
+	/** Set the frame the temporaries of inlined functions go in. */
+	void setFrame(Frame frame) {
+		this.frame = frame;
+	}
+	
+	/** Set the functions that can be called. The map is kept, so functions put in it later can be called too. */
+	void setFunctions(HashMap<String, Function> functions) {
+		this.functions = functions;
+	}
+	
+	/** Set how hard the compiler tries to optimize. One of the optimization levels in {@link Compiler}. */
+	public void setOptimizationLevel(int level) {
+		this.optimizationLevel = level;
+	}
+	
+	/** @return the optimization level. */
+	public int getOptimizationLevel() {
+		return optimizationLevel;
+	}
+	
+	/** @return the result of the arithmetic operator on the two values, wrapped around to the size just
+	 * like the interpreter does it. */
+	private static long arithmetic(byte operator, long a, long b, int size) {
+		switch (operator) {
+		case InstructionSet.ADD : return InstructionSet.wrap(a + b, size);
+		case InstructionSet.SUBTRACT : return InstructionSet.wrap(a - b, size);
+		case InstructionSet.DIVIDE : return InstructionSet.wrap(a / b, size);
+		case InstructionSet.MULTIPLY : return InstructionSet.wrap(a * b, size);
+		default : throw new RuntimeException("Not arithmetic operator.");
 		}
 	}
 	
-	/** @return the first alphabetic variable token in the specified source string. The
-	 * token must start at the beginning of the string. */
-	private String parseFirstVariableIn(String source) {
-		String total = "";
-		int i = 0;
-		while (i < source.length() && Character.isLetter(source.charAt(i))) {
-			total += source.substring(i, i + 1);
-			i ++;
+	/** @return the result of the comparison with a on the left and b on the right. */
+	private static boolean compare(byte comparison, long a, long b) {
+		switch (comparison) {
+		case InstructionSet.GREATER_THAN : return a > b;
+		case InstructionSet.GREATER_THAN_EQUAL : return a >= b;
+		case InstructionSet.LESS_THAN : return a < b;
+		case InstructionSet.LESS_THAN_EQUAL : return a <= b;
+		case InstructionSet.EQUAL_TO : return a == b;
+		default : throw new RuntimeException("Unkown comparison operator.");
+		}
+	}
+	
+	/** @return the comparison that is true exactly when the specified one is false. == has none. */
+	private static byte oppositeOf(byte comparison) {
+		switch (comparison) {
+		case InstructionSet.GREATER_THAN : return InstructionSet.LESS_THAN_EQUAL;
+		case InstructionSet.GREATER_THAN_EQUAL : return InstructionSet.LESS_THAN;
+		case InstructionSet.LESS_THAN : return InstructionSet.GREATER_THAN_EQUAL;
+		case InstructionSet.LESS_THAN_EQUAL : return InstructionSet.GREATER_THAN;
+		default : throw new RuntimeException("No opposite of comparison operator : " + comparison);
+		}
+	}
+	
+	/** @return the instruction that pushes the value as a constant of the size. */
+	static byte[] push(long value, int size) {
+		byte[] code = new byte[1 + size];
+		code[0] = (size == InstructionSet.BYTE_SIZE)? InstructionSet.PUSH :
+				(size == InstructionSet.INT_SIZE)? InstructionSet.PUSH_INT : InstructionSet.PUSH_LONG;
+		InstructionSet.write(code, 1, size, value);
+		return code;
+	}
+	
+	/** Emit the arithmetic or comparison operator for values of the size. */
+	private static void emitOperator(byte operator, int size, BytecodeBuffer out) {
+		boolean arithmetic = InstructionSet.isArithmeticOperator(operator);
+		if (size == InstructionSet.BYTE_SIZE)
+			out.emit(operator);
+		else if (size == InstructionSet.INT_SIZE)
+			out.emit(arithmetic? InstructionSet.INT_MATH : InstructionSet.INT_COMPARE, operator);
+		else
+			out.emit(arithmetic? InstructionSet.LONG_MATH : InstructionSet.LONG_COMPARE, operator);
+	}
+	
+	/** Emit the instructions that push the variable, widened to the size. */
+	private static void emitLoad(StackPointer pointer, int size, BytecodeBuffer out) {
+		out.emit(loadFor(pointer.size()), pointer.frame(), pointer.variableID());
+		if (pointer.size() != size)
+			out.emit(InstructionSet.CONVERT, (byte) pointer.size(), (byte) size);
+	}
+	
+	/** @return the instruction that pushes a variable of the size. */
+	public static byte loadFor(int size) {
+		switch (size) {
+		case InstructionSet.BYTE_SIZE : return InstructionSet.PULL_VAR;
+		case InstructionSet.INT_SIZE : return InstructionSet.PULL_INT_VAR;
+		default : return InstructionSet.PULL_LONG_VAR;
+		}
+	}
+	
+	/** @return the instruction that pops a value of the size into a variable. */
+	public static byte storeFor(int size) {
+		switch (size) {
+		case InstructionSet.BYTE_SIZE : return InstructionSet.PUSH_VAR;
+		case InstructionSet.INT_SIZE : return InstructionSet.PUSH_INT_VAR;
+		default : return InstructionSet.PUSH_LONG_VAR;
+		}
+	}
+	
+	/** @return the size of the narrowest kind of value that can hold the number. */
+	private static int sizeOf(long value) {
+		if (value == (byte) value)
+			return InstructionSet.BYTE_SIZE;
+		return (value == (int) value)? InstructionSet.INT_SIZE : InstructionSet.LONG_SIZE;
+	}
+	
+	/** @return the name of the kind of value of the size, with its article, for error messages. */
+	private static String nameOf(int size) {
+		switch (size) {
+		case InstructionSet.BYTE_SIZE : return "a byte";
+		case InstructionSet.INT_SIZE : return "an int";
+		default : return "a long";
+		}
+	}
+	
+	/** @return the instruction for the arithmetic or comparison operator token kind. */
+	private static byte instructionFor(int kind) {
+		switch (kind) {
+		case Lexer.PLUS : return InstructionSet.ADD;
+		case Lexer.MINUS : return InstructionSet.SUBTRACT;
+		case Lexer.STAR : return InstructionSet.MULTIPLY;
+		case Lexer.SLASH : return InstructionSet.DIVIDE;
+		case Lexer.GREATER_THAN : return InstructionSet.GREATER_THAN;
+		case Lexer.GREATER_THAN_EQUAL : return InstructionSet.GREATER_THAN_EQUAL;
+		case Lexer.LESS_THAN : return InstructionSet.LESS_THAN;
+		case Lexer.LESS_THAN_EQUAL : return InstructionSet.LESS_THAN_EQUAL;
+		case Lexer.EQUAL_TO : return InstructionSet.EQUAL_TO;
+		default : throw new RuntimeException("No instruction for token kind " + kind);
 		}
-		return total;
 	}
 	
 	/** @return true if the thing is a simple operator. */
@@ -264,16 +777,15 @@ public class Utilities {
 				thing == ')';
 	}
 	
-	/** @return true of the thing is parenthesis. (Either ( or ) ). */
-	private boolean isParenthesis(char thing) {
-		return thing == '(' || thing == ')';
-	}
-	
 	/** @return true if the token is a simple number. */
 	private boolean isNumber(String token) {
-		if (token.length() == 1 && isSimpleOperator(token.charAt(0)))
+		int i = (token.length() > 1 && token.charAt(0) == '-')? 1 : 0;
+		if (i == token.length())
 			return false;
-		return token.matches("-?\\d+(\\.\\d+)?");
+		for (; i < token.length(); i ++)
+			if (token.charAt(i) < '0' || token.charAt(i) > '9')
+				return false;
+		return true;
 	}
 	
 	/** @return the numerical precedence of the operator. */
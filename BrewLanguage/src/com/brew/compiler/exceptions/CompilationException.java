@@ -2,8 +2,52 @@ package com.brew.compiler.exceptions;
 
 public class CompilationException extends RuntimeException {
 	
+	private final int line, column;
+	/** The message without the line and column. */
+	private final String problem;
+	
 	public CompilationException(String message) {
 		super("Compilation Exception : " + message);
+		this.line = this.column = -1;
+		this.problem = message;
+	}
+	
+	/** @param line The line the problem is on, starting at 1, or -1 if it isn't known.
+	 * @param column The column the problem is at, starting at 1, or -1 if it isn't known. */
+	public CompilationException(String message, int line, int column) {
+		super("Compilation Exception" + positionOf(line, column) + " : " + message);
+		this.line = line;
+		this.column = column;
+		this.problem = message;
+	}
+	
+	/** @return the line the problem is on, starting at 1, or -1 if it isn't known. */
+	public int line() {
+		return line;
 	}
 	
+	/** @return the column the problem is at, starting at 1, or -1 if it isn't known. */
+	public int column() {
+		return column;
+	}
+	
+	/** @return the same problem, on the line the specified number of lines further down. A problem found in a
+	 * piece of a program compiled on its own is reported on the line it is on in the whole program. */
+	public CompilationException movedDown(int lines) {
+		if (line <= 0 || lines == 0)
+			return this;
+		CompilationException moved = new CompilationException(problem, line + lines, column);
+		moved.setStackTrace(getStackTrace());
+		return moved;
+	}
+	
+	private static String positionOf(int line, int column) {
+		if (line > 0 && column > 0)
+			return " at line " + line + ", column " + column;
+		else if (line > 0)
+			return " at line " + line;
+		else if (column > 0)
+			return " at column " + column;
+		return "";
+	}
 }
@@ -0,0 +1,15 @@
+package com.brew.compiler.exceptions;
+
+/**
+ * Thrown when a compiled program file can't be read, because it isn't one, was written by a newer version,
+ * or has been damaged.
+ * @author Jonathan Force
+ */
+public class ProgramFileException extends RuntimeException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public ProgramFileException(String message) {
+		super("Program File Exception : " + message);
+	}
+}
@@ -0,0 +1,52 @@
+package com.brew.compiler.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class is a basic block : statements that always run one after the other, from the first to the
+ * last. Only the first can be jumped to, and only the last can jump. A block that doesn't end by jumping
+ * away runs straight on into the next block of the {@link Graph}.
+ * @author Jonathan Force
+ */
+public final class Block {
+	
+	private final List<Statement> statements;
+	private int index;
+	
+	Block(int index) {
+		this.statements = new ArrayList<Statement>();
+		this.index = index;
+	}
+	
+	/** @return the statements of the block, in the order they run. Passes change the block by changing
+	 * the list. */
+	public List<Statement> statements() {
+		return statements;
+	}
+	
+	/** @return the place of the block in its graph. The first block is where the program starts. */
+	public int index() {
+		return index;
+	}
+	
+	void setIndex(int index) {
+		this.index = index;
+	}
+	
+	/** @return the last statement, or null if the block is empty. */
+	public Statement last() {
+		return statements.isEmpty()? null : statements.get(statements.size() - 1);
+	}
+	
+	/** @return true if the block can run on into the next one, because it doesn't end with a GOTO or RETURN. */
+	public boolean fallsThrough() {
+		Statement last = last();
+		return last == null || (last.kind != Statement.GOTO && last.kind != Statement.RETURN);
+	}
+	
+	@Override
+	public String toString() {
+		return "block " + index + " " + statements;
+	}
+}
@@ -0,0 +1,180 @@
+package com.brew.compiler.ir;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * This pass works out a value that a block works out more than once only the first time. If the first time
+ * is a store, the later ones read the variable it was stored in :
+ *
+ * x = a * b + c
+ * y = (a * b + c) / 2
+ * becomes
+ * x = a * b + c
+ * y = x / 2
+ *
+ * Otherwise the value is stored in a temporary in front of the statement it is first worked out in, and read
+ * from there every time. A temporary costs a store and a read, so that is only done when it saves more
+ * instructions than that. Temporaries go at the end of the innermost frame, which is made bigger for them.
+ *
+ * A value can be used again until a variable it reads, or the variable it is kept in, is stored to. Values
+ * that call a function are always worked out again, and each block is looked at on its own.
+ * @author Jonathan Force
+ */
+public class CommonSubexpressionElimination implements Pass {
+	
+	public boolean run(Graph graph) {
+		HashMap<Block, List<Statement>> frames = graph.frames();
+		boolean changed = false;
+		for (Block block : graph.blocks()) {
+			List<Statement> entry = frames.get(block);
+			if (entry == null)
+				continue;
+			// The bytes of temporaries the block has taken from each frame so far.
+			HashMap<Statement, Integer> used = new HashMap<Statement, Integer>();
+			while (eliminate(graph, block, entry, used))
+				changed = true;
+		}
+		return changed;
+	}
+	
+	/** Find the values the block works out more than once, and work out as many of them just once as can be
+	 * done without one getting in the way of another.
+	 * @return true if any were. */
+	private static boolean eliminate(Graph graph, Block block, List<Statement> entry, HashMap<Statement, Integer> used) {
+		List<Statement> statements = block.statements();
+		ArrayList<Statement> pushed = new ArrayList<Statement>(entry);
+		LinkedHashMap<Node, Group> open = new LinkedHashMap<Node, Group>();
+		ArrayList<Group> groups = new ArrayList<Group>();
+		for (int i = 0; i < statements.size(); i ++) {
+			Statement statement = statements.get(i);
+			if (statement.isFrame() || statement.kind == Statement.DEBUG) {
+				close(open, null, groups);
+				if (statement.kind == Statement.PUSH_FRAME)
+					pushed.add(statement);
+				else if (statement.kind == Statement.POP_FRAME && !pushed.isEmpty())
+					pushed.remove(pushed.size() - 1);
+				continue;
+			}
+			if (statement.value != null)
+				count(statement.value, i, pushed, open);
+			if (statement.kind == Statement.STORE) {
+				Node variable = statement.variable, value = statement.value;
+				close(open, variable, groups);
+				Group group = open.get(value);
+				if (group != null && group.first == i && value.size == variable.size && !value.reads(variable))
+					group.holder = variable;
+			}
+		}
+		close(open, null, groups);
+		
+		// The groups that save the most go first, and a group can't share statements with one that went before.
+		for (Iterator<Group> i = groups.iterator(); i.hasNext(); )
+			if (i.next().savings() <= 0)
+				i.remove();
+		Collections.sort(groups, new Comparator<Group>() {
+			public int compare(Group a, Group b) {
+				return b.savings() - a.savings();
+			}
+		});
+		ArrayList<Group> chosen = new ArrayList<Group>();
+		for (Group group : groups) {
+			boolean free = true;
+			for (Group other : chosen)
+				if (group.first <= other.last && other.first <= group.last)
+					free = false;
+			if (free)
+				chosen.add(group);
+		}
+		// From the last statement back, so putting a temporary in doesn't move the statements still to do.
+		Collections.sort(chosen, new Comparator<Group>() {
+			public int compare(Group a, Group b) {
+				return b.first - a.first;
+			}
+		});
+		
+		boolean changed = false;
+		for (Group group : chosen) {
+			Node holder = group.holder;
+			int from = group.first + 1;
+			if (holder == null) {
+				int taken = used.containsKey(group.frame)? used.get(group.frame) : 0;
+				int base = graph.reserve(group.frame, taken + group.value.size);
+				if (base == -1)
+					continue;
+				used.put(group.frame, taken + group.value.size);
+				holder = Node.variable((byte) group.frameNumber, (byte) (base + taken), group.value.size);
+				from = group.first;
+			}
+			for (int i = from; i <= group.last; i ++) {
+				Statement statement = statements.get(i);
+				statements.set(i, statement.withValue(statement.value.replace(group.value, holder)));
+			}
+			if (holder != group.holder)
+				statements.add(group.first, Statement.store(holder, group.value, statements.get(group.first).end));
+			changed = true;
+		}
+		return changed;
+	}
+	
+	/** Count every value in the tree that could be worked out just once, starting a group for each one that
+	 * hasn't been seen yet. */
+	private static void count(Node value, int statement, List<Statement> pushed, HashMap<Node, Group> open) {
+		if ((value.kind == Node.ARITHMETIC || value.kind == Node.COMPARISON || value.kind == Node.CONVERT)
+				&& !value.contains(Node.CALL)) {
+			Group group = open.get(value);
+			if (group == null) {
+				group = new Group(value, statement, pushed);
+				open.put(value, group);
+			}
+			group.count ++;
+			group.last = statement;
+		}
+		for (int i = 0; i < value.operandCount(); i ++)
+			count(value.operand(i), statement, pushed, open);
+	}
+	
+	/** Close every group that can't go on past a store to the variable, or every group if it is null. */
+	private static void close(HashMap<Node, Group> open, Node variable, List<Group> groups) {
+		for (Iterator<Group> i = open.values().iterator(); i.hasNext(); ) {
+			Group group = i.next();
+			if (variable == null || group.value.reads(variable) || (group.holder != null && group.holder.overlaps(variable))) {
+				groups.add(group);
+				i.remove();
+			}
+		}
+	}
+	
+	/** The places a value is worked out, from the first statement it is in up to the last. */
+	private static class Group {
+		
+		final Node value;
+		final int first;
+		/** The frame a temporary for the value would go in, and its number, or null if there isn't one that can grow. */
+		final Statement frame;
+		final int frameNumber;
+		int last, count;
+		/** The variable the first statement stores the value in, or null. */
+		Node holder;
+		
+		Group(Node value, int first, List<Statement> pushed) {
+			this.value = value;
+			this.first = first;
+			this.frame = pushed.isEmpty()? null : pushed.get(pushed.size() - 1);
+			this.frameNumber = pushed.size() - 1;
+		}
+		
+		/** @return the number of instructions saved by working the value out once. */
+		int savings() {
+			int saved = (count - 1) * (value.cost() - 1);
+			if (holder != null)
+				return saved;
+			return (frame == null)? 0 : saved - 2;
+		}
+	}
+}
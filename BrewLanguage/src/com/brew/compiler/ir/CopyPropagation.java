@@ -0,0 +1,202 @@
+package com.brew.compiler.ir;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This pass reads a variable's value from where it came from. Once a store has put a constant or another
+ * variable into a variable, the variable is read as that constant or that other variable for as long as
+ * neither of them changes. Whatever only works on constants afterwards is worked out at compile time.
+ *
+ * x = 5
+ * y = x * 2 + z
+ * becomes
+ * x = 5
+ * y = 10 + z
+ *
+ * That is no cheaper on its own, but it leaves stores nobody reads any more for {@link DeadStoreElimination},
+ * and IFs that can be worked out for {@link JumpThreading}. Copies of variables are only followed inside a
+ * block. Constants are followed from block to block too : a variable holds a constant where a block starts
+ * if it holds that constant at the end of every block that can run just before it. So a condition that can
+ * only be false is worked out even in a loop, or in an if statement a long way from the store it depends on.
+ * @author Jonathan Force
+ */
+public class CopyPropagation implements Pass {
+	
+	/** The most times, on average, each block is gone over to work out what is known where blocks start.
+	 * Past that nothing is known where any block starts. */
+	private static final int MAXIMUM_VISITS = 8;
+	
+	public boolean run(Graph graph) {
+		HashMap<Block, HashMap<Node, Node>> known = constantsAtEntry(graph);
+		HashMap<Block, List<Statement>> frames = graph.frames();
+		boolean changed = false;
+		for (Block block : graph.blocks()) {
+			HashMap<Node, Node> copies = known.get(block);
+			changed |= propagate(block, depthOf(frames, block), (copies == null)? new HashMap<Node, Node>() : copies, true);
+		}
+		return changed;
+	}
+	
+	/** Follow what the variables hold through the block.
+	 * @param depth The number of frames pushed where the block starts, or -1 if it isn't known.
+	 * @param copies What each variable is known to hold where the block starts, a constant or a variable that
+	 * hasn't changed since. It is left holding what is known where the block ends.
+	 * @param rewrite True to read the variables from their copies in the block's statements.
+	 * @return true if any statement was rewritten. */
+	private static boolean propagate(Block block, int depth, HashMap<Node, Node> copies, boolean rewrite) {
+		boolean changed = false;
+		List<Statement> statements = block.statements();
+		for (int i = 0; i < statements.size(); i ++) {
+			Statement statement = statements.get(i);
+			if (statement.isFrame()) {
+				// The frames from the one pushed or popped up mean different frames from here on.
+				if (depth == -1)
+					copies.clear();
+				else if (statement.kind == Statement.PUSH_FRAME)
+					forget(copies, depth ++);
+				else
+					forget(copies, -- depth);
+				continue;
+			}
+			Node value = statement.value;
+			if (value != null) {
+				value = propagate(value, copies).fold();
+				if (rewrite && !value.equals(statement.value)) {
+					statements.set(i, statement.withValue(value));
+					changed = true;
+				}
+			}
+			if (statement.kind != Statement.STORE)
+				continue;
+			
+			Node variable = statement.variable;
+			for (Iterator<Map.Entry<Node, Node>> known = copies.entrySet().iterator(); known.hasNext(); ) {
+				Map.Entry<Node, Node> copy = known.next();
+				if (copy.getKey().overlaps(variable) || copy.getValue().reads(variable))
+					known.remove();
+			}
+			if ((value.kind == Node.CONSTANT || value.kind == Node.VARIABLE) && !value.reads(variable))
+				copies.put(variable, value);
+		}
+		return changed;
+	}
+	
+	/** @return the value with every variable that is known to hold a copy read from the copy instead. */
+	private static Node propagate(Node value, HashMap<Node, Node> copies) {
+		if (value.kind == Node.VARIABLE) {
+			Node copy = copies.get(value);
+			return (copy == null)? value : copy;
+		}
+		Node propagated = value;
+		for (int i = 0; i < value.operandCount(); i ++) {
+			Node operand = propagate(value.operand(i), copies);
+			if (operand != value.operand(i))
+				propagated = propagated.withOperand(i, operand);
+		}
+		return propagated;
+	}
+	
+	/** Work out the constants each variable is known to hold where each block starts. The program and every
+	 * function start out knowing nothing, and what a block knows is what all the blocks that can run just
+	 * before it know when they end.
+	 * @return what is known where each block starts. Blocks that start out knowing nothing may be left out. */
+	private static HashMap<Block, HashMap<Node, Node>> constantsAtEntry(Graph graph) {
+		HashMap<Block, HashMap<Node, Node>> in = new HashMap<Block, HashMap<Node, Node>>(),
+				out = new HashMap<Block, HashMap<Node, Node>>();
+		HashMap<Block, List<Statement>> frames = graph.frames();
+		if (frames.isEmpty())
+			return in;
+		
+		HashMap<Block, List<Block>> predecessors = new HashMap<Block, List<Block>>();
+		HashSet<Block> entries = new HashSet<Block>();
+		entries.add(graph.blocks().get(0));
+		for (Block block : graph.blocks())
+			predecessors.put(block, new ArrayList<Block>(2));
+		for (Block block : graph.blocks()) {
+			for (Block successor : graph.successors(block))
+				predecessors.get(successor).add(block);
+			for (Statement statement : block.statements())
+				if (statement.value != null)
+					callsIn(statement.value, entries);
+		}
+		
+		ArrayDeque<Block> work = new ArrayDeque<Block>(graph.blocks());
+		HashSet<Block> waiting = new HashSet<Block>(graph.blocks());
+		int visits = MAXIMUM_VISITS * graph.blocks().size();
+		while (!work.isEmpty()) {
+			if (visits-- == 0) {
+				// It didn't settle, so it can't be trusted.
+				in.clear();
+				return in;
+			}
+			Block block = work.poll();
+			waiting.remove(block);
+			if (!frames.containsKey(block))
+				continue;
+			
+			HashMap<Node, Node> entry = null;
+			if (entries.contains(block))
+				entry = new HashMap<Node, Node>();
+			else
+				for (Block predecessor : predecessors.get(block)) {
+					HashMap<Node, Node> exit = out.get(predecessor);
+					if (exit == null)
+						continue;
+					if (entry == null)
+						entry = new HashMap<Node, Node>(exit);
+					else
+						for (Iterator<Map.Entry<Node, Node>> known = entry.entrySet().iterator(); known.hasNext(); ) {
+							Map.Entry<Node, Node> copy = known.next();
+							if (!copy.getValue().equals(exit.get(copy.getKey())))
+								known.remove();
+						}
+				}
+			if (entry == null)
+				entry = new HashMap<Node, Node>();
+			in.put(block, entry);
+			
+			HashMap<Node, Node> exit = new HashMap<Node, Node>(entry);
+			propagate(block, depthOf(frames, block), exit, false);
+			for (Iterator<Node> known = exit.values().iterator(); known.hasNext(); )
+				if (known.next().kind != Node.CONSTANT)
+					known.remove();
+			if (!exit.equals(out.get(block))) {
+				out.put(block, exit);
+				for (Block successor : graph.successors(block))
+					if (waiting.add(successor))
+						work.add(successor);
+			}
+		}
+		return in;
+	}
+	
+	/** Forget everything known about the frame with the number, and every frame after it. */
+	private static void forget(HashMap<Node, Node> copies, int frame) {
+		for (Iterator<Map.Entry<Node, Node>> known = copies.entrySet().iterator(); known.hasNext(); ) {
+			Map.Entry<Node, Node> copy = known.next();
+			Node value = copy.getValue();
+			if (copy.getKey().frame >= frame || (value.kind == Node.VARIABLE && value.frame >= frame))
+				known.remove();
+		}
+	}
+	
+	/** @return the number of frames pushed where the block starts, or -1 if it isn't known. */
+	private static int depthOf(HashMap<Block, List<Statement>> frames, Block block) {
+		List<Statement> entry = frames.get(block);
+		return (entry == null)? -1 : entry.size();
+	}
+	
+	/** Add the function of every call in the value to the set. */
+	private static void callsIn(Node value, HashSet<Block> functions) {
+		if (value.kind == Node.CALL)
+			functions.add(value.function);
+		for (int i = 0; i < value.operandCount(); i ++)
+			callsIn(value.operand(i), functions);
+	}
+}
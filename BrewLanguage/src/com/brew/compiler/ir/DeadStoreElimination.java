@@ -0,0 +1,43 @@
+package com.brew.compiler.ir;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * This pass takes out stores whose value is never read. A store is dead if no path from it reads the
+ * variable before the variable is stored to again, its frame is popped or its function returns, which is
+ * what the {@link Liveness} of the graph says. So a variable that is never read at all loses every store to
+ * it. The bytes of the program's own frame that are its {@link Graph#outputs()} are what the program leaves
+ * behind, so popping that frame doesn't make them dead. A value that calls a function or divides has to be
+ * worked out anyway, so its store stays.
+ * @author Jonathan Force
+ */
+public class DeadStoreElimination implements Pass {
+	
+	public boolean run(Graph graph) {
+		Liveness liveness = Liveness.of(graph);
+		if (liveness == null)
+			return false;
+		boolean changed = false;
+		for (Block block : graph.blocks()) {
+			if (liveness.framesOf(block) == null)
+				continue;
+			List<Statement> statements = block.statements();
+			int[] depths = liveness.depthsOf(block);
+			boolean program = liveness.isProgram(block);
+			BitSet live = liveness.liveOut(block);
+			for (int i = statements.size() - 1; i >= 0; i --) {
+				Statement statement = statements.get(i);
+				if (statement.kind == Statement.STORE && !Liveness.isLive(live, statement.variable)
+						&& !statement.value.hasEffects()) {
+					// What it read isn't read here any more, which only leaves the liveness of the graph too generous.
+					statements.remove(i);
+					changed = true;
+					continue;
+				}
+				liveness.before(statement, depths[i], program, live);
+			}
+		}
+		return changed;
+	}
+}
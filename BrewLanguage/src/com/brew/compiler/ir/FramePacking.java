@@ -0,0 +1,305 @@
+package com.brew.compiler.ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import com.brew.vm.InstructionSet;
+
+/**
+ * This pass lays the variables of every frame a PUSH_FRAME pushes out again, so the frame is as small as it
+ * can be. Bytes nobody reads or stores to any more are left out, and two variables that never hold anything
+ * at the same time share their bytes. Two variables hold something at the same time if one is stored to
+ * while the {@link Liveness} of the graph says the other is live. A variable that is read before anything is
+ * stored to it is read as the 0 its frame was pushed with, so it keeps its bytes to itself.
+ *
+ * The bytes of the program's own frame that are its {@link Graph#outputs()} stay in it even if nothing
+ * stores to them, and the graph is told where they have gone, since whoever runs the program reads them
+ * there. The first frame of a function holds its arguments where the CALL puts them, so it isn't laid out
+ * again either. A frame that wouldn't get any smaller is left alone.
+ * @author Jonathan Force
+ */
+public class FramePacking implements Pass {
+	
+	public boolean run(Graph graph) {
+		Liveness liveness = Liveness.of(graph);
+		if (liveness == null)
+			return false;
+		
+		// The frames pushed in front of every statement, innermost last.
+		HashMap<Block, Statement[][]> pushed = new HashMap<Block, Statement[][]>();
+		HashMap<Statement, Frame> frames = new HashMap<Statement, Frame>();
+		Frame program = null;
+		for (Block block : graph.blocks()) {
+			List<Statement> entry = liveness.framesOf(block);
+			if (entry == null)
+				continue;
+			List<Statement> statements = block.statements();
+			ArrayList<Statement> current = new ArrayList<Statement>(entry);
+			Statement[][] at = new Statement[statements.size()][];
+			for (int i = 0; i < at.length; i ++) {
+				Statement statement = statements.get(i);
+				at[i] = current.toArray(new Statement[current.size()]);
+				if (statement.kind == Statement.PUSH_FRAME) {
+					Frame frame = new Frame(statement, graph.sizeOf(statement));
+					if (current.isEmpty() && liveness.isProgram(block)) {
+						frame.keep(graph.outputs());
+						program = frame;
+					}
+					frames.put(statement, frame);
+					current.add(statement);
+				} else if (statement.kind == Statement.POP_FRAME)
+					current.remove(current.size() - 1);
+			}
+			pushed.put(block, at);
+		}
+		if (frames.isEmpty())
+			return false;
+		
+		// Every byte that is read or stored to.
+		for (Block block : pushed.keySet()) {
+			Statement[][] at = pushed.get(block);
+			for (int i = 0; i < at.length; i ++) {
+				Statement statement = block.statements().get(i);
+				if (statement.variable != null)
+					access(statement.variable, at[i], frames);
+				if (statement.value != null)
+					access(statement.value, at[i], frames);
+			}
+		}
+		for (Frame frame : frames.values())
+			frame.split();
+		
+		// Which variables hold something at the same time.
+		for (Block block : pushed.keySet()) {
+			List<Statement> statements = block.statements();
+			Statement[][] at = pushed.get(block);
+			int[] depths = liveness.depthsOf(block);
+			boolean inProgram = liveness.isProgram(block);
+			BitSet live = liveness.liveOut(block);
+			for (int i = statements.size() - 1; i >= 0; i --) {
+				Statement statement = statements.get(i);
+				if (statement.kind == Statement.STORE) {
+					Frame frame = frameOf(statement.variable, at[i], frames);
+					if (frame != null)
+						frame.interfere(frame.unitOf(statement.variable.id), live, statement.variable.frame);
+				} else if (statement.kind == Statement.PUSH_FRAME)
+					frames.get(statement).zeroed(live, depths[i]);
+				liveness.before(statement, depths[i], inProgram, live);
+			}
+		}
+		
+		HashMap<Statement, Statement> packed = new HashMap<Statement, Statement>();
+		for (Frame frame : frames.values())
+			if (frame.pack())
+				packed.put(frame.push, Statement.pushFrame(frame.packedSize, frame.push.end));
+		if (packed.isEmpty())
+			return false;
+		if (program != null && packed.containsKey(program.push))
+			graph.move(program.moves());
+		
+		for (Block block : pushed.keySet()) {
+			List<Statement> statements = block.statements();
+			Statement[][] at = pushed.get(block);
+			for (int i = 0; i < statements.size(); i ++) {
+				Statement statement = statements.get(i);
+				if (packed.containsKey(statement))
+					statements.set(i, packed.get(statement));
+				else if (statement.kind == Statement.STORE)
+					statements.set(i, Statement.store(move(statement.variable, at[i], frames, packed),
+							move(statement.value, at[i], frames, packed), statement.end));
+				else if (statement.value != null)
+					statements.set(i, statement.withValue(move(statement.value, at[i], frames, packed)));
+			}
+		}
+		return true;
+	}
+	
+	/** Note every byte of a frame that can be packed that the value reads or stores to. */
+	private static void access(Node value, Statement[] pushed, HashMap<Statement, Frame> frames) {
+		if (value.kind == Node.VARIABLE) {
+			Frame frame = frameOf(value, pushed, frames);
+			if (frame != null)
+				frame.use(value.id, value.size);
+		}
+		for (int i = 0; i < value.operandCount(); i ++)
+			access(value.operand(i), pushed, frames);
+	}
+	
+	/** @return the value with every variable of a frame that was packed moved to where it lives now. */
+	private static Node move(Node value, Statement[] pushed, HashMap<Statement, Frame> frames, HashMap<Statement, Statement> packed) {
+		if (value.kind == Node.VARIABLE) {
+			Frame frame = frameOf(value, pushed, frames);
+			if (frame == null || !packed.containsKey(frame.push))
+				return value;
+			return Node.variable(value.frame, (byte) frame.moved(value.id), value.size);
+		}
+		Node moved = value;
+		for (int i = 0; i < value.operandCount(); i ++) {
+			Node operand = move(value.operand(i), pushed, frames, packed);
+			if (operand != value.operand(i))
+				moved = moved.withOperand(i, operand);
+		}
+		return moved;
+	}
+	
+	/** @return the frame the variable is in, if it is pushed by a PUSH_FRAME, or null. */
+	private static Frame frameOf(Node variable, Statement[] pushed, HashMap<Statement, Frame> frames) {
+		if (variable.frame >= pushed.length || pushed[variable.frame] == null)
+			return null;
+		return frames.get(pushed[variable.frame]);
+	}
+	
+	/** A frame and the variables in it. The bytes that are used together, because a variable reads or stores
+	 * them all, are a unit, which moves as a whole. */
+	private static class Frame {
+		
+		final Statement push;
+		final int size;
+		/** The end of the furthest reaching variable that starts at each byte, or 0 if none does. */
+		final int[] reach = new int[InstructionSet.MAX_FRAME_SIZE + 1];
+		/** The first byte of each unit and its number of bytes, in the order they are in the frame. */
+		int[] starts, lengths;
+		/** Which units hold something at the same time. */
+		boolean[][] interferes;
+		/** Where each unit starts once the frame is packed, and the size of the packed frame. */
+		int[] packed;
+		int packedSize;
+		
+		Frame(Statement push, int size) {
+			this.push = push;
+			this.size = size;
+		}
+		
+		/** Keep the bytes in the frame, even if nothing reads them or stores to them. */
+		void keep(BitSet bytes) {
+			bytes.clear(Math.min(size, bytes.length()), Math.max(size, bytes.length()));
+			for (int start = bytes.nextSetBit(0); start != -1; start = bytes.nextSetBit(bytes.nextClearBit(start)))
+				use(start, bytes.nextClearBit(start) - start);
+		}
+		
+		/** Note that the bytes of a variable are read or stored to. */
+		void use(int id, int size) {
+			reach[id] = Math.max(reach[id], id + size);
+		}
+		
+		/** Split the bytes that are used into units, once every variable is known. Variables that share a byte
+		 * are in the same unit. */
+		void split() {
+			ArrayList<Integer> s = new ArrayList<Integer>(), l = new ArrayList<Integer>();
+			int start = -1, end = 0;
+			for (int id = 0; id < reach.length; id ++) {
+				if (reach[id] == 0)
+					continue;
+				if (start == -1 || id >= end) {
+					if (start != -1) {
+						s.add(start);
+						l.add(end - start);
+					}
+					start = id;
+				}
+				end = Math.max(end, reach[id]);
+			}
+			if (start != -1) {
+				s.add(start);
+				l.add(end - start);
+			}
+			starts = new int[s.size()];
+			lengths = new int[s.size()];
+			for (int i = 0; i < starts.length; i ++) {
+				starts[i] = s.get(i);
+				lengths[i] = l.get(i);
+			}
+			interferes = new boolean[starts.length][starts.length];
+		}
+		
+		/** @return the unit the byte is in. */
+		int unitOf(int id) {
+			int low = 0, high = starts.length - 1;
+			while (low < high) {
+				int middle = (low + high + 1) >>> 1;
+				if (starts[middle] <= id)
+					low = middle;
+				else
+					high = middle - 1;
+			}
+			return low;
+		}
+		
+		/** The unit is stored to while the bytes are live, so it can't share with any unit they are in.
+		 * @param number The number the frame goes by where the bytes are live. */
+		void interfere(int unit, BitSet live, int number) {
+			for (int other = 0; other < starts.length; other ++)
+				if (other != unit && isLive(live, number, other))
+					interferes[unit][other] = interferes[other][unit] = true;
+		}
+		
+		/** The frame is pushed, so the units live now are read as 0, and can't share with any unit. */
+		void zeroed(BitSet live, int number) {
+			for (int unit = 0; unit < starts.length; unit ++)
+				if (isLive(live, number, unit))
+					for (int other = 0; other < starts.length; other ++)
+						if (other != unit)
+							interferes[unit][other] = interferes[other][unit] = true;
+		}
+		
+		private boolean isLive(BitSet live, int number, int unit) {
+			int key = Liveness.key(number, starts[unit]);
+			int next = live.nextSetBit(key);
+			return next != -1 && next < key + lengths[unit];
+		}
+		
+		/** Work out where each unit goes. The biggest units go first, each at the first place it doesn't share
+		 * with a unit it interferes with.
+		 * @return true if the frame gets smaller. */
+		boolean pack() {
+			packed = new int[starts.length];
+			Integer[] order = new Integer[starts.length];
+			boolean[] placed = new boolean[starts.length];
+			for (int unit = 0; unit < order.length; unit ++)
+				order[unit] = unit;
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return (lengths[a] != lengths[b])? lengths[b] - lengths[a] : starts[a] - starts[b];
+				}
+			});
+			packedSize = 0;
+			for (int unit : order) {
+				int at = 0;
+				for (boolean moved = true; moved; ) {
+					moved = false;
+					for (int other = 0; other < starts.length; other ++)
+						if (placed[other] && interferes[unit][other]
+								&& at < packed[other] + lengths[other] && packed[other] < at + lengths[unit]) {
+							at = packed[other] + lengths[other];
+							moved = true;
+						}
+				}
+				packed[unit] = at;
+				placed[unit] = true;
+				packedSize = Math.max(packedSize, at + lengths[unit]);
+			}
+			return packedSize < size;
+		}
+		
+		/** @return the id each byte of the frame has once it is packed, by the id it had, or -1 for the bytes
+		 * that aren't in the packed frame. */
+		int[] moves() {
+			int[] moves = new int[reach.length];
+			Arrays.fill(moves, -1);
+			for (int unit = 0; unit < starts.length; unit ++)
+				for (int i = 0; i < lengths[unit]; i ++)
+					moves[starts[unit] + i] = packed[unit] + i;
+			return moves;
+		}
+		
+		/** @return the id the byte with the id has once the frame is packed. */
+		int moved(int id) {
+			int unit = unitOf(id);
+			return packed[unit] + id - starts[unit];
+		}
+	}
+}
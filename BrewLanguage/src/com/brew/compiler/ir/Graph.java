@@ -0,0 +1,591 @@
+package com.brew.compiler.ir;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import com.brew.compiler.BytecodeBuffer;
+import com.brew.compiler.Utilities;
+import com.brew.compiler.exceptions.CompilationException;
+import com.brew.vm.InstructionSet;
+
+/**
+ * This class is the control flow graph of a program : its {@link Block}s, in the order their code is laid
+ * out, each one a list of {@link Statement}s that work out trees of {@link Node}s. The compiler builds it
+ * from the stack code it emits for each line, runs its {@link Pass}es over it, and lowers it back to
+ * bytecode. Jumps point at blocks rather than at places in the code, so a pass can take code out or put
+ * code in anywhere and the jumps are worked out again when the graph is lowered.
+ *
+ * Only what the compiler emits can be built into a graph. The stack has to be empty wherever blocks meet,
+ * and a value can't be left on the stack while a variable one of the values under it reads is stored to,
+ * since a statement is always worked out in one go.
+ * @author Jonathan Force
+ */
+public final class Graph {
+	
+	/** The most times the passes are run over the graph, for as long as they keep finding something to do. */
+	public static final int MAXIMUM_ROUNDS = 4;
+	/** The ways a GOTO can be lowered, shortest reach first : GOTO, PUSH 0 and IF, or GOTO_WIDE. */
+	private static final int WIDE_GOTO = 2;
+	
+	private final ArrayList<Block> blocks;
+	/** The size each frame that was given room for temporaries is pushed with, by its PUSH_FRAME. */
+	private final HashMap<Statement, Integer> reserved;
+	/** The bytes of the program's own frame that are left behind once it has run. */
+	private BitSet outputs;
+	/** The id each byte of the program's own frame has now, by the id it had when the graph was built. */
+	private final int[] places;
+	
+	private Graph() {
+		this.blocks = new ArrayList<Block>();
+		this.reserved = new HashMap<Statement, Integer>();
+		this.outputs = new BitSet();
+		this.outputs.set(0, InstructionSet.MAX_FRAME_SIZE + 1);
+		this.places = new int[InstructionSet.MAX_FRAME_SIZE + 1];
+		for (int id = 0; id < places.length; id ++)
+			places[id] = id;
+	}
+	
+	/** Build the graph of the program.
+	 * @param code The program. It isn't changed.
+	 * @return the graph, or null if the program can't be decoded, or isn't laid out the way the compiler lays
+	 * out its code. */
+	public static Graph build(byte[] code) {
+		int length = code.length;
+		boolean[] isInstruction = new boolean[length + 1], isLeader = new boolean[length + 1];
+		int pc = 0;
+		while (pc < length) {
+			int size = InstructionSet.lengthOf(code[pc]);
+			if (size == -1 || pc + size > length)
+				return null;
+			isInstruction[pc] = true;
+			pc += size;
+		}
+		isInstruction[length] = true;
+		
+		// A block starts wherever something jumps or calls to, and after every jump.
+		isLeader[0] = isLeader[length] = true;
+		for (pc = 0; pc < length; pc += InstructionSet.lengthOf(code[pc])) {
+			int target = targetOf(code, pc);
+			if (target != -1) {
+				if (target < 0 || target > length || !isInstruction[target])
+					return null;
+				isLeader[target] = true;
+			}
+			byte inst = code[pc];
+			if (inst == InstructionSet.IF || inst == InstructionSet.IF_WIDE || inst == InstructionSet.GOTO
+					|| inst == InstructionSet.GOTO_WIDE || inst == InstructionSet.RETURN)
+				isLeader[pc + InstructionSet.lengthOf(inst)] = true;
+		}
+		
+		Graph graph = new Graph();
+		Block[] blockAt = new Block[length + 1];
+		for (pc = 0; pc <= length; pc ++)
+			if (isLeader[pc] && isInstruction[pc]) {
+				blockAt[pc] = new Block(graph.blocks.size());
+				graph.blocks.add(blockAt[pc]);
+			}
+		
+		try {
+			graph.lift(code, blockAt);
+		} catch (CannotBuild e) {
+			return null;
+		}
+		return graph;
+	}
+	
+	/** Turn the stack code of every block into its statements. */
+	private void lift(byte[] code, Block[] blockAt) {
+		ArrayList<Node> stack = new ArrayList<Node>();
+		Block block = null;
+		for (int pc = 0; pc < code.length; pc += InstructionSet.lengthOf(code[pc])) {
+			if (blockAt[pc] != null) {
+				expect(stack.isEmpty());
+				block = blockAt[pc];
+			}
+			List<Statement> statements = block.statements();
+			byte inst = code[pc];
+			int target = targetOf(code, pc);
+			
+			switch (inst) {
+			case InstructionSet.PUSH :
+				stack.add(Node.constant(code[pc + 1], InstructionSet.BYTE_SIZE));
+				break;
+			case InstructionSet.PUSH_INT :
+				stack.add(Node.constant(InstructionSet.read(code, pc + 1, InstructionSet.INT_SIZE), InstructionSet.INT_SIZE));
+				break;
+			case InstructionSet.PUSH_LONG :
+				stack.add(Node.constant(InstructionSet.read(code, pc + 1, InstructionSet.LONG_SIZE), InstructionSet.LONG_SIZE));
+				break;
+			case InstructionSet.PULL_VAR :
+			case InstructionSet.PULL_INT_VAR :
+			case InstructionSet.PULL_LONG_VAR :
+				stack.add(Node.variable(code[pc + 1], code[pc + 2], sizeOfVariable(inst)));
+				break;
+			case InstructionSet.PUSH_VAR :
+			case InstructionSet.PUSH_INT_VAR :
+			case InstructionSet.PUSH_LONG_VAR : {
+				Node variable = Node.variable(code[pc + 1], code[pc + 2], sizeOfVariable(inst));
+				Node value = pop(stack, variable.size);
+				// The values still on the stack are worked out after the store once this is a statement.
+				for (Node waiting : stack)
+					expect(!waiting.reads(variable));
+				statements.add(Statement.store(variable, value, pc));
+				break;
+			}
+			case InstructionSet.ADD :
+			case InstructionSet.SUBTRACT :
+			case InstructionSet.MULTIPLY :
+			case InstructionSet.DIVIDE :
+				arithmetic(stack, inst, InstructionSet.BYTE_SIZE);
+				break;
+			case InstructionSet.INT_MATH :
+			case InstructionSet.LONG_MATH :
+				expect(InstructionSet.isArithmeticOperator(code[pc + 1]));
+				arithmetic(stack, code[pc + 1], (inst == InstructionSet.INT_MATH)? InstructionSet.INT_SIZE : InstructionSet.LONG_SIZE);
+				break;
+			case InstructionSet.GREATER_THAN :
+			case InstructionSet.GREATER_THAN_EQUAL :
+			case InstructionSet.LESS_THAN :
+			case InstructionSet.LESS_THAN_EQUAL :
+			case InstructionSet.EQUAL_TO :
+				comparison(stack, inst, InstructionSet.BYTE_SIZE);
+				break;
+			case InstructionSet.INT_COMPARE :
+			case InstructionSet.LONG_COMPARE :
+				expect(InstructionSet.isComparisonOperator(code[pc + 1]));
+				comparison(stack, code[pc + 1], (inst == InstructionSet.INT_COMPARE)? InstructionSet.INT_SIZE : InstructionSet.LONG_SIZE);
+				break;
+			case InstructionSet.CONVERT :
+				expect(InstructionSet.isValueSize(code[pc + 1]) && InstructionSet.isValueSize(code[pc + 2]));
+				stack.add(Node.convert(pop(stack, code[pc + 1]), code[pc + 2]));
+				break;
+			case InstructionSet.CALL : {
+				// The arguments are the values on top of the stack that add up to the bytes the call passes.
+				int argumentSize = code[pc + 3], size = 0, first = stack.size();
+				while (size < argumentSize && first > 0)
+					size += stack.get(--first).size;
+				expect(size == argumentSize && InstructionSet.isValueSize(code[pc + 4]));
+				List<Node> arguments = stack.subList(first, stack.size());
+				Node call = Node.call(blockAt[target], code[pc + 4], arguments.toArray(new Node[arguments.size()]));
+				arguments.clear();
+				stack.add(call);
+				break;
+			}
+			case InstructionSet.IF :
+			case InstructionSet.IF_WIDE :
+				statements.add(Statement.jumpUnless(pop(stack, InstructionSet.BYTE_SIZE), blockAt[target], pc));
+				expect(stack.isEmpty());
+				break;
+			case InstructionSet.GOTO :
+			case InstructionSet.GOTO_WIDE :
+				expect(stack.isEmpty());
+				statements.add(Statement.jump(blockAt[target], inst == InstructionSet.GOTO_WIDE, pc));
+				break;
+			case InstructionSet.RETURN :
+				expect(stack.size() == 1);
+				statements.add(Statement.returning(stack.remove(0), pc));
+				break;
+			case InstructionSet.PUSH_FRAME :
+				expect(stack.isEmpty());
+				statements.add(Statement.pushFrame(code[pc + 1] & 0xFF, pc));
+				break;
+			case InstructionSet.POP_FRAME :
+				expect(stack.isEmpty());
+				statements.add(Statement.popFrame(pc));
+				break;
+			case InstructionSet.DEBUG_STACK :
+				expect(stack.isEmpty());
+				statements.add(Statement.debug(pc));
+				break;
+			default :
+				// Superinstructions, and what the compiler never emits.
+				throw new CannotBuild();
+			}
+		}
+		expect(stack.isEmpty());
+	}
+	
+	/** Lower the graph back to bytecode. Every jump is made as short as it can be where it ends up, except
+	 * for jumps that were GOTO_WIDE to start with, which stay that way.
+	 * @param positions Indexes in the code the graph was built from, each of which is replaced by its index in
+	 * the lowered code. They go to the start of the first statement that is still there from that index on.
+	 * @return the lowered program. */
+	public byte[] lower(int[] positions) {
+		int count = 0;
+		for (Block block : blocks)
+			count += block.statements().size();
+		Statement[] order = new Statement[count];
+		int[] lengths = new int[count], forms = new int[count], starts = new int[count], ends = new int[count];
+		int[] addresses = new int[blocks.size()];
+		int k = 0;
+		for (Block block : blocks)
+			for (Statement statement : block.statements()) {
+				order[k] = statement;
+				ends[k] = statement.end;
+				lengths[k] = (statement.value == null)? 0 : statement.value.length();
+				forms[k ++] = (statement.kind == Statement.GOTO && statement.wide)? WIDE_GOTO : 0;
+			}
+		
+		// Lay the code out, and lengthen the jumps that don't reach, until every jump reaches.
+		boolean changed = true;
+		while (changed) {
+			int at = 0;
+			k = 0;
+			for (Block block : blocks) {
+				addresses[block.index()] = at;
+				for (int i = 0; i < block.statements().size(); i ++, k ++) {
+					starts[k] = at;
+					at += lengths[k] + lengthOf(order[k], forms[k]);
+				}
+			}
+			changed = false;
+			for (k = 0; k < count; k ++)
+				if (order[k].target != null && !reaches(order[k], forms[k], starts[k] + lengths[k], addresses[order[k].target.index()])) {
+					if (++forms[k] > ((order[k].kind == Statement.GOTO)? WIDE_GOTO : 1))
+						throw new CompilationException("Unfortunately, at this time Brew supports a maximum of " + Short.MAX_VALUE + " bytes of code inside a conditional block.");
+					changed = true;
+				}
+		}
+		
+		BytecodeBuffer out = new BytecodeBuffer(count * 4);
+		for (k = 0; k < count; k ++) {
+			Statement statement = order[k];
+			if (statement.value != null)
+				statement.value.emit(addresses, out);
+			int jump = (statement.target == null)? 0 : addresses[statement.target.index()] - (out.position() + lengthOf(statement, forms[k]));
+			switch (statement.kind) {
+			case Statement.STORE :
+				out.emit(Utilities.storeFor(statement.variable.size), statement.variable.frame, (byte) statement.variable.id);
+				break;
+			case Statement.IF :
+				if (forms[k] == 0)
+					out.emit(InstructionSet.IF, (byte) jump);
+				else
+					out.emit(InstructionSet.IF_WIDE, (byte) (jump >> 8), (byte) jump);
+				break;
+			case Statement.GOTO : {
+				int target = addresses[statement.target.index()];
+				if (forms[k] == 0)
+					out.emit(InstructionSet.GOTO, (byte) target);
+				else if (forms[k] == 1) {
+					// An IF of 0 always jumps, and reaches further back and forth than GOTO reaches from the start.
+					out.emit(InstructionSet.PUSH, (byte) 0);
+					out.emit(InstructionSet.IF, (byte) jump);
+				} else
+					out.emit(InstructionSet.GOTO_WIDE, (byte) (target >> 8), (byte) target);
+				break;
+			}
+			case Statement.RETURN :
+				out.emit(InstructionSet.RETURN);
+				break;
+			case Statement.PUSH_FRAME :
+				out.emit(InstructionSet.PUSH_FRAME, (byte) sizeOf(statement));
+				break;
+			case Statement.POP_FRAME :
+				out.emit(InstructionSet.POP_FRAME);
+				break;
+			default :
+				out.emit(InstructionSet.DEBUG_STACK);
+			}
+		}
+		
+		// The statements are still in the order of the code they came from, so their ends only go up.
+		for (int i = 0; i < positions.length; i ++) {
+			int first = firstEndingAtOrAfter(ends, count, positions[i]);
+			positions[i] = (first == count)? out.position() : starts[first];
+		}
+		return out.toByteArray();
+	}
+	
+	/** Run the passes over the graph, in order, until they stop finding anything to do or they have been
+	 * run {@link #MAXIMUM_ROUNDS} times.
+	 * @return true if any of them changed the graph. */
+	public boolean optimize(Pass ... passes) {
+		boolean optimized = false;
+		for (int round = 0; round < MAXIMUM_ROUNDS; round ++) {
+			boolean changed = false;
+			for (Pass pass : passes)
+				changed |= pass.run(this);
+			if (!changed)
+				break;
+			optimized = true;
+		}
+		return optimized;
+	}
+	
+	/** Set the bytes of the program's own frame that whoever runs the program reads once it has run. Passes
+	 * have to leave them holding what they would have held, and may do what they like with the other bytes.
+	 * Every byte of the frame is left behind unless this is set.
+	 * @param outputs The ids of the bytes. The set is copied. */
+	public void setOutputs(BitSet outputs) {
+		this.outputs = (BitSet) outputs.clone();
+	}
+	
+	/** @return the ids of the bytes of the program's own frame that are left behind once it has run. The set
+	 * is a copy. */
+	public BitSet outputs() {
+		return (BitSet) outputs.clone();
+	}
+	
+	/** Note that a pass has moved the bytes of the program's own frame, outputs and all.
+	 * @param moves The id each byte has now, by the id it had, or -1 for the bytes that aren't in the frame
+	 * any more. */
+	public void move(int[] moves) {
+		BitSet outputs = new BitSet();
+		for (int id = this.outputs.nextSetBit(0); id != -1; id = this.outputs.nextSetBit(id + 1))
+			if (moves[id] != -1)
+				outputs.set(moves[id]);
+		this.outputs = outputs;
+		for (int id = 0; id < places.length; id ++)
+			if (places[id] != -1)
+				places[id] = moves[places[id]];
+	}
+	
+	/** @return the id the byte of the program's own frame that had the id when the graph was built has now,
+	 * or -1 if it isn't in the frame any more. */
+	public int placeOf(int id) {
+		return places[id];
+	}
+	
+	/** @return the blocks, in the order they are laid out. The first is where the program starts. */
+	public List<Block> blocks() {
+		return Collections.unmodifiableList(blocks);
+	}
+	
+	/** @return the block laid out after the block, which it runs on into if it doesn't jump, or null if it is
+	 * the last. */
+	public Block next(Block block) {
+		int index = block.index() + 1;
+		return (index < blocks.size())? blocks.get(index) : null;
+	}
+	
+	/** @return the blocks that can run straight after the block. */
+	public List<Block> successors(Block block) {
+		List<Block> successors = new ArrayList<Block>(2);
+		Statement last = block.last();
+		if (last != null && last.target != null)
+			successors.add(last.target);
+		Block next = next(block);
+		if (block.fallsThrough() && next != null && !successors.contains(next))
+			successors.add(next);
+		return successors;
+	}
+	
+	/** Take out every block the program can never get to, by running on, jumping or calling. The last block
+	 * that does anything stays anyway, so a program always ends with the POP_FRAME of its own frame, even if
+	 * it never gets there.
+	 * @return true if there were any. */
+	public boolean removeUnreachable() {
+		HashSet<Block> reached = new HashSet<Block>();
+		ArrayDeque<Block> work = new ArrayDeque<Block>();
+		reached.add(blocks.get(0));
+		work.add(blocks.get(0));
+		for (int i = blocks.size() - 1; i > 0; i --)
+			if (!blocks.get(i).statements().isEmpty()) {
+				if (reached.add(blocks.get(i)))
+					work.add(blocks.get(i));
+				break;
+			}
+		while (!work.isEmpty()) {
+			Block block = work.poll();
+			List<Block> next = successors(block);
+			for (Statement statement : block.statements())
+				if (statement.value != null)
+					callsIn(statement.value, next);
+			for (Block successor : next)
+				if (reached.add(successor))
+					work.add(successor);
+		}
+		if (reached.size() == blocks.size())
+			return false;
+		
+		ArrayList<Block> kept = new ArrayList<Block>(reached.size());
+		for (Block block : blocks)
+			if (reached.contains(block)) {
+				block.setIndex(kept.size());
+				kept.add(block);
+			}
+		blocks.clear();
+		blocks.addAll(kept);
+		return true;
+	}
+	
+	/** Work out which frames are pushed when each block starts, innermost last. A frame is known by the
+	 * PUSH_FRAME that pushed it. The first frame of a function's activation is made by the CALL to hold the
+	 * arguments, it is null.
+	 * @return the frames of every block the program can get to, or no blocks at all if they are pushed and
+	 * popped differently on different paths to the same block. */
+	public HashMap<Block, List<Statement>> frames() {
+		HashMap<Block, List<Statement>> frames = new HashMap<Block, List<Statement>>();
+		ArrayDeque<Block> work = new ArrayDeque<Block>();
+		frames.put(blocks.get(0), new ArrayList<Statement>());
+		work.add(blocks.get(0));
+		while (!work.isEmpty()) {
+			Block block = work.poll();
+			ArrayList<Statement> pushed = new ArrayList<Statement>(frames.get(block));
+			List<Block> functions = new ArrayList<Block>();
+			for (Statement statement : block.statements()) {
+				if (statement.kind == Statement.PUSH_FRAME)
+					pushed.add(statement);
+				else if (statement.kind == Statement.POP_FRAME) {
+					if (pushed.isEmpty())
+						return new HashMap<Block, List<Statement>>();
+					pushed.remove(pushed.size() - 1);
+				}
+				if (statement.value != null)
+					callsIn(statement.value, functions);
+			}
+			
+			for (Block successor : successors(block))
+				if (!arrive(frames, work, successor, pushed))
+					return new HashMap<Block, List<Statement>>();
+			for (Block function : functions)
+				if (!arrive(frames, work, function, Collections.<Statement> singletonList(null)))
+					return new HashMap<Block, List<Statement>>();
+		}
+		return frames;
+	}
+	
+	/** Make room for temporaries at the end of the frame a PUSH_FRAME pushes. A temporary only lives inside a
+	 * block, so every block can put its temporaries in the same place.
+	 * @param frame The PUSH_FRAME. The first frame of a function, which the CALL makes, can't grow.
+	 * @param bytes The number of bytes of temporaries the block needs in the frame, in all.
+	 * @return the id of the first byte of room, or -1 if there is no room. */
+	public int reserve(Statement frame, int bytes) {
+		if (frame == null || frame.frameSize + bytes > InstructionSet.MAX_FRAME_SIZE)
+			return -1;
+		Integer size = reserved.get(frame);
+		if (size == null || size < frame.frameSize + bytes)
+			reserved.put(frame, frame.frameSize + bytes);
+		return frame.frameSize;
+	}
+	
+	/** @return the size the PUSH_FRAME pushes its frame with, with any room made for temporaries. */
+	public int sizeOf(Statement frame) {
+		Integer size = reserved.get(frame);
+		return (size == null)? frame.frameSize : size;
+	}
+	
+	/** Note the frames a block starts with, the first time a path gets to it.
+	 * @return false if it was reached before with different frames. */
+	private static boolean arrive(HashMap<Block, List<Statement>> frames, ArrayDeque<Block> work, Block block, List<Statement> pushed) {
+		List<Statement> known = frames.get(block);
+		if (known == null) {
+			frames.put(block, new ArrayList<Statement>(pushed));
+			work.add(block);
+			return true;
+		}
+		return known.equals(pushed);
+	}
+	
+	/** Add the function of every call in the value to the list. */
+	private static void callsIn(Node value, List<Block> functions) {
+		if (value.kind == Node.CALL && !functions.contains(value.function))
+			functions.add(value.function);
+		for (int i = 0; i < value.operandCount(); i ++)
+			callsIn(value.operand(i), functions);
+	}
+	
+	/** @return the number of bytes of the statement, besides the value it works out, lowered the way the
+	 * form says. Form 0 is the shortest way to jump, and an IF of form 1 is an IF_WIDE. */
+	private static int lengthOf(Statement statement, int form) {
+		switch (statement.kind) {
+		case Statement.STORE : return 3;
+		case Statement.IF : return (form == 0)? 2 : 3;
+		case Statement.GOTO : return (form == 0)? 2 : (form == 1)? 4 : 3;
+		case Statement.PUSH_FRAME : return 2;
+		default : return 1;
+		}
+	}
+	
+	/** @return true if the jump, lowered the way the form says at the index, reaches the target. */
+	private static boolean reaches(Statement jump, int form, int at, int target) {
+		int offset = target - (at + lengthOf(jump, form));
+		if (jump.kind == Statement.IF)
+			return (form == 0)? offset == (byte) offset : offset == (short) offset;
+		switch (form) {
+		case 0 : return target <= Byte.MAX_VALUE;
+		case 1 : return offset == (byte) offset;
+		default : return target <= 0xFFFF;
+		}
+	}
+	
+	/** @return the first of the ends that is at or after the index, or the count if there are none. */
+	private static int firstEndingAtOrAfter(int[] ends, int count, int index) {
+		int low = 0, high = count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (ends[middle] < index)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+	
+	/** @return the index the jump or call at pc goes to, or -1 if the instruction at pc doesn't go anywhere. */
+	private static int targetOf(byte[] code, int pc) {
+		switch (code[pc]) {
+		case InstructionSet.GOTO : return code[pc + 1];
+		case InstructionSet.IF : return pc + 2 + code[pc + 1];
+		case InstructionSet.GOTO_WIDE : return (int) InstructionSet.read(code, pc + 1, 2) & 0xFFFF;
+		case InstructionSet.IF_WIDE : return pc + 3 + (int) InstructionSet.read(code, pc + 1, 2);
+		case InstructionSet.CALL : return (int) InstructionSet.read(code, pc + 1, 2) & 0xFFFF;
+		default : return -1;
+		}
+	}
+	
+	/** @return the size of the variables the load or store instruction works on. */
+	private static int sizeOfVariable(byte inst) {
+		switch (inst) {
+		case InstructionSet.PULL_VAR :
+		case InstructionSet.PUSH_VAR :
+			return InstructionSet.BYTE_SIZE;
+		case InstructionSet.PULL_INT_VAR :
+		case InstructionSet.PUSH_INT_VAR :
+			return InstructionSet.INT_SIZE;
+		default :
+			return InstructionSet.LONG_SIZE;
+		}
+	}
+	
+	private static void arithmetic(ArrayList<Node> stack, byte operator, int size) {
+		Node right = pop(stack, size), left = pop(stack, size);
+		stack.add(Node.arithmetic(operator, size, left, right));
+	}
+	
+	private static void comparison(ArrayList<Node> stack, byte operator, int size) {
+		// The left hand side is on top.
+		Node left = pop(stack, size), right = pop(stack, size);
+		stack.add(Node.comparison(operator, right, left));
+	}
+	
+	/** @return the value on top of the stack, which has to be of the size. */
+	private static Node pop(ArrayList<Node> stack, int size) {
+		expect(!stack.isEmpty() && stack.get(stack.size() - 1).size == size);
+		return stack.remove(stack.size() - 1);
+	}
+	
+	private static void expect(boolean condition) {
+		if (!condition)
+			throw new CannotBuild();
+	}
+	
+	/** Thrown while building a graph of code that can't be built into one. */
+	private static class CannotBuild extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (Block block : blocks)
+			text.append(block).append('\n');
+		return text.toString();
+	}
+}
@@ -0,0 +1,62 @@
+package com.brew.compiler.ir;
+
+import java.util.List;
+
+/**
+ * This pass makes every jump go as straight as it can to where it ends up. A jump to a block that does
+ * nothing but jump on, or that is empty and runs on into the next block, goes to where that block would
+ * have gone. An IF whose condition is a constant either always jumps, so it becomes a GOTO, or never does,
+ * so it goes. A jump to the very next block goes too, unless its condition has to be worked out anyway.
+ * Then every block the program can no longer get to is taken out.
+ * @author Jonathan Force
+ */
+public class JumpThreading implements Pass {
+	
+	public boolean run(Graph graph) {
+		boolean changed = false;
+		for (Block block : graph.blocks()) {
+			List<Statement> statements = block.statements();
+			Statement last = block.last();
+			if (last == null || last.target == null)
+				continue;
+			
+			Block target = destinationOf(graph, last.target);
+			Statement threaded = last;
+			if (target != last.target)
+				threaded = last.withTarget(target);
+			if (threaded.kind == Statement.IF && threaded.value.kind == Node.CONSTANT) {
+				if (threaded.value.value == 0)
+					threaded = Statement.jump(target, false, last.end);
+				else if (threaded.value.value == 1)
+					threaded = null;
+			}
+			if (threaded != null && destinationOf(graph, graph.next(block)) == target
+					&& (threaded.kind == Statement.GOTO || !threaded.value.hasEffects()))
+				threaded = null;
+			
+			if (threaded != last) {
+				if (threaded == null)
+					statements.remove(statements.size() - 1);
+				else
+					statements.set(statements.size() - 1, threaded);
+				changed = true;
+			}
+		}
+		return graph.removeUnreachable() | changed;
+	}
+	
+	/** @return the block where running the block first does something, past blocks that are empty or only jump. */
+	private static Block destinationOf(Graph graph, Block block) {
+		// Blocks that jump to each other forever are left as they are.
+		for (int steps = 0; block != null && steps < graph.blocks().size(); steps ++) {
+			Statement last = block.last();
+			if (last == null && graph.next(block) != null)
+				block = graph.next(block);
+			else if (last != null && last.kind == Statement.GOTO && block.statements().size() == 1)
+				block = last.target;
+			else
+				break;
+		}
+		return block;
+	}
+}
@@ -0,0 +1,194 @@
+package com.brew.compiler.ir;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import com.brew.vm.InstructionSet;
+
+/**
+ * This class works out which bytes of which frames are live at the start and end of every block of a
+ * {@link Graph} : the bytes some path from there reads before it stores to them. A byte is one bit of a
+ * {@link BitSet}, at {@link #key} of its frame number and id. Frame numbers count from the first frame of the
+ * function, or of the program, that the block is in, so they mean the same frames all through a block.
+ *
+ * A store makes the bytes it stores to dead before it, and a value makes the bytes it reads live. A RETURN
+ * throws away every frame of its function, and a POP_FRAME the frame it pops, except that popping the
+ * program's own frame leaves its {@link Graph#outputs()} behind. A byte that is live where its frame is
+ * pushed is read before anything is stored to it, so it is read as 0.
+ *
+ * What is worked out is a snapshot. Taking statements out only ever makes fewer bytes live, so a pass that
+ * does that can go on using it, but a pass that moves variables has to work it out again.
+ * @author Jonathan Force
+ */
+public final class Liveness {
+	
+	/** The number of keys each frame has, one for every id a byte of a frame can have. */
+	private static final int FRAME_KEYS = InstructionSet.MAX_FRAME_SIZE + 1;
+	
+	private final Graph graph;
+	private final BitSet outputs;
+	private final HashMap<Block, List<Statement>> frames;
+	private final HashMap<Block, BitSet> liveIn, liveOut;
+	
+	private Liveness(Graph graph, HashMap<Block, List<Statement>> frames) {
+		this.graph = graph;
+		this.outputs = graph.outputs();
+		this.frames = frames;
+		this.liveIn = new HashMap<Block, BitSet>();
+		this.liveOut = new HashMap<Block, BitSet>();
+	}
+	
+	/** Work out the bytes that are live in every block of the graph.
+	 * @return what was worked out, or null if the frames of the graph aren't pushed and popped the same way
+	 * on every path, so the frame numbers can't be followed. */
+	public static Liveness of(Graph graph) {
+		HashMap<Block, List<Statement>> frames = graph.frames();
+		if (frames.isEmpty())
+			return null;
+		Liveness liveness = new Liveness(graph, frames);
+		liveness.solve();
+		return liveness;
+	}
+	
+	/** Go over the blocks from the last back, again and again, until no block's live bytes change. */
+	private void solve() {
+		HashMap<Block, List<Block>> predecessors = new HashMap<Block, List<Block>>();
+		for (Block block : graph.blocks()) {
+			liveIn.put(block, new BitSet());
+			liveOut.put(block, new BitSet());
+			predecessors.put(block, new ArrayList<Block>(2));
+		}
+		for (Block block : graph.blocks())
+			for (Block successor : graph.successors(block))
+				predecessors.get(successor).add(block);
+		
+		ArrayDeque<Block> work = new ArrayDeque<Block>();
+		HashSet<Block> waiting = new HashSet<Block>();
+		for (int i = graph.blocks().size() - 1; i >= 0; i --) {
+			work.add(graph.blocks().get(i));
+			waiting.add(graph.blocks().get(i));
+		}
+		while (!work.isEmpty()) {
+			Block block = work.poll();
+			waiting.remove(block);
+			BitSet out = liveOut.get(block);
+			for (Block successor : graph.successors(block))
+				out.or(liveIn.get(successor));
+			
+			BitSet in = liveBefore(block, 0);
+			if (!in.equals(liveIn.get(block))) {
+				liveIn.put(block, in);
+				for (Block predecessor : predecessors.get(block))
+					if (waiting.add(predecessor))
+						work.add(predecessor);
+			}
+		}
+	}
+	
+	/** @return the bytes that are live in front of the statement with the index in the block. */
+	public BitSet liveBefore(Block block, int index) {
+		BitSet live = liveOut(block);
+		List<Statement> statements = block.statements();
+		int[] depths = depthsOf(block);
+		for (int i = statements.size() - 1; i >= index; i --)
+			before(statements.get(i), depths[i], isProgram(block), live);
+		return live;
+	}
+	
+	/** @return the bytes that are live where the block ends. The set is a copy. */
+	public BitSet liveOut(Block block) {
+		BitSet out = liveOut.get(block);
+		return (out == null)? new BitSet() : (BitSet) out.clone();
+	}
+	
+	/** @return the bytes that are live where the block starts. The set is a copy. */
+	public BitSet liveIn(Block block) {
+		BitSet in = liveIn.get(block);
+		return (in == null)? new BitSet() : (BitSet) in.clone();
+	}
+	
+	/** @return the frames pushed when the block starts, innermost last, the way {@link Graph#frames()} has
+	 * them, or null if the program never gets to the block. */
+	public List<Statement> framesOf(Block block) {
+		return frames.get(block);
+	}
+	
+	/** @return the number of frames pushed in front of each statement of the block. */
+	public int[] depthsOf(Block block) {
+		List<Statement> statements = block.statements();
+		int[] depths = new int[statements.size()];
+		List<Statement> entry = frames.get(block);
+		int depth = (entry == null)? 0 : entry.size();
+		for (int i = 0; i < depths.length; i ++) {
+			depths[i] = depth;
+			if (statements.get(i).kind == Statement.PUSH_FRAME)
+				depth ++;
+			else if (statements.get(i).kind == Statement.POP_FRAME)
+				depth --;
+		}
+		return depths;
+	}
+	
+	/** @return true if the block is part of the program rather than of a function, so its first frame is the
+	 * program's own. */
+	public boolean isProgram(Block block) {
+		List<Statement> entry = frames.get(block);
+		return entry == null || entry.isEmpty() || entry.get(0) != null;
+	}
+	
+	/** Turn the bytes that are live after the statement into those that are live in front of it.
+	 * @param depth The number of frames pushed in front of the statement.
+	 * @param program True if the statement is part of the program rather than of a function. */
+	public void before(Statement statement, int depth, boolean program, BitSet live) {
+		switch (statement.kind) {
+		case Statement.STORE :
+			kill(live, statement.variable);
+			break;
+		case Statement.RETURN :
+			live.clear();
+			break;
+		case Statement.POP_FRAME :
+			live.clear(key(Math.max(depth - 1, 0), 0), Integer.MAX_VALUE);
+			if (program && depth == 1)
+				live.or(outputs);
+			break;
+		case Statement.PUSH_FRAME :
+			live.clear(key(depth, 0), Integer.MAX_VALUE);
+			break;
+		}
+		if (statement.value != null)
+			read(live, statement.value);
+	}
+	
+	/** @return the key of the byte of the frame. */
+	public static int key(int frame, int id) {
+		return frame * FRAME_KEYS + id;
+	}
+	
+	/** @return true if any byte of the variable is live. */
+	public static boolean isLive(BitSet live, Node variable) {
+		int key = key(variable.frame, variable.id);
+		int next = live.nextSetBit(key);
+		return next != -1 && next < key + variable.size;
+	}
+	
+	/** Make every byte of the variable dead. */
+	public static void kill(BitSet live, Node variable) {
+		int key = key(variable.frame, variable.id);
+		live.clear(key, key + variable.size);
+	}
+	
+	/** Make every byte the value reads live. */
+	public static void read(BitSet live, Node value) {
+		if (value.kind == Node.VARIABLE) {
+			int key = key(value.frame, value.id);
+			live.set(key, key + value.size);
+		}
+		for (int i = 0; i < value.operandCount(); i ++)
+			read(live, value.operand(i));
+	}
+}
@@ -0,0 +1,325 @@
+package com.brew.compiler.ir;
+
+import java.util.Arrays;
+
+import com.brew.compiler.BytecodeBuffer;
+import com.brew.compiler.Utilities;
+import com.brew.compiler.exceptions.CompilationException;
+import com.brew.vm.InstructionSet;
+
+/**
+ * This class is a node of the tree of a value a statement works out. Every node is typed by the number of
+ * bytes its value takes up, 1 for a byte, 4 for an int and 8 for a long, and knows how to emit the stack
+ * code that pushes it.
+ *
+ * Nodes never change once they are made, and two nodes that work out the same value the same way are
+ * equal, so a pass can look for the same value in different places with a hash map.
+ * @author Jonathan Force
+ */
+public final class Node {
+	
+	/** The kinds of node. */
+	public static final int
+		/** A constant, its value is {@link #value}. */
+		CONSTANT = 0,
+		/** A variable, {@link #id} in {@link #frame}. */
+		VARIABLE = 1,
+		/** An arithmetic {@link #operator} on two values of the node's size. */
+		ARITHMETIC = 2,
+		/** A comparison {@link #operator} on two values of the same size, whose value is a byte. */
+		COMPARISON = 3,
+		/** The value of its operand turned into a value of the node's size. */
+		CONVERT = 4,
+		/** A call of the function at {@link #function}, with its arguments as the operands. */
+		CALL = 5;
+	
+	public final int kind, size;
+	/** The value of a constant. */
+	public final long value;
+	/** The frame of a variable, and its id, which counts up from 0 like the unsigned byte it is stored as. */
+	public final byte frame;
+	public final int id;
+	/** The instruction of an arithmetic or comparison operator, like ADD. */
+	public final byte operator;
+	/** The block a call jumps to. */
+	public final Block function;
+	/** The values the node works on, in the order they are pushed. A comparison's left hand side is pushed
+	 * last, so it is the second. */
+	private final Node[] operands;
+	private final int hash;
+	
+	private Node(int kind, int size, long value, byte frame, int id, byte operator, Block function, Node ... operands) {
+		this.kind = kind;
+		this.size = size;
+		this.value = value;
+		this.frame = frame;
+		this.id = id;
+		this.operator = operator;
+		this.function = function;
+		this.operands = operands;
+		this.hash = ((((kind * 31 + size) * 31 + (int) (value ^ (value >>> 32))) * 31 + frame) * 31 + id) * 31
+				+ operator + Arrays.hashCode(operands) * 17 + System.identityHashCode(function);
+	}
+	
+	/** @return the constant of the size. */
+	public static Node constant(long value, int size) {
+		return new Node(CONSTANT, size, InstructionSet.wrap(value, size), (byte) 0, (byte) 0, (byte) 0, null);
+	}
+	
+	/** @return the variable of the size. */
+	public static Node variable(byte frame, byte id, int size) {
+		return new Node(VARIABLE, size, 0, frame, id & 0xFF, (byte) 0, null);
+	}
+	
+	/** @return the arithmetic operator on the values, which are both of the size. */
+	public static Node arithmetic(byte operator, int size, Node left, Node right) {
+		return new Node(ARITHMETIC, size, 0, (byte) 0, (byte) 0, operator, null, left, right);
+	}
+	
+	/** @return the comparison of the values, the right hand side first since it is pushed first. */
+	public static Node comparison(byte operator, Node right, Node left) {
+		return new Node(COMPARISON, InstructionSet.BYTE_SIZE, 0, (byte) 0, (byte) 0, operator, null, right, left);
+	}
+	
+	/** @return the value turned into a value of the size. */
+	public static Node convert(Node operand, int size) {
+		return new Node(CONVERT, size, 0, (byte) 0, (byte) 0, (byte) 0, null, operand);
+	}
+	
+	/** @return the call of the function, which returns a value of the size. */
+	public static Node call(Block function, int size, Node ... arguments) {
+		return new Node(CALL, size, 0, (byte) 0, (byte) 0, (byte) 0, function, arguments);
+	}
+	
+	/** @return the number of operands. */
+	public int operandCount() {
+		return operands.length;
+	}
+	
+	/** @return the n'th operand, in the order they are pushed. */
+	public Node operand(int n) {
+		return operands[n];
+	}
+	
+	/** @return the number of bytes of arguments a call passes. */
+	public int argumentSize() {
+		int size = 0;
+		for (Node argument : operands)
+			size += argument.size;
+		return size;
+	}
+	
+	/** @return true if the node or anything under it reads a byte of the variable. A call doesn't, since the
+	 * function it calls can't see the caller's frames. */
+	public boolean reads(Node variable) {
+		if (kind == VARIABLE)
+			return overlaps(variable);
+		for (Node operand : operands)
+			if (operand.reads(variable))
+				return true;
+		return false;
+	}
+	
+	/** @return true if both are variables and they share a byte of the same frame. */
+	public boolean overlaps(Node variable) {
+		return kind == VARIABLE && variable.kind == VARIABLE && frame == variable.frame
+				&& id < variable.id + variable.size && variable.id < id + size;
+	}
+	
+	/** @return true if the node or anything under it is the kind of node. */
+	public boolean contains(int kind) {
+		if (this.kind == kind)
+			return true;
+		for (Node operand : operands)
+			if (operand.contains(kind))
+				return true;
+		return false;
+	}
+	
+	/** @return true if working the value out can do more than push it : call a function, or divide, which
+	 * stops the program when it divides by 0. Such a value has to be worked out even if nobody wants it. */
+	public boolean hasEffects() {
+		if (kind == CALL || (kind == ARITHMETIC && operator == InstructionSet.DIVIDE))
+			return true;
+		for (Node operand : operands)
+			if (operand.hasEffects())
+				return true;
+		return false;
+	}
+	
+	/** @return the number of instructions it takes to push the value. */
+	public int cost() {
+		int cost = 1;
+		for (Node operand : operands)
+			cost += operand.cost();
+		return cost;
+	}
+	
+	/** @return the number of bytes of code it takes to push the value. */
+	public int length() {
+		int length;
+		switch (kind) {
+		case CONSTANT : length = 1 + size; break;
+		case VARIABLE : length = 3; break;
+		case ARITHMETIC : length = (size == InstructionSet.BYTE_SIZE)? 1 : 2; break;
+		case COMPARISON : length = (operands[0].size == InstructionSet.BYTE_SIZE)? 1 : 2; break;
+		case CONVERT : length = 3; break;
+		default : length = 5;
+		}
+		for (Node operand : operands)
+			length += operand.length();
+		return length;
+	}
+	
+	/** @return the node with every node equal to the one replaced by the other, or this node if there are none. */
+	public Node replace(Node from, Node to) {
+		if (equals(from))
+			return to;
+		Node[] replaced = null;
+		for (int i = 0; i < operands.length; i ++) {
+			Node operand = operands[i].replace(from, to);
+			if (operand != operands[i]) {
+				if (replaced == null)
+					replaced = operands.clone();
+				replaced[i] = operand;
+			}
+		}
+		return (replaced == null)? this : with(replaced);
+	}
+	
+	/** @return the node with its n'th operand replaced by the other, and the rest as they are. */
+	public Node withOperand(int n, Node operand) {
+		Node[] operands = this.operands.clone();
+		operands[n] = operand;
+		return with(operands);
+	}
+	
+	/** @return the node with everything that only works on constants worked out at compile time, just like
+	 * the interpreter would work it out, or this node if there is nothing to work out. Dividing by 0 is
+	 * left for the program to fail on. */
+	public Node fold() {
+		Node[] folded = null;
+		for (int i = 0; i < operands.length; i ++) {
+			Node operand = operands[i].fold();
+			if (operand != operands[i]) {
+				if (folded == null)
+					folded = operands.clone();
+				folded[i] = operand;
+			}
+		}
+		Node node = (folded == null)? this : with(folded);
+		if (kind == VARIABLE || kind == CONSTANT || kind == CALL)
+			return node;
+		for (Node operand : node.operands)
+			if (operand.kind != CONSTANT)
+				return node;
+		
+		if (kind == CONVERT)
+			return constant(node.operands[0].value, size);
+		long a = node.operands[0].value, b = node.operands[1].value;
+		if (kind == COMPARISON)
+			// The left hand side is on top.
+			return constant(compare(operator, b, a)? 1 : 0, size);
+		if (operator == InstructionSet.DIVIDE && b == 0)
+			return node;
+		return constant(arithmetic(operator, a, b), size);
+	}
+	
+	/** Emit the code that pushes the value to the end of the buffer. The operands are pushed first, in order.
+	 * @param addresses The index each block starts at in the code being emitted, by its index, for calls. */
+	void emit(int[] addresses, BytecodeBuffer out) {
+		for (Node operand : operands)
+			operand.emit(addresses, out);
+		switch (kind) {
+		case CONSTANT :
+			byte[] code = new byte[1 + size];
+			code[0] = (size == InstructionSet.BYTE_SIZE)? InstructionSet.PUSH :
+					(size == InstructionSet.INT_SIZE)? InstructionSet.PUSH_INT : InstructionSet.PUSH_LONG;
+			InstructionSet.write(code, 1, size, value);
+			out.emit(code);
+			break;
+		case VARIABLE :
+			out.emit(Utilities.loadFor(size), frame, (byte) id);
+			break;
+		case ARITHMETIC :
+			emitOperator(size, InstructionSet.INT_MATH, InstructionSet.LONG_MATH, out);
+			break;
+		case COMPARISON :
+			emitOperator(operands[0].size, InstructionSet.INT_COMPARE, InstructionSet.LONG_COMPARE, out);
+			break;
+		case CONVERT :
+			out.emit(InstructionSet.CONVERT, (byte) operands[0].size, (byte) size);
+			break;
+		case CALL :
+			int target = addresses[function.index()];
+			if (target > 0xFFFF)
+				throw new CompilationException("Unfortunately, at this time Brew only supports functions in the first " + 0xFFFF + " bytes of code.");
+			out.emit(InstructionSet.CALL, (byte) (target >> 8), (byte) target);
+			out.emit((byte) argumentSize());
+			out.emit((byte) size);
+			break;
+		}
+	}
+	
+	/** Emit the operator for values of the size, wide ones with the instruction for their size. */
+	private void emitOperator(int size, byte intInstruction, byte longInstruction, BytecodeBuffer out) {
+		if (size == InstructionSet.BYTE_SIZE)
+			out.emit(operator);
+		else
+			out.emit((size == InstructionSet.INT_SIZE)? intInstruction : longInstruction, operator);
+	}
+	
+	/** @return a node just like this one with other operands. */
+	private Node with(Node[] operands) {
+		return new Node(kind, size, value, frame, id, operator, function, operands);
+	}
+	
+	/** @return the result of the arithmetic operator, wrapped around to the size of the node. */
+	private static long arithmetic(byte operator, long a, long b) {
+		switch (operator) {
+		case InstructionSet.ADD : return a + b;
+		case InstructionSet.SUBTRACT : return a - b;
+		case InstructionSet.DIVIDE : return a / b;
+		default : return a * b;
+		}
+	}
+	
+	/** @return the result of the comparison with a on the left and b on the right. */
+	private static boolean compare(byte comparison, long a, long b) {
+		switch (comparison) {
+		case InstructionSet.GREATER_THAN : return a > b;
+		case InstructionSet.GREATER_THAN_EQUAL : return a >= b;
+		case InstructionSet.LESS_THAN : return a < b;
+		case InstructionSet.LESS_THAN_EQUAL : return a <= b;
+		default : return a == b;
+		}
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (o == this)
+			return true;
+		if (!(o instanceof Node))
+			return false;
+		Node n = (Node) o;
+		return hash == n.hash && kind == n.kind && size == n.size && value == n.value && frame == n.frame
+				&& id == n.id && operator == n.operator && function == n.function && Arrays.equals(operands, n.operands);
+	}
+	
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+	
+	@Override
+	public String toString() {
+		switch (kind) {
+		case CONSTANT : return Long.toString(value);
+		case VARIABLE : return "v" + frame + "." + id;
+		case CONVERT : return "(" + size + ")" + operands[0];
+		case CALL : return "call" + Arrays.toString(operands);
+		case COMPARISON : return "(" + operands[1] + " " + operator + " " + operands[0] + ")";
+		default : return "(" + operands[0] + " " + operator + " " + operands[1] + ")";
+		}
+	}
+}
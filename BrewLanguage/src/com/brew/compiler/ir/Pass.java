@@ -0,0 +1,18 @@
+package com.brew.compiler.ir;
+
+/**
+ * A pass rewrites a {@link Graph} into one that does the same thing more cheaply. The compiler runs its
+ * passes one after the other, and runs them all again for as long as one of them changed something, so a
+ * pass can leave work it opens up for another pass to do.
+ *
+ * A program has to work out exactly what it did before a pass, except that the variables of the program's
+ * own frame are what the program leaves behind when it is over, so the last value stored in each of them
+ * has to stay.
+ * @author Jonathan Force
+ */
+public interface Pass {
+	
+	/** Rewrite the graph.
+	 * @return true if anything changed. */
+	boolean run(Graph graph);
+}
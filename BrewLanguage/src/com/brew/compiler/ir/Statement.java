@@ -0,0 +1,123 @@
+package com.brew.compiler.ir;
+
+/**
+ * This class is a single statement of a {@link Block}. It starts and ends with nothing on the stack, so the
+ * statements of a block can be taken out, put in or rewritten one at a time. A jump, an IF or a RETURN can
+ * only be the last statement of its block.
+ *
+ * Statements never change once they are made. A pass that wants a different statement puts a new one in
+ * the block's place for it.
+ * @author Jonathan Force
+ */
+public final class Statement {
+	
+	/** The kinds of statement. */
+	public static final int
+		/** Work out {@link #value} and pop it into {@link #variable}. */
+		STORE = 0,
+		/** Work out {@link #value}, a byte, and jump to {@link #target} if it is 0. */
+		IF = 1,
+		/** Jump to {@link #target}. */
+		GOTO = 2,
+		/** Work out {@link #value} and return it from the function. */
+		RETURN = 3,
+		/** Push a frame of {@link #frameSize} bytes. */
+		PUSH_FRAME = 4,
+		/** Pop the last frame pushed. */
+		POP_FRAME = 5,
+		/** Print the stack. */
+		DEBUG = 6;
+	
+	public final int kind;
+	/** The value the statement works out, or null if it doesn't work one out. */
+	public final Node value;
+	/** The variable a store pops its value into. */
+	public final Node variable;
+	/** The block a jump or an IF goes to. */
+	public final Block target;
+	/** The number of bytes of the frame a PUSH_FRAME pushes. */
+	public final int frameSize;
+	/** True for a jump that has to stay a GOTO_WIDE, like the jump over a function. */
+	public final boolean wide;
+	/** The index of the instruction in the original code the statement ended with, used to follow where each
+	 * line of source went. A statement a pass made has the end of the statement it was made for. */
+	public final int end;
+	
+	private Statement(int kind, Node value, Node variable, Block target, int frameSize, boolean wide, int end) {
+		this.kind = kind;
+		this.value = value;
+		this.variable = variable;
+		this.target = target;
+		this.frameSize = frameSize;
+		this.wide = wide;
+		this.end = end;
+	}
+	
+	/** @return the statement that pops the value into the variable. */
+	public static Statement store(Node variable, Node value, int end) {
+		return new Statement(STORE, value, variable, null, 0, false, end);
+	}
+	
+	/** @return the statement that jumps to the target if the condition is 0. */
+	public static Statement jumpUnless(Node condition, Block target, int end) {
+		return new Statement(IF, condition, null, target, 0, false, end);
+	}
+	
+	/** @return the statement that always jumps to the target. */
+	public static Statement jump(Block target, boolean wide, int end) {
+		return new Statement(GOTO, null, null, target, 0, wide, end);
+	}
+	
+	/** @return the statement that returns the value. */
+	public static Statement returning(Node value, int end) {
+		return new Statement(RETURN, value, null, null, 0, false, end);
+	}
+	
+	/** @return the statement that pushes a frame of the size. */
+	public static Statement pushFrame(int frameSize, int end) {
+		return new Statement(PUSH_FRAME, null, null, null, frameSize, false, end);
+	}
+	
+	/** @return the statement that pops a frame. */
+	public static Statement popFrame(int end) {
+		return new Statement(POP_FRAME, null, null, null, 0, false, end);
+	}
+	
+	/** @return the statement that prints the stack. */
+	public static Statement debug(int end) {
+		return new Statement(DEBUG, null, null, null, 0, false, end);
+	}
+	
+	/** @return the same statement working out another value. */
+	public Statement withValue(Node value) {
+		return new Statement(kind, value, variable, target, frameSize, wide, end);
+	}
+	
+	/** @return the same jump or IF, going to another block. */
+	public Statement withTarget(Block target) {
+		return new Statement(kind, value, variable, target, frameSize, wide, end);
+	}
+	
+	/** @return true if the statement is a jump, an IF or a RETURN, which end a block. */
+	public boolean isBranch() {
+		return kind == IF || kind == GOTO || kind == RETURN;
+	}
+	
+	/** @return true if the statement pushes or pops a frame, which changes what the frame numbers mean. */
+	public boolean isFrame() {
+		return kind == PUSH_FRAME || kind == POP_FRAME;
+	}
+	
+	@Override
+	public String toString() {
+		switch (kind) {
+		case STORE : return variable + " = " + value;
+		case IF : return "if " + value + " else goto " + target.index();
+		case GOTO : return "goto " + target.index();
+		case RETURN : return "return " + value;
+		case PUSH_FRAME : return "push frame " + frameSize;
+		case POP_FRAME : return "pop frame";
+		default : return "debug";
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package com.brew.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.brew.compiler.BatchCompiler;
+import com.brew.compiler.BatchCompiler.FileResult;
+import com.brew.compiler.Compiler;
+import com.brew.compiler.ProgramFile;
+
+public class BatchCompilerTest {
+	
+	@Test
+	public void test() throws Exception {
+		Path root = Files.createTempDirectory("brew");
+		BatchCompiler compiler = new BatchCompiler(Compiler.DEFAULT_OPTIMIZATION, 4);
+		try {
+			write(root.resolve("a.brew"), "byte x = 5\nx = x * 2\n");
+			Files.createDirectories(root.resolve("nested/deeper"));
+			write(root.resolve("nested/b.brew"), "byte y = 1\r\nif (y > 0) {\r\n\ty = 7\r\n}\r\n");
+			write(root.resolve("nested/deeper/c.brew"), "byte z = 3");
+			write(root.resolve("nested/broken.brew"), "byte x = 1\nbyte x = 2\n");
+			write(root.resolve("nested/notes.txt"), "Not a program.");
+			
+			List<FileResult> results = compiler.compile(root);
+			assertEquals("Failed to find every source file.", 4, results.size());
+			// The results are in the order of their paths : a, nested/b, nested/broken, nested/deeper/c.
+			assertEquals("Failed to compile a file.", FileResult.Status.COMPILED, results.get(0).status());
+			assertEquals("Failed to compile a file.", FileResult.Status.COMPILED, results.get(1).status());
+			assertEquals("Compiled a broken file.", FileResult.Status.FAILED, results.get(2).status());
+			assertEquals("Failed to report the line of an error.", 2, results.get(2).line());
+			assertEquals("Failed to compile a file.", FileResult.Status.COMPILED, results.get(3).status());
+			
+			Path output = BatchCompiler.outputOf(root.resolve("nested/b.brew"));
+			assertEquals("Wrote the program to the wrong place.", root.resolve("nested/b" + ProgramFile.EXTENSION), output);
+			assertArrayEquals("Compiled a file differently than the compiler does.",
+					new Compiler().compile("byte y = 1", "if (y > 0) {", "	y = 7", "}"), ProgramFile.map(output).bytecode());
+			
+			// Nothing changed, so nothing is compiled again.
+			for (FileResult result : compiler.compile(root))
+				if (result.status() != FileResult.Status.FAILED)
+					assertEquals("Compiled a file that hadn't changed.", FileResult.Status.SKIPPED, result.status());
+			
+			// Until a file does change.
+			write(root.resolve("a.brew"), "byte x = 6\nx = x * 2\n");
+			assertEquals("Skipped a file that changed.", FileResult.Status.COMPILED, compiler.compile(root).get(0).status());
+			assertEquals("Skipped a file that changed.", FileResult.Status.SKIPPED, compiler.compile(root).get(0).status());
+		} finally {
+			compiler.shutdown();
+			delete(root);
+		}
+	}
+	
+	@Test
+	public void optimizationTest() throws Exception {
+		// A file compiled at another level is compiled again.
+		Path root = Files.createTempDirectory("brew");
+		BatchCompiler optimizing = new BatchCompiler(Compiler.SUPERINSTRUCTIONS, 1);
+		BatchCompiler plain = new BatchCompiler(Compiler.NO_OPTIMIZATION, 1);
+		try {
+			write(root.resolve("a.brew"), "byte x = 5\nx = x + 1\n");
+			assertEquals("Failed to compile a file.", FileResult.Status.COMPILED, optimizing.compile(root).get(0).status());
+			assertEquals("Kept a file compiled at another level.", FileResult.Status.COMPILED, plain.compile(root).get(0).status());
+			assertEquals("Wrote the wrong level.", Compiler.NO_OPTIMIZATION, ProgramFile.map(root.resolve("a.brewc")).optimizationLevel());
+		} finally {
+			optimizing.shutdown();
+			plain.shutdown();
+			delete(root);
+		}
+	}
+	
+	@Test
+	public void crashTest() throws Exception {
+		// A file that brings the compiler down, rather than failing to compile, only fails itself.
+		Path root = Files.createTempDirectory("brew");
+		BatchCompiler compiler = new BatchCompiler(Compiler.DEFAULT_OPTIMIZATION, 2);
+		try {
+			StringBuilder deep = new StringBuilder();
+			for (int i = 0; i < 100000; i ++)
+				deep.append("if (1 > 0) {\n");
+			deep.append("byte y = 1\n");
+			for (int i = 0; i < 100000; i ++)
+				deep.append("}\n");
+			write(root.resolve("a.brew"), "byte x = 5\n");
+			write(root.resolve("deep.brew"), deep.toString());
+			
+			List<FileResult> results = compiler.compile(root);
+			assertEquals("Lost a file when another brought the compiler down.", 2, results.size());
+			assertEquals("Failed to compile a file.", FileResult.Status.COMPILED, results.get(0).status());
+			assertEquals("Compiled a file too deep to compile.", FileResult.Status.FAILED, results.get(1).status());
+			assertNotNull("Failed to say what went wrong.", results.get(1).error());
+		} finally {
+			compiler.shutdown();
+			delete(root);
+		}
+	}
+	
+	private static void write(Path path, String source) throws IOException {
+		Files.write(path, source.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private static void delete(Path root) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+				Files.delete(directory);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
@@ -0,0 +1,160 @@
+package com.brew.tests;
+
+import static org.junit.Assert.*;
+import static com.brew.tests.Programs.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.brew.compiler.Compiler;
+import com.brew.compiler.Peephole;
+import com.brew.vm.ExecutionBudget;
+import com.brew.vm.ExecutionResult;
+import com.brew.vm.InstructionSet;
+import com.brew.vm.ClosureCompiler;
+import com.brew.vm.VerifiedProgram;
+import com.brew.vm.Verifier;
+import com.brew.vm.VirtualMachine;
+
+public class ClosureInterpreterTest {
+	
+	@Test
+	public void test() {
+		// Every program must leave exactly the same stack and variables on both engines.
+		sameOnBothEngines(VirtualMachine.Engine.CLOSURE, NESTED_IFS);
+		sameOnBothEngines(VirtualMachine.Engine.CLOSURE, Peephole.optimize(NESTED_IFS));
+		
+		// The doubler leaves its result on the stack.
+		sameOnBothEngines(VirtualMachine.Engine.CLOSURE, new byte[] {
+				InstructionSet.PUSH, 1,
+				InstructionSet.DUPLICATE,
+				InstructionSet.ADD,
+				InstructionSet.DUPLICATE,
+				InstructionSet.PUSH, 32,
+				InstructionSet.GREATER_THAN,
+				InstructionSet.IF, 2,
+				InstructionSet.GOTO, 2,
+		});
+		
+		// A value pulled from a variable must not change when the variable does.
+		sameOnBothEngines(VirtualMachine.Engine.CLOSURE, new byte[] {
+				InstructionSet.PUSH_FRAME, 1,
+				InstructionSet.PUSH, 3,
+				InstructionSet.PUSH_VAR, 0, 0,
+				InstructionSet.PULL_VAR, 0, 0,
+				InstructionSet.DUPLICATE,
+				InstructionSet.PUSH, 9,
+				InstructionSet.PUSH_VAR, 0, 0,
+				InstructionSet.PULL_VAR, 0, 0,
+				InstructionSet.ADD,
+				InstructionSet.INCREMENT_VAR, 0, 0, 1,
+				InstructionSet.PULL_VAR, 0, 0,
+		});
+		
+		// Nor when its frame is popped and another takes its place.
+		sameOnBothEngines(VirtualMachine.Engine.CLOSURE, new byte[] {
+				InstructionSet.PUSH_FRAME, 1,
+				InstructionSet.PUSH_FRAME, 1,
+				InstructionSet.PUSH, 4,
+				InstructionSet.PUSH_VAR, 1, 0,
+				InstructionSet.PULL_VAR, 1, 0,
+				InstructionSet.POP_FRAME,
+				InstructionSet.PUSH_FRAME, 1,
+				InstructionSet.PULL_VAR, 1, 0,
+				InstructionSet.ADD,
+		});
+		
+		// A value that is both stored and kept on the stack, and a comparison that isn't followed by an IF.
+		sameOnBothEngines(VirtualMachine.Engine.CLOSURE, new byte[] {
+				InstructionSet.PUSH_FRAME, 2,
+				InstructionSet.PUSH, 7,
+				InstructionSet.PUSH, 5,
+				InstructionSet.SUBTRACT,
+				InstructionSet.DUPLICATE,
+				InstructionSet.PUSH_VAR, 0, 0,
+				InstructionSet.PULL_VAR, 0, 0,
+				InstructionSet.PUSH, 100,
+				InstructionSet.MULTIPLY,
+				InstructionSet.LESS_THAN,
+				InstructionSet.PUSH_VAR, 0, 1,
+		});
+		
+		// And whatever the compiler produces. The last POP_FRAME is left off so the variables can be compared.
+		Compiler compiler = new Compiler();
+		byte[] compiled = compiler.compile(
+				"byte x = 5",
+				"byte y = x * x - 3",
+				"if (y > x) {",
+				"	byte t = y / 2",
+				"	x = t + x",
+				"}",
+				"if (x == 16) {",
+				"	y = 0 - y",
+				"}");
+		sameOnBothEngines(VirtualMachine.Engine.CLOSURE, Arrays.copyOf(compiled, compiled.length - 1));
+	}
+	
+	@Test
+	public void structureTest() {
+		// The two inner IFs become if statements. That leaves a block before the loop, the loop, and the GOTO
+		// that the loop's IF jumps over.
+		VerifiedProgram program = Verifier.verify(NESTED_IFS);
+		assertEquals("The ifs weren't turned into if statements.", 3, ClosureCompiler.compile(program).blockCount());
+		
+		// The same number of instructions are counted as on the stack machine.
+		VirtualMachine stack = new VirtualMachine(), closure = new VirtualMachine();
+		closure.setEngine(VirtualMachine.Engine.CLOSURE);
+		assertEquals("Counted a different number of instructions.",
+				stack.run(program).executedInstructions(), closure.run(program).executedInstructions());
+		
+		// A program without jumps is a single block, however many ifs it has.
+		byte[] compiled = new Compiler().compile(
+				"byte x = 5",
+				"if (x > 2) {",
+				"	x = x + 1",
+				"}",
+				"if (x == 6) {",
+				"	x = x * 2",
+				"}");
+		assertEquals("The ifs weren't turned into if statements.", 1, ClosureCompiler.compile(Verifier.verify(compiled)).blockCount());
+	}
+	
+	@Test
+	public void invalidTruthValueTest() {
+		VirtualMachine vm = new VirtualMachine();
+		vm.setEngine(VirtualMachine.Engine.CLOSURE);
+		try {
+			vm.run(Verifier.verify(new byte[] { InstructionSet.PUSH, 2, InstructionSet.IF, 0 }));
+			fail("Accepted 2 as a truth value.");
+		} catch (RuntimeException e) {
+			assertEquals("Invalid truth value : 2", e.getMessage());
+		}
+	}
+	
+	@Test
+	public void budgetTest() {
+		VirtualMachine vm = new VirtualMachine();
+		vm.setEngine(VirtualMachine.Engine.CLOSURE);
+		// This program counts forever on the stack.
+		ExecutionResult result = vm.run(Verifier.verify(new byte[] {
+				InstructionSet.PUSH, 0,
+				InstructionSet.PUSH, 1,
+				InstructionSet.ADD,
+				InstructionSet.GOTO, 2,
+		}), ExecutionBudget.instructions(1000));
+		assertTrue("Failed to stop a program that exhausted its instruction budget.", result.isBudgetExhausted());
+		assertEquals("Stopped at the wrong instruction.", 5, result.pc());
+		// The budget is only checked on the way back round the loop, so it is overshot by as much as the stack machine does.
+		assertEquals("Counted a different number of instructions.", 1003, result.executedInstructions());
+		assertEquals("Lost the stack when the program was stopped.", 1, vm.stack().size());
+		assertEquals("Lost the stack when the program was stopped.", (byte) ((result.executedInstructions() - 1) / 3), vm.stack().pop());
+	}
+	
+	@Test(expected = ArithmeticException.class)
+	public void divideByZeroTest() {
+		VirtualMachine vm = new VirtualMachine();
+		vm.setEngine(VirtualMachine.Engine.CLOSURE);
+		vm.run(Verifier.verify(new byte[] { InstructionSet.PUSH, 1, InstructionSet.PUSH, 0, InstructionSet.DIVIDE }));
+	}
+}
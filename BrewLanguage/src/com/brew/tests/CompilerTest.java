@@ -1,13 +1,20 @@
 package com.brew.tests;
 
 import static org.junit.Assert.*;
+import static com.brew.tests.Programs.*;
 
 import org.junit.Test;
 
+import com.brew.compiler.Lexer;
+import com.brew.compiler.Peephole;
 import com.brew.compiler.Utilities;
 import com.brew.compiler.exceptions.CompilationException;
 import com.brew.compiler.Compiler;
+import com.brew.vm.ExecutionResult;
 import com.brew.vm.InstructionSet;
+import com.brew.vm.Interpreter;
+import com.brew.vm.Verifier;
+import com.brew.vm.VirtualMachine;
 
 public class CompilerTest {
 	
@@ -77,6 +84,207 @@ public class CompilerTest {
 				postfix[4].equals("+"));
 	}
 	
+	@Test
+	public void compileTest() {
+		Compiler compiler = new Compiler();
+		compiler.setOptimizationLevel(Compiler.FOLD_CONSTANTS);
+		byte[] output = compiler.compile(
+				"byte x = 0",
+				"if (x == 0) {",
+				"	byte t = 50",
+				"	x = t",
+				"}",
+				"x = x + 1");
+		byte[] correctOutput = new byte[] {
+				InstructionSet.PUSH_FRAME, 1,
+				InstructionSet.PUSH, 0,
+				InstructionSet.PUSH_VAR, 0, 0,
+				
+				InstructionSet.PUSH, 0,
+				InstructionSet.PULL_VAR, 0, 0,
+				InstructionSet.EQUAL_TO,
+				InstructionSet.IF, 14,
+				
+				InstructionSet.PUSH_FRAME, 1,
+				InstructionSet.PUSH, 50,
+				InstructionSet.PUSH_VAR, 1, 0,
+				InstructionSet.PULL_VAR, 1, 0,
+				InstructionSet.PUSH_VAR, 0, 0,
+				InstructionSet.POP_FRAME,
+				
+				InstructionSet.PULL_VAR, 0, 0,
+				InstructionSet.PUSH, 1,
+				InstructionSet.ADD,
+				InstructionSet.PUSH_VAR, 0, 0,
+				InstructionSet.POP_FRAME
+		};
+		assertArrayEquals("Failed to compile a program with an if statement.", correctOutput, output);
+	}
+	
+	@Test
+	public void largeProgramTest() {
+		// A long program must compile, and its if statements must still jump over exactly their bodies.
+		String[] source = new String[3 + 4 * 5000];
+		source[0] = "byte a = 0";
+		source[1] = "byte b = 0";
+		source[2] = "byte c = 0";
+		for (int i = 3; i < source.length; i += 4) {
+			source[i] = "a = a + 1";
+			source[i + 1] = "if (a > 100) {";
+			source[i + 2] = "	a = 0";
+			source[i + 3] = "}";
+		}
+		Compiler compiler = new Compiler();
+		compiler.setOptimizationLevel(Compiler.FOLD_CONSTANTS);
+		byte[] output = compiler.compile(source);
+		assertEquals("Compiled a long program to the wrong length.", 2 + 3 * 5 + 5000 * (9 + 8 + 2 + 5 + 1) + 1, output.length);
+	}
+	
+	@Test
+	public void lexerTest() {
+		Lexer lexer = new Lexer();
+		assertEquals("Lexed the wrong number of tokens.", 7, lexer.tokenize("if (x>=- 5){"));
+		int[] kinds = new int[] {
+				Lexer.IDENTIFIER, Lexer.LEFT_PARENTHESIS, Lexer.IDENTIFIER, Lexer.GREATER_THAN_EQUAL,
+				Lexer.NUMBER, Lexer.RIGHT_PARENTHESIS, Lexer.LEFT_BRACE };
+		for (int i = 0; i < kinds.length; i ++)
+			assertEquals("Lexed token " + i + " as the wrong kind.", kinds[i], lexer.kind(i));
+		assertEquals("Failed to lex a negative number.", -5, lexer.value(4));
+		assertEquals("Lexed a token at the wrong column.", 8, lexer.column(4));
+		
+		// A - after a number or a variable is always a subtraction.
+		lexer.tokenize("x-1");
+		assertEquals("Lexed a subtraction as a negative sign.", Lexer.MINUS, lexer.kind(1));
+		lexer.tokenize("return -1");
+		assertEquals("Lexed the negative sign of a returned number as a subtraction.", -1, lexer.value(1));
+		
+		// Errors must say where the problem is.
+		try {
+			new Compiler().compile("byte x = 1", "byte y = x + z");
+			fail("Compiled a program with an unknown variable.");
+		} catch (CompilationException e) {
+			assertEquals("Reported an error on the wrong line.", 2, e.line());
+			assertEquals("Reported an error in the wrong column.", 14, e.column());
+		}
+	}
+	
+	@Test
+	public void foldTest() {
+		Compiler compiler = new Compiler();
+		compiler.compileAssignmentStatement("byte x = 0");
+		
+		assertArrayEquals("Failed to fold a constant expression.",
+				new byte[] { InstructionSet.PUSH, -16 }, compiler.compileExpression("4 * -4"));
+		assertArrayEquals("Failed to wrap a folded expression around like the VM does.",
+				new byte[] { InstructionSet.PUSH, -56 }, compiler.compileExpression("(50 + 50) * 2"));
+		assertArrayEquals("Failed to simplify x * 1 + 0.",
+				new byte[] { InstructionSet.PULL_VAR, 0, 0 }, compiler.compileExpression("x * (3 - 2) + 0"));
+		assertArrayEquals("Failed to simplify x * 0.",
+				new byte[] { InstructionSet.PUSH, 0 }, compiler.compileExpression("2 + (x - 1) * 0 - 2"));
+		assertArrayEquals("Put a constant on the wrong side of a subtraction.",
+				new byte[] { InstructionSet.PUSH, 10, InstructionSet.PULL_VAR, 0, 0, InstructionSet.SUBTRACT },
+				compiler.compileExpression("5 * 2 - x"));
+		assertArrayEquals("Folded a division by zero.",
+				new byte[] { InstructionSet.PUSH, 1, InstructionSet.PUSH, 0, InstructionSet.DIVIDE },
+				compiler.compileExpression("1 / 0"));
+		
+		// An if statement that always runs loses its IF, one that never runs disappears.
+		String[] ifs = new String[] {
+				"if (1 == 1) {",
+				"	DEBUG",
+				"}",
+				"if (2 * 3 < 6) {",
+				"	DEBUG",
+				"}" };
+		Compiler folding = new Compiler();
+		folding.setOptimizationLevel(Compiler.FOLD_CONSTANTS);
+		assertArrayEquals("Failed to remove if statements with constant conditions.",
+				new byte[] {
+						InstructionSet.PUSH_FRAME, 0,
+						InstructionSet.PUSH_FRAME, 0,
+						InstructionSet.DEBUG_STACK,
+						InstructionSet.POP_FRAME,
+						InstructionSet.POP_FRAME },
+				folding.compile(ifs));
+		// From INLINE up its body doesn't get a frame either.
+		assertArrayEquals("Failed to remove if statements with constant conditions.",
+				new byte[] {
+						InstructionSet.PUSH_FRAME, 0,
+						InstructionSet.DEBUG_STACK,
+						InstructionSet.POP_FRAME },
+				new Compiler().compile(ifs));
+		
+		// Folded and unfolded programs must leave exactly the same values behind.
+		String[] expressions = new String[] {
+				"x * 0 - 3", "100 * 3 + x", "-128 / -1 + x", "(x - 0) / 1 * 1", "0 + x * 5 - (7 - 7) * x",
+				"1 - x", "120 / x", "(x + 60) * 2", "0 - x" };
+		for (String expression : expressions) {
+			byte[] results = new byte[2];
+			for (int level = Compiler.NO_OPTIMIZATION; level <= Compiler.FOLD_CONSTANTS; level ++) {
+				Compiler c = new Compiler();
+				c.setOptimizationLevel(level);
+				VirtualMachine vm = new VirtualMachine();
+				vm.interpreter().interpret(c.compose(
+						new byte[] { InstructionSet.PUSH_FRAME, 2 },
+						c.compileAssignmentStatement("byte x = 7"),
+						c.compileAssignmentStatement("byte y = " + expression)));
+				results[level] = vm.interpreter().getRuntime().pullVar((byte) 0, (byte) 1);
+			}
+			assertEquals("Folding changed the value of " + expression, results[0], results[1]);
+		}
+	}
+	
+	@Test
+	public void peepholeTest() {
+		Compiler compiler = new Compiler();
+		compiler.setOptimizationLevel(Compiler.SUPERINSTRUCTIONS);
+		byte[] output = compiler.compile(
+				"byte x = 0",
+				"byte y = x + x",
+				"if (x == 0) {",
+				"	x = x - 1",
+				"}",
+				"y = y * 2 + 3");
+		byte[] correctOutput = new byte[] {
+				InstructionSet.PUSH_FRAME, 2,
+				InstructionSet.PUSH, 0,
+				InstructionSet.PUSH_VAR, 0, 0,
+				InstructionSet.PULL_VARS, 0, 0, 0, 0,
+				InstructionSet.ADD,
+				InstructionSet.PUSH_VAR, 0, 1,
+				
+				InstructionSet.IF_VAR, 0, 0, InstructionSet.EQUAL_TO, 0, 7,
+				InstructionSet.PUSH_FRAME, 0,
+				InstructionSet.INCREMENT_VAR, 0, 0, -1,
+				InstructionSet.POP_FRAME,
+				
+				InstructionSet.PULL_VAR, 0, 1,
+				InstructionSet.PUSH, 2,
+				InstructionSet.MULTIPLY,
+				InstructionSet.ADD_CONSTANT, 3,
+				InstructionSet.PUSH_VAR, 0, 1,
+				InstructionSet.POP_FRAME
+		};
+		assertArrayEquals("Failed to replace sequences with superinstructions.", correctOutput, output);
+		
+		// Jumps must follow the instructions they pointed at, backwards ones included. This loop counts x
+		// up to 100 and counts in y how many times x was over 50 and under 75.
+		byte[] optimized = Peephole.optimize(NESTED_IFS);
+		assertTrue("Failed to shorten the loop.", optimized.length < NESTED_IFS.length);
+		for (Interpreter.Dispatch dispatch : Interpreter.Dispatch.values()) {
+			VirtualMachine vm = new VirtualMachine();
+			vm.interpreter().setDispatch(dispatch);
+			ExecutionResult result = vm.interpreter().interpret(optimized);
+			assertEquals("Failed the optimized loop with " + dispatch + ".", 100, vm.interpreter().getRuntime().pullVar((byte) 0, (byte) 0));
+			assertEquals("Failed the optimized loop with " + dispatch + ".", 24, vm.interpreter().getRuntime().pullVar((byte) 0, (byte) 1));
+			// Each time round there are 3 superinstructions and a GOTO, plus one more for each if that is true.
+			assertEquals("Executed the wrong number of instructions.", 1 + 100 * 3 + 99 + 50 + 24, result.executedInstructions());
+		}
+		VirtualMachine vm = new VirtualMachine();
+		vm.interpreter().interpret(Verifier.verify(optimized));
+		assertEquals("Failed the verified optimized loop.", 24, vm.interpreter().getRuntime().pullVar((byte) 0, (byte) 1));
+	}
+	
 	@Test(expected = CompilationException.class)
 	public void errorTestA() {
 		// Test that this will not compile.
@@ -0,0 +1,147 @@
+package com.brew.tests;
+
+import static org.junit.Assert.*;
+import static com.brew.tests.Programs.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.brew.vm.ExecutionBudget;
+import com.brew.vm.ExecutionResult;
+import com.brew.vm.ExecutionService;
+import com.brew.vm.InstructionSet;
+import com.brew.vm.JobResult;
+import com.brew.vm.Verifier;
+import com.brew.vm.VirtualMachine;
+import com.brew.vm.exceptions.VerificationException;
+
+public class ExecutionServiceTest {
+	
+	/** Counts x up forever. */
+	private static final byte[] FOREVER = new byte[] {
+			InstructionSet.PUSH_FRAME, 1,
+			InstructionSet.PULL_VAR, 0, 0,
+			InstructionSet.PUSH, 1,
+			InstructionSet.ADD,
+			InstructionSet.PUSH_VAR, 0, 0,
+			InstructionSet.GOTO, 2,
+	};
+	
+	@Test
+	public void test() throws Exception {
+		for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+			ExecutionService service = new ExecutionService(engine, 4);
+			try {
+				List<CompletableFuture<JobResult>> jobs = new ArrayList<CompletableFuture<JobResult>>();
+				for (int i = 0; i < 200; i ++)
+					jobs.add(service.submit(NESTED_IFS_RESULT));
+				for (CompletableFuture<JobResult> job : jobs) {
+					JobResult result = job.get(10, TimeUnit.SECONDS);
+					assertTrue("Failed to complete a job on the " + engine + " engine.", result.result().isCompleted());
+					assertEquals("Failed to keep the stack of a job.", 1, result.stackSize());
+					assertEquals("Failed to keep the stack of a job.", 24, result.top());
+					assertEquals("Failed to keep the frames of a job.", 1, result.frameCount());
+					assertEquals("Failed to keep the variables of a job.", 100, result.variable(0, 0));
+					assertEquals("Failed to keep the variables of a job.", 24, result.variable(0, 1));
+				}
+			} finally {
+				service.shutdown();
+			}
+			assertTrue("Failed to finish every job.", service.awaitTermination(10, TimeUnit.SECONDS));
+		}
+	}
+	
+	@Test
+	public void budgetTest() throws Exception {
+		ExecutionService service = new ExecutionService(2);
+		try {
+			JobResult result = service.submit(FOREVER, ExecutionBudget.instructions(1000)).get(10, TimeUnit.SECONDS);
+			assertTrue("Failed to stop a job at its budget.", result.result().isBudgetExhausted());
+			assertEquals("Stopped a job at the wrong instruction.", 11, result.result().pc());
+		} finally {
+			service.shutdown();
+		}
+	}
+	
+	@Test
+	public void cancelTest() throws Exception {
+		// With one job at a time, the next job only runs once the cancelled one has really stopped.
+		ExecutionService service = new ExecutionService(1);
+		try {
+			CompletableFuture<JobResult> forever = service.submit(FOREVER);
+			CompletableFuture<JobResult> next = service.submit(NESTED_IFS_RESULT);
+			Thread.sleep(50);
+			assertFalse("A job that never ends ended.", forever.isDone());
+			assertFalse("Ran more jobs at once than allowed.", next.isDone());
+			
+			assertTrue("Failed to cancel a job.", forever.cancel(true));
+			assertTrue("Failed to cancel a job.", forever.isCancelled());
+			try {
+				forever.get();
+				fail("Got the result of a cancelled job.");
+			} catch (CancellationException e) {
+				// This is expected.
+			}
+			assertEquals("Failed to run the job after a cancelled one.", 24, next.get(10, TimeUnit.SECONDS).top());
+		} finally {
+			service.shutdown();
+		}
+	}
+	
+	@Test
+	public void interruptTest() {
+		// A program with a cooperative budget stops at a backward branch once its thread is interrupted,
+		// whatever it runs on. Any other program doesn't notice.
+		for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+			VirtualMachine vm = new VirtualMachine();
+			vm.setEngine(engine);
+			Thread.currentThread().interrupt();
+			try {
+				ExecutionResult result = vm.run(Verifier.verify(FOREVER), ExecutionBudget.instructions(100000));
+				assertTrue("Cancelled a program without a cooperative budget.", result.isBudgetExhausted());
+				vm.stack().clear();
+				result = vm.run(Verifier.verify(FOREVER), ExecutionBudget.UNLIMITED.cooperative());
+				assertTrue("Failed to cancel a program on the " + engine + " engine.", result.isCancelled());
+				assertEquals("Cancelled a program at the wrong instruction.", 11, result.pc());
+			} finally {
+				Thread.interrupted();
+			}
+		}
+	}
+	
+	@Test
+	public void threadTest() {
+		ExecutionService service = new ExecutionService(2);
+		try {
+			assertEquals("Failed to use virtual threads exactly when the JVM has them.", Runtime.version().feature() >= 21,
+					service.usesVirtualThreads());
+		} finally {
+			service.shutdown();
+		}
+		
+		// Only a budget for virtual threads yields, an ordinary thread is shared out anyway.
+		ExecutionBudget budget = ExecutionBudget.instructions(10).cooperative();
+		assertTrue(budget.isCooperative());
+		assertFalse("A cooperative budget gave up the processor.", budget.isYielding());
+		assertFalse(ExecutionBudget.UNLIMITED.isYielding());
+	}
+	
+	@Test
+	public void verificationTest() throws Exception {
+		ExecutionService service = new ExecutionService(1);
+		try {
+			service.submit(new byte[] { InstructionSet.ADD }).get(10, TimeUnit.SECONDS);
+			fail("Ran a program that doesn't verify.");
+		} catch (ExecutionException e) {
+			assertTrue("Failed with the wrong exception.", e.getCause() instanceof VerificationException);
+		} finally {
+			service.shutdown();
+		}
+	}
+}
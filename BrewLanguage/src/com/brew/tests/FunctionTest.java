@@ -0,0 +1,246 @@
+package com.brew.tests;
+
+import static org.junit.Assert.*;
+import static com.brew.tests.Programs.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.brew.compiler.CompiledProgram;
+import com.brew.compiler.Compiler;
+import com.brew.compiler.StackPointer;
+import com.brew.compiler.exceptions.CompilationException;
+import com.brew.vm.ExecutionBudget;
+import com.brew.vm.ExecutionResult;
+import com.brew.vm.InstructionSet;
+import com.brew.vm.VerifiedProgram;
+import com.brew.vm.Verifier;
+import com.brew.vm.VirtualMachine;
+import com.brew.vm.exceptions.VerificationException;
+
+public class FunctionTest {
+	
+	@Test
+	public void callTest() {
+		assertAnswer("Failed to call a function.", 49,
+				"byte square(byte x) {",
+				"	return x * x",
+				"}",
+				"byte answer = square(7)");
+		assertAnswer("Failed to pass several arguments of different sizes.", 5000000123L,
+				"long add(byte a, long b, int c) {",
+				"	return a + b + c",
+				"}",
+				"int hundred = 100",
+				"long answer = add(3, 5000000000, hundred + 20)");
+		assertAnswer("Failed to use a call inside an expression.", 26,
+				"byte twice(byte x) {",
+				"	return x + x",
+				"}",
+				"byte y = 4",
+				"byte answer = 2 + twice(y + 1) * 2 + twice(twice(1))");
+		assertAnswer("Failed to return from inside a loop.", 6,
+				"byte firstOver(byte limit) {",
+				"	for (byte i = 0; i < 100; i = i + 1) {",
+				"		if (i > limit) {",
+				"			return i",
+				"		}",
+				"	}",
+				"	return -1",
+				"}",
+				"byte answer = firstOver(5)");
+		assertAnswer("Failed to return a negative number.", -5,
+				"byte minusFive() {",
+				"	return -5",
+				"}",
+				"byte answer = minusFive()");
+		assertAnswer("A function that doesn't return on its own didn't return 0.", 0,
+				"byte nothing(byte x) {",
+				"	x = x + 1",
+				"}",
+				"byte answer = nothing(4)");
+		assertAnswer("Failed to call a function without parameters.", 42,
+				"byte fortyTwo() {",
+				"	return 42",
+				"}",
+				"byte answer = fortyTwo()");
+	}
+	
+	@Test
+	public void recursionTest() {
+		assertAnswer("Failed to work out fibonacci recursively.", 610,
+				"int fib(int n) {",
+				"	if (n < 2) {",
+				"		return n",
+				"	}",
+				"	return fib(n - 1) + fib(n - 2)",
+				"}",
+				"int answer = fib(15)");
+		assertAnswer("Failed to work out ackermann recursively.", 61,
+				"int ackermann(int m, int n) {",
+				"	if (m == 0) {",
+				"		return n + 1",
+				"	}",
+				"	if (n == 0) {",
+				"		return ackermann(m - 1, 1)",
+				"	}",
+				"	return ackermann(m - 1, ackermann(m, n - 1))",
+				"}",
+				"int answer = ackermann(2, 3) * 0 + ackermann(3, 3)");
+		
+		// Every activation has its own variables, however deep it is.
+		assertAnswer("Variables leaked from one call to the next.", 15,
+				"byte sum(byte n) {",
+				"	byte here = n",
+				"	if (n > 0) {",
+				"		byte rest = sum(n - 1)",
+				"		return here + rest",
+				"	}",
+				"	return here",
+				"}",
+				"byte answer = sum(5)");
+	}
+	
+	@Test
+	public void budgetTest() {
+		byte[] code = new Compiler().compile(
+				"byte forever(byte x) {",
+				"	return forever(x + 1) + 1",
+				"}",
+				"byte x = forever(0)");
+		VerifiedProgram program = Verifier.verify(code);
+		assertTrue("The verifier didn't notice the calls.", program.usesCalls());
+		
+		// The other engines can't run functions, and say so rather than quietly running the program on another.
+		for (VirtualMachine.Engine engine : new VirtualMachine.Engine[] { VirtualMachine.Engine.REGISTER, VirtualMachine.Engine.CLOSURE }) {
+			assertFalse("Claimed to run functions on " + engine, engine.canRun(program));
+			VirtualMachine vm = new VirtualMachine();
+			vm.setEngine(engine);
+			try {
+				vm.run(program);
+				fail("Ran functions on " + engine);
+			} catch (UnsupportedOperationException e) {
+				assertTrue("Failed to say what the engine can't run.", e.getMessage().contains("functions"));
+			}
+		}
+		
+		// Recursion that never stops either runs out of budget or out of room for calls, it never hangs.
+		VirtualMachine vm = new VirtualMachine();
+		ExecutionResult result = vm.run(program, ExecutionBudget.instructions(1000));
+		assertTrue("Failed to stop recursion that never ends.", result.isBudgetExhausted());
+		try {
+			vm.run(program);
+			fail("Recursed forever.");
+		} catch (RuntimeException e) {
+		}
+		try {
+			vm.interpreter().interpret(code);
+			fail("Recursed forever on the checked path.");
+		} catch (RuntimeException e) {
+		}
+	}
+	
+	@Test
+	public void verifierTest() {
+		byte[][] programs = new byte[][] {
+				// RETURN in the program itself.
+				{ InstructionSet.PUSH, 1, InstructionSet.RETURN },
+				// A function that returns a byte called as if it returned an int.
+				{ InstructionSet.PUSH, 1, InstructionSet.CALL, 0, 9, 1, 4, InstructionSet.GOTO, 12,
+						InstructionSet.PUSH, 2, InstructionSet.RETURN },
+				// A function that runs off the end of the program.
+				{ InstructionSet.CALL, 0, 5, 0, 1, InstructionSet.PUSH, 2 },
+				// A function called with more arguments than are on the stack.
+				{ InstructionSet.PUSH, 1, InstructionSet.CALL, 0, 9, 2, 1, InstructionSet.GOTO, 12,
+						InstructionSet.PUSH, 2, InstructionSet.RETURN },
+		};
+		for (byte[] program : programs) {
+			try {
+				Verifier.verify(program);
+				fail("Verified " + Arrays.toString(program));
+			} catch (VerificationException e) {
+			}
+		}
+		
+		// A function sees its arguments as its first frame, however deep the caller's frames go.
+		byte[] code = new byte[] {
+				InstructionSet.PUSH_FRAME, 1,
+				InstructionSet.PUSH, 5,
+				InstructionSet.PUSH, 6,
+				InstructionSet.CALL, 0, 16, 2, 1,
+				InstructionSet.PUSH_VAR, 0, 0,
+				InstructionSet.GOTO, 24,
+				InstructionSet.PULL_VAR, 0, 0,
+				InstructionSet.PULL_VAR, 0, 1,
+				InstructionSet.SUBTRACT,
+				InstructionSet.RETURN };
+		VirtualMachine vm = new VirtualMachine();
+		assertTrue(vm.run(Verifier.verify(code)).isCompleted());
+		assertEquals("Got the arguments in the wrong order.", -1, vm.runtime().pullVar((byte) 0, (byte) 0));
+		assertEquals("Left a call in progress.", 0, vm.runtime().callDepth());
+	}
+	
+	@Test
+	public void errorTest() {
+		String[][] programs = new String[][] {
+				{ "byte x = f(1)" },
+				{ "byte f(byte a) {", "	return a", "}", "byte x = f(1, 2)" },
+				{ "byte f(byte a) {", "	return a", "}", "byte x = f()" },
+				{ "byte f(byte a) {", "	return a", "}", "byte x = f(1" },
+				{ "return 1" },
+				{ "byte f(byte a) {", "	return", "}" },
+				{ "byte f(byte a, ) {", "}" },
+				{ "byte f(byte a byte b) {", "}" },
+				{ "byte f(byte a, byte a) {", "}" },
+				{ "byte f(a) {", "}" },
+				{ "byte f(byte a) {", "	return a" },
+				{ "byte f(byte a) {", "}", "byte f(byte b) {", "}" },
+				{ "byte f(byte a) {", "	byte g(byte b) {", "	}", "}" },
+				{ "byte x = 1", "if (x > 0) {", "	byte f(byte a) {", "	}", "}" },
+				{ "byte f(byte a) {", "}", "byte f = 1" },
+				{ "byte x = 3", "byte f(byte a) {", "	return x", "}" },
+				{ "byte f(byte a) {", "	return g(a)", "}", "byte g(byte a) {", "	return a", "}" },
+				{ "byte f(byte a) {", "	return a", "}", "byte x = f(300)" },
+		};
+		for (String[] program : programs) {
+			try {
+				new Compiler().compile(program);
+				fail("Compiled " + Arrays.toString(program));
+			} catch (CompilationException e) {
+			}
+		}
+		
+		// A compiler that failed in the middle of a function still compiles the next program properly.
+		Compiler c = new Compiler();
+		try {
+			c.compileProgram("byte f(byte a) {", "	return a +", "}");
+			fail("Compiled a broken function body.");
+		} catch (CompilationException e) {
+		}
+		CompiledProgram program = c.compileProgram("byte a = 1", "byte b = a * 2");
+		assertEquals("A failed function left its parameters behind.", 2, program.variableCount());
+		try {
+			c.compileProgram("byte x = f(1)");
+			fail("Called a function from an earlier program.");
+		} catch (CompilationException e) {
+		}
+	}
+	
+	@Test
+	public void variablesTest() {
+		// The variables of a function belong to its calls, not the program.
+		CompiledProgram program = new Compiler().compileProgram(
+				"byte before = 1",
+				"byte f(byte a, byte b) {",
+				"	byte local = a + b",
+				"	return local",
+				"}",
+				"byte after = f(before, 2)");
+		assertEquals(2, program.variableCount());
+		assertEquals("before", program.variableName(0));
+		assertEquals("after", program.variableName(1));
+		StackPointer after = program.variable("after");
+		assertEquals("The function took room in the program's frame.", 1, after.variableID());
+	}
+}
@@ -0,0 +1,209 @@
+package com.brew.tests;
+
+import static org.junit.Assert.*;
+import static com.brew.tests.Programs.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.brew.compiler.CompiledProgram;
+import com.brew.compiler.Compiler;
+import com.brew.compiler.ir.CommonSubexpressionElimination;
+import com.brew.compiler.ir.CopyPropagation;
+import com.brew.compiler.ir.DeadStoreElimination;
+import com.brew.compiler.ir.Graph;
+import com.brew.compiler.ir.JumpThreading;
+import com.brew.compiler.ir.Pass;
+import com.brew.compiler.ir.Statement;
+import com.brew.vm.InstructionSet;
+
+public class GraphTest {
+	
+	private static final String[][] PROGRAMS = new String[][] {
+			{ "byte x = 5", "x = x + 1", "", "if (x > 2) {", "	byte y = x * 3", "}", "DEBUG" },
+			{ "long l = 5000000000", "int i = 7", "byte b = i / 2", "long answer = l + i * b" },
+			{ "int fib(int n) {", "	if (n < 2) {", "		return n", "	}", "	return fib(n - 1) + fib(n - 2)", "}",
+					"byte square(byte x) {", "	return x * x", "}", "int answer = fib(10) + square(3)" },
+			{ "byte a = 3", "byte x = 0", "for (byte i = 0; i < 10; i = i + 1) {", "	x = x + a * 2", "}",
+					"while (x > 20) {", "	x = x - 1", "}" },
+	};
+	
+	@Test
+	public void roundTripTest() {
+		// Without any passes, lowering a graph gives back the code it was built from.
+		for (String[] source : PROGRAMS)
+			for (int level = Compiler.NO_OPTIMIZATION; level <= Compiler.FOLD_CONSTANTS; level ++) {
+				byte[] code = compile(level, source).bytecode();
+				Graph graph = Graph.build(code);
+				assertNotNull("Failed to build the graph of " + Arrays.toString(source), graph);
+				assertArrayEquals("Changed a program without any passes.", code, graph.lower(new int[0]));
+			}
+		
+		// So DATA_FLOW without its passes is just INLINE.
+		Compiler c = new Compiler();
+		c.setPasses();
+		for (String[] source : PROGRAMS)
+			assertArrayEquals(compile(Compiler.INLINE, source).bytecode(), c.compileProgram(source).bytecode());
+		
+		// Superinstructions and code the compiler doesn't emit aren't built into graphs.
+		assertNull(Graph.build(new byte[] { InstructionSet.INCREMENT_VAR, 0, 0, 1 }));
+		assertNull(Graph.build(new byte[] { InstructionSet.PUSH, 1, InstructionSet.GOTO, 0 }));
+		assertNull(Graph.build(new byte[] { InstructionSet.ADD }));
+	}
+	
+	@Test
+	public void copyPropagationTest() {
+		String[] source = new String[] {
+				"byte x = 5",
+				"byte z = 2",
+				"byte y = x * 2 + z",
+				"z = y",
+				"byte answer = z - x" };
+		assertAnswer("Failed to propagate copies.", 7, source);
+		byte[] code = compileWith(new CopyPropagation(), source);
+		assertEquals("Failed to work out an expression of copies at compile time.", 0, count(code, InstructionSet.MULTIPLY));
+		assertEquals(0, count(code, InstructionSet.SUBTRACT));
+	}
+	
+	@Test
+	public void deadStoreTest() {
+		String[] source = new String[] {
+				"byte f(byte a) {",
+				"	byte unused = a + 1",
+				"	return a * 2",
+				"}",
+				"byte x = 1",
+				"x = 2",
+				"byte y = x + f(4)",
+				"byte quotient = 10 / y",
+				"quotient = 3",
+				"byte answer = y + quotient" };
+		assertAnswer("Failed to take out dead stores.", 13, source);
+		
+		byte[] code = compileWith(new DeadStoreElimination(), source);
+		// x = 1 is stored over, and unused goes with its function's frame. A division has to be worked out.
+		assertEquals("Failed to take out the stores nobody reads.", 5, count(code, InstructionSet.PUSH_VAR));
+		assertEquals("Took out a division that could fail.", 1, count(code, InstructionSet.DIVIDE));
+		// The variables of the program's own frame are left behind, so their last stores stay.
+		code = compileWith(new DeadStoreElimination(), "byte x = 1", "x = 2", "byte y = x", "y = 3", "byte z = y");
+		assertEquals("Failed to keep what the program leaves behind.", 3, count(code, InstructionSet.PUSH_VAR));
+	}
+	
+	@Test
+	public void commonSubexpressionTest() {
+		// The first time a * b + c is worked out it is stored in x, so the second reads x.
+		String[] source = new String[] {
+				"int a = 300",
+				"int b = 7",
+				"int c = 11",
+				"a = a + 1",
+				"int x = a * b + c",
+				"int answer = (a * b + c) / 2" };
+		assertAnswer("Failed to use a value that was already worked out.", (301 * 7 + 11) / 2, source);
+		byte[] code = compileWith(new CommonSubexpressionElimination(), source);
+		assertEquals("Worked out a value twice.", 1, count(code, InstructionSet.INT_MATH, InstructionSet.MULTIPLY));
+		
+		// Worked out three times without being stored, it is worth a temporary.
+		source = new String[] {
+				"byte a = 3",
+				"byte b = 4",
+				"a = a + 1",
+				"byte x = a * b + 1",
+				"byte y = a * b + 2",
+				"byte answer = a * b + x + y" };
+		assertAnswer("Failed to use a temporary.", 16 + 17 + 18, source);
+		Compiler c = new Compiler();
+		c.setPasses(new CommonSubexpressionElimination());
+		CompiledProgram program = c.compileProgram(source);
+		assertEquals("Worked out a value more than once.", 1, count(program.bytecode(), InstructionSet.MULTIPLY));
+		assertEquals("Failed to make room for the temporary.", 5 + 1, program.frameSize(0));
+		
+		// Once a variable it reads changes, the value has to be worked out again.
+		assertEquals(2, count(compileWith(new CommonSubexpressionElimination(),
+				"byte a = 3", "byte b = 4", "a = a + 1", "byte x = a * b + 1", "a = 2", "byte y = a * b + 1"), InstructionSet.MULTIPLY));
+	}
+	
+	@Test
+	public void jumpThreadingTest() {
+		// go is known to be 0, so the if statement and its body go, and so does the loop that never runs.
+		String[] source = new String[] {
+				"byte go = 0",
+				"byte x = 1",
+				"if (go == 1) {",
+				"	x = 2",
+				"}",
+				"while (go > 0) {",
+				"	x = x + 1",
+				"}",
+				"byte answer = x" };
+		assertAnswer("Failed to thread jumps.", 1, source);
+		byte[] code = compile(Compiler.DATA_FLOW, source).bytecode();
+		assertEquals("Kept an IF whose condition is known.", 0, count(code, InstructionSet.IF));
+		assertEquals("Kept a body that can never run.", 3, count(code, InstructionSet.PUSH_VAR));
+		
+		// A loop that never stops jumps back with a GOTO, and still ends with the program's POP_FRAME.
+		code = compile(Compiler.DATA_FLOW, "byte x = 0", "while (1 == 1) {", "	x = x + 1", "}").bytecode();
+		assertEquals(1, count(code, InstructionSet.GOTO));
+		assertEquals(0, count(code, InstructionSet.IF));
+		assertEquals(InstructionSet.POP_FRAME, code[code.length - 1]);
+	}
+	
+	@Test
+	public void passTest() {
+		assertEquals("Failed to run the default passes.", 5, new Compiler().getPasses().length);
+		
+		// Any pass can be plugged in. This one drops every DEBUG.
+		final int[] runs = new int[1];
+		Compiler c = new Compiler();
+		c.setPasses(new Pass() {
+			public boolean run(Graph graph) {
+				runs[0] ++;
+				boolean changed = false;
+				for (int i = 0; i < graph.blocks().size(); i ++)
+					for (int k = graph.blocks().get(i).statements().size() - 1; k >= 0; k --)
+						if (graph.blocks().get(i).statements().get(k).kind == Statement.DEBUG) {
+							graph.blocks().get(i).statements().remove(k);
+							changed = true;
+						}
+				return changed;
+			}
+		});
+		byte[] code = c.compile("byte x = 1", "DEBUG", "x = 2", "DEBUG");
+		assertEquals("Failed to run a pass.", 0, count(code, InstructionSet.DEBUG_STACK));
+		assertEquals("Failed to run the passes again once they changed something.", 2, runs[0]);
+		
+		// The passes run over and over for as long as they open up work for each other.
+		c = new Compiler();
+		c.setPasses(new JumpThreading(), new DeadStoreElimination(), new CopyPropagation());
+		code = c.compile("byte x = 4", "byte y = x", "if (y < 3) {", "	y = 1", "}", "y = 0", "y = x");
+		assertEquals(0, count(code, InstructionSet.IF));
+	}
+	
+	@Test
+	public void lineTest() {
+		// The line of a statement that goes gives its place to the next line.
+		Compiler c = new Compiler();
+		c.setOptimizationLevel(Compiler.DATA_FLOW);
+		CompiledProgram program = c.compileProgram("byte x = 1", "x = 2", "byte y = x + 1");
+		byte[] code = program.bytecode();
+		assertArrayEquals(new byte[] {
+				InstructionSet.PUSH_FRAME, 2,
+				InstructionSet.PUSH, 2,
+				InstructionSet.PUSH_VAR, 0, 0,
+				InstructionSet.PUSH, 3,
+				InstructionSet.PUSH_VAR, 0, 1,
+				InstructionSet.POP_FRAME }, code);
+		assertEquals(2, program.lineOf(2));
+		assertEquals(3, program.lineOf(7));
+	}
+	
+	/** @return the code of the program compiled with only the pass, and without superinstructions. */
+	private static byte[] compileWith(Pass pass, String ... source) {
+		Compiler c = new Compiler();
+		c.setPasses(pass);
+		byte[] code = c.compileProgram(source).bytecode();
+		Graph graph = Graph.build(code);
+		return (graph == null)? code : graph.lower(new int[0]);
+	}
+}
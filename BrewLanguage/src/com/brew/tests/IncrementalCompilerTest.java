@@ -0,0 +1,247 @@
+package com.brew.tests;
+
+import static org.junit.Assert.*;
+import static com.brew.tests.Programs.*;
+
+import org.junit.Test;
+
+import com.brew.compiler.CompiledProgram;
+import com.brew.compiler.Compiler;
+import com.brew.compiler.IncrementalCompiler;
+import com.brew.compiler.exceptions.CompilationException;
+
+public class IncrementalCompilerTest {
+	
+	private static final String[] PROGRAM = {
+		"int square(int x) {",
+		"	int y = x * x",
+		"	return y",
+		"}",
+		"byte a = 3",
+		"int b = square(a) + 1",
+		"",
+		"if (b > 5) {",
+		"	byte c = 2",
+		"	b = b * c",
+		"}",
+		"long answer = 0",
+		"for (byte i = 0; i < a; i = i + 1) {",
+		"	answer = answer + b",
+		"}"
+	};
+	
+	@Test
+	public void compileTest() {
+		for (int level = Compiler.NO_OPTIMIZATION; level <= Compiler.INLINE; level ++) {
+			IncrementalCompiler compiler = new IncrementalCompiler(level);
+			compiler.compile(PROGRAM);
+			assertAnswer("Failed to compile a program a statement at a time.", 60, compiler);
+			assertEquals("Didn't compile every statement of a new program.", 7, compiler.recompiled());
+		}
+		try {
+			new IncrementalCompiler(Compiler.DATA_FLOW);
+			fail("Compiled a statement at a time at a level that needs the whole program.");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	@Test
+	public void editTest() {
+		IncrementalCompiler compiler = new IncrementalCompiler();
+		compiler.compile(PROGRAM);
+		
+		compiler.edit(4, 5, "byte a = 5");
+		assertAnswer("Failed to change a line.", 260, compiler);
+		assertEquals("Compiled more than the line that changed.", 1, compiler.recompiled());
+		compiler.edit(9, 10, "	b = b * c + 1");
+		assertAnswer("Failed to change a line inside a body.", 265, compiler);
+		assertEquals("Compiled more than the statement that changed.", 1, compiler.recompiled());
+		compiler.edit(2, 3, "	return y / 2");
+		assertAnswer("Failed to change a function.", 135, compiler);
+		assertEquals("Compiled more than the function that changed.", 1, compiler.recompiled());
+		
+		compiler.edit(6, 6, "b = b + 2");
+		assertAnswer("Failed to insert a line.", 155, compiler);
+		assertEquals("Compiled more than the line inserted.", 1, compiler.recompiled());
+		compiler.edit(6, 7);
+		assertAnswer("Failed to remove a line.", 135, compiler);
+		compiler.edit(12, 12, "if (a > 1) {", "	a = 0", "}");
+		assertAnswer("Failed to insert a body.", 0, compiler);
+		try {
+			compiler.edit(12, 15, "if (a > 1) {");
+			fail("Compiled a body that is never closed.");
+		} catch (CompilationException e) {
+			assertEquals("Reported the problem on the wrong line.", 13, e.line());
+		}
+		compiler.edit(16, 16, "}");
+		assertAnswer("Failed to open a body around a statement of its own.", 135, compiler);
+		assertEquals("Lost track of the source.", "}", compiler.source()[compiler.source().length - 1]);
+	}
+	
+	@Test
+	public void dependencyTest() {
+		IncrementalCompiler compiler = new IncrementalCompiler();
+		compiler.compile(PROGRAM);
+		
+		// Every statement that uses a changed variable is compiled again, the rest are left alone.
+		compiler.edit(4, 5, "int a = 3");
+		assertAnswer("Failed to change the type of a variable.", 60, compiler);
+		assertEquals("Didn't compile the statements that use the variable, or its place, again.", 4, compiler.recompiled());
+		compiler.edit(4, 5, "long a = 3");
+		assertAnswer("Failed to change the type of a variable again.", 60, compiler);
+		
+		try {
+			compiler.edit(4, 5, "long z = 3");
+			fail("Used a variable that was taken out.");
+		} catch (CompilationException e) {
+			assertEquals("Reported the problem on the wrong line.", 6, e.line());
+		}
+		try {
+			compiler.edit(7, 7, "b = 1");
+			fail("An edit somewhere else fixed a statement that doesn't compile.");
+		} catch (CompilationException e) {
+			assertEquals("Reported the problem on the wrong line.", 6, e.line());
+		}
+		compiler.edit(4, 5, "byte a = 3");
+		assertAnswer("Failed to fix a variable that was taken out.", 3, compiler);
+		
+		// What a body declares can't be used after it, like in a program compiled in one go.
+		try {
+			compiler.edit(16, 16, "byte d = c");
+			fail("Used the variable of a body after it was over.");
+		} catch (CompilationException e) {
+			assertEquals("Reported the problem on the wrong line.", 17, e.line());
+		}
+		try {
+			compiler.edit(16, 17, "byte c = 1");
+			fail("Declared a variable with the name of one declared in a body.");
+		} catch (CompilationException e) {
+			assertEquals("Reported the problem on the wrong line.", 17, e.line());
+		}
+		compiler.edit(16, 17);
+		assertAnswer("Failed to take out a statement that doesn't compile.", 3, compiler);
+		
+		try {
+			compiler.edit(0, 1, "int cube(int x) {");
+			fail("Called a function that was taken out.");
+		} catch (CompilationException e) {
+			assertEquals("Reported the problem on the wrong line.", 6, e.line());
+		}
+		compiler.edit(5, 6, "int b = cube(a) + 1");
+		assertAnswer("Failed to call a function that was renamed.", 3, compiler);
+	}
+	
+	@Test
+	public void hiddenAssignmentTest() {
+		// Assigning the variable of a body once it is over has to fail the same way in both compilers.
+		String[] source = {
+			"byte x = 1",
+			"if (x < 2) {",
+			"	byte a = 6",
+			"}",
+			"byte b = 1",
+			"a = 5",
+			"byte answer = b"
+		};
+		int line = -1;
+		try {
+			Compiler whole = new Compiler();
+			whole.setOptimizationLevel(Compiler.INLINE);
+			whole.compileProgram(source);
+			fail("Assigned the variable of a body that is over.");
+		} catch (CompilationException e) {
+			line = e.line();
+		}
+		try {
+			new IncrementalCompiler().compile(source);
+			fail("Assigned the variable of a body that is over a statement at a time.");
+		} catch (CompilationException e) {
+			assertEquals("Reported the problem on a different line to compiling it in one go.", line, e.line());
+		}
+		
+		// Adding the assignment to a program that compiles is no different.
+		IncrementalCompiler compiler = new IncrementalCompiler();
+		compiler.compile(source[0], source[1], source[2], source[3], source[4], source[6]);
+		assertAnswer("Failed to compile the program without the assignment.", 1, compiler);
+		try {
+			compiler.edit(5, 5, source[5]);
+			fail("Assigned the variable of a body that is over in an edit.");
+		} catch (CompilationException e) {
+			assertEquals("Reported the problem on a different line to compiling it in one go.", line, e.line());
+		}
+	}
+	
+	@Test
+	public void unclosedTest() {
+		IncrementalCompiler compiler = new IncrementalCompiler();
+		compiler.compile("byte answer = 1");
+		try {
+			compiler.edit(1, 1, "if (answer > 0) {", "	answer = 5");
+			fail("Compiled a body that is never closed.");
+		} catch (CompilationException e) {
+			assertEquals("Reported the problem on the wrong line.", 2, e.line());
+		}
+		compiler.edit(3, 3, "}");
+		assertAnswer("Failed to close a body.", 5, compiler);
+	}
+	
+	@Test
+	public void typingTest() {
+		// Type the program in a line at a time, the way it is in an editor.
+		for (String[] source : new String[][] { PROGRAM, FIBONACCI }) {
+			IncrementalCompiler compiler = new IncrementalCompiler();
+			compiler.compile();
+			CompiledProgram program = null;
+			for (int i = 0; i < source.length; i ++) {
+				try {
+					compiler.edit(i, i, source[i]);
+					program = compiler.program();
+				} catch (CompilationException e) {
+					program = null;
+				}
+			}
+			assertNotNull("Failed to compile a program typed in a line at a time.", program);
+			
+			Compiler whole = new Compiler();
+			whole.setOptimizationLevel(Compiler.INLINE);
+			long answer = answerOf("Failed to compile a program in one go.", whole.compileProgram(source), "answer");
+			assertEquals("Typing a program in gave a different answer to compiling it in one go.", answer,
+					answerOf("Failed to run a program typed in.", program, "answer"));
+		}
+	}
+	
+	@Test
+	public void largeProgramTest() {
+		String[] source = new String[5000];
+		source[0] = "long answer = 0";
+		for (int i = 1; i < source.length; i ++)
+			source[i] = (i % 10 == 1)? "if (answer > 0) {" : (i % 10 == 9)? "}" : "answer = answer + " + (i % 7);
+		IncrementalCompiler compiler = new IncrementalCompiler();
+		compiler.compile(source);
+		long answer = answerOf("Failed to compile a large program.", compiler.program(), "answer");
+		
+		compiler.edit(2500, 2501, "answer = answer + 6 + 1");
+		assertEquals("Compiled more than the line that changed.", 1, compiler.recompiled());
+		assertAnswer("Failed to change a line of a large program.", answer + 6, compiler);
+		compiler.edit(2503, 2504, "answer = answer + 6 + 4");
+		assertAnswer("Failed to change a body of a large program.", answer + 12, compiler);
+		assertEquals("Compiled more than the body that changed.", 1, compiler.recompiled());
+	}
+	
+	private static final String[] FIBONACCI = {
+		"int fib(int n) {",
+		"	if (n < 2) {",
+		"		return n",
+		"	}",
+		"	return fib(n - 1) + fib(n - 2)",
+		"}",
+		"byte twice(byte x) {",
+		"	return x + x",
+		"}",
+		"int answer = fib(twice(6)) + twice(1)"
+	};
+	
+	private static void assertAnswer(String message, long answer, IncrementalCompiler compiler) {
+		assertEquals(message, answer, answerOf(message, compiler.program(), "answer"));
+	}
+}
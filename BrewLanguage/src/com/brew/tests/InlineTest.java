@@ -0,0 +1,167 @@
+package com.brew.tests;
+
+import static org.junit.Assert.*;
+import static com.brew.tests.Programs.*;
+
+import org.junit.Test;
+
+import com.brew.compiler.CompiledProgram;
+import com.brew.compiler.Compiler;
+import com.brew.compiler.exceptions.CompilationException;
+import com.brew.vm.InstructionSet;
+import com.brew.vm.VerifiedProgram;
+import com.brew.vm.Verifier;
+
+public class InlineTest {
+	
+	@Test
+	public void frameTest() {
+		String[] source = new String[] {
+				"byte x = 1",
+				"if (x > 0) {",
+				"	byte a = x + 1",
+				"	x = a",
+				"}",
+				"for (byte i = 0; i < 2; i = i + 1) {",
+				"	byte b = x * 2",
+				"	x = b",
+				"}" };
+		assertAnswer("Failed to run blocks that share a frame.", "x", 8, source);
+		
+		// The program's frame is the only one, and the blocks take turns with the same slot.
+		CompiledProgram program = compile(Compiler.INLINE, source);
+		assertEquals("Pushed a frame for a block.", 1, count(program.bytecode(), InstructionSet.PUSH_FRAME));
+		assertEquals("Failed to reuse the slots of a block that is over.", 3, program.frameSize(0));
+		assertEquals("Failed to put a block's variable in the program's frame.", 0, program.variable("a").frame());
+		assertEquals("Failed to reuse the slot of a block that is over.", program.variable("a").variableID(), program.variable("i").variableID());
+		
+		// Below INLINE every block still has its own.
+		assertEquals(4, count(compile(Compiler.SUPERINSTRUCTIONS, source).bytecode(), InstructionSet.PUSH_FRAME));
+	}
+	
+	@Test
+	public void loopTest() {
+		// t is written every time round, so it can't share a slot with the temporary a * b is moved to,
+		// which is only written once, in front of the loop.
+		assertAnswer("A block inside a loop overwrote one of its temporaries.", "x", 72,
+				"byte a = 3",
+				"byte b = 4",
+				"byte x = 0",
+				"byte n = 0",
+				"while (n < 5) {",
+				"	if (n > 1) {",
+				"		byte t = n + 1",
+				"		x = x + t",
+				"	}",
+				"	x = x + a * b",
+				"	n = n + 1",
+				"}");
+	}
+	
+	@Test
+	public void fullFrameTest() {
+		// 30 longs and answer fill 248 bytes of the program's frame, so there is no room left for the variables
+		// of the bodies and loops. They get frames of their own instead, and the bodies inside them share those.
+		String[] source = new String[41];
+		for (int i = 0; i < 30; i ++)
+			source[i] = "long v" + i + " = " + i;
+		System.arraycopy(new String[] {
+				"long answer = v13",
+				"if (v1 > 0) {",
+				"	long w = v13 + 1",
+				"	if (w > 0) {",
+				"		long y = w + 1",
+				"		answer = answer + y",
+				"	}",
+				"}",
+				"for (long i = 0; i < 2; i = i + 1) {",
+				"	answer = answer + i",
+				"}" }, 0, source, 30, 11);
+		assertAnswer("Failed to give a block a frame of its own when the one it is in is full.", 13 + 15 + 1, source);
+		assertEquals("Didn't give the full blocks frames of their own.", 3,
+				count(compile(Compiler.INLINE, source).bytecode(), InstructionSet.PUSH_FRAME));
+	}
+	
+	@Test
+	public void functionFrameTest() {
+		String[] source = new String[] {
+				"byte positive(byte x) {",
+				"	if (x > 0) {",
+				"		return x",
+				"	}",
+				"	return 0 - x",
+				"}",
+				"byte answer = positive(0 - 5) + positive(2)" };
+		assertAnswer("Failed to call a function without a frame.", 7, source);
+		assertEquals("Pushed a frame for a function without variables.", 1,
+				count(compile(Compiler.INLINE, source).bytecode(), InstructionSet.PUSH_FRAME));
+	}
+	
+	@Test
+	public void inlineTest() {
+		String[] source = new String[] {
+				"int square(int x) {",
+				"	return x * x",
+				"}",
+				"long add(byte a, long b) {",
+				"	return a + b",
+				"}",
+				"byte small = 3",
+				"int sum = 0",
+				"for (int i = 0; i < 10; i = i + 1) {",
+				"	sum = sum + square(i)",
+				"}",
+				"long answer = add(small, square(square(small) + 1)) + sum" };
+		assertAnswer("Failed to inline functions.", 3 + 100 + 285, source);
+		
+		// The functions are gone altogether, so the program doesn't need the interpreter any more.
+		byte[] code = compile(Compiler.INLINE, source).bytecode();
+		assertEquals("Called a function that should have been inlined.", 0, count(code, InstructionSet.CALL));
+		assertEquals("Kept the code of a function that is always inlined.", 0, count(code, InstructionSet.GOTO_WIDE));
+		VerifiedProgram program = Verifier.verify(code);
+		assertFalse(program.usesCalls());
+		// small, sum and answer. The arguments that had to be worked out go in temporaries answer reuses.
+		assertEquals("Failed to give back the temporaries of inlined calls.", 1 + 4 + 8, compile(Compiler.INLINE, source).frameSize(0));
+		assertEquals("Inlined below INLINE.", 4, count(compile(Compiler.SUPERINSTRUCTIONS, source).bytecode(), InstructionSet.CALL));
+	}
+	
+	@Test
+	public void notInlinedTest() {
+		// Functions that call themselves, or that are too long, are still called.
+		String[] source = new String[] {
+				"int fib(int n) {",
+				"	if (n < 2) {",
+				"		return n",
+				"	}",
+				"	return fib(n - 1) + fib(n - 2)",
+				"}",
+				"int sixteen(int x) {",
+				"	return x + x + x + x + x + x + x + x + x + x + x + x + x + x + x + x",
+				"}",
+				"int answer = fib(10) + sixteen(1)" };
+		assertAnswer("Failed to call functions that aren't inlined.", 55 + 16, source);
+		byte[] code = compile(Compiler.INLINE, source).bytecode();
+		assertEquals(4, count(code, InstructionSet.CALL));
+	}
+	
+	@Test
+	public void scopeTest() {
+		// Once a body is over, the slot of its variable belongs to the next variable declared, so it can't
+		// be assigned any more than it can be read.
+		for (int level = Compiler.NO_OPTIMIZATION; level <= Compiler.DATA_FLOW; level ++) {
+			try {
+				compile(level,
+						"byte x = 1",
+						"if (x < 2) {",
+						"	byte a = 6",
+						"}",
+						"byte b = 1",
+						"a = 5",
+						"byte answer = b");
+				fail("Assigned the variable of a body that is over at level " + level);
+			} catch (CompilationException e) {
+				assertEquals("Reported the problem on the wrong line.", 6, e.line());
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package com.brew.tests;
+
+import static org.junit.Assert.*;
+import static com.brew.tests.Programs.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.brew.compiler.Compiler;
+import com.brew.compiler.Peephole;
+import com.brew.vm.ExecutionBudget;
+import com.brew.vm.ExecutionResult;
+import com.brew.vm.InstructionSet;
+import com.brew.vm.Interpreter;
+import com.brew.vm.JitCompiler;
+import com.brew.vm.Runtime;
+import com.brew.vm.VerifiedProgram;
+import com.brew.vm.Verifier;
+import com.brew.vm.VirtualMachine;
+
+public class JitCompilerTest {
+	
+	/** The doubler, which overflows the byte and leaves its result on the stack. */
+	private static final byte[] DOUBLER = new byte[] {
+			InstructionSet.PUSH, 1,
+			InstructionSet.DUPLICATE,
+			InstructionSet.ADD,
+			InstructionSet.DUPLICATE,
+			InstructionSet.PUSH, 32,
+			InstructionSet.GREATER_THAN,
+			InstructionSet.IF, 2,
+			InstructionSet.GOTO, 2,
+	};
+	
+	@Test
+	public void test() {
+		assertTrue("This JVM should be able to load compiled programs.", JitCompiler.isAvailable());
+		
+		// Compiled from the start, and compiled in the middle of a loop.
+		for (int threshold : new int[] { 0, 5 }) {
+			sameAsInterpreter(NESTED_IFS, threshold);
+			sameAsInterpreter(Peephole.optimize(NESTED_IFS), threshold);
+			sameAsInterpreter(DOUBLER, threshold);
+			sameAsInterpreter(new byte[] {
+					InstructionSet.PUSH_FRAME, 2,
+					InstructionSet.INCREMENT_VAR, 0, 1, 5,
+					InstructionSet.PULL_VARS, 0, 1, 0, 1,
+					InstructionSet.ADD,
+					InstructionSet.ADD_CONSTANT, 3,
+					InstructionSet.PUSH_VAR, 0, 0,
+					InstructionSet.IF_VAR, 0, 0, InstructionSet.GREATER_THAN_EQUAL, 40, -21,
+			}, threshold);
+		}
+		
+		// Frames that are pushed over the variables of one that was popped.
+		sameAsInterpreter(new byte[] {
+				InstructionSet.PUSH_FRAME, 1,
+				InstructionSet.PUSH_FRAME, 1,
+				InstructionSet.PUSH, 4,
+				InstructionSet.PUSH_VAR, 1, 0,
+				InstructionSet.POP_FRAME,
+				InstructionSet.PUSH_FRAME, 1,
+				InstructionSet.PULL_VAR, 1, 0,
+				InstructionSet.PUSH, 9,
+				InstructionSet.DIVIDE,
+		}, 0);
+		
+		// And whatever the compiler produces. The last POP_FRAME is left off so the variables can be compared.
+		byte[] compiled = new Compiler().compile(
+				"byte x = 5",
+				"byte y = x * x - 3",
+				"if (y > x) {",
+				"	byte t = y / 2",
+				"	x = t + x",
+				"}",
+				"if (x == 16) {",
+				"	y = 0 - y",
+				"}");
+		sameAsInterpreter(Arrays.copyOf(compiled, compiled.length - 1), 0);
+	}
+	
+	@Test
+	public void thresholdTest() {
+		VerifiedProgram program = Verifier.verify(DOUBLER);
+		VirtualMachine vm = new VirtualMachine();
+		vm.interpreter().setJitThreshold(Interpreter.JIT_NEVER);
+		vm.run(program);
+		assertFalse("Compiled a program with the compiler turned off.", program.isCompiled());
+		
+		// The loop is entered 5 times each run, so the third run gets it past 10.
+		vm.interpreter().setJitThreshold(10);
+		vm.run(program);
+		vm.run(program);
+		assertFalse("Compiled a program before it was hot.", program.isCompiled());
+		vm.run(program);
+		assertTrue("Failed to compile a hot program.", program.isCompiled());
+	}
+	
+	@Test
+	public void budgetTest() {
+		// This program counts forever on the stack.
+		VerifiedProgram program = Verifier.verify(new byte[] {
+				InstructionSet.PUSH, 0,
+				InstructionSet.PUSH, 1,
+				InstructionSet.ADD,
+				InstructionSet.GOTO, 2,
+		});
+		VirtualMachine interpreted = new VirtualMachine(), jit = new VirtualMachine();
+		interpreted.interpreter().setJitThreshold(Interpreter.JIT_NEVER);
+		jit.interpreter().setJitThreshold(50);
+		ExecutionResult expected = interpreted.run(program, ExecutionBudget.instructions(1000));
+		ExecutionResult actual = jit.run(program, ExecutionBudget.instructions(1000));
+		assertTrue("Failed to compile a hot program.", program.isCompiled());
+		
+		assertTrue("Failed to stop a program that exhausted its instruction budget.", actual.isBudgetExhausted());
+		assertEquals("Stopped at the wrong instruction.", expected.pc(), actual.pc());
+		assertEquals("Counted a different number of instructions.", expected.executedInstructions(), actual.executedInstructions());
+		assertArrayEquals("Lost the stack when the program was stopped.", interpreted.stack().toArray(), jit.stack().toArray());
+	}
+	
+	@Test
+	public void invalidTruthValueTest() {
+		VirtualMachine vm = new VirtualMachine();
+		vm.interpreter().setJitThreshold(0);
+		try {
+			vm.run(Verifier.verify(new byte[] { InstructionSet.PUSH, 2, InstructionSet.IF, 0 }));
+			fail("Accepted 2 as a truth value.");
+		} catch (RuntimeException e) {
+			assertEquals("Invalid truth value : 2", e.getMessage());
+		}
+	}
+	
+	@Test(expected = ArithmeticException.class)
+	public void divideByZeroTest() {
+		VirtualMachine vm = new VirtualMachine();
+		vm.interpreter().setJitThreshold(0);
+		vm.run(Verifier.verify(new byte[] { InstructionSet.PUSH, 1, InstructionSet.PUSH, 0, InstructionSet.DIVIDE }));
+	}
+	
+	/** Run the program on the interpreter and as compiled code, and make sure they end up in the same state. */
+	private void sameAsInterpreter(byte[] code, int threshold) {
+		VirtualMachine interpreted = new VirtualMachine(), jit = new VirtualMachine();
+		interpreted.interpreter().setJitThreshold(Interpreter.JIT_NEVER);
+		jit.interpreter().setJitThreshold(threshold);
+		// Something already on the stack must be left alone.
+		interpreted.stack().push((byte) 7);
+		jit.stack().push((byte) 7);
+		
+		VerifiedProgram program = Verifier.verify(code);
+		ExecutionResult expected = interpreted.run(program), actual = jit.run(program);
+		if (threshold == 0)
+			assertTrue("Failed to compile the program.", program.isCompiled());
+		assertTrue("Failed to complete as compiled code.", actual.isCompleted());
+		assertEquals("Counted a different number of instructions.", expected.executedInstructions(), actual.executedInstructions());
+		
+		assertArrayEquals("Left a different stack.", interpreted.stack().toArray(), jit.stack().toArray());
+		Runtime a = interpreted.runtime(), b = jit.runtime();
+		assertEquals("Left different frames.", a.frameCount(), b.frameCount());
+		for (byte frame = 0; frame < a.frameCount(); frame ++)
+			for (byte id = 0; id < a.frameSize(frame); id ++)
+				assertEquals("Left variable " + id + " in frame " + frame + " different.", a.pullVar(frame, id), b.pullVar(frame, id));
+	}
+}
@@ -0,0 +1,160 @@
+package com.brew.tests;
+
+import static org.junit.Assert.*;
+import static com.brew.tests.Programs.*;
+
+import java.util.BitSet;
+
+import org.junit.Test;
+
+import com.brew.compiler.CompiledProgram;
+import com.brew.compiler.Compiler;
+import com.brew.compiler.ir.Block;
+import com.brew.compiler.ir.Graph;
+import com.brew.compiler.ir.Liveness;
+import com.brew.vm.InstructionSet;
+
+public class LivenessTest {
+	
+	/** A program like the ones generators write, which works out far more than anybody reads. */
+	private static final String[] GENERATED = new String[] {
+			"byte debug = 0",
+			"int unused = 500",
+			"int total = 0",
+			"for (byte i = 0; i < 10; i = i + 1) {",
+			"	int square = i * i",
+			"	if (debug == 1) {",
+			"		total = total + 1000",
+			"	}",
+			"	total = total + square",
+			"}",
+			"for (byte j = 0; j < 3; j = j + 1) {",
+			"	long big = j * 2",
+			"	total = total + big",
+			"}",
+			"int scratch = total * 2",
+			"int answer = total" };
+	
+	@Test
+	public void unusedVariableTest() {
+		assertAnswer("Failed to take out the variables nobody reads.", 291, GENERATED);
+		
+		// Every variable declared at the top level is left behind, unless the outputs are named.
+		CompiledProgram program = compile(Compiler.DATA_FLOW, GENERATED);
+		assertEquals(5, program.variableCount());
+		assertNotNull("Failed to keep a variable that is left behind.", program.variable("unused"));
+		assertNull("Kept a variable that can't be read once its body is over.", program.variable("square"));
+		
+		program = compileOutputs(GENERATED);
+		assertEquals("Failed to keep only the outputs.", 1, program.variableCount());
+		byte[] code = program.bytecode();
+		assertEquals("Stored to a variable nobody reads.", 0, countPushes(code, 500));
+		assertTrue("Failed to make the code smaller.", code.length < compile(Compiler.INLINE, GENERATED).length());
+		
+		// A store whose value could stop the program stays.
+		program = compileOutputs("byte zero = 0", "byte x = 5 / zero", "byte answer = 1");
+		assertEquals(1, count(program.bytecode(), InstructionSet.DIVIDE));
+	}
+	
+	@Test
+	public void deadCodeTest() {
+		// debug is only stored to once, so the if statement in the loop can never run.
+		CompiledProgram program = compile(Compiler.DATA_FLOW, GENERATED);
+		assertEquals("Kept an if statement whose condition is always false.", 0, countPushes(program.bytecode(), 1000));
+		
+		// Once the loop stores to debug too it can't be worked out any more.
+		String[] source = new String[GENERATED.length + 1];
+		System.arraycopy(GENERATED, 0, source, 0, 9);
+		source[9] = "	debug = i";
+		System.arraycopy(GENERATED, 9, source, 10, GENERATED.length - 9);
+		assertAnswer("Failed to keep an if statement that can run.", 291 + 1000, source);
+		assertEquals(1, countPushes(compile(Compiler.DATA_FLOW, source).bytecode(), 1000));
+		
+		// Neither is a constant that comes in different ways.
+		assertAnswer("Worked out a constant that isn't.", 2,
+				"byte x = 0",
+				"byte y = 1",
+				"for (byte i = 0; i < 2; i = i + 1) {",
+				"	if (x == 0) {",
+				"		x = 1",
+				"	}",
+				"	y = y + x",
+				"}",
+				"byte answer = y - x");
+	}
+	
+	@Test
+	public void packingTest() {
+		// The variables of the two loops, and the temporaries, hold something at different times.
+		CompiledProgram packed = compileOutputs(GENERATED), inline = compile(Compiler.INLINE, GENERATED);
+		assertTrue("Failed to make the frame smaller.", packed.frameSize(0) < inline.frameSize(0));
+		// The long of the second loop, total, and the counter both loops share. answer goes where the long was.
+		assertEquals("Failed to pack the frame as tight as it goes.", 8 + 4 + 1, packed.frameSize(0));
+		
+		// The variables nobody reads are left out of a function's frame too.
+		String[] source = new String[] {
+				"int f(int a) {",
+				"	int unused = a * 3",
+				"	int b = a + 1",
+				"	int c = b * 2",
+				"	long d = c * 3",
+				"	return d / 2",
+				"}",
+				"int answer = f(1) + f(2)" };
+		assertAnswer("Failed to pack the frame of a function.", 6 + 9, source);
+		// The function's frame is the second one, after the program's own.
+		assertEquals(4 + 4 + 4 + 8, compile(Compiler.INLINE, source).frameSize(1));
+		CompiledProgram program = compile(Compiler.DATA_FLOW, source);
+		assertEquals("Failed to reuse the slots of variables that are over.", 8, program.frameSize(1));
+		
+		// The outputs move with the rest, and the program knows where they have gone.
+		program = compileOutputs("int a = 100", "int b = a * 2", "int answer = b + 1");
+		assertEquals(4, program.frameSize(0));
+		assertEquals(0, program.variable("answer").variableID());
+	}
+	
+	@Test
+	public void analysisTest() {
+		Compiler c = new Compiler();
+		c.setOptimizationLevel(Compiler.FOLD_CONSTANTS);
+		byte[] code = c.compile("byte x = 0", "byte y = 1", "while (x < 10) {", "	x = x + y", "}", "byte z = 2");
+		Graph graph = Graph.build(code);
+		BitSet outputs = new BitSet();
+		outputs.set(0);
+		graph.setOutputs(outputs);
+		Liveness liveness = Liveness.of(graph);
+		
+		// Where the program starts nothing is live, and in the loop both x and y are.
+		assertTrue(liveness.liveIn(graph.blocks().get(0)).isEmpty());
+		Block loop = graph.blocks().get(1);
+		BitSet live = liveness.liveIn(loop);
+		assertTrue("Failed to keep the variables of a loop live.", live.get(Liveness.key(0, 0)) && live.get(Liveness.key(0, 1)));
+		// z is never read, only x is left behind.
+		assertFalse(live.get(Liveness.key(0, 2)));
+		BitSet end = liveness.liveIn(graph.blocks().get(graph.blocks().size() - 2));
+		assertEquals(outputs, end);
+	}
+	
+	/** @return the program compiled with answer as its only output. */
+	private static CompiledProgram compileOutputs(String ... source) {
+		Compiler c = new Compiler();
+		c.setOutputs("answer");
+		return c.compileProgram(source);
+	}
+	
+	/** @return the number of times the int constant is pushed in the code. */
+	private static int countPushes(byte[] code, int constant) {
+		int count = 0;
+		for (int pc = 0; pc < code.length; pc += InstructionSet.lengthOf(code[pc]))
+			if (code[pc] == InstructionSet.PUSH_INT && InstructionSet.read(code, pc + 1, InstructionSet.INT_SIZE) == constant)
+				count ++;
+		return count;
+	}
+	
+	/** Compile the source at every optimization level, with every variable left behind and with only answer,
+	 * and run it on every path. The variable called answer must always hold the answer. */
+	private static void assertAnswer(String message, long answer, String ... source) {
+		Programs.assertAnswer(message, answer, source);
+		assertEquals(message + " With only answer left behind.", answer, answerOf(message, compileOutputs(source), "answer"));
+	}
+}
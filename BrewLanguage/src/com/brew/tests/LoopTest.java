@@ -0,0 +1,197 @@
+package com.brew.tests;
+
+import static org.junit.Assert.*;
+import static com.brew.tests.Programs.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.brew.compiler.Compiler;
+import com.brew.compiler.exceptions.CompilationException;
+import com.brew.vm.ExecutionBudget;
+import com.brew.vm.ExecutionResult;
+import com.brew.vm.InstructionSet;
+import com.brew.vm.VerifiedProgram;
+import com.brew.vm.Verifier;
+import com.brew.vm.VirtualMachine;
+
+public class LoopTest {
+	
+	@Test
+	public void whileTest() {
+		assertAnswer("Failed to run a while loop.", "sum", 55,
+				"byte i = 1",
+				"byte sum = 0",
+				"while (i <= 10) {",
+				"	sum = sum + i",
+				"	i = i + 1",
+				"}");
+		assertAnswer("Ran a while loop whose condition is false to begin with.", "x", 7,
+				"byte x = 7",
+				"while (x > 100) {",
+				"	x = 0",
+				"}");
+		assertAnswer("Failed to run a while loop testing for equality.", "x", 3,
+				"byte done = 0",
+				"byte x = 0",
+				"while (done == 0) {",
+				"	x = x + 1",
+				"	if (x == 3) {",
+				"		done = 1",
+				"	}",
+				"}");
+	}
+	
+	@Test
+	public void forTest() {
+		assertAnswer("Failed to run a for loop.", "sum", 30,
+				"byte sum = 0",
+				"for (byte i = 0; i < 10; i = i + 1) {",
+				"	sum = sum + 3",
+				"}");
+		assertAnswer("Failed to run a for loop without an initialization or a step.", "n", 6,
+				"byte n = 0",
+				"for (; n < 6;) {",
+				"	n = n + 1",
+				"}");
+		assertAnswer("Failed to run a for loop that never runs.", "x", 1,
+				"byte x = 1",
+				"for (byte i = 0; 2 < 1; i = i + 1) {",
+				"	x = 2",
+				"}");
+	}
+	
+	@Test
+	public void nestedTest() {
+		assertAnswer("Failed to run nested loops.", "count", 12,
+				"byte count = 0",
+				"for (byte i = 0; i < 3; i = i + 1) {",
+				"	byte j = 0",
+				"	while (j < 4) {",
+				"		if (j >= 0) {",
+				"			count = count + 1",
+				"		}",
+				"		j = j + 1",
+				"	}",
+				"}");
+		
+		// The if after the inner body belongs to the outer loop, not the end of the inner one.
+		assertAnswer("Closed the wrong block.", "x", 5,
+				"byte x = 0",
+				"byte i = 0",
+				"while (i < 5) {",
+				"	if (i > 100) {",
+				"		x = 100",
+				"	}",
+				"	x = x + 1",
+				"	i = i + 1",
+				"}");
+	}
+	
+	@Test
+	public void shapeTest() {
+		String[] source = new String[] {
+				"byte a = 3",
+				"byte b = 4",
+				"byte x = 0",
+				"while (x < 100) {",
+				"	x = x + a * b + 1",
+				"}" };
+		
+		for (int level = Compiler.NO_OPTIMIZATION; level <= Compiler.DATA_FLOW; level ++) {
+			Compiler c = new Compiler();
+			c.setOptimizationLevel(level);
+			byte[] code = c.compile(source);
+			
+			// There is exactly one jump back per iteration, and nothing else jumps backwards.
+			int backward = 0, top = -1, multiply = -1;
+			for (int pc = 0; pc < code.length; pc += InstructionSet.lengthOf(code[pc])) {
+				if (code[pc] == InstructionSet.IF && code[pc + 1] < 0) {
+					backward ++;
+					top = pc + 2 + code[pc + 1];
+				} else if (code[pc] == InstructionSet.IF_VAR && code[pc + 5] < 0) {
+					// The peephole pass fuses the test at the bottom of the loop into one instruction.
+					backward ++;
+					top = pc + 6 + code[pc + 5];
+				} else if (code[pc] == InstructionSet.GOTO)
+					fail("Used a GOTO at optimization level " + level);
+				else if (code[pc] == InstructionSet.MULTIPLY)
+					multiply = pc;
+			}
+			assertEquals("Failed to compile the loop to a single backward branch at level " + level, 1, backward);
+			
+			// a * b doesn't change while the loop runs, so when optimizing it is worked out once in front of it.
+			// From DATA_FLOW up a and b are known to be 3 and 4 there, so it is worked out at compile time.
+			if (level >= Compiler.DATA_FLOW)
+				assertEquals("Failed to work a * b out at compile time.", -1, multiply);
+			else if (level >= Compiler.FOLD_CONSTANTS)
+				assertTrue("Failed to move a * b out of the loop at level " + level, multiply >= 0 && multiply < top);
+			else
+				assertTrue("Moved code out of the loop without optimizing.", multiply > top);
+		}
+		assertAnswer("Got the wrong answer after moving a * b.", "x", 104, source);
+	}
+	
+	@Test
+	public void longBodyTest() {
+		// Each line of the body is 9 bytes of code, too far to jump back over with a one byte offset.
+		String[] lines = new String[24];
+		lines[0] = "byte i = 0";
+		lines[1] = "byte x = 0";
+		lines[2] = "for (; i < 3; i = i + 1) {";
+		for (int i = 3; i < lines.length - 1; i ++)
+			lines[i] = "	x = x + 1";
+		lines[lines.length - 1] = "}";
+		assertAnswer("Failed to run a loop with a long body.", "x", 60, lines);
+	}
+	
+	@Test
+	public void budgetTest() {
+		byte[] code = new Compiler().compile(
+				"byte x = 0",
+				"while (1 == 1) {",
+				"	x = x + 1",
+				"}");
+		VerifiedProgram program = Verifier.verify(Arrays.copyOf(code, code.length - 1));
+		for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+			VirtualMachine vm = new VirtualMachine();
+			vm.setEngine(engine);
+			ExecutionResult result = vm.run(program, ExecutionBudget.instructions(1000));
+			assertTrue("Failed to stop a loop that never ends on " + engine, result.isBudgetExhausted());
+		}
+	}
+	
+	@Test
+	public void errorTest() {
+		String[][] programs = new String[][] {
+				{ "byte x = 0", "while (x < 3) {", "	x = x + 1" },
+				{ "byte x = 0", "while x < 3 {", "	x = x + 1", "}" },
+				{ "byte x = 0", "while (x < 3) {", "	if (x > 1) {", "	}" },
+				{ "for (byte i = 0; i < 3) {", "}" },
+				{ "for (byte i = 0; i < 3; i = i + 1; i = i + 1) {", "}" },
+				{ "for (byte i = 0; i < 3; byte j = 1) {", "}" },
+				{ "for (byte i = 0; ; i = i + 1) {", "}" },
+				{ "byte x = 0", "while (y < 3) {", "	x = x + 1", "}" },
+		};
+		for (String[] program : programs) {
+			try {
+				new Compiler().compile(program);
+				fail("Compiled " + Arrays.toString(program));
+			} catch (CompilationException e) {
+			}
+		}
+		
+		// A compiler that failed in the middle of a loop still compiles the next program properly.
+		Compiler c = new Compiler();
+		try {
+			c.compileProgram("byte a = 1", "while (a < 3) {", "	a = a + 1 +", "}");
+			fail("Compiled a broken loop body.");
+		} catch (CompilationException e) {
+		}
+		byte[] code = c.compileProgram("byte a = 1", "byte b = a * 2").bytecode();
+		VirtualMachine vm = new VirtualMachine();
+		assertTrue(vm.interpreter().interpret(Arrays.copyOf(code, code.length - 1)).isCompleted());
+		assertEquals("A failed loop left the compiler in a bad state.", 2, vm.interpreter().getRuntime().pullVar((byte) 0, (byte) 1));
+	}
+}
@@ -0,0 +1,122 @@
+package com.brew.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.brew.compiler.CompiledProgram;
+import com.brew.compiler.Compiler;
+import com.brew.compiler.ProgramCache;
+import com.brew.compiler.exceptions.CompilationException;
+import com.brew.vm.VirtualMachine;
+
+public class ProgramCacheTest {
+	
+	private static final String[] PROGRAM = new String[] {
+			"byte x = 5",
+			"if (x > 2) {",
+			"	x = x * 3",
+			"}",
+	};
+	
+	@Test
+	public void test() {
+		ProgramCache cache = new ProgramCache(8);
+		CompiledProgram program = cache.compile(PROGRAM);
+		assertArrayEquals("Compiled the program differently than the compiler does.", new Compiler().compile(PROGRAM), program.bytecode());
+		assertEquals("Failed to count a miss.", 1, cache.missCount());
+		
+		assertSame("Failed to keep a compiled program.", program, cache.compile(PROGRAM));
+		assertEquals("Failed to count a hit.", 1, cache.hitCount());
+		assertEquals("Got the hit rate wrong.", 0.5, cache.hitRate(), 0);
+		
+		// The verified program is kept too, so it can be run straight away.
+		assertSame("Failed to keep the verified program.", program.verified(), cache.compile(PROGRAM).verified());
+		assertTrue("Failed to run a cached program.", new VirtualMachine().run(program.verified()).isCompleted());
+		
+		// Changing the bytecode that was handed out mustn't change the program.
+		program.bytecode()[0] = 0;
+		assertArrayEquals("A compiled program was changed.", new Compiler().compile(PROGRAM), cache.compile(PROGRAM).bytecode());
+	}
+	
+	@Test
+	public void normalizeTest() {
+		ProgramCache cache = new ProgramCache(8);
+		CompiledProgram program = cache.compile(PROGRAM);
+		assertSame("Whitespace made a program look different.", program, cache.compile(
+				"  byte   x =\t5  ",
+				"if (x > 2)    {",
+				"x = x   * 3",
+				"   }"));
+		
+		// Blank lines move the lines of the instructions, so they matter too.
+		CompiledProgram spread = cache.compile("byte x = 1", "", "", "byte y = x + 1");
+		CompiledProgram close = cache.compile("byte x = 1", "byte y = x + 1");
+		assertNotSame("Shared a program between sources with different lines.", spread, close);
+		assertEquals("Got the lines of another source.", 4, spread.lineOf(7));
+		assertEquals("Got the lines of another source.", new Compiler().compileProgram("byte x = 1", "byte y = x + 1").lineOf(7),
+				close.lineOf(7));
+		
+		// Whitespace that separates tokens does matter.
+		cache.compile("byte x = 10");
+		try {
+			cache.compile("byte x = 1 0");
+			fail("Joined tokens that were apart.");
+		} catch (CompilationException e) {
+			// This is expected.
+		}
+		// So does the optimization level.
+		assertNotSame("Ignored the optimization level.", program, cache.compile(Compiler.NO_OPTIMIZATION, PROGRAM));
+		assertEquals("Optimized a program that shouldn't be.", Compiler.NO_OPTIMIZATION, cache.compile(Compiler.NO_OPTIMIZATION, PROGRAM).optimizationLevel());
+	}
+	
+	@Test
+	public void evictionTest() {
+		ProgramCache cache = new ProgramCache(1);
+		CompiledProgram first = cache.compile("byte x = 1");
+		cache.compile("byte x = 2");
+		assertEquals("Failed to count an eviction.", 1, cache.evictionCount());
+		assertNotSame("Failed to evict the least recently used program.", first, cache.compile("byte x = 1"));
+		
+		cache = new ProgramCache(10);
+		for (int i = 0; i < 100; i ++)
+			cache.compile("byte x = " + i);
+		assertEquals("Held more programs than allowed.", 10, cache.size());
+		assertEquals("Miscounted the evictions.", 90, cache.evictionCount());
+		cache.clear();
+		assertEquals("Failed to clear the cache.", 0, cache.size());
+	}
+	
+	@Test
+	public void concurrentTest() throws Exception {
+		final ProgramCache cache = new ProgramCache(64);
+		ExecutorService threads = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<CompiledProgram[]>> results = new ArrayList<Future<CompiledProgram[]>>();
+			for (int t = 0; t < 8; t ++)
+				results.add(threads.submit(new Callable<CompiledProgram[]>() {
+					public CompiledProgram[] call() {
+						CompiledProgram[] programs = new CompiledProgram[20];
+						for (int run = 0; run < 50; run ++)
+							for (int i = 0; i < programs.length; i ++)
+								programs[i] = cache.compile("byte x = " + i, "x = x * 2");
+						return programs;
+					}
+				}));
+			CompiledProgram[] first = results.get(0).get();
+			for (Future<CompiledProgram[]> result : results)
+				assertArrayEquals("Threads were handed different programs for the same source.", first, result.get());
+		} finally {
+			threads.shutdown();
+		}
+		assertEquals("Lost a lookup.", 8 * 50 * 20, cache.hitCount() + cache.missCount());
+		assertEquals("Held the wrong number of programs.", 20, cache.size());
+	}
+}
@@ -0,0 +1,121 @@
+package com.brew.tests;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import com.brew.compiler.CompiledProgram;
+import com.brew.compiler.Compiler;
+import com.brew.compiler.ProgramFile;
+import com.brew.compiler.exceptions.ProgramFileException;
+import com.brew.vm.InstructionSet;
+import com.brew.vm.VirtualMachine;
+
+public class ProgramFileTest {
+	
+	private static final String[] PROGRAM = new String[] {
+			"byte x = 5",
+			"x = x + 1",
+			"",
+			"if (x > 2) {",
+			"	byte y = x * 3",
+			"}",
+	};
+	
+	@Test
+	public void test() throws Exception {
+		// Below INLINE the if statement has a frame of its own, so there is more than one frame to keep.
+		Compiler compiler = new Compiler();
+		compiler.setOptimizationLevel(Compiler.SUPERINSTRUCTIONS);
+		CompiledProgram program = compiler.compileProgram(PROGRAM);
+		Path path = Files.createTempFile("program", ProgramFile.EXTENSION);
+		try {
+			ProgramFile.write(program, path);
+			CompiledProgram loaded = ProgramFile.map(path);
+			
+			assertArrayEquals("Failed to keep the bytecode.", program.bytecode(), loaded.bytecode());
+			assertEquals("Failed to keep the optimization level.", program.optimizationLevel(), loaded.optimizationLevel());
+			assertArrayEquals("Failed to keep the constants.", program.constants(), loaded.constants());
+			assertArrayEquals("Found the wrong constants.", new byte[] { 1, 2, 3, 5 }, loaded.constants());
+			
+			assertEquals("Failed to keep the frames.", 2, loaded.frameCount());
+			assertEquals("Failed to keep the frames.", 0, loaded.framePosition(0));
+			assertEquals("Failed to keep the frames.", 1, loaded.frameSize(0));
+			assertEquals("Failed to keep the frames.", 1, loaded.frameSize(1));
+			
+			assertEquals("Failed to keep the variables.", 2, loaded.variableCount());
+			assertEquals("Failed to keep the variables.", "x", loaded.variableName(0));
+			assertEquals("Failed to keep the variables.", 0, loaded.variable("x").frame());
+			assertEquals("Failed to keep the variables.", 1, loaded.variable("y").frame());
+			assertEquals("Failed to keep the variables.", 0, loaded.variable("y").variableID());
+			assertNull("Found a variable that doesn't exist.", loaded.variable("z"));
+			
+			assertEquals("Failed to keep the line table.", program.lineTableSize(), loaded.lineTableSize());
+			for (int pc = 0; pc < program.length(); pc ++)
+				assertEquals("Failed to keep the line table.", program.lineOf(pc), loaded.lineOf(pc));
+			
+			// The program read back runs just like the one that was written.
+			assertTrue("Failed to run a program read from a file.", new VirtualMachine().run(loaded.verified()).isCompleted());
+		} finally {
+			Files.delete(path);
+		}
+	}
+	
+	@Test
+	public void lineTest() {
+		// The lines follow the instructions through the peephole pass. From DATA_FLOW up x is known to be 6,
+		// so there is nothing left for the superinstructions to do.
+		Compiler compiler = new Compiler();
+		compiler.setOptimizationLevel(Compiler.INLINE);
+		CompiledProgram program = compiler.compileProgram(PROGRAM);
+		byte[] code = program.bytecode();
+		int increment = indexOf(code, InstructionSet.INCREMENT_VAR), ifVar = indexOf(code, InstructionSet.IF_VAR);
+		assertTrue("Failed to use superinstructions.", increment > 0 && ifVar > increment);
+		assertEquals("Lost the line of an instruction.", 1, program.lineOf(increment - 1));
+		assertEquals("Lost the line of an instruction.", 2, program.lineOf(increment));
+		assertEquals("Lost the line of an instruction.", 4, program.lineOf(ifVar));
+		assertEquals("Lost the line of an instruction.", 5, program.lineOf(ifVar + 8));
+		assertEquals("Found a line before the first.", -1, new CompiledProgram(code, 0).lineOf(0));
+	}
+	
+	@Test
+	public void damageTest() {
+		ByteBuffer file = ProgramFile.encode(new Compiler().compileProgram(PROGRAM));
+		byte[] bytes = new byte[file.remaining()];
+		file.get(bytes);
+		
+		byte[] damaged = bytes.clone();
+		damaged[ProgramFile.HEADER_SIZE + 6] ^= 1;
+		assertUnreadable("Read a damaged program.", damaged);
+		
+		damaged = bytes.clone();
+		damaged[0] = 'X';
+		assertUnreadable("Read something that isn't a program.", damaged);
+		
+		damaged = bytes.clone();
+		damaged[5] = (byte) (ProgramFile.VERSION + 1);
+		assertUnreadable("Read a program from a later version.", damaged);
+		
+		assertUnreadable("Read a program that was cut short.", java.util.Arrays.copyOf(bytes, bytes.length - 1));
+	}
+	
+	private static void assertUnreadable(String message, byte[] file) {
+		try {
+			ProgramFile.decode(ByteBuffer.wrap(file));
+			fail(message);
+		} catch (ProgramFileException e) {
+			// This is expected.
+		}
+	}
+	
+	private static int indexOf(byte[] code, byte instruction) {
+		for (int pc = 0; pc < code.length; pc += InstructionSet.lengthOf(code[pc]))
+			if (code[pc] == instruction)
+				return pc;
+		return -1;
+	}
+}
@@ -0,0 +1,147 @@
+package com.brew.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import com.brew.compiler.CompiledProgram;
+import com.brew.compiler.Compiler;
+import com.brew.compiler.StackPointer;
+import com.brew.vm.InstructionSet;
+import com.brew.vm.Runtime;
+import com.brew.vm.VerifiedProgram;
+import com.brew.vm.Verifier;
+import com.brew.vm.VirtualMachine;
+
+/**
+ * The programs the tests share, and the helpers they share to compile programs and to run them on the checked
+ * path and on every engine.
+ * Every path has to leave the same variables behind.
+ * @author Jonathan Force
+ */
+final class Programs {
+	
+	/** Counts x up to 100, and counts in y how many times x was over 50 and under 75. */
+	static final byte[] NESTED_IFS = new byte[] {
+			InstructionSet.PUSH_FRAME, 2,
+			InstructionSet.PULL_VAR, 0, 0,
+			InstructionSet.PUSH, 1,
+			InstructionSet.ADD,
+			InstructionSet.PUSH_VAR, 0, 0,
+			InstructionSet.PUSH, 50,
+			InstructionSet.PULL_VAR, 0, 0,
+			InstructionSet.GREATER_THAN,
+			InstructionSet.IF, 17,
+			InstructionSet.PULL_VAR, 0, 0,
+			InstructionSet.PUSH, 75,
+			InstructionSet.GREATER_THAN,
+			InstructionSet.IF, 9,
+			InstructionSet.PULL_VAR, 0, 1,
+			InstructionSet.PUSH, 1,
+			InstructionSet.ADD,
+			InstructionSet.PUSH_VAR, 0, 1,
+			InstructionSet.PUSH, 100,
+			InstructionSet.PULL_VAR, 0, 0,
+			InstructionSet.LESS_THAN,
+			InstructionSet.IF, 2,
+			InstructionSet.GOTO, 2,
+	};
+	
+	/** The same, but leaves y on the stack. */
+	static final byte[] NESTED_IFS_RESULT = append(NESTED_IFS, new byte[] { InstructionSet.PULL_VAR, 0, 1 });
+	
+	private Programs() {
+	}
+	
+	/** @return the code with the instructions after it. */
+	private static byte[] append(byte[] code, byte[] instructions) {
+		byte[] appended = Arrays.copyOf(code, code.length + instructions.length);
+		System.arraycopy(instructions, 0, appended, code.length, instructions.length);
+		return appended;
+	}
+	
+	/** @return the source compiled at the optimization level. */
+	static CompiledProgram compile(int level, String ... source) {
+		Compiler c = new Compiler();
+		c.setOptimizationLevel(level);
+		return c.compileProgram(source);
+	}
+	
+	/** @return the number of times the instruction is in the code. Given a second byte, only the times the
+	 * instruction's first parameter is that byte count. */
+	static int count(byte[] code, byte ... instruction) {
+		int count = 0;
+		for (int pc = 0; pc < code.length; pc += InstructionSet.lengthOf(code[pc]))
+			if (code[pc] == instruction[0] && (instruction.length == 1 || code[pc + 1] == instruction[1]))
+				count ++;
+		return count;
+	}
+	
+	/** Run the code without the POP_FRAME at its end, so the program's frame is left behind, on the checked
+	 * path and on every engine that can run it.
+	 * @return the runtime the checked path left behind, once every engine has left the same frame. */
+	static Runtime run(String message, byte[] code) {
+		byte[] body = Arrays.copyOf(code, code.length - 1);
+		VirtualMachine checked = new VirtualMachine();
+		assertTrue(message + " Failed to run on the checked path.", checked.interpreter().interpret(body).isCompleted());
+		Runtime expected = checked.interpreter().getRuntime();
+		
+		VerifiedProgram program = Verifier.verify(body);
+		for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+			if (!engine.canRun(program))
+				continue;
+			VirtualMachine vm = new VirtualMachine();
+			vm.setEngine(engine);
+			assertTrue(message + " Failed to run on " + engine, vm.run(program).isCompleted());
+			Runtime actual = vm.runtime();
+			assertEquals(message + " Left a different frame on " + engine, expected.frameSize(0), actual.frameSize(0));
+			for (int id = 0; id < expected.frameSize(0); id ++)
+				assertEquals(message + " Left a different variable on " + engine, expected.pullVar((byte) 0, (byte) id),
+						actual.pullVar((byte) 0, (byte) id));
+		}
+		return expected;
+	}
+	
+	/** Run the program on the stack engine and on the other engine, and make sure they end up in the same state. */
+	static void sameOnBothEngines(VirtualMachine.Engine engine, byte[] code) {
+		VerifiedProgram program = Verifier.verify(code);
+		VirtualMachine stack = new VirtualMachine(), other = new VirtualMachine();
+		other.setEngine(engine);
+		assertTrue("Failed to complete on the stack engine.", stack.run(program).isCompleted());
+		assertTrue("Failed to complete on the " + engine + " engine.", other.run(program).isCompleted());
+		
+		assertArrayEquals("The engines left different stacks.", stack.stack().toArray(), other.stack().toArray());
+		Runtime expected = stack.runtime(), actual = other.runtime();
+		assertEquals("The engines left different frames.", expected.frameCount(), actual.frameCount());
+		for (byte frame = 0; frame < expected.frameCount(); frame ++) {
+			assertEquals("The engines left different frames.", expected.frameSize(frame), actual.frameSize(frame));
+			for (byte id = 0; id < expected.frameSize(frame); id ++)
+				assertEquals("The engines left variable " + id + " in frame " + frame + " different.",
+						expected.pullVar(frame, id), actual.pullVar(frame, id));
+		}
+	}
+	
+	/** @return the value of the variable, of whatever size, in the runtime. */
+	static long valueOf(Runtime runtime, StackPointer pointer) {
+		return runtime.pullWide(pointer.frame(), pointer.variableID(), pointer.size());
+	}
+	
+	/** Run the program on every path.
+	 * @return the value the variable holds once it has run. */
+	static long answerOf(String message, CompiledProgram program, String variable) {
+		return valueOf(run(message, program.bytecode()), program.variable(variable));
+	}
+	
+	/** Compile the source at every optimization level and run it on every path. The variable called answer
+	 * must always hold the answer. */
+	static void assertAnswer(String message, long answer, String ... source) {
+		assertAnswer(message, "answer", answer, source);
+	}
+	
+	/** Compile the source at every optimization level and run it on every path. The variable must always
+	 * hold the answer. */
+	static void assertAnswer(String message, String variable, long answer, String ... source) {
+		for (int level = Compiler.NO_OPTIMIZATION; level <= Compiler.DATA_FLOW; level ++)
+			assertEquals(message + " At level " + level + ".", answer, answerOf(message, compile(level, source), variable));
+	}
+}
@@ -0,0 +1,134 @@
+package com.brew.tests;
+
+import static org.junit.Assert.*;
+import static com.brew.tests.Programs.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.brew.compiler.Compiler;
+import com.brew.compiler.Peephole;
+import com.brew.vm.ExecutionBudget;
+import com.brew.vm.ExecutionResult;
+import com.brew.vm.InstructionSet;
+import com.brew.vm.RegisterTranslator;
+import com.brew.vm.VerifiedProgram;
+import com.brew.vm.Verifier;
+import com.brew.vm.VirtualMachine;
+
+public class RegisterInterpreterTest {
+	
+	@Test
+	public void test() {
+		// Every program must leave exactly the same stack and variables on both engines.
+		sameOnBothEngines(VirtualMachine.Engine.REGISTER, NESTED_IFS);
+		sameOnBothEngines(VirtualMachine.Engine.REGISTER, Peephole.optimize(NESTED_IFS));
+		
+		// The doubler leaves its result on the stack.
+		sameOnBothEngines(VirtualMachine.Engine.REGISTER, new byte[] {
+				InstructionSet.PUSH, 1,
+				InstructionSet.DUPLICATE,
+				InstructionSet.ADD,
+				InstructionSet.DUPLICATE,
+				InstructionSet.PUSH, 32,
+				InstructionSet.GREATER_THAN,
+				InstructionSet.IF, 2,
+				InstructionSet.GOTO, 2,
+		});
+		
+		// A value pulled from a variable must not change when the variable does.
+		sameOnBothEngines(VirtualMachine.Engine.REGISTER, new byte[] {
+				InstructionSet.PUSH_FRAME, 1,
+				InstructionSet.PUSH, 3,
+				InstructionSet.PUSH_VAR, 0, 0,
+				InstructionSet.PULL_VAR, 0, 0,
+				InstructionSet.DUPLICATE,
+				InstructionSet.PUSH, 9,
+				InstructionSet.PUSH_VAR, 0, 0,
+				InstructionSet.PULL_VAR, 0, 0,
+				InstructionSet.ADD,
+				InstructionSet.INCREMENT_VAR, 0, 0, 1,
+				InstructionSet.PULL_VAR, 0, 0,
+		});
+		
+		// Nor when its frame is popped and another takes its place.
+		sameOnBothEngines(VirtualMachine.Engine.REGISTER, new byte[] {
+				InstructionSet.PUSH_FRAME, 1,
+				InstructionSet.PUSH_FRAME, 1,
+				InstructionSet.PUSH, 4,
+				InstructionSet.PUSH_VAR, 1, 0,
+				InstructionSet.PULL_VAR, 1, 0,
+				InstructionSet.POP_FRAME,
+				InstructionSet.PUSH_FRAME, 1,
+				InstructionSet.PULL_VAR, 1, 0,
+				InstructionSet.ADD,
+		});
+		
+		// A value that is both stored and kept on the stack, and a comparison that isn't followed by an IF.
+		sameOnBothEngines(VirtualMachine.Engine.REGISTER, new byte[] {
+				InstructionSet.PUSH_FRAME, 2,
+				InstructionSet.PUSH, 7,
+				InstructionSet.PUSH, 5,
+				InstructionSet.SUBTRACT,
+				InstructionSet.DUPLICATE,
+				InstructionSet.PUSH_VAR, 0, 0,
+				InstructionSet.PULL_VAR, 0, 0,
+				InstructionSet.PUSH, 100,
+				InstructionSet.MULTIPLY,
+				InstructionSet.LESS_THAN,
+				InstructionSet.PUSH_VAR, 0, 1,
+		});
+		
+		// And whatever the compiler produces. The last POP_FRAME is left off so the variables can be compared.
+		Compiler compiler = new Compiler();
+		byte[] compiled = compiler.compile(
+				"byte x = 5",
+				"byte y = x * x - 3",
+				"if (y > x) {",
+				"	byte t = y / 2",
+				"	x = t + x",
+				"}",
+				"if (x == 16) {",
+				"	y = 0 - y",
+				"}");
+		sameOnBothEngines(VirtualMachine.Engine.REGISTER, Arrays.copyOf(compiled, compiled.length - 1));
+	}
+	
+	@Test
+	public void fewerInstructionsTest() {
+		VerifiedProgram program = Verifier.verify(NESTED_IFS);
+		VirtualMachine vm = new VirtualMachine();
+		long stackInstructions = vm.run(program).executedInstructions();
+		vm.setEngine(VirtualMachine.Engine.REGISTER);
+		long registerInstructions = vm.run(program).executedInstructions();
+		
+		assertTrue("The register program isn't shorter.", RegisterTranslator.translate(program).length() < program.length() / 3);
+		assertTrue("The register program ran " + registerInstructions + " instructions, the stack program ran " + stackInstructions,
+				registerInstructions * 2 < stackInstructions);
+	}
+	
+	@Test
+	public void budgetTest() {
+		VirtualMachine vm = new VirtualMachine();
+		vm.setEngine(VirtualMachine.Engine.REGISTER);
+		// This program counts forever on the stack.
+		ExecutionResult result = vm.run(Verifier.verify(new byte[] {
+				InstructionSet.PUSH, 0,
+				InstructionSet.PUSH, 1,
+				InstructionSet.ADD,
+				InstructionSet.GOTO, 2,
+		}), ExecutionBudget.instructions(1000));
+		assertTrue("Failed to stop a program that exhausted its instruction budget.", result.isBudgetExhausted());
+		assertEquals("Stopped at the wrong instruction.", 5, result.pc());
+		assertEquals("Lost the stack when the program was stopped.", 1, vm.stack().size());
+		assertEquals("Lost the stack when the program was stopped.", (byte) (result.executedInstructions() / 2), vm.stack().pop());
+	}
+	
+	@Test(expected = ArithmeticException.class)
+	public void divideByZeroTest() {
+		VirtualMachine vm = new VirtualMachine();
+		vm.setEngine(VirtualMachine.Engine.REGISTER);
+		vm.run(Verifier.verify(new byte[] { InstructionSet.PUSH, 1, InstructionSet.PUSH, 0, InstructionSet.DIVIDE }));
+	}
+}
@@ -0,0 +1,153 @@
+package com.brew.tests;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.brew.compiler.Compiler;
+import com.brew.vm.ExecutionBudget;
+import com.brew.vm.ExecutionResult;
+import com.brew.vm.InstructionSet;
+import com.brew.vm.VerifiedProgram;
+import com.brew.vm.Verifier;
+import com.brew.vm.VirtualMachine;
+import com.brew.vm.exceptions.VerificationException;
+
+public class VerifierTest {
+	
+	/** The doubler from VirtualMachineTest. */
+	private static final byte[] DOUBLER = new byte[] {
+			InstructionSet.PUSH, 1,
+			InstructionSet.DUPLICATE,
+			InstructionSet.ADD,
+			
+			InstructionSet.DUPLICATE,
+			InstructionSet.PUSH, 32,
+			InstructionSet.GREATER_THAN,
+			InstructionSet.IF, 2,
+			InstructionSet.GOTO, 2,
+	};
+	
+	@Test
+	public void test() {
+		VerifiedProgram program = Verifier.verify(DOUBLER);
+		assertEquals("Wrong maximum stack depth.", 3, program.maxStack());
+		assertEquals("Wrong stack depth at the loop head.", 1, program.stackDepthAt(2));
+		assertEquals("Instruction inside a parameter has a depth.", -1, program.stackDepthAt(1));
+		
+		// The verified program must behave exactly like the unverified one.
+		VirtualMachine vm = new VirtualMachine();
+		ExecutionResult result = vm.interpreter().interpret(program);
+		assertTrue("Failed to complete the verified doubler.", result.isCompleted());
+		assertEquals("Failed the verified doubler.", 1, vm.stack().size());
+		assertEquals("Failed the verified doubler.", 32, vm.stack().pop());
+		
+		VirtualMachine checked = new VirtualMachine();
+		ExecutionResult checkedResult = checked.interpreter().interpret(DOUBLER);
+		assertEquals("The fast path counted instructions differently.", checkedResult.executedInstructions(), result.executedInstructions());
+	}
+	
+	@Test
+	public void compiledTest() {
+		// Everything the compiler produces must verify, and run to the same variables.
+		Compiler compiler = new Compiler();
+		byte[] code = compiler.compose(
+				new byte[] { InstructionSet.PUSH_FRAME, 3 },
+				compiler.compileAssignmentStatement("byte x = 10 / 2"),
+				compiler.compileIfStatement("if (x > 3)", 8),
+				new byte[] { InstructionSet.PUSH_FRAME, 0, InstructionSet.PUSH, 66, InstructionSet.PUSH_VAR, 0, 2, InstructionSet.POP_FRAME },
+				compiler.compileAssignmentStatement("byte y = x * -3"));
+		
+		VirtualMachine vm = new VirtualMachine();
+		vm.interpreter().interpret(Verifier.verify(code));
+		assertEquals("Failed compiled verifier test.", 66, vm.interpreter().getRuntime().pullVar((byte) 0, (byte) 2));
+		assertEquals("Failed compiled verifier test.", -15, vm.interpreter().getRuntime().pullVar((byte) 0, (byte) 1));
+	}
+	
+	@Test
+	public void budgetTest() {
+		VirtualMachine vm = new VirtualMachine();
+		ExecutionResult result = vm.interpreter().interpret(Verifier.verify(new byte[] {
+				InstructionSet.PUSH_FRAME, 1,
+				InstructionSet.PULL_VAR, 0, 0,
+				InstructionSet.PUSH, 1,
+				InstructionSet.ADD,
+				InstructionSet.PUSH_VAR, 0, 0,
+				InstructionSet.GOTO, 2,
+		}), ExecutionBudget.instructions(500));
+		assertTrue("Failed to stop a verified program.", result.isBudgetExhausted());
+		assertEquals("Stopped at the wrong instruction.", 11, result.pc());
+		assertTrue("Stopped before the budget was used up.", result.executedInstructions() >= 500);
+	}
+	
+	@Test
+	public void superinstructionTest() {
+		VerifiedProgram program = Verifier.verify(new byte[] {
+				InstructionSet.PUSH_FRAME, 2,
+				InstructionSet.INCREMENT_VAR, 0, 1, 5,
+				InstructionSet.PULL_VARS, 0, 1, 0, 1,
+				InstructionSet.ADD,
+				InstructionSet.ADD_CONSTANT, 3,
+				InstructionSet.PUSH_VAR, 0, 0,
+				// Go round again until the first variable is at least 40.
+				InstructionSet.IF_VAR, 0, 0, InstructionSet.GREATER_THAN_EQUAL, 40, -21,
+		});
+		assertEquals("Wrong maximum stack depth.", 2, program.maxStack());
+		
+		VirtualMachine vm = new VirtualMachine();
+		vm.interpreter().interpret(program);
+		assertEquals("Failed verified superinstruction test.", 43, vm.interpreter().getRuntime().pullVar((byte) 0, (byte) 0));
+		assertEquals("Failed verified superinstruction test.", 20, vm.interpreter().getRuntime().pullVar((byte) 0, (byte) 1));
+	}
+	
+	@Test(expected = VerificationException.class)
+	public void badComparisonTest() {
+		Verifier.verify(new byte[] { InstructionSet.PUSH_FRAME, 1, InstructionSet.IF_VAR, 0, 0, InstructionSet.ADD, 1, 0 });
+	}
+	
+	@Test(expected = VerificationException.class)
+	public void underflowTest() {
+		Verifier.verify(new byte[] { InstructionSet.PUSH, 1, InstructionSet.ADD });
+	}
+	
+	@Test(expected = VerificationException.class)
+	public void missingParameterTest() {
+		Verifier.verify(new byte[] { InstructionSet.PUSH, 1, InstructionSet.PULL_VAR, 0 });
+	}
+	
+	@Test(expected = VerificationException.class)
+	public void jumpIntoParameterTest() {
+		Verifier.verify(new byte[] { InstructionSet.PUSH, 1, InstructionSet.GOTO, 1 });
+	}
+	
+	@Test(expected = VerificationException.class)
+	public void jumpPastEndTest() {
+		Verifier.verify(new byte[] { InstructionSet.PUSH, 1, InstructionSet.IF, 5 });
+	}
+	
+	@Test(expected = VerificationException.class)
+	public void inconsistentDepthTest() {
+		// Every time round the loop the stack grows by one.
+		Verifier.verify(new byte[] { InstructionSet.PUSH, 1, InstructionSet.GOTO, 0 });
+	}
+	
+	@Test(expected = VerificationException.class)
+	public void badVariableTest() {
+		Verifier.verify(new byte[] { InstructionSet.PUSH_FRAME, 2, InstructionSet.PULL_VAR, 0, 2 });
+	}
+	
+	@Test(expected = VerificationException.class)
+	public void badFrameTest() {
+		Verifier.verify(new byte[] { InstructionSet.PUSH_FRAME, 2, InstructionSet.POP_FRAME, InstructionSet.PULL_VAR, 0, 0 });
+	}
+	
+	@Test
+	public void errorPositionTest() {
+		try {
+			Verifier.verify(new byte[] { InstructionSet.PUSH_FRAME, 1, InstructionSet.PUSH, 4, 0x7F });
+			fail("Verified a program with an unknown instruction.");
+		} catch (VerificationException e) {
+			assertEquals("Reported the wrong instruction.", 4, e.pc());
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.brew.tests;
+
+import static org.junit.Assert.*;
+import static com.brew.tests.Programs.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.brew.vm.ExecutionBudget;
+import com.brew.vm.ExecutionResult;
+import com.brew.vm.InstructionSet;
+import com.brew.vm.VerifiedProgram;
+import com.brew.vm.Verifier;
+import com.brew.vm.VirtualMachine;
+import com.brew.vm.VirtualMachinePool;
+
+public class VirtualMachinePoolTest {
+	
+	@Test
+	public void test() {
+		VirtualMachinePool pool = new VirtualMachinePool(VirtualMachine.Engine.STACK, 1);
+		VirtualMachine vm = pool.acquire();
+		vm.stack().push((byte) 3);
+		vm.setEngine(VirtualMachine.Engine.REGISTER);
+		pool.release(vm);
+		assertEquals("Failed to keep a machine that was given back.", 1, pool.idleCount());
+		
+		// The same machine comes back, as good as new.
+		VirtualMachine again = pool.acquire();
+		assertSame("Failed to reuse a machine.", vm, again);
+		assertTrue("Failed to empty the stack of a machine that was given back.", again.stack().isEmpty());
+		assertEquals("Failed to reset the engine of a machine that was given back.", VirtualMachine.Engine.STACK, again.getEngine());
+		
+		// Only as many machines as the pool was told to keep are kept.
+		VirtualMachine other = pool.acquire();
+		pool.release(again);
+		pool.release(other);
+		assertEquals("Kept too many machines.", 1, pool.idleCount());
+	}
+	
+	@Test
+	public void reuseTest() {
+		// Variables left behind by one program mustn't be seen by the next.
+		VirtualMachine vm = new VirtualMachine();
+		vm.run(Verifier.verify(new byte[] { InstructionSet.PUSH_FRAME, 1, InstructionSet.PUSH, 9, InstructionSet.PUSH_VAR, 0, 0 }));
+		vm.stack().clear();
+		vm.run(Verifier.verify(new byte[] { InstructionSet.PUSH_FRAME, 1, InstructionSet.PULL_VAR, 0, 0 }));
+		assertEquals("A variable was left over from the last program.", 0, vm.stack().pop());
+	}
+	
+	@Test
+	public void concurrentTest() throws Exception {
+		final VerifiedProgram program = Verifier.verify(NESTED_IFS_RESULT);
+		for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+			final VirtualMachinePool pool = new VirtualMachinePool(engine, VirtualMachinePool.DEFAULT_MAXIMUM_IDLE);
+			ExecutorService threads = Executors.newFixedThreadPool(8);
+			try {
+				List<Future<Integer>> wrong = new ArrayList<Future<Integer>>();
+				for (int t = 0; t < 8; t ++)
+					wrong.add(threads.submit(new Callable<Integer>() {
+						public Integer call() {
+							int wrong = 0;
+							for (int run = 0; run < 500; run ++) {
+								VirtualMachine vm = pool.acquire();
+								try {
+									ExecutionResult result = vm.run(program, ExecutionBudget.instructions(1 << 20));
+									if (!result.isCompleted() || vm.stack().size() != 1 || vm.stack().pop() != 24)
+										wrong ++;
+								} finally {
+									pool.release(vm);
+								}
+							}
+							return wrong;
+						}
+					}));
+				for (Future<Integer> count : wrong)
+					assertEquals("Programs run at the same time on the " + engine + " engine got in each other's way.", 0, (int) count.get());
+			} finally {
+				threads.shutdown();
+			}
+			assertTrue("Kept too many machines.", pool.idleCount() <= VirtualMachinePool.DEFAULT_MAXIMUM_IDLE);
+		}
+	}
+}
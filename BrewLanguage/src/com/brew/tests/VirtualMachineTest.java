@@ -2,9 +2,14 @@ package com.brew.tests;
 
 import static org.junit.Assert.*;
 
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Test;
 
+import com.brew.vm.ExecutionBudget;
+import com.brew.vm.ExecutionResult;
 import com.brew.vm.InstructionSet;
+import com.brew.vm.Interpreter;
 import com.brew.vm.VirtualMachine;
 
 public class VirtualMachineTest {
@@ -38,4 +43,115 @@ public class VirtualMachineTest {
 		assertTrue("Failed advanced DUP/ADD/LOOP/CONDITIONAL test.", vm.stack().pop() == 32);
 	}
 	
+	@Test
+	public void dispatchTest() {
+		// Both dispatch loops must produce exactly the same state.
+		byte[] program = new byte[] {
+				InstructionSet.PUSH_FRAME, 1,
+				InstructionSet.PUSH, 3,
+				InstructionSet.PUSH_VAR, 0, 0,
+				
+				InstructionSet.PULL_VAR, 0, 0,
+				InstructionSet.PULL_VAR, 0, 0,
+				InstructionSet.PUSH, 2,
+				InstructionSet.DIVIDE,
+				InstructionSet.ADD,
+				InstructionSet.PUSH, -1,
+				InstructionSet.SUBTRACT,
+				InstructionSet.DUPLICATE,
+				InstructionSet.PUSH_VAR, 0, 0,
+				
+				InstructionSet.PUSH, 100,
+				InstructionSet.GREATER_THAN,
+				InstructionSet.IF, 2,
+				InstructionSet.GOTO, 7,
+				InstructionSet.PULL_VAR, 0, 0,
+		};
+		
+		for (Interpreter.Dispatch dispatch : Interpreter.Dispatch.values()) {
+			VirtualMachine vm = new VirtualMachine();
+			vm.interpreter().setDispatch(dispatch);
+			vm.interpreter().interpret(program);
+			assertEquals("Failed dispatch test with " + dispatch + ".", 1, vm.stack().size());
+			assertEquals("Failed dispatch test with " + dispatch + ".", (byte) 107, vm.stack().pop());
+		}
+	}
+	
+	@Test
+	public void budgetTest() {
+		VirtualMachine vm = new VirtualMachine();
+		// This program counts forever.
+		byte[] forever = new byte[] {
+				InstructionSet.PUSH, 0,
+				InstructionSet.PUSH, 1,
+				InstructionSet.ADD,
+				InstructionSet.GOTO, 2,
+		};
+		
+		ExecutionResult result = vm.interpreter().interpret(forever, ExecutionBudget.instructions(1000));
+		assertTrue("Failed to stop a program that exhausted its instruction budget.", result.isBudgetExhausted());
+		assertEquals("Stopped at the wrong instruction.", 5, result.pc());
+		assertTrue("Stopped before the budget was used up.", result.executedInstructions() >= 1000);
+		assertTrue("Ran too far past the budget.", result.executedInstructions() < 1000 + forever.length);
+		
+		vm.stack().clear();
+		result = vm.interpreter().interpret(forever, ExecutionBudget.deadline(20, TimeUnit.MILLISECONDS));
+		assertTrue("Failed to stop a program that passed its deadline.", result.isBudgetExhausted());
+		
+		// Without a budget, programs may run as long as they need to.
+		vm.stack().clear();
+		result = vm.interpreter().interpret(new byte[] {
+				InstructionSet.PUSH, 0,
+				
+				InstructionSet.PUSH, 1,
+				InstructionSet.ADD,
+				InstructionSet.DUPLICATE,
+				InstructionSet.PUSH, 120,
+				InstructionSet.GREATER_THAN,
+				InstructionSet.IF, 2,
+				InstructionSet.GOTO, 2,
+		});
+		assertTrue("Failed to complete a long program without a budget.", result.isCompleted());
+		assertEquals("Failed to complete a long program without a budget.", 120 * 7, result.executedInstructions());
+		assertEquals("Failed to complete a long program without a budget.", 120, vm.stack().pop());
+	}
+	
+	@Test
+	public void frameTest() {
+		VirtualMachine vm = new VirtualMachine();
+		
+		// Frames must not see each other's variables, and a new frame must not see the variables of a popped one.
+		vm.interpreter().interpret(new byte[] {
+				InstructionSet.PUSH_FRAME, 2,
+				InstructionSet.PUSH, 11,
+				InstructionSet.PUSH_VAR, 0, 1,
+				
+				InstructionSet.PUSH_FRAME, 3,
+				InstructionSet.PUSH, 22,
+				InstructionSet.PUSH_VAR, 1, 0,
+				InstructionSet.PUSH, 33,
+				InstructionSet.PUSH_VAR, 1, 2,
+				InstructionSet.POP_FRAME,
+				
+				InstructionSet.PUSH_FRAME, 3,
+				InstructionSet.PULL_VAR, 1, 0,
+		});
+		assertEquals("A new frame kept the value of a popped frame.", 0, vm.stack().pop());
+		assertEquals("Failed frame test.", 11, vm.interpreter().getRuntime().pullVar((byte) 0, (byte) 1));
+		assertEquals("Failed frame test.", 0, vm.interpreter().getRuntime().pullVar((byte) 0, (byte) 0));
+		assertEquals("Failed frame test.", 0, vm.interpreter().getRuntime().pullVar((byte) 1, (byte) 2));
+		assertEquals("Failed frame test.", 2, vm.interpreter().getRuntime().frameCount());
+		assertEquals("Failed frame test.", 3, vm.interpreter().getRuntime().frameSize(1));
+	}
+	
+	@Test(expected = RuntimeException.class)
+	public void frameBoundsTest() {
+		VirtualMachine vm = new VirtualMachine();
+		vm.interpreter().interpret(new byte[] {
+				InstructionSet.PUSH_FRAME, 2,
+				InstructionSet.PUSH_FRAME, 1,
+				InstructionSet.PULL_VAR, 1, 1,
+		});
+	}
+	
 }
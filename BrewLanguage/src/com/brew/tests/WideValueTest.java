@@ -0,0 +1,221 @@
+package com.brew.tests;
+
+import static org.junit.Assert.*;
+import static com.brew.tests.Programs.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.brew.compiler.CompiledProgram;
+import com.brew.compiler.Compiler;
+import com.brew.compiler.ProgramFile;
+import com.brew.compiler.StackPointer;
+import com.brew.compiler.exceptions.CompilationException;
+import com.brew.vm.InstructionSet;
+import com.brew.vm.Runtime;
+import com.brew.vm.VerifiedProgram;
+import com.brew.vm.Verifier;
+import com.brew.vm.VirtualMachine;
+import com.brew.vm.exceptions.VerificationException;
+
+public class WideValueTest {
+	
+	@Test
+	public void test() {
+		Runtime runtime = run("Failed to run a program with wide values.", new Compiler().compile(
+				"byte b = -3",
+				"int i = 100000",
+				"long l = 5000000000",
+				"int product = i * b",
+				"long sum = l + i * 2",
+				"int wrapped = 2147483647 + b + 4",
+				"byte narrowed = i + 1",
+				"long quotient = l / 7"));
+		
+		assertEquals("Failed to store a byte next to wide variables.", -3, runtime.pullVar((byte) 0, (byte) 0));
+		assertEquals("Failed to store an int.", 100000, runtime.pullInt((byte) 0, (byte) 1));
+		assertEquals("Failed to store a long.", 5000000000L, runtime.pullLong((byte) 0, (byte) 5));
+		assertEquals("Failed to widen a byte.", -300000, runtime.pullInt((byte) 0, (byte) 13));
+		assertEquals("Failed to do long arithmetic.", 5000200000L, runtime.pullLong((byte) 0, (byte) 17));
+		assertEquals("Failed to wrap around like an int.", 2147483647 + -3 + 4, runtime.pullInt((byte) 0, (byte) 25));
+		assertEquals("Failed to narrow an int.", (byte) 100001, runtime.pullVar((byte) 0, (byte) 29));
+		assertEquals("Failed to divide longs.", 5000000000L / 7, runtime.pullLong((byte) 0, (byte) 30));
+		
+		// Byte programs compile to exactly what they did before there were wider values.
+		assertArrayEquals("Changed the bytecode of a byte program.",
+				new byte[] {
+						InstructionSet.PUSH_FRAME, 1,
+						InstructionSet.PUSH, 7,
+						InstructionSet.PUSH_VAR, 0, 0,
+						InstructionSet.POP_FRAME },
+				new Compiler().compile("byte x = 7"));
+	}
+	
+	@Test
+	public void comparisonTest() {
+		Runtime runtime = run("Failed to compare wide values.", new Compiler().compile(
+				"long big = 3000000000",
+				"byte small = 100",
+				"byte bigger = 0",
+				"byte equal = 0",
+				"if (big > small) {",
+				"	bigger = 1",
+				"}",
+				"if (big == 3000000000) {",
+				"	equal = 1",
+				"}",
+				"if (small > 1000) {",
+				"	equal = 2",
+				"}"));
+		
+		assertEquals("Failed to compare a long with a byte.", 1, runtime.pullVar((byte) 0, (byte) 9));
+		assertEquals("Failed to compare longs.", 1, runtime.pullVar((byte) 0, (byte) 10));
+	}
+	
+	@Test
+	public void wideJumpTest() {
+		// Each of these lines is 13 bytes of code, so the body is far too long for a one byte offset.
+		String[] lines = new String[40];
+		lines[0] = "int x = 0";
+		lines[1] = "byte go = 0";
+		lines[2] = "if (go == 1) {";
+		for (int i = 3; i < lines.length - 1; i ++)
+			lines[i] = "	x = x + " + (i * 1000);
+		lines[lines.length - 1] = "}";
+		
+		// From DATA_FLOW up go is known to be 0, so the body goes altogether.
+		for (int level = Compiler.NO_OPTIMIZATION; level <= Compiler.INLINE; level ++) {
+			Compiler c = new Compiler();
+			c.setOptimizationLevel(level);
+			CompiledProgram program = c.compileProgram(lines);
+			byte[] code = program.bytecode();
+			boolean wide = false;
+			for (int pc = 0; pc < code.length; pc += InstructionSet.lengthOf(code[pc]))
+				wide |= code[pc] == InstructionSet.IF_WIDE;
+			assertTrue("Failed to use a wide jump for a long body.", wide);
+			
+			// The body is skipped, and every line still starts where the table says it does.
+			Runtime runtime = run("Failed to jump over a long body.", code);
+			assertEquals("Failed to jump over a long body.", 0, runtime.pullInt((byte) 0, (byte) 0));
+			int last = program.lineTableSize() - 1;
+			assertEquals("Lost the line of the body.", lines.length - 1, program.lineNumber(last));
+			assertEquals("Failed to move the lines along with the body.", InstructionSet.PULL_INT_VAR, code[program.linePosition(last)]);
+		}
+		
+		// And when the condition is true, the whole body runs.
+		lines[1] = "byte go = 1";
+		Runtime runtime = run("Failed to run a long body.", new Compiler().compileProgram(lines).bytecode());
+		int expected = 0;
+		for (int i = 3; i < lines.length - 1; i ++)
+			expected += i * 1000;
+		assertEquals("Failed to run a long body.", expected, runtime.pullInt((byte) 0, (byte) 0));
+	}
+	
+	@Test
+	public void errorTest() {
+		String[][] programs = new String[][] {
+				{ "byte x = 200" },
+				{ "int x = 3000000000" },
+				{ "long x = 99999999999999999999" },
+				{ "short x = 1" },
+		};
+		for (String[] program : programs) {
+			try {
+				new Compiler().compile(program);
+				fail("Compiled " + program[0]);
+			} catch (CompilationException e) {
+			}
+		}
+		
+		// A variable that runs off the end of its frame, and math on a comparison, are both caught.
+		byte[][] invalid = new byte[][] {
+				{ InstructionSet.PUSH_FRAME, 6, InstructionSet.PULL_INT_VAR, 0, 3, InstructionSet.POP_FRAME },
+				{ InstructionSet.PUSH_INT, 0, 0, 0, 1, InstructionSet.PUSH_INT, 0, 0, 0, 2, InstructionSet.INT_MATH, InstructionSet.EQUAL_TO },
+				{ InstructionSet.PUSH_INT, 0, 0, 0, 1, InstructionSet.LONG_MATH, InstructionSet.ADD },
+				{ InstructionSet.PUSH, 1, InstructionSet.CONVERT, 1, 3 },
+		};
+		for (byte[] program : invalid) {
+			try {
+				Verifier.verify(program);
+				fail("Verified " + Arrays.toString(program));
+			} catch (VerificationException e) {
+			}
+		}
+	}
+	
+	@Test
+	public void largeFrameTest() {
+		// A frame's size and a variable's id are unsigned, so a frame holds 255 bytes.
+		String[] lines = new String[201];
+		for (int i = 0; i < 200; i ++)
+			lines[i] = "byte b" + i + " = " + (i % 100);
+		lines[200] = "byte answer = b199 - b150";
+		for (int level = Compiler.NO_OPTIMIZATION; level <= Compiler.DATA_FLOW; level ++) {
+			Compiler c = new Compiler();
+			c.setOptimizationLevel(level);
+			c.setOutputs("answer");
+			CompiledProgram compiled = c.compileProgram(lines);
+			StackPointer answer = compiled.variable("answer");
+			byte[] code = compiled.bytecode();
+			VerifiedProgram program = Verifier.verify(Arrays.copyOf(code, code.length - 1));
+			for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+				VirtualMachine vm = new VirtualMachine();
+				vm.setEngine(engine);
+				assertTrue("Failed to run a large frame on " + engine, vm.run(program).isCompleted());
+				assertEquals("Got the wrong answer from a large frame on " + engine + " at level " + level, 99 - 50,
+						vm.runtime().pullVar(answer.frame(), answer.variableID()));
+			}
+		}
+		assertEquals("Failed to put the variables past the first 127 bytes.", 201, new Compiler().compileProgram(lines).frameSize(0));
+		
+		String[] longs = new String[32];
+		for (int i = 0; i < longs.length; i ++)
+			longs[i] = "long l" + i + " = " + i;
+		try {
+			new Compiler().compile(longs);
+			fail("Compiled a frame of more than 255 bytes.");
+		} catch (CompilationException e) {
+		}
+		assertEquals(31 * 8, new Compiler().compileProgram(Arrays.copyOf(longs, 31)).frameSize(0));
+	}
+	
+	@Test
+	public void engineTest() throws Exception {
+		byte[] code = new Compiler().compile("long x = 1", "x = x * 1000000000000", "int y = x / 1000");
+		VerifiedProgram program = Verifier.verify(Arrays.copyOf(code, code.length - 1));
+		assertTrue("Failed to notice the program uses wide values.", program.usesWideValues());
+		
+		VirtualMachine vm = new VirtualMachine();
+		assertTrue("Failed to run on the stack engine.", vm.run(program).isCompleted());
+		assertEquals("Got the wrong answer.", 1000000000000L, vm.runtime().pullLong((byte) 0, (byte) 0));
+		assertEquals("Got the wrong answer.", 1000000000, vm.runtime().pullInt((byte) 0, (byte) 8));
+		
+		// The other engines can't run wide values, and say so rather than quietly running the program on another.
+		for (VirtualMachine.Engine engine : new VirtualMachine.Engine[] { VirtualMachine.Engine.REGISTER, VirtualMachine.Engine.CLOSURE }) {
+			assertFalse("Claimed to run wide values on " + engine, engine.canRun(program));
+			vm = new VirtualMachine();
+			vm.setEngine(engine);
+			try {
+				vm.run(program);
+				fail("Ran wide values on " + engine);
+			} catch (UnsupportedOperationException e) {
+				assertTrue("Failed to name the engine.", e.getMessage().contains(engine.toString()));
+			}
+		}
+		
+		// The size of every variable is kept in a program file.
+		CompiledProgram compiled = new Compiler().compileProgram("long x = 1", "int y = 2", "byte z = 3");
+		CompiledProgram loaded = ProgramFile.decode(ProgramFile.encode(compiled));
+		assertEquals("Failed to keep the size of a long.", 8, loaded.variable("x").size());
+		assertEquals("Failed to keep the size of an int.", 4, loaded.variable("y").size());
+		assertEquals("Failed to keep the size of a byte.", 1, loaded.variable("z").size());
+		assertEquals("Failed to keep where a variable is.", 12, loaded.variable("z").variableID());
+		
+		// So are the int and long constants, next to the byte ones.
+		compiled = compile(Compiler.NO_OPTIMIZATION, "long x = 5000000000", "int y = 70000", "x = x * y + 70000");
+		loaded = ProgramFile.decode(ProgramFile.encode(compiled));
+		assertArrayEquals("Found the wrong wide constants.", new long[] { 70000, 5000000000L }, compiled.wideConstants());
+		assertArrayEquals("Failed to keep the wide constants.", compiled.wideConstants(), loaded.wideConstants());
+	}
+}
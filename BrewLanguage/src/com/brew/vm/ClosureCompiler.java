@@ -0,0 +1,342 @@
+package com.brew.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.brew.vm.ClosureProgram.Block;
+import com.brew.vm.ClosureProgram.Expression;
+import com.brew.vm.ClosureProgram.Statement;
+
+/**
+ * This class compiles a verified program to a {@link ClosureProgram}, a tree of nodes that each do one thing
+ * with their operands already bound. It walks the bytecode keeping the operand stack as expressions rather
+ * than values, so PULL_VAR x, PUSH 1, ADD, PUSH_VAR x becomes the single statement x = x + 1, and an IF that
+ * jumps forward over its body becomes an if statement that holds the body.
+ *
+ * An expression is worked out when the statement that uses it runs, which may be after the instructions it
+ * came from. So before every statement, every value left on the stack is stored in the register for its
+ * place on the stack, unless it is already there. That keeps the order things are worked out in, and means a
+ * variable can't change under an expression that reads it.
+ * @author Jonathan Force
+ */
+public class ClosureCompiler {
+	
+	private final VerifiedProgram program;
+	private final byte[] bytecode;
+	private final int stackBase;
+	/** Whether the IF at each index becomes an if statement rather than ending its block. */
+	private final boolean[] isStructured;
+	/** Whether a block starts at each index, and the number of the block that does. */
+	private final boolean[] isLeader;
+	private final int[] blockNumbers;
+	
+	/** The operand stack, as the expressions that will produce each value. */
+	private final Expression[] stack;
+	private int depth;
+	/** The number of bytecode instructions translated into the statements being built. */
+	private int instructions;
+	
+	private ClosureCompiler(VerifiedProgram program) {
+		this.program = program;
+		this.bytecode = program.code;
+		this.stackBase = program.maxLocals;
+		this.isStructured = new boolean[bytecode.length];
+		this.isLeader = new boolean[bytecode.length + 1];
+		this.blockNumbers = new int[bytecode.length + 1];
+		this.stack = new Expression[program.maxStack];
+	}
+	
+	/** Compile the program.
+	 * @return the program as a tree of nodes. It does exactly what the verified program does. */
+	public static ClosureProgram compile(VerifiedProgram program) {
+		if (program.wide)
+			throw new UnsupportedOperationException("Programs with values wider than a byte can't be compiled to closures.");
+		if (program.calls)
+			throw new UnsupportedOperationException("Programs with functions can't be compiled to closures.");
+		return new ClosureCompiler(program).compile();
+	}
+	
+	private ClosureProgram compile() {
+		findStructure();
+		
+		// Number the blocks, then build them.
+		int count = 0;
+		for (int pc = 0; pc < bytecode.length; pc += InstructionSet.lengthOf(bytecode[pc]))
+			if (isLeader[pc] && program.stackDepths[pc] != -1)
+				blockNumbers[pc] = count ++;
+		blockNumbers[bytecode.length] = Block.END;
+		
+		Block[] blocks = new Block[count];
+		for (int pc = 0; pc < bytecode.length; pc += InstructionSet.lengthOf(bytecode[pc]))
+			if (isLeader[pc] && program.stackDepths[pc] != -1)
+				blocks[blockNumbers[pc]] = block(pc);
+		return new ClosureProgram(blocks, program, stackBase);
+	}
+	
+	/** Decide which IFs become if statements, and where every block starts. */
+	private void findStructure() {
+		// The lowest and highest index of the jumps to each index.
+		int[] lowestSource = new int[bytecode.length + 1], highestSource = new int[bytecode.length + 1];
+		Arrays.fill(lowestSource, Integer.MAX_VALUE);
+		Arrays.fill(highestSource, -1);
+		for (int pc = 0; pc < bytecode.length; pc += InstructionSet.lengthOf(bytecode[pc])) {
+			int target = targetOf(pc);
+			if (program.stackDepths[pc] == -1 || target == -1)
+				continue;
+			lowestSource[target] = Math.min(lowestSource[target], pc);
+			highestSource[target] = Math.max(highestSource[target], pc);
+		}
+		
+		// An IF is an if statement if it jumps forward, nothing outside its body jumps into it, and every
+		// jump inside it is an if statement that stays inside. Inner IFs come later, so go backwards.
+		int[] reachable = reachableInstructions();
+		for (int i = reachable.length - 1; i >= 0; i --) {
+			int pc = reachable[i], target = targetOf(pc);
+			if (bytecode[pc] == InstructionSet.GOTO || target == -1 || target <= pc)
+				continue;
+			int bodyStart = pc + InstructionSet.lengthOf(bytecode[pc]);
+			boolean structured = true;
+			for (int j = i + 1; j < reachable.length && reachable[j] < target && structured; j ++) {
+				int inner = reachable[j], innerTarget = targetOf(inner);
+				if (lowestSource[inner] < bodyStart || highestSource[inner] >= target)
+					structured = false;
+				else if (innerTarget != -1 && (!isStructured[inner] || innerTarget > target))
+					structured = false;
+			}
+			isStructured[pc] = structured;
+		}
+		
+		isLeader[0] = true;
+		for (int pc : reachable) {
+			int target = targetOf(pc);
+			if (target != -1 && !isStructured[pc]) {
+				isLeader[target] = true;
+				isLeader[pc + InstructionSet.lengthOf(bytecode[pc])] = true;
+			}
+		}
+	}
+	
+	/** Build the block that starts at pc. */
+	private Block block(int pc) {
+		startWithRegisters(pc);
+		instructions = 0;
+		List<Statement> statements = new ArrayList<Statement>();
+		while (true) {
+			byte inst = bytecode[pc];
+			int next = pc + InstructionSet.lengthOf(inst);
+			int target = targetOf(pc);
+			
+			if (target != -1 && !isStructured[pc]) {
+				instructions ++;
+				// The block ends with a jump.
+				Expression condition = null;
+				if (inst == InstructionSet.IF)
+					condition = pop();
+				else if (inst == InstructionSet.IF_VAR)
+					condition = variableComparison(pc);
+				flush(statements);
+				Statement[] body = statements.toArray(new Statement[statements.size()]);
+				if (condition == null)
+					return new Block(body, instructions, null, blockNumbers[target], Block.END, target <= pc, false, pc, depth);
+				return new Block(body, instructions, condition, blockNumbers[next], blockNumbers[target], false, target <= pc, pc, depth);
+			}
+			
+			pc = translate(pc, statements);
+			if (pc == bytecode.length || isLeader[pc]) {
+				// The block falls through to the next one.
+				flush(statements);
+				Statement[] body = statements.toArray(new Statement[statements.size()]);
+				return new Block(body, instructions, null, blockNumbers[pc], Block.END, false, false, pc, depth);
+			}
+		}
+	}
+	
+	/** Translate the instruction at pc into statements, along with the whole body if it is an if statement.
+	 * @return the index of the instruction after it. */
+	private int translate(int pc, List<Statement> statements) {
+		byte inst = bytecode[pc];
+		int next = pc + InstructionSet.lengthOf(inst);
+		instructions ++;
+		
+		switch (inst) {
+		case InstructionSet.PUSH :
+			push(new ClosureProgram.Constant(bytecode[pc + 1]));
+			break;
+		case InstructionSet.DUPLICATE : {
+			// Don't work the same expression out twice.
+			if (!stack[depth - 1].isLeaf()) {
+				statements.add(new ClosureProgram.Store(stackBase + depth - 1, stack[depth - 1]));
+				stack[depth - 1] = new ClosureProgram.Register(stackBase + depth - 1);
+			}
+			push(stack[depth - 1]);
+			break;
+		}
+		case InstructionSet.PULL_VAR :
+			push(new ClosureProgram.Register(program.slots[pc]));
+			break;
+		case InstructionSet.PULL_VARS :
+			// The verifier keeps the second variable's slot where its first parameter is.
+			push(new ClosureProgram.Register(program.slots[pc]));
+			push(new ClosureProgram.Register(program.slots[pc + 1]));
+			break;
+		case InstructionSet.ADD :
+		case InstructionSet.SUBTRACT :
+		case InstructionSet.MULTIPLY :
+		case InstructionSet.DIVIDE : {
+			Expression right = pop(), left = pop();
+			push(arithmetic(inst, left, right));
+			break;
+		}
+		case InstructionSet.ADD_CONSTANT :
+			push(addConstant(pop(), bytecode[pc + 1]));
+			break;
+		case InstructionSet.GREATER_THAN :
+		case InstructionSet.GREATER_THAN_EQUAL :
+		case InstructionSet.LESS_THAN :
+		case InstructionSet.LESS_THAN_EQUAL :
+		case InstructionSet.EQUAL_TO : {
+			// The left hand side is on top.
+			Expression left = pop(), right = pop();
+			push(comparison(inst, left, right));
+			break;
+		}
+		case InstructionSet.PUSH_VAR : {
+			Expression value = pop();
+			int slot = program.slots[pc];
+			flush(statements);
+			if (value instanceof ClosureProgram.AddToRegister && ((ClosureProgram.AddToRegister) value).slot == slot)
+				statements.add(new ClosureProgram.Increment(slot, ((ClosureProgram.AddToRegister) value).amount));
+			else if (!(value instanceof ClosureProgram.Register) || ((ClosureProgram.Register) value).slot != slot)
+				statements.add(new ClosureProgram.Store(slot, value));
+			break;
+		}
+		case InstructionSet.INCREMENT_VAR :
+			flush(statements);
+			statements.add(new ClosureProgram.Increment(program.slots[pc], bytecode[pc + 3]));
+			break;
+		case InstructionSet.PUSH_FRAME :
+			flush(statements);
+			statements.add(new ClosureProgram.PushFrame(bytecode[pc + 1]));
+			break;
+		case InstructionSet.POP_FRAME :
+			flush(statements);
+			statements.add(new ClosureProgram.PopFrame());
+			break;
+		case InstructionSet.DEBUG_OUT :
+			flush(statements);
+			statements.add(new ClosureProgram.DebugOut(stack[depth - 1]));
+			break;
+		case InstructionSet.DEBUG_STACK :
+			flush(statements);
+			statements.add(new ClosureProgram.DebugStack(depth));
+			break;
+		case InstructionSet.IF :
+		case InstructionSet.IF_VAR : {
+			Expression condition = (inst == InstructionSet.IF)? pop() : variableComparison(pc);
+			flush(statements);
+			int target = targetOf(pc), outer = instructions;
+			
+			// The body starts and ends with every value on the stack in its register.
+			instructions = 0;
+			List<Statement> body = new ArrayList<Statement>();
+			int at = next;
+			while (at < target)
+				at = translate(at, body);
+			flush(body);
+			statements.add(new ClosureProgram.If(condition, body.toArray(new Statement[body.size()]), instructions));
+			instructions = outer;
+			startWithRegisters(target);
+			return target;
+		}
+		default :
+			throw new IllegalStateException("A verified program has an unknown instruction : " + inst);
+		}
+		return next;
+	}
+	
+	/** @return the condition of the IF_VAR at pc. The variable is on the left. */
+	private Expression variableComparison(int pc) {
+		return comparison(bytecode[pc + 3], new ClosureProgram.Register(program.slots[pc]), new ClosureProgram.Constant(bytecode[pc + 4]));
+	}
+	
+	private static Expression arithmetic(byte inst, Expression left, Expression right) {
+		switch (inst) {
+		case InstructionSet.ADD :
+			if (right instanceof ClosureProgram.Constant)
+				return addConstant(left, ((ClosureProgram.Constant) right).value);
+			return new ClosureProgram.Add(left, right);
+		case InstructionSet.SUBTRACT :
+			if (right instanceof ClosureProgram.Constant)
+				return addConstant(left, -((ClosureProgram.Constant) right).value);
+			return new ClosureProgram.Subtract(left, right);
+		case InstructionSet.MULTIPLY :
+			return new ClosureProgram.Multiply(left, right);
+		default :
+			return new ClosureProgram.Divide(left, right);
+		}
+	}
+	
+	/** @return the expression plus the amount. Adding to a variable is common enough to have its own node. */
+	private static Expression addConstant(Expression left, int amount) {
+		if (left instanceof ClosureProgram.Register)
+			return new ClosureProgram.AddToRegister(((ClosureProgram.Register) left).slot, amount);
+		return new ClosureProgram.AddConstant(left, amount);
+	}
+	
+	private static Expression comparison(byte inst, Expression left, Expression right) {
+		switch (inst) {
+		case InstructionSet.GREATER_THAN : return new ClosureProgram.GreaterThan(left, right);
+		case InstructionSet.GREATER_THAN_EQUAL : return new ClosureProgram.GreaterThanEqual(left, right);
+		case InstructionSet.LESS_THAN : return new ClosureProgram.LessThan(left, right);
+		case InstructionSet.LESS_THAN_EQUAL : return new ClosureProgram.LessThanEqual(left, right);
+		default : return new ClosureProgram.EqualTo(left, right);
+		}
+	}
+	
+	/** Start translating at pc with every value on the stack in the register for its place. */
+	private void startWithRegisters(int pc) {
+		depth = (pc == bytecode.length)? depth : program.stackDepths[pc];
+		for (int i = 0; i < depth; i ++)
+			stack[i] = new ClosureProgram.Register(stackBase + i);
+	}
+	
+	/** Store every value on the stack that isn't already in the register for its place there in that register. */
+	private void flush(List<Statement> statements) {
+		for (int i = 0; i < depth; i ++) {
+			Expression value = stack[i];
+			if (value instanceof ClosureProgram.Register && ((ClosureProgram.Register) value).slot == stackBase + i)
+				continue;
+			statements.add(new ClosureProgram.Store(stackBase + i, value));
+			stack[i] = new ClosureProgram.Register(stackBase + i);
+		}
+	}
+	
+	private void push(Expression expression) {
+		stack[depth ++] = expression;
+	}
+	
+	private Expression pop() {
+		return stack[-- depth];
+	}
+	
+	/** @return the index of every instruction that can run, in order. */
+	private int[] reachableInstructions() {
+		int[] reachable = new int[bytecode.length];
+		int count = 0;
+		for (int pc = 0; pc < bytecode.length; pc += InstructionSet.lengthOf(bytecode[pc]))
+			if (program.stackDepths[pc] != -1)
+				reachable[count ++] = pc;
+		return Arrays.copyOf(reachable, count);
+	}
+	
+	/** @return the index the jump at pc goes to, or -1 if the instruction at pc isn't a jump. */
+	private int targetOf(int pc) {
+		switch (bytecode[pc]) {
+		case InstructionSet.GOTO : return bytecode[pc + 1];
+		case InstructionSet.IF : return pc + 2 + bytecode[pc + 1];
+		case InstructionSet.IF_VAR : return pc + 6 + bytecode[pc + 5];
+		default : return -1;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package com.brew.vm;
+
+import com.brew.vm.ClosureProgram.Block;
+import com.brew.vm.ClosureProgram.Statement;
+
+/**
+ * This class runs programs compiled by the {@link ClosureCompiler}. It is another way to run a verified
+ * program, it leaves the operand stack and the variables exactly as the {@link Interpreter} would, and counts
+ * the same number of instructions against the budget. Rather than dispatching on each instruction, it runs
+ * a block's statements and then picks the next block.
+ * @author Jonathan Force
+ */
+public class ClosureInterpreter {
+	
+	private final OperandStack stack;
+	Runtime runtime = null;
+	/** The register of the first place on the operand stack, in the program being run. */
+	private int stackBase;
+	
+	public ClosureInterpreter(OperandStack stack) {
+		this.stack = stack;
+	}
+	
+	/** Run the verified program. The program may run for as long as it likes.
+	 * @return the way the program ended. */
+	public ExecutionResult interpret(VerifiedProgram program) {
+		return interpret(program.closureProgram(), ExecutionBudget.UNLIMITED);
+	}
+	
+	/** Run the verified program until it ends or uses up its budget.
+	 * @return the way the program ended. */
+	public ExecutionResult interpret(VerifiedProgram program, ExecutionBudget budget) {
+		return interpret(program.closureProgram(), budget);
+	}
+	
+	/** Run the compiled program until it ends or uses up its budget.
+	 * @return the way the program ended. If the budget ran out this says where, as an index in the bytecode. */
+	public ExecutionResult interpret(ClosureProgram program, ExecutionBudget budget) {
+		// The variables come first and the stack registers after them, just like the register interpreter.
+		runtime = new Runtime(program.source.code, budget, program.stackBase + program.source.maxStack, program.source.maxFrames, runtime);
+		stackBase = program.stackBase;
+		run(program);
+		return runtime.result();
+	}
+	
+	/** @return the runtime of the last program run. Beware : may be null. */
+	public Runtime getRuntime() {
+		return runtime;
+	}
+	
+	private void run(ClosureProgram program) {
+		final Block[] blocks = program.blocks;
+		final byte[] r = runtime.locals;
+		if (blocks.length == 0) {
+			runtime.i = program.source.code.length;
+			return;
+		}
+		
+		Block block = blocks[0];
+		while (true) {
+			runtime.totalExecutedInstructions += block.instructions;
+			for (Statement statement : block.statements)
+				statement.execute(r, this);
+			
+			int next;
+			if (block.condition == null || block.condition.test(r)) {
+				next = block.ifTrue;
+				if (block.backwardIfTrue && stopped(program, block))
+					return;
+			} else {
+				next = block.ifFalse;
+				if (block.backwardIfFalse && stopped(program, block))
+					return;
+			}
+			
+			if (next == Block.END) {
+				copyStack(block.depth);
+				runtime.i = program.source.code.length;
+				return;
+			}
+			block = blocks[next];
+		}
+	}
+	
+	/** Called when a block ends with a backward jump. If the budget has run out this stops the program
+	 * there, putting the stack back the way the stack machine would have it.
+	 * @return true if the program was stopped. */
+	private boolean stopped(ClosureProgram program, Block block) {
+		// The interpreter checks the budget before it counts the jump.
+		runtime.totalExecutedInstructions --;
+		boolean exhausted = runtime.budgetExhausted();
+		runtime.totalExecutedInstructions ++;
+		if (!exhausted)
+			return false;
+		runtime.stop(block.pc);
+		runtime.i = program.source.code.length;
+		copyStack(block.depth);
+		return true;
+	}
+	
+	/** Push the stack registers below the depth onto the operand stack. */
+	private void copyStack(int depth) {
+		int size = stack.size();
+		byte[] s = stack.reserve(depth);
+		System.arraycopy(runtime.locals, stackBase, s, size, depth);
+		stack.setSize(size + depth);
+	}
+	
+	/** Print every element on the Stack, and the variables. The program's own values on the stack are in
+	 * their registers, below the specified depth. */
+	void debugStack(int depth) {
+		int size = stack.size();
+		copyStack(depth);
+		System.out.println("[DEBUG STACK]");
+		for (int i = 0; i < stack.size(); i ++)
+			System.out.println(i+": " + stack.get(i));
+		System.out.println("[STACK VARIABLES]");
+		runtime.printVariables();
+		stack.setSize(size);
+	}
+}
@@ -0,0 +1,366 @@
+package com.brew.vm;
+
+/**
+ * This class is a verified program compiled by the {@link ClosureCompiler} to a tree of node objects. There is
+ * no opcode left to dispatch on : every expression is a node that knows its operands, and every statement
+ * is a node with its variable's slot and its value's expression already worked out. The nodes are run by
+ * the {@link ClosureInterpreter}.
+ *
+ * Like the register program, the variables live at the slots the verifier gave them in the runtime's
+ * locals, followed by one register for each place on the operand stack. Values that are still on the
+ * stack where paths meet are kept in those registers.
+ *
+ * The program is split into blocks of statements. A block runs from start to end and then either ends the
+ * program or picks the next block, so only loops and jumps that can't be turned into an if statement need
+ * blocks of their own. An IF that jumps forward over instructions that nothing else jumps into becomes an
+ * If statement holding those instructions.
+ * @author Jonathan Force
+ */
+public final class ClosureProgram {
+	
+	final Block[] blocks;
+	final VerifiedProgram source;
+	/** The register of the first place on the operand stack. */
+	final int stackBase;
+	
+	ClosureProgram(Block[] blocks, VerifiedProgram source, int stackBase) {
+		this.blocks = blocks;
+		this.source = source;
+		this.stackBase = stackBase;
+	}
+	
+	/** @return the number of blocks the program was split into. */
+	public int blockCount() {
+		return blocks.length;
+	}
+	
+	/** @return the verified program this was compiled from. */
+	public VerifiedProgram source() {
+		return source;
+	}
+	
+	/** A straight run of statements, and where to go once they are done. */
+	static final class Block {
+		
+		/** The block after the last one. */
+		static final int END = -1;
+		
+		final Statement[] statements;
+		/** The number of bytecode instructions the block runs, not counting those inside if statements. */
+		final int instructions;
+		/** The condition that decides the next block, or null if it is always ifTrue. */
+		final Expression condition;
+		final int ifTrue, ifFalse;
+		/** Whether going to the next block is a backward jump, which has to check the budget first. */
+		final boolean backwardIfTrue, backwardIfFalse;
+		/** The bytecode index of the instruction that ends the block, and the depth of the stack after it. */
+		final int pc, depth;
+		
+		Block(Statement[] statements, int instructions, Expression condition, int ifTrue, int ifFalse,
+				boolean backwardIfTrue, boolean backwardIfFalse, int pc, int depth) {
+			this.statements = statements;
+			this.instructions = instructions;
+			this.condition = condition;
+			this.ifTrue = ifTrue;
+			this.ifFalse = ifFalse;
+			this.backwardIfTrue = backwardIfTrue;
+			this.backwardIfFalse = backwardIfFalse;
+			this.pc = pc;
+			this.depth = depth;
+		}
+	}
+	
+	/** Something that works out a value without changing anything. */
+	static abstract class Expression {
+		
+		/** @return the value, which is always in the range of a byte. */
+		abstract int evaluate(byte[] r);
+		
+		/** @return the value as a truth value. Anything but 0 or 1 is an error. */
+		boolean test(byte[] r) {
+			int value = evaluate(r);
+			if (value == 1)
+				return true;
+			if (value != 0)
+				throw new RuntimeException("Invalid truth value : " + value);
+			return false;
+		}
+		
+		/** @return true if the expression only reads a constant or a register, so it is as cheap as it gets. */
+		boolean isLeaf() {
+			return false;
+		}
+	}
+	
+	static final class Constant extends Expression {
+		final byte value;
+		
+		Constant(byte value) {
+			this.value = value;
+		}
+		
+		int evaluate(byte[] r) {
+			return value;
+		}
+		
+		boolean isLeaf() {
+			return true;
+		}
+	}
+	
+	static final class Register extends Expression {
+		final int slot;
+		
+		Register(int slot) {
+			this.slot = slot;
+		}
+		
+		int evaluate(byte[] r) {
+			return r[slot];
+		}
+		
+		boolean isLeaf() {
+			return true;
+		}
+	}
+	
+	static final class Add extends Expression {
+		final Expression left, right;
+		
+		Add(Expression left, Expression right) {
+			this.left = left;
+			this.right = right;
+		}
+		
+		int evaluate(byte[] r) {
+			return (byte) (left.evaluate(r) + right.evaluate(r));
+		}
+	}
+	
+	static final class AddConstant extends Expression {
+		final Expression left;
+		final int amount;
+		
+		AddConstant(Expression left, int amount) {
+			this.left = left;
+			this.amount = amount;
+		}
+		
+		int evaluate(byte[] r) {
+			return (byte) (left.evaluate(r) + amount);
+		}
+	}
+	
+	static final class AddToRegister extends Expression {
+		final int slot, amount;
+		
+		AddToRegister(int slot, int amount) {
+			this.slot = slot;
+			this.amount = amount;
+		}
+		
+		int evaluate(byte[] r) {
+			return (byte) (r[slot] + amount);
+		}
+	}
+	
+	static final class Subtract extends Expression {
+		final Expression left, right;
+		
+		Subtract(Expression left, Expression right) {
+			this.left = left;
+			this.right = right;
+		}
+		
+		int evaluate(byte[] r) {
+			return (byte) (left.evaluate(r) - right.evaluate(r));
+		}
+	}
+	
+	static final class Multiply extends Expression {
+		final Expression left, right;
+		
+		Multiply(Expression left, Expression right) {
+			this.left = left;
+			this.right = right;
+		}
+		
+		int evaluate(byte[] r) {
+			return (byte) (left.evaluate(r) * right.evaluate(r));
+		}
+	}
+	
+	static final class Divide extends Expression {
+		final Expression left, right;
+		
+		Divide(Expression left, Expression right) {
+			this.left = left;
+			this.right = right;
+		}
+		
+		int evaluate(byte[] r) {
+			return (byte) (left.evaluate(r) / right.evaluate(r));
+		}
+	}
+	
+	/** A comparison. The left hand side is evaluated first, since it is the one that was pushed first. */
+	static abstract class Comparison extends Expression {
+		final Expression left, right;
+		
+		Comparison(Expression left, Expression right) {
+			this.left = left;
+			this.right = right;
+		}
+		
+		int evaluate(byte[] r) {
+			return test(r)? 1 : 0;
+		}
+		
+		abstract boolean test(byte[] r);
+	}
+	
+	static final class GreaterThan extends Comparison {
+		GreaterThan(Expression left, Expression right) {
+			super(left, right);
+		}
+		
+		boolean test(byte[] r) {
+			return left.evaluate(r) > right.evaluate(r);
+		}
+	}
+	
+	static final class GreaterThanEqual extends Comparison {
+		GreaterThanEqual(Expression left, Expression right) {
+			super(left, right);
+		}
+		
+		boolean test(byte[] r) {
+			return left.evaluate(r) >= right.evaluate(r);
+		}
+	}
+	
+	static final class LessThan extends Comparison {
+		LessThan(Expression left, Expression right) {
+			super(left, right);
+		}
+		
+		boolean test(byte[] r) {
+			return left.evaluate(r) < right.evaluate(r);
+		}
+	}
+	
+	static final class LessThanEqual extends Comparison {
+		LessThanEqual(Expression left, Expression right) {
+			super(left, right);
+		}
+		
+		boolean test(byte[] r) {
+			return left.evaluate(r) <= right.evaluate(r);
+		}
+	}
+	
+	static final class EqualTo extends Comparison {
+		EqualTo(Expression left, Expression right) {
+			super(left, right);
+		}
+		
+		boolean test(byte[] r) {
+			return left.evaluate(r) == right.evaluate(r);
+		}
+	}
+	
+	/** Something that changes the variables, the frames or the outside world. */
+	static abstract class Statement {
+		abstract void execute(byte[] r, ClosureInterpreter interpreter);
+	}
+	
+	static final class Store extends Statement {
+		final int slot;
+		final Expression value;
+		
+		Store(int slot, Expression value) {
+			this.slot = slot;
+			this.value = value;
+		}
+		
+		void execute(byte[] r, ClosureInterpreter interpreter) {
+			r[slot] = (byte) value.evaluate(r);
+		}
+	}
+	
+	static final class Increment extends Statement {
+		final int slot, amount;
+		
+		Increment(int slot, int amount) {
+			this.slot = slot;
+			this.amount = amount;
+		}
+		
+		void execute(byte[] r, ClosureInterpreter interpreter) {
+			r[slot] = (byte) (r[slot] + amount);
+		}
+	}
+	
+	static final class If extends Statement {
+		final Expression condition;
+		final Statement[] body;
+		/** The number of bytecode instructions the body runs, not counting those inside if statements. */
+		final int instructions;
+		
+		If(Expression condition, Statement[] body, int instructions) {
+			this.condition = condition;
+			this.body = body;
+			this.instructions = instructions;
+		}
+		
+		void execute(byte[] r, ClosureInterpreter interpreter) {
+			if (!condition.test(r))
+				return;
+			interpreter.runtime.totalExecutedInstructions += instructions;
+			for (Statement statement : body)
+				statement.execute(r, interpreter);
+		}
+	}
+	
+	static final class PushFrame extends Statement {
+		final byte size;
+		
+		PushFrame(byte size) {
+			this.size = size;
+		}
+		
+		void execute(byte[] r, ClosureInterpreter interpreter) {
+			interpreter.runtime.pushFrame(size);
+		}
+	}
+	
+	static final class PopFrame extends Statement {
+		void execute(byte[] r, ClosureInterpreter interpreter) {
+			interpreter.runtime.popFrame();
+		}
+	}
+	
+	static final class DebugOut extends Statement {
+		final Expression value;
+		
+		DebugOut(Expression value) {
+			this.value = value;
+		}
+		
+		void execute(byte[] r, ClosureInterpreter interpreter) {
+			System.out.println("[DEBUG] " + value.evaluate(r));
+		}
+	}
+	
+	static final class DebugStack extends Statement {
+		final int depth;
+		
+		DebugStack(int depth) {
+			this.depth = depth;
+		}
+		
+		void execute(byte[] r, ClosureInterpreter interpreter) {
+			interpreter.debugStack(depth);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.brew.vm;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class describes how much work a single call to {@link Interpreter#interpret(byte[], ExecutionBudget)}
+ * may do before it is stopped. A budget can limit the number of executed instructions, the wall-clock
+ * time, both, or neither.
+ * 
+ * The budget is only checked when the program branches backwards. Straight-line code always terminates,
+ * so only loops can run away, and checking at the loop's back edge keeps the check out of everything else.
+ * A program can therefore run a little past its instruction limit, by at most the length of the loop body.
+ * 
+ * With a cooperative budget the same check is also where a program notices that its thread was
+ * interrupted, see {@link #cooperative()}. On a virtual thread it is where the program lets the other
+ * virtual threads have a turn, see {@link #yielding()}.
+ * @author Jonathan Force
+ */
+public final class ExecutionBudget {
+	
+	/** This budget never runs out. */
+	public static final ExecutionBudget UNLIMITED = new ExecutionBudget(Long.MAX_VALUE, -1, false, false);
+	
+	private final long maximumInstructions, timeoutNanos;
+	private final boolean cooperative, yielding;
+	
+	private ExecutionBudget(long maximumInstructions, long timeoutNanos, boolean cooperative, boolean yielding) {
+		this.maximumInstructions = maximumInstructions;
+		this.timeoutNanos = timeoutNanos;
+		this.cooperative = cooperative;
+		this.yielding = yielding;
+	}
+	
+	/** @return a budget that stops the program once it has executed the specified number of instructions. */
+	public static ExecutionBudget instructions(long maximumInstructions) {
+		if (maximumInstructions < 0)
+			throw new IllegalArgumentException("The maximum number of instructions may not be negative.");
+		return new ExecutionBudget(maximumInstructions, -1, false, false);
+	}
+	
+	/** @return a budget that stops the program once it has run for the specified amount of time. The clock
+	 * starts when the program starts. */
+	public static ExecutionBudget deadline(long timeout, TimeUnit unit) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("The timeout may not be negative.");
+		return new ExecutionBudget(Long.MAX_VALUE, unit.toNanos(timeout), false, false);
+	}
+	
+	/** @return a budget that stops the program at whichever of the two limits it reaches first. */
+	public static ExecutionBudget of(long maximumInstructions, long timeout, TimeUnit unit) {
+		if (maximumInstructions < 0 || timeout < 0)
+			throw new IllegalArgumentException("Neither limit of a budget may be negative.");
+		return new ExecutionBudget(maximumInstructions, unit.toNanos(timeout), false, false);
+	}
+	
+	/** @return a budget with the same limits that also stops the program if its thread is interrupted. */
+	public ExecutionBudget cooperative() {
+		if (cooperative)
+			return this;
+		return new ExecutionBudget(maximumInstructions, timeoutNanos, true, yielding);
+	}
+	
+	/** @return a cooperative budget with the same limits that also gives up the processor every so often
+	 * while the program loops. Virtual threads only let each other run when one of them blocks or yields,
+	 * so without it a long loop would keep the others off the thread carrying it. An ordinary thread is
+	 * shared out by the operating system, and has no need of it. */
+	ExecutionBudget yielding() {
+		if (cooperative && yielding)
+			return this;
+		return new ExecutionBudget(maximumInstructions, timeoutNanos, true, true);
+	}
+	
+	/** @return the number of instructions the program may execute. Long.MAX_VALUE if there is no limit. */
+	public long maximumInstructions() {
+		return maximumInstructions;
+	}
+	
+	/** @return true if this budget limits the wall-clock time of the program. */
+	public boolean hasDeadline() {
+		return timeoutNanos >= 0;
+	}
+	
+	/** @return the number of nanoseconds the program may run for, or -1 if there is no deadline. */
+	public long timeoutNanos() {
+		return timeoutNanos;
+	}
+	
+	/** @return true if the program stops when its thread is interrupted. */
+	public boolean isCooperative() {
+		return cooperative;
+	}
+	
+	/** @return true if the program gives up the processor every so often while it loops. */
+	public boolean isYielding() {
+		return yielding;
+	}
+	
+	@Override
+	public String toString() {
+		if (this == UNLIMITED)
+			return "Unlimited budget";
+		return "Budget of " + (maximumInstructions == Long.MAX_VALUE ? "unlimited" : maximumInstructions) + " instructions"
+				+ (hasDeadline() ? " and " + timeoutNanos + " ns" : "") + (cooperative ? ", cooperative" : "") + (yielding ? ", yielding" : "");
+	}
+}
@@ -0,0 +1,69 @@
+package com.brew.vm;
+
+/**
+ * This class describes how a call to the interpreter ended.
+ * @author Jonathan Force
+ */
+public final class ExecutionResult {
+	
+	/** The ways a program can stop. */
+	public enum Status {
+		/** The program ran off the end of its instructions. */
+		COMPLETED,
+		/** The program was stopped at a backward branch because it used up its budget. */
+		BUDGET_EXHAUSTED,
+		/** The program was stopped at a backward branch because its thread was interrupted. Only a program
+		 * with a cooperative budget notices. */
+		CANCELLED
+	}
+	
+	private final Status status;
+	private final int pc;
+	private final long executedInstructions;
+	
+	public ExecutionResult(Status status, int pc, long executedInstructions) {
+		this.status = status;
+		this.pc = pc;
+		this.executedInstructions = executedInstructions;
+	}
+	
+	/** @return the way the program stopped. */
+	public Status status() {
+		return status;
+	}
+	
+	/** @return true if the program ran to the end of its instructions. */
+	public boolean isCompleted() {
+		return status == Status.COMPLETED;
+	}
+	
+	/** @return true if the program was stopped because it used up its budget. */
+	public boolean isBudgetExhausted() {
+		return status == Status.BUDGET_EXHAUSTED;
+	}
+	
+	/** @return true if the program was stopped because its thread was interrupted. */
+	public boolean isCancelled() {
+		return status == Status.CANCELLED;
+	}
+	
+	/** @return the index of the instruction the program stopped at. For a program that exhausted its
+	 * budget or was cancelled this is the backward branch that was not taken. */
+	public int pc() {
+		return pc;
+	}
+	
+	/** @return the number of instructions the program executed. */
+	public long executedInstructions() {
+		return executedInstructions;
+	}
+	
+	@Override
+	public String toString() {
+		if (isBudgetExhausted())
+			return "Budget exhausted at instruction " + pc + " after " + executedInstructions + " instructions";
+		if (isCancelled())
+			return "Cancelled at instruction " + pc + " after " + executedInstructions + " instructions";
+		return "Completed after " + executedInstructions + " instructions";
+	}
+}
@@ -0,0 +1,218 @@
+package com.brew.vm;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs programs in the background, so a caller with many small programs to run doesn't have to
+ * wait on each one in turn. Every program submitted is a job, and every job gets a future that is completed
+ * with what the program left behind once it ends.
+ *
+ * From Java 21 up every job gets a virtual thread of its own, and a job takes a permit before it starts, so
+ * no more than the maximum concurrency run at once. The VM is built for Java 17, so the virtual thread
+ * executor is looked up by name. On older JVMs the jobs share a fixed pool of that many ordinary threads,
+ * which keeps the limit by itself. Either way the rest wait their turn. The machines the jobs run on come
+ * from a {@link VirtualMachinePool}.
+ *
+ * Cancelling a job's future interrupts its thread. A program only looks at its thread where it checks its
+ * budget, at backward branches, so it stops at the next loop and the future is left cancelled. That is why
+ * jobs are run with a {@link ExecutionBudget#cooperative() cooperative} budget. On virtual threads the
+ * budget is also yielding, so a long loop gives the other jobs a turn instead of holding on to the thread
+ * carrying it.
+ * @author Jonathan Force
+ */
+public class ExecutionService {
+	
+	private final VirtualMachinePool machines;
+	/** The number of jobs that may run at once. A job takes a permit before it starts. Null on ordinary
+	 * threads, where the size of the pool is the limit. */
+	private final Semaphore running;
+	private final int maximumConcurrency;
+	private final ExecutorService threads;
+	private final boolean virtualThreads;
+	
+	/** @param maximumConcurrency The most programs that may run at the same time. */
+	public ExecutionService(int maximumConcurrency) {
+		this(VirtualMachine.Engine.STACK, maximumConcurrency);
+	}
+	
+	/** @param engine The engine every program is run on.
+	 * @param maximumConcurrency The most programs that may run at the same time. */
+	public ExecutionService(VirtualMachine.Engine engine, int maximumConcurrency) {
+		if (maximumConcurrency < 1)
+			throw new IllegalArgumentException("A service can't run " + maximumConcurrency + " programs at once.");
+		this.machines = new VirtualMachinePool(engine, maximumConcurrency);
+		this.maximumConcurrency = maximumConcurrency;
+		ExecutorService virtual = virtualThreadExecutor();
+		this.virtualThreads = virtual != null;
+		this.threads = virtualThreads? virtual : Executors.newFixedThreadPool(maximumConcurrency, new DaemonThreadFactory());
+		this.running = virtualThreads? new Semaphore(maximumConcurrency) : null;
+	}
+	
+	/** Verify and run the program. The program may run for as long as it likes.
+	 * @return a future completed with what the program left behind, or with the exception that stopped it.
+	 * A program that doesn't verify completes it with a VerificationException. */
+	public CompletableFuture<JobResult> submit(byte[] program) {
+		return submit(program, ExecutionBudget.UNLIMITED);
+	}
+	
+	/** Verify and run the program until it ends or uses up its budget.
+	 * @return a future completed with what the program left behind, or with the exception that stopped it.
+	 * A program that doesn't verify completes it with a VerificationException. */
+	public CompletableFuture<JobResult> submit(byte[] program, ExecutionBudget budget) {
+		if (program == null)
+			throw new NullPointerException("The program may not be null.");
+		return submit(new Job(program, null, budget));
+	}
+	
+	/** Run the verified program until it ends or uses up its budget.
+	 * @return a future completed with what the program left behind, or with the exception that stopped it. */
+	public CompletableFuture<JobResult> submit(VerifiedProgram program, ExecutionBudget budget) {
+		if (program == null)
+			throw new NullPointerException("The program may not be null.");
+		return submit(new Job(null, program, budget));
+	}
+	
+	private CompletableFuture<JobResult> submit(Job job) {
+		threads.execute(job);
+		return job;
+	}
+	
+	/** Stop taking new jobs. The jobs already submitted are still run. */
+	public void shutdown() {
+		threads.shutdown();
+	}
+	
+	/** Wait for every submitted job to finish after a {@link #shutdown}.
+	 * @return true if they all finished before the timeout. */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return threads.awaitTermination(timeout, unit);
+	}
+	
+	/** @return true if the jobs run on virtual threads, false if they share ordinary threads. */
+	public boolean usesVirtualThreads() {
+		return virtualThreads;
+	}
+	
+	/** @return the most programs that may run at the same time. */
+	public int getMaximumConcurrency() {
+		return maximumConcurrency;
+	}
+	
+	/** @return the engine every program is run on. */
+	public VirtualMachine.Engine getEngine() {
+		return machines.getEngine();
+	}
+	
+	/** Virtual threads came after the language level the VM is built for, so they are looked up by name.
+	 * @return an executor that starts a virtual thread per job, or null if the JVM is older than Java 21. */
+	private static ExecutorService virtualThreadExecutor() {
+		// Java 19 and 20 have the method too, but it throws unless preview features are turned on.
+		if (java.lang.Runtime.version().feature() < 21)
+			return null;
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+	
+	/** A program waiting to be run, and the future of what it leaves behind. */
+	private final class Job extends CompletableFuture<JobResult> implements Runnable {
+		
+		private final byte[] bytecode;
+		private final ExecutionBudget budget;
+		private VerifiedProgram program;
+		/** The thread running the program, or null while it isn't running. Guarded by this. */
+		private Thread runner;
+		
+		Job(byte[] bytecode, VerifiedProgram program, ExecutionBudget budget) {
+			this.bytecode = bytecode;
+			this.program = program;
+			this.budget = virtualThreads? budget.yielding() : budget.cooperative();
+		}
+		
+		public void run() {
+			if (isDone())
+				return;
+			if (running != null)
+				try {
+					running.acquire();
+				} catch (InterruptedException e) {
+					completeExceptionally(e);
+					return;
+				}
+			try {
+				if (!start())
+					return;
+				if (program == null)
+					program = Verifier.verify(bytecode);
+				complete(execute());
+			} catch (Throwable e) {
+				completeExceptionally(e);
+			} finally {
+				finish();
+				if (running != null)
+					running.release();
+			}
+		}
+		
+		/** Run the program on a machine from the pool, copying what it left behind before the machine is
+		 * given back. */
+		private JobResult execute() {
+			VirtualMachine vm = machines.acquire();
+			try {
+				ExecutionResult result = vm.run(program, budget);
+				return JobResult.of(result, vm.stack(), vm.runtime());
+			} finally {
+				machines.release(vm);
+			}
+		}
+		
+		/** @return false if the job was cancelled before it could start. */
+		private synchronized boolean start() {
+			if (isDone())
+				return false;
+			runner = Thread.currentThread();
+			return true;
+		}
+		
+		/** Let go of the thread, so a late cancel can't interrupt whatever it runs next. */
+		private void finish() {
+			synchronized (this) {
+				runner = null;
+			}
+			Thread.interrupted();
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled)
+				synchronized (this) {
+					if (runner != null)
+						runner.interrupt();
+				}
+			return cancelled;
+		}
+	}
+	
+	/** Makes the ordinary threads jobs share when there are no virtual threads. They don't keep the JVM alive. */
+	private static final class DaemonThreadFactory implements ThreadFactory {
+		
+		private static final AtomicInteger count = new AtomicInteger();
+		
+		public Thread newThread(Runnable job) {
+			Thread thread = new Thread(job, "Brew execution " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -2,6 +2,16 @@ package com.brew.vm;
 
 public class InstructionSet {
 	
+	/** The sizes, in bytes, of the kinds of value. A value wider than a byte takes up that many places on the
+	 * stack and in a frame, most significant byte first. A variable's id is the place its first byte is at. */
+	public static final int
+		BYTE_SIZE = 1,
+		INT_SIZE = 4,
+		LONG_SIZE = 8;
+	
+	/** The most bytes a frame can have. A frame's size, and the id of a variable in it, are unsigned bytes. */
+	public static final int MAX_FRAME_SIZE = 0xFF;
+	
 	public static final byte
 		DUPLICATE = 0x00,
 		PUSH = 0x01,
@@ -24,7 +34,152 @@ public class InstructionSet {
 		PUSH_VAR = 0x0F,
 		PULL_VAR = 0x10,
 		PUSH_FRAME = 0x11,
-		POP_FRAME = 0x12;
+		POP_FRAME = 0x12,
+		
+		// Superinstructions. Each does the work of a sequence of the instructions above in a single step,
+		// the compiler's peephole pass puts them in.
+		/** INCREMENT_VAR frame id c : add c to the variable. Replaces PULL_VAR, PUSH c, ADD, PUSH_VAR. */
+		INCREMENT_VAR = 0x13,
+		/** ADD_CONSTANT c : add c to the top of the stack. Replaces PUSH c, ADD. */
+		ADD_CONSTANT = 0x14,
+		/** IF_VAR frame id comparison c offset : if the variable compared with c is false, jump by the offset,
+		 * counted from the end of the instruction. Replaces PUSH c, PULL_VAR, comparison, IF offset. */
+		IF_VAR = 0x15,
+		/** PULL_VARS frame id frame id : push both variables, the second one on top. Replaces two PULL_VARs. */
+		PULL_VARS = 0x16,
+		
+		// Wide values. Their constants and offsets are stored most significant byte first.
+		/** PUSH_INT c : push the 4 byte int c. */
+		PUSH_INT = 0x17,
+		/** PUSH_LONG c : push the 8 byte long c. */
+		PUSH_LONG = 0x18,
+		/** INT_MATH op : pop two ints and push the int result of the arithmetic operator, wrapped like Java's. */
+		INT_MATH = 0x19,
+		/** LONG_MATH op : pop two longs and push the long result of the arithmetic operator. */
+		LONG_MATH = 0x1A,
+		/** INT_COMPARE comparison : pop two ints, the left hand side on top, and push 1 or 0 as a byte. */
+		INT_COMPARE = 0x1B,
+		/** LONG_COMPARE comparison : pop two longs, the left hand side on top, and push 1 or 0 as a byte. */
+		LONG_COMPARE = 0x1C,
+		/** PUSH_INT_VAR frame id : pop an int into the variable. */
+		PUSH_INT_VAR = 0x1D,
+		/** PULL_INT_VAR frame id : push the int variable. */
+		PULL_INT_VAR = 0x1E,
+		/** PUSH_LONG_VAR frame id : pop a long into the variable. */
+		PUSH_LONG_VAR = 0x1F,
+		/** PULL_LONG_VAR frame id : push the long variable. */
+		PULL_LONG_VAR = 0x20,
+		/** CONVERT from to : turn the value on top of the stack from one size to another. Widening keeps the
+		 * sign, narrowing keeps the low bytes. */
+		CONVERT = 0x21,
+		/** GOTO_WIDE target : jump to the 2 byte unsigned index. */
+		GOTO_WIDE = 0x22,
+		/** IF_WIDE offset : IF with a 2 byte signed offset, counted from the end of the instruction. */
+		IF_WIDE = 0x23,
+		
+		// Functions. Each call gets an activation of its own, whose frames are numbered from 0 again.
+		/** CALL target arguments result : start a new activation, pop the top arguments bytes of the stack into
+		 * its first frame, and jump to the 2 byte unsigned target. The function comes back with a value of
+		 * result bytes on the stack. */
+		CALL = 0x24,
+		/** RETURN : end the current activation, popping every frame it pushed, and carry on after the CALL.
+		 * The value returned must be all the function has on the stack. */
+		RETURN = 0x25;
+	
+	/** @return the number of bytes the instruction occupies, including its parameters, or -1 if
+	 * there is no such instruction. */
+	public static int lengthOf(byte inst) {
+		switch (inst) {
+		case PUSH :
+		case GOTO :
+		case IF :
+		case PUSH_FRAME :
+		case ADD_CONSTANT :
+			return 2;
+		case INT_MATH :
+		case LONG_MATH :
+		case INT_COMPARE :
+		case LONG_COMPARE :
+			return 2;
+		case PUSH_VAR :
+		case PULL_VAR :
+		case PUSH_INT_VAR :
+		case PULL_INT_VAR :
+		case PUSH_LONG_VAR :
+		case PULL_LONG_VAR :
+		case CONVERT :
+		case GOTO_WIDE :
+		case IF_WIDE :
+			return 3;
+		case INCREMENT_VAR :
+			return 4;
+		case PULL_VARS :
+		case PUSH_INT :
+		case CALL :
+			return 5;
+		case IF_VAR :
+			return 6;
+		case PUSH_LONG :
+			return 9;
+		case DUPLICATE :
+		case ADD :
+		case SUBTRACT :
+		case DIVIDE :
+		case MULTIPLY :
+		case DEBUG_OUT :
+		case DEBUG_STACK :
+		case GREATER_THAN :
+		case GREATER_THAN_EQUAL :
+		case LESS_THAN :
+		case LESS_THAN_EQUAL :
+		case EQUAL_TO :
+		case POP_FRAME :
+		case RETURN :
+			return 1;
+		default :
+			return -1;
+		}
+	}
+	
+	/** @return true if the instruction works on values wider than a byte, or jumps further than a byte can say. */
+	public static boolean isWide(byte inst) {
+		return inst >= PUSH_INT && inst <= IF_WIDE;
+	}
+	
+	/** @return true if the instruction is part of calling a function. */
+	public static boolean isCall(byte inst) {
+		return inst == CALL || inst == RETURN;
+	}
+	
+	/** @return true if the size is the size of a kind of value. */
+	public static boolean isValueSize(int size) {
+		return size == BYTE_SIZE || size == INT_SIZE || size == LONG_SIZE;
+	}
+	
+	/** @return the value of the specified size that starts at the index, most significant byte first. */
+	public static long read(byte[] bytes, int index, int size) {
+		long value = bytes[index];
+		for (int i = 1; i < size; i ++)
+			value = (value << 8) | (bytes[index + i] & 0xFF);
+		return value;
+	}
+	
+	/** Write the low bytes of the value, as many as the size, starting at the index, most significant byte first. */
+	public static void write(byte[] bytes, int index, int size, long value) {
+		for (int i = size - 1; i >= 0; i --) {
+			bytes[index + i] = (byte) value;
+			value >>= 8;
+		}
+	}
+	
+	/** @return the value, wrapped around to the specified size and widened back to a long with its sign. */
+	public static long wrap(long value, int size) {
+		switch (size) {
+		case BYTE_SIZE : return (byte) value;
+		case INT_SIZE : return (int) value;
+		default : return value;
+		}
+	}
 	
 	/** @return false if the instruction is a arithmetic operator. */
 	public static boolean isArithmeticOperator(byte inst) {
@@ -36,6 +191,18 @@ public class InstructionSet {
 		return inst >= GREATER_THAN && inst <= EQUAL_TO;
 	}
 	
+	/** @return the comparison that gives the same result with its two sides swapped. a > b is b < a. */
+	public static byte mirrorOf(byte comparison) {
+		switch (comparison) {
+		case GREATER_THAN : return LESS_THAN;
+		case GREATER_THAN_EQUAL : return LESS_THAN_EQUAL;
+		case LESS_THAN : return GREATER_THAN;
+		case LESS_THAN_EQUAL : return GREATER_THAN_EQUAL;
+		case EQUAL_TO : return EQUAL_TO;
+		default : throw new RuntimeException("Not comparison operator : " + comparison);
+		}
+	}
+	
 	/** @return the bytecode instruction for the conditional operator given by name.
 	 * @param name This is the name of the conditional operator. Valid inputs include >, <, >=, <=
 	 */
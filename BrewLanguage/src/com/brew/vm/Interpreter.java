@@ -1,7 +1,5 @@
 package com.brew.vm;
 
-import java.util.Stack;
-
 import com.brew.vm.exceptions.StackUnderflowException;
 
 /**
@@ -10,21 +8,558 @@ import com.brew.vm.exceptions.StackUnderflowException;
  */
 public class Interpreter {
 	
-	private final Stack<Byte> stack;
+	/** The ways the interpreter can map an instruction to the code that executes it. */
+	public enum Dispatch {
+		/** Test the instruction against each kind of instruction in turn. */
+		CHAIN,
+		/** Jump to the instruction's handler through a table indexed by the instruction. */
+		SWITCH
+	}
+	
+	/** The number of times a program has to be started, or one of its loops entered, before a verified
+	 * program is compiled to JVM bytecode. */
+	public static final int DEFAULT_JIT_THRESHOLD = 1000;
+	/** The threshold that keeps every program on the interpreter. */
+	public static final int JIT_NEVER = -1;
+	
+	private final OperandStack stack;
 	private boolean loud = false;
+	private int jitThreshold = DEFAULT_JIT_THRESHOLD;
 	private Runtime runtime = null;
+	private Dispatch dispatch = Dispatch.SWITCH;
 	
-	public Interpreter(Stack<Byte> stack) {
+	public Interpreter(OperandStack stack) {
 		this.stack = stack;
 	}
 	
 	/** This method takes in a program in the form of an array of instructions. Each instruction
-	 * will be executed in order starting from instructions[0].
+	 * will be executed in order starting from instructions[0]. The program may run for as long as it likes.
+	 * @param instructions The instruction array to process.
+	 * @return the way the program ended.
+	 */
+	public ExecutionResult interpret(byte[] instructions) {
+		return interpret(instructions, ExecutionBudget.UNLIMITED);
+	}
+	
+	/** This method takes in a program in the form of an array of instructions. Each instruction
+	 * will be executed in order starting from instructions[0] until the program ends or uses up its budget.
 	 * @param instructions The instruction array to process.
+	 * @param budget The amount of work the program may do before it is stopped.
+	 * @return the way the program ended. If the budget ran out this says where and after how many instructions.
+	 */
+	public ExecutionResult interpret(byte[] instructions, ExecutionBudget budget) {
+		runtime = new Runtime(instructions, budget, Runtime.INITIAL_LOCALS, Runtime.INITIAL_FRAMES, runtime);
+		
+		if (dispatch == Dispatch.SWITCH)
+			interpretBySwitch();
+		else
+			interpretByChain();
+		
+		return runtime.result();
+	}
+	
+	/** Run a program that has passed the {@link Verifier}. The program may run for as long as it likes.
+	 * @param program The verified program to run.
+	 * @return the way the program ended.
+	 */
+	public ExecutionResult interpret(VerifiedProgram program) {
+		return interpret(program, ExecutionBudget.UNLIMITED);
+	}
+	
+	/** Run a program that has passed the {@link Verifier}. The verifier has already proven that the stack
+	 * can't underflow and that every jump and variable is valid, so the program runs on a fast path that
+	 * doesn't check any of that again. The one exception is when debug messages are enabled, then the
+	 * program runs on the ordinary path so every instruction can be reported.
+	 * @param program The verified program to run.
+	 * @param budget The amount of work the program may do before it is stopped.
+	 * @return the way the program ended.
 	 */
-	public void interpret(byte[] instructions) {
-		runtime = new Runtime(instructions);
+	public ExecutionResult interpret(VerifiedProgram program, ExecutionBudget budget) {
+		runtime = new Runtime(program.code, budget, program.maxLocals, program.maxFrames, runtime);
+		
+		if (loud)
+			interpretBySwitch();
+		else
+			interpretVerified(program);
+		
+		return runtime.result();
+	}
+	
+	/** Choose how the interpreter maps each instruction to the code that executes it. */
+	public void setDispatch(Dispatch dispatch) {
+		if (dispatch == null)
+			throw new NullPointerException("The dispatch mode may not be null.");
+		this.dispatch = dispatch;
+	}
+	
+	/** @return the way the interpreter currently maps instructions to the code that executes them. */
+	public Dispatch getDispatch() {
+		return dispatch;
+	}
+	
+	/** Choose how hot a verified program must get before it is compiled by the {@link JitCompiler}.
+	 * @param threshold The number of times the program must be started, or one of its loops entered, first.
+	 * 0 compiles every program the first time it runs, and {@link #JIT_NEVER} never compiles anything.
+	 */
+	public void setJitThreshold(int threshold) {
+		if (threshold < JIT_NEVER)
+			throw new IllegalArgumentException("Invalid JIT threshold : " + threshold);
+		this.jitThreshold = threshold;
+	}
+	
+	/** @return the number of times a verified program must be started, or one of its loops entered,
+	 * before it is compiled. */
+	public int getJitThreshold() {
+		return jitThreshold;
+	}
+	
+	/** Run the current runtime by jumping straight to each instruction's case. The cases are dense
+	 * so this compiles to a single table lookup per instruction. */
+	private void interpretBySwitch() {
+		try {
+			while (runtime.notFinished()) {
+				byte instruction = runtime.currentInstruction();
+				
+				switch (instruction) {
+				case InstructionSet.DUPLICATE :
+					doDuplicate();
+					break;
+				case InstructionSet.PUSH :
+					doPush(runtime.popParameter());
+					break;
+				case InstructionSet.ADD :
+				case InstructionSet.SUBTRACT :
+				case InstructionSet.DIVIDE :
+				case InstructionSet.MULTIPLY :
+					doArithmeticOperator(instruction);
+					break;
+				case InstructionSet.DEBUG_OUT :
+					System.out.println("[DEBUG] " + stack.peek());
+					break;
+				case InstructionSet.DEBUG_STACK :
+					printStack();
+					break;
+				case InstructionSet.GOTO :
+					doBranch(runtime.i, runtime.parameter(1));
+					break;
+				case InstructionSet.IF :
+					doIf();
+					break;
+				case InstructionSet.GREATER_THAN :
+				case InstructionSet.GREATER_THAN_EQUAL :
+				case InstructionSet.LESS_THAN :
+				case InstructionSet.LESS_THAN_EQUAL :
+				case InstructionSet.EQUAL_TO :
+					doComparison(instruction);
+					break;
+				case InstructionSet.PUSH_VAR :
+					doPushVar(runtime.popParameter(), runtime.popParameter());
+					break;
+				case InstructionSet.PULL_VAR :
+					doPullVar(runtime.popParameter(), runtime.popParameter());
+					break;
+				case InstructionSet.PUSH_FRAME :
+					doPushFrame(runtime.popParameter());
+					break;
+				case InstructionSet.POP_FRAME :
+					doPopFrame();
+					break;
+				case InstructionSet.INCREMENT_VAR :
+					doIncrementVar(runtime.popParameter(), runtime.popParameter(), runtime.popParameter());
+					break;
+				case InstructionSet.ADD_CONSTANT :
+					doAddConstant(runtime.popParameter());
+					break;
+				case InstructionSet.IF_VAR :
+					doIfVar();
+					break;
+				case InstructionSet.PULL_VARS :
+					doPullVar(runtime.popParameter(), runtime.popParameter());
+					doPullVar(runtime.popParameter(), runtime.popParameter());
+					break;
+				case InstructionSet.PUSH_INT :
+					doPushWide(InstructionSet.INT_SIZE);
+					break;
+				case InstructionSet.PUSH_LONG :
+					doPushWide(InstructionSet.LONG_SIZE);
+					break;
+				case InstructionSet.INT_MATH :
+					doWideArithmetic(InstructionSet.INT_SIZE);
+					break;
+				case InstructionSet.LONG_MATH :
+					doWideArithmetic(InstructionSet.LONG_SIZE);
+					break;
+				case InstructionSet.INT_COMPARE :
+					doWideComparison(InstructionSet.INT_SIZE);
+					break;
+				case InstructionSet.LONG_COMPARE :
+					doWideComparison(InstructionSet.LONG_SIZE);
+					break;
+				case InstructionSet.PUSH_INT_VAR :
+					doPushWideVar(InstructionSet.INT_SIZE);
+					break;
+				case InstructionSet.PULL_INT_VAR :
+					doPullWideVar(InstructionSet.INT_SIZE);
+					break;
+				case InstructionSet.PUSH_LONG_VAR :
+					doPushWideVar(InstructionSet.LONG_SIZE);
+					break;
+				case InstructionSet.PULL_LONG_VAR :
+					doPullWideVar(InstructionSet.LONG_SIZE);
+					break;
+				case InstructionSet.CONVERT :
+					doConvert();
+					break;
+				case InstructionSet.GOTO_WIDE :
+					doBranch(runtime.i, (int) InstructionSet.read(runtime.instructions, runtime.i + 1, 2) & 0xFFFF);
+					break;
+				case InstructionSet.IF_WIDE :
+					doIfWide();
+					break;
+				case InstructionSet.CALL :
+					doCall();
+					break;
+				case InstructionSet.RETURN :
+					doReturn();
+					break;
+				default :
+					throw new RuntimeException("No such instruction : " + instruction);
+				}
+				
+				// Advance to the next instruction.
+				runtime.advance();
+				runtime.totalExecutedInstructions ++;
+			}
+		} catch (StackUnderflowException e) {
+			e.printStackTrace();
+			printStack();
+			System.exit(0);
+		}
+	}
+	
+	/** Run a verified program. The stack pointer, instruction pointer and instruction count are kept in
+	 * local variables and only written back when something outside this method needs to see them.
+	 * Once the program gets hot it is compiled, and the rest of it runs as compiled code. That happens
+	 * at the start of the program or at the start of a loop, just after the budget has been checked. */
+	private void interpretVerified(VerifiedProgram program) {
+		final byte[] code = program.code;
+		final int[] slots = program.slots;
+		// Both of these are only replaced when a call needs more room than the program itself.
+		byte[] locals = runtime.locals;
+		byte[] s = stack.reserve(program.maxStack);
+		// Where the current activation's variables start in locals. The verifier's slots count from here.
+		int base = 0;
+		final int threshold = jitThreshold;
+		int sp = stack.size();
+		int pc = 0;
+		long count = 0;
+		JitCode compiled = (threshold == JIT_NEVER)? null : program.hot(0, threshold);
+		// Where the compiled code takes over.
+		int entry = 0;
+		if (compiled != null)
+			pc = code.length;
 		
+		try {
+			while (pc < code.length) {
+				switch (code[pc]) {
+				case InstructionSet.DUPLICATE :
+					s[sp] = s[sp - 1];
+					sp ++;
+					pc ++;
+					break;
+				case InstructionSet.PUSH :
+					s[sp++] = code[pc + 1];
+					pc += 2;
+					break;
+				case InstructionSet.ADD :
+					sp --;
+					s[sp - 1] = (byte) (s[sp - 1] + s[sp]);
+					pc ++;
+					break;
+				case InstructionSet.SUBTRACT :
+					sp --;
+					s[sp - 1] = (byte) (s[sp - 1] - s[sp]);
+					pc ++;
+					break;
+				case InstructionSet.DIVIDE :
+					sp --;
+					s[sp - 1] = (byte) (s[sp - 1] / s[sp]);
+					pc ++;
+					break;
+				case InstructionSet.MULTIPLY :
+					sp --;
+					s[sp - 1] = (byte) (s[sp - 1] * s[sp]);
+					pc ++;
+					break;
+				case InstructionSet.DEBUG_OUT :
+					System.out.println("[DEBUG] " + s[sp - 1]);
+					pc ++;
+					break;
+				case InstructionSet.DEBUG_STACK :
+					stack.setSize(sp);
+					printStack();
+					pc ++;
+					break;
+				case InstructionSet.GOTO : {
+					int target = code[pc + 1];
+					if (target <= pc) {
+						runtime.totalExecutedInstructions = count;
+						if (runtime.budgetExhausted()) {
+							runtime.stop(pc);
+							pc = code.length;
+							break;
+						}
+						if (threshold != JIT_NEVER && (compiled = program.hot(target, threshold)) != null) {
+							entry = target;
+							pc = code.length;
+							break;
+						}
+					}
+					pc = target;
+					break;
+				}
+				case InstructionSet.IF : {
+					byte condition = s[--sp];
+					if (condition == 1)
+						pc += 2;
+					else if (condition == 0) {
+						int target = pc + 2 + code[pc + 1];
+						if (target <= pc) {
+							runtime.totalExecutedInstructions = count;
+							if (runtime.budgetExhausted()) {
+								runtime.stop(pc);
+								pc = code.length;
+								break;
+							}
+							if (threshold != JIT_NEVER && (compiled = program.hot(target, threshold)) != null) {
+								entry = target;
+								pc = code.length;
+								break;
+							}
+						}
+						pc = target;
+					} else {
+						throw new RuntimeException("Invalid truth value : " + condition);
+					}
+					break;
+				}
+				case InstructionSet.GREATER_THAN :
+					sp --;
+					s[sp - 1] = (byte) (s[sp] > s[sp - 1]? 1 : 0);
+					pc ++;
+					break;
+				case InstructionSet.GREATER_THAN_EQUAL :
+					sp --;
+					s[sp - 1] = (byte) (s[sp] >= s[sp - 1]? 1 : 0);
+					pc ++;
+					break;
+				case InstructionSet.LESS_THAN :
+					sp --;
+					s[sp - 1] = (byte) (s[sp] < s[sp - 1]? 1 : 0);
+					pc ++;
+					break;
+				case InstructionSet.LESS_THAN_EQUAL :
+					sp --;
+					s[sp - 1] = (byte) (s[sp] <= s[sp - 1]? 1 : 0);
+					pc ++;
+					break;
+				case InstructionSet.EQUAL_TO :
+					sp --;
+					s[sp - 1] = (byte) (s[sp] == s[sp - 1]? 1 : 0);
+					pc ++;
+					break;
+				case InstructionSet.PUSH_VAR :
+					locals[base + slots[pc]] = s[--sp];
+					pc += 3;
+					break;
+				case InstructionSet.PULL_VAR :
+					s[sp++] = locals[base + slots[pc]];
+					pc += 3;
+					break;
+				case InstructionSet.PUSH_FRAME :
+					runtime.pushFrame(code[pc + 1]);
+					locals = runtime.locals;
+					pc += 2;
+					break;
+				case InstructionSet.POP_FRAME :
+					runtime.popFrame();
+					pc ++;
+					break;
+				case InstructionSet.INCREMENT_VAR : {
+					int slot = base + slots[pc];
+					locals[slot] = (byte) (locals[slot] + code[pc + 3]);
+					pc += 4;
+					break;
+				}
+				case InstructionSet.ADD_CONSTANT :
+					s[sp - 1] = (byte) (s[sp - 1] + code[pc + 1]);
+					pc += 2;
+					break;
+				case InstructionSet.IF_VAR :
+					if (compare(code[pc + 3], locals[base + slots[pc]], code[pc + 4]))
+						pc += 6;
+					else {
+						int target = pc + 6 + code[pc + 5];
+						if (target <= pc) {
+							runtime.totalExecutedInstructions = count;
+							if (runtime.budgetExhausted()) {
+								runtime.stop(pc);
+								pc = code.length;
+								break;
+							}
+							if (threshold != JIT_NEVER && (compiled = program.hot(target, threshold)) != null) {
+								entry = target;
+								pc = code.length;
+								break;
+							}
+						}
+						pc = target;
+					}
+					break;
+				case InstructionSet.PULL_VARS :
+					// The verifier keeps the second variable's slot where its first parameter is.
+					s[sp++] = locals[base + slots[pc]];
+					s[sp++] = locals[base + slots[pc + 1]];
+					pc += 5;
+					break;
+				// Wide values are kept most significant byte first, just like they are in the code, so
+				// constants and variables can be copied as they are.
+				case InstructionSet.PUSH_INT :
+					System.arraycopy(code, pc + 1, s, sp, InstructionSet.INT_SIZE);
+					sp += InstructionSet.INT_SIZE;
+					pc += 5;
+					break;
+				case InstructionSet.PUSH_LONG :
+					System.arraycopy(code, pc + 1, s, sp, InstructionSet.LONG_SIZE);
+					sp += InstructionSet.LONG_SIZE;
+					pc += 9;
+					break;
+				case InstructionSet.INT_MATH :
+				case InstructionSet.LONG_MATH : {
+					int size = (code[pc] == InstructionSet.INT_MATH)? InstructionSet.INT_SIZE : InstructionSet.LONG_SIZE;
+					sp -= size;
+					long b = InstructionSet.read(s, sp, size), a = InstructionSet.read(s, sp - size, size);
+					// Only the low bytes are kept, so this wraps around exactly like int arithmetic would.
+					InstructionSet.write(s, sp - size, size, arithmetic(code[pc + 1], a, b));
+					pc += 2;
+					break;
+				}
+				case InstructionSet.INT_COMPARE :
+				case InstructionSet.LONG_COMPARE : {
+					int size = (code[pc] == InstructionSet.INT_COMPARE)? InstructionSet.INT_SIZE : InstructionSet.LONG_SIZE;
+					long a = InstructionSet.read(s, sp - size, size), b = InstructionSet.read(s, sp - 2 * size, size);
+					sp -= 2 * size;
+					s[sp++] = (byte) (compare(code[pc + 1], a, b)? 1 : 0);
+					pc += 2;
+					break;
+				}
+				case InstructionSet.PUSH_INT_VAR :
+					sp -= InstructionSet.INT_SIZE;
+					System.arraycopy(s, sp, locals, base + slots[pc], InstructionSet.INT_SIZE);
+					pc += 3;
+					break;
+				case InstructionSet.PULL_INT_VAR :
+					System.arraycopy(locals, base + slots[pc], s, sp, InstructionSet.INT_SIZE);
+					sp += InstructionSet.INT_SIZE;
+					pc += 3;
+					break;
+				case InstructionSet.PUSH_LONG_VAR :
+					sp -= InstructionSet.LONG_SIZE;
+					System.arraycopy(s, sp, locals, base + slots[pc], InstructionSet.LONG_SIZE);
+					pc += 3;
+					break;
+				case InstructionSet.PULL_LONG_VAR :
+					System.arraycopy(locals, base + slots[pc], s, sp, InstructionSet.LONG_SIZE);
+					sp += InstructionSet.LONG_SIZE;
+					pc += 3;
+					break;
+				case InstructionSet.CONVERT : {
+					int from = code[pc + 1], to = code[pc + 2];
+					long value = InstructionSet.read(s, sp - from, from);
+					sp += to - from;
+					InstructionSet.write(s, sp - to, to, value);
+					pc += 3;
+					break;
+				}
+				case InstructionSet.GOTO_WIDE : {
+					int target = (int) InstructionSet.read(code, pc + 1, 2) & 0xFFFF;
+					if (target <= pc) {
+						runtime.totalExecutedInstructions = count;
+						if (runtime.budgetExhausted()) {
+							runtime.stop(pc);
+							pc = code.length;
+							break;
+						}
+					}
+					pc = target;
+					break;
+				}
+				case InstructionSet.IF_WIDE : {
+					byte condition = s[--sp];
+					if (condition == 1)
+						pc += 3;
+					else if (condition == 0) {
+						int target = pc + 3 + (int) InstructionSet.read(code, pc + 1, 2);
+						if (target <= pc) {
+							runtime.totalExecutedInstructions = count;
+							if (runtime.budgetExhausted()) {
+								runtime.stop(pc);
+								pc = code.length;
+								break;
+							}
+						}
+						pc = target;
+					} else {
+						throw new RuntimeException("Invalid truth value : " + condition);
+					}
+					break;
+				}
+				case InstructionSet.CALL : {
+					// Recursion is the other way a program can run forever, so calls check the budget too.
+					runtime.totalExecutedInstructions = count;
+					if (runtime.budgetExhausted()) {
+						runtime.stop(pc);
+						pc = code.length;
+						break;
+					}
+					int arguments = code[pc + 3];
+					sp -= arguments;
+					runtime.call(pc + 5, sp, code[pc + 4]);
+					runtime.pushFrame((byte) arguments);
+					locals = runtime.locals;
+					base = runtime.base();
+					System.arraycopy(s, sp, locals, base, arguments);
+					// The function's stack starts where its arguments were, and it can go as deep as the program.
+					stack.setSize(sp);
+					s = stack.reserve(program.maxStack);
+					pc = (int) InstructionSet.read(code, pc + 1, 2) & 0xFFFF;
+					break;
+				}
+				case InstructionSet.RETURN :
+					pc = runtime.returnFromCall();
+					base = runtime.base();
+					break;
+				default :
+					throw new RuntimeException("No such instruction : " + code[pc]);
+				}
+				count ++;
+			}
+			
+			if (compiled != null) {
+				runtime.totalExecutedInstructions = count;
+				sp = compiled.run(entry, locals, s, sp, runtime);
+				count = runtime.totalExecutedInstructions;
+			}
+		} finally {
+			stack.setSize(sp);
+			runtime.i = pc;
+			runtime.totalExecutedInstructions = count;
+		}
+	}
+	
+	/** Run the current runtime by testing the instruction against each kind of instruction in turn.
+	 * This is the original dispatch loop, it is kept so the two can be compared. */
+	private void interpretByChain() {
 		while (runtime.notFinished()) {
 			byte instruction = runtime.currentInstruction();
 			//if (loud)
@@ -44,7 +579,7 @@ public class Interpreter {
 				else if (instruction == InstructionSet.DEBUG_STACK)
 					printStack();
 				else if (instruction == InstructionSet.GOTO)
-					doGoto(runtime.parameter(1));
+					doBranch(runtime.i, runtime.parameter(1));
 				else if (instruction == InstructionSet.IF)
 					doIf();
 				else if (InstructionSet.isComparisonOperator(instruction))
@@ -57,6 +592,45 @@ public class Interpreter {
 					doPullVar(runtime.popParameter(), runtime.popParameter());
 				else if (instruction == InstructionSet.PUSH_VAR)
 					doPushVar(runtime.popParameter(), runtime.popParameter());
+				else if (instruction == InstructionSet.INCREMENT_VAR)
+					doIncrementVar(runtime.popParameter(), runtime.popParameter(), runtime.popParameter());
+				else if (instruction == InstructionSet.ADD_CONSTANT)
+					doAddConstant(runtime.popParameter());
+				else if (instruction == InstructionSet.IF_VAR)
+					doIfVar();
+				else if (instruction == InstructionSet.PULL_VARS) {
+					doPullVar(runtime.popParameter(), runtime.popParameter());
+					doPullVar(runtime.popParameter(), runtime.popParameter());
+				} else if (instruction == InstructionSet.PUSH_INT)
+					doPushWide(InstructionSet.INT_SIZE);
+				else if (instruction == InstructionSet.PUSH_LONG)
+					doPushWide(InstructionSet.LONG_SIZE);
+				else if (instruction == InstructionSet.INT_MATH)
+					doWideArithmetic(InstructionSet.INT_SIZE);
+				else if (instruction == InstructionSet.LONG_MATH)
+					doWideArithmetic(InstructionSet.LONG_SIZE);
+				else if (instruction == InstructionSet.INT_COMPARE)
+					doWideComparison(InstructionSet.INT_SIZE);
+				else if (instruction == InstructionSet.LONG_COMPARE)
+					doWideComparison(InstructionSet.LONG_SIZE);
+				else if (instruction == InstructionSet.PUSH_INT_VAR)
+					doPushWideVar(InstructionSet.INT_SIZE);
+				else if (instruction == InstructionSet.PULL_INT_VAR)
+					doPullWideVar(InstructionSet.INT_SIZE);
+				else if (instruction == InstructionSet.PUSH_LONG_VAR)
+					doPushWideVar(InstructionSet.LONG_SIZE);
+				else if (instruction == InstructionSet.PULL_LONG_VAR)
+					doPullWideVar(InstructionSet.LONG_SIZE);
+				else if (instruction == InstructionSet.CONVERT)
+					doConvert();
+				else if (instruction == InstructionSet.GOTO_WIDE)
+					doBranch(runtime.i, (int) InstructionSet.read(runtime.instructions, runtime.i + 1, 2) & 0xFFFF);
+				else if (instruction == InstructionSet.IF_WIDE)
+					doIfWide();
+				else if (instruction == InstructionSet.CALL)
+					doCall();
+				else if (instruction == InstructionSet.RETURN)
+					doReturn();
 				else
 					throw new RuntimeException("No such instruction : " + instruction);
 				
@@ -104,22 +678,103 @@ public class Interpreter {
 	 * is equal to 0, do nothing. If the condition is neither, throw an exception. */
 	private void doIf() {
 		testForUnderflow(1);
-		short condition = stack.pop();
+		byte condition = stack.pop();
 		
 		if (loud)
 			System.out.println("If " + condition);
+		int pc = runtime.i;
 		if (condition == 0) {
 			// Condition is false.
-			doGoto(runtime.i + 2 + runtime.popParameter());
+			doBranch(pc, pc + 2 + runtime.popParameter());
 		} else if (condition == 1) {
 			// Condition is true.
-			doGoto(runtime.i + 2);
+			doGoto(pc + 2);
 		} else {
 			// This isn't C++, non 1 or 0 values are illegal.
 			throw new RuntimeException("Invalid truth value : " + condition);
 		}
 	}
 	
+	/** IF, with an offset 2 bytes wide. */
+	private void doIfWide() {
+		testForUnderflow(1);
+		byte condition = stack.pop();
+		
+		if (loud)
+			System.out.println("If " + condition);
+		int pc = runtime.i;
+		if (condition == 0)
+			doBranch(pc, pc + 3 + (int) InstructionSet.read(runtime.instructions, pc + 1, 2));
+		else if (condition == 1)
+			doGoto(pc + 3);
+		else
+			throw new RuntimeException("Invalid truth value : " + condition);
+	}
+	
+	/** Compare a variable with a constant, and jump if the comparison is false. This is PUSH, PULL_VAR,
+	 * a comparison and IF in one. */
+	private void doIfVar() {
+		int pc = runtime.i;
+		byte value = runtime.pullVar(runtime.parameter(1), runtime.parameter(2));
+		byte comparison = runtime.parameter(3), constant = runtime.parameter(4);
+		
+		if (loud)
+			System.out.println("If variable " + value + " compared with " + constant);
+		if (compare(comparison, value, constant))
+			doGoto(pc + 6);
+		else
+			doBranch(pc, pc + 6 + runtime.parameter(5));
+	}
+	
+	/** Call the function at the target. Its arguments come off the stack into the first frame of its
+	 * activation, in the order they were pushed. */
+	private void doCall() {
+		int pc = runtime.i;
+		int target = (int) InstructionSet.read(runtime.instructions, pc + 1, 2) & 0xFFFF;
+		byte arguments = runtime.parameter(3), result = runtime.parameter(4);
+		if (arguments < 0 || result < 0)
+			throw new RuntimeException("A function can't take " + arguments + " bytes or return " + result + " bytes.");
+		testForUnderflow(arguments);
+		
+		if (loud)
+			System.out.println("Calling " + target + " with " + arguments + " bytes of arguments");
+		// Recursion is the other way a program can run forever, so calls check the budget too.
+		if (runtime.budgetExhausted()) {
+			runtime.stop(pc);
+			return;
+		}
+		runtime.call(pc + 5, stack.size() - arguments, result);
+		runtime.pushFrame(arguments);
+		for (int k = arguments - 1; k >= 0; k --)
+			runtime.pushVar((byte) 0, (byte) k, stack.pop());
+		doGoto(target);
+	}
+	
+	/** Return from the current call. The function must leave exactly the value it returns on the stack. */
+	private void doReturn() {
+		if (runtime.callDepth() == 0)
+			throw new RuntimeException("There is no call to return from.");
+		int returned = stack.size() - runtime.stackBase();
+		if (returned != runtime.resultSize())
+			throw new RuntimeException("The function returned " + returned + " bytes instead of " + runtime.resultSize() + ".");
+		
+		if (loud)
+			System.out.println("Returning");
+		doGoto(runtime.returnFromCall());
+	}
+	
+	/** Jump from the instruction at pc to the location. Jumping backwards is the only way a program can
+	 * run forever, so this is where the budget is enforced. */
+	private void doBranch(int pc, int location) {
+		if (location <= pc && runtime.budgetExhausted()) {
+			if (loud)
+				System.out.println("Budget exhausted at " + pc);
+			runtime.stop(pc);
+			return;
+		}
+		doGoto(location);
+	}
+	
 	private void doGoto(int location) {
 		if (loud)
 			System.out.println("Going to " + location);
@@ -138,25 +793,115 @@ public class Interpreter {
 		byte
 			b = stack.pop(),
 			a = stack.pop();
-		String name = "";
 		
-		if (instruction == InstructionSet.ADD) {
+		switch (instruction) {
+		case InstructionSet.ADD :
 			stack.push((byte) (a + b));
-			name = "+";
-		} else if (instruction == InstructionSet.SUBTRACT) {
+			break;
+		case InstructionSet.SUBTRACT :
 			stack.push((byte) (a - b));
-			name = "-";
-		} else if (instruction == InstructionSet.DIVIDE) {
+			break;
+		case InstructionSet.DIVIDE :
 			stack.push((byte) (a / b));
-			name = "/";
-		} else if (instruction == InstructionSet.MULTIPLY) {
+			break;
+		case InstructionSet.MULTIPLY :
 			stack.push((byte) (a * b));
-			name = "*";
-		} else
+			break;
+		default :
 			throw new RuntimeException("Not arithmetic operator.");
+		}
+		
+		if (loud)
+			System.out.println("Doing simple arithmetic operation : " + a + " " + nameOf(instruction) + " " + b);
+	}
+	
+	/** Push the constant of the specified size that follows the instruction. */
+	private void doPushWide(int size) {
+		long value = InstructionSet.read(runtime.instructions, runtime.i + 1, size);
+		if (loud)
+			System.out.println("Pushing " + value);
+		stack.pushWide(value, size);
+		runtime.advanceBy(size);
+	}
+	
+	/** INT_MATH or LONG_MATH, the arithmetic operator is the parameter. */
+	private void doWideArithmetic(int size) {
+		byte operator = runtime.popParameter();
+		if (!InstructionSet.isArithmeticOperator(operator))
+			throw new RuntimeException("Not arithmetic operator.");
+		testForUnderflow(2 * size);
+		
+		long
+			b = stack.popWide(size),
+			a = stack.popWide(size);
+		stack.pushWide(arithmetic(operator, a, b), size);
+		
+		if (loud)
+			System.out.println("Doing wide arithmetic operation : " + a + " " + nameOf(operator) + " " + b);
+	}
+	
+	/** INT_COMPARE or LONG_COMPARE, the comparison is the parameter. */
+	private void doWideComparison(int size) {
+		byte comparison = runtime.popParameter();
+		testForUnderflow(2 * size);
+		
+		long
+			a = stack.popWide(size),
+			b = stack.popWide(size);
 		
 		if (loud)
-			System.out.println("Doing simple arithmetic operation : " + a + " " + name + " " + b);
+			System.out.println("Doing wide comparison " + a + " " + b);
+		stack.push((byte) (compare(comparison, a, b)? 1 : 0));
+	}
+	
+	private void doPushWideVar(int size) {
+		byte frameID = runtime.popParameter(), varID = runtime.popParameter();
+		if (loud)
+			System.out.println("Pushing " + size + " byte variable in frame " + frameID + " at var " + varID);
+		testForUnderflow(size);
+		// Check the variable before the stack is touched.
+		runtime.slotOf(frameID, varID, size);
+		runtime.pushWide(frameID, varID, size, stack.popWide(size));
+	}
+	
+	private void doPullWideVar(int size) {
+		byte frameID = runtime.popParameter(), varID = runtime.popParameter();
+		if (loud)
+			System.out.println("Pulling " + size + " byte variable in frame " + frameID + " at var " + varID);
+		stack.pushWide(runtime.pullWide(frameID, varID, size), size);
+	}
+	
+	private void doConvert() {
+		byte from = runtime.popParameter(), to = runtime.popParameter();
+		if (!InstructionSet.isValueSize(from) || !InstructionSet.isValueSize(to))
+			throw new RuntimeException("Can't convert from " + from + " bytes to " + to + " bytes.");
+		if (loud)
+			System.out.println("Converting from " + from + " bytes to " + to + " bytes.");
+		testForUnderflow(from);
+		stack.pushWide(stack.popWide(from), to);
+	}
+	
+	/** @return the result of the arithmetic operator on the two values. Wrapping it to the size of the
+	 * values is left to whoever stores it. */
+	private static long arithmetic(byte operator, long a, long b) {
+		switch (operator) {
+		case InstructionSet.ADD : return a + b;
+		case InstructionSet.SUBTRACT : return a - b;
+		case InstructionSet.DIVIDE : return a / b;
+		case InstructionSet.MULTIPLY : return a * b;
+		default : throw new RuntimeException("Not arithmetic operator.");
+		}
+	}
+	
+	/** @return the symbol of the arithmetic operator, used for debug messages. */
+	private static String nameOf(byte instruction) {
+		switch (instruction) {
+		case InstructionSet.ADD : return "+";
+		case InstructionSet.SUBTRACT : return "-";
+		case InstructionSet.DIVIDE : return "/";
+		case InstructionSet.MULTIPLY : return "*";
+		default : return "?";
+		}
 	}
 	
 	private void doDuplicate() {
@@ -168,6 +913,19 @@ public class Interpreter {
 		stack.push(item);
 	}
 	
+	private void doIncrementVar(byte frameID, byte varID, byte amount) {
+		if (loud)
+			System.out.println("Incrementing variable in frame " + frameID + " at var " + varID + " by " + amount);
+		runtime.pushVar(frameID, varID, (byte) (runtime.pullVar(frameID, varID) + amount));
+	}
+	
+	private void doAddConstant(byte amount) {
+		if (loud)
+			System.out.println("Adding " + amount);
+		testForUnderflow(1);
+		stack.push((byte) (stack.pop() + amount));
+	}
+	
 	private void doPopFrame() {
 		if (loud)
 			System.out.println("Popping frame.");
@@ -201,31 +959,52 @@ public class Interpreter {
 		byte
 			a = stack.pop(),
 			b = stack.pop();
-		boolean result;
 		
 		if (loud)
 			System.out.println("Doing comparison " + a + " " + b);
 		
-		// Map the comparison operator.
-		if (comparison == InstructionSet.GREATER_THAN)
-			result = a > b;
-		else if (comparison == InstructionSet.GREATER_THAN_EQUAL)
-			result = a >= b;
-		else if (comparison == InstructionSet.LESS_THAN)
-			result = a < b;
-		else if (comparison == InstructionSet.LESS_THAN_EQUAL)
-			result = a <= b;
-		else if (comparison == InstructionSet.EQUAL_TO)
-			result = a == b;
-		else
-			throw new RuntimeException("Unkown comparison operator.");
-		
-		if (result)
+		if (compare(comparison, a, b))
 			stack.push((byte) 1);
 		else
 			stack.push((byte) 0);
 	}
 	
+	/** @return the result of the comparison with a on the left and b on the right. */
+	private static boolean compare(byte comparison, byte a, byte b) {
+		switch (comparison) {
+		case InstructionSet.GREATER_THAN :
+			return a > b;
+		case InstructionSet.GREATER_THAN_EQUAL :
+			return a >= b;
+		case InstructionSet.LESS_THAN :
+			return a < b;
+		case InstructionSet.LESS_THAN_EQUAL :
+			return a <= b;
+		case InstructionSet.EQUAL_TO :
+			return a == b;
+		default :
+			throw new RuntimeException("Unkown comparison operator.");
+		}
+	}
+	
+	/** @return the result of the comparison with a on the left and b on the right. */
+	private static boolean compare(byte comparison, long a, long b) {
+		switch (comparison) {
+		case InstructionSet.GREATER_THAN :
+			return a > b;
+		case InstructionSet.GREATER_THAN_EQUAL :
+			return a >= b;
+		case InstructionSet.LESS_THAN :
+			return a < b;
+		case InstructionSet.LESS_THAN_EQUAL :
+			return a <= b;
+		case InstructionSet.EQUAL_TO :
+			return a == b;
+		default :
+			throw new RuntimeException("Unkown comparison operator.");
+		}
+	}
+	
 	private void testForUnderflow(int guarenteeSpace) {
 		if (stack.size() < guarenteeSpace)
 			throw new StackUnderflowException(runtime.i);
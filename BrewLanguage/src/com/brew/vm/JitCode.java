@@ -0,0 +1,19 @@
+package com.brew.vm;
+
+/**
+ * This interface is implemented by the classes the {@link JitCompiler} generates. Each one runs a single
+ * verified program as JVM bytecode.
+ * @author Jonathan Force
+ */
+interface JitCode {
+	
+	/** Run the program from the instruction at entry until it ends or its budget runs out.
+	 * @param entry The bytecode index to start at. It must be 0 or the target of a backward jump.
+	 * @param locals The runtime's variables. They are read at the start and written back at the end.
+	 * @param stack The operand stack's array, with room for the program's maximum stack depth above sp.
+	 * @param sp The number of values on the stack, including the ones the program has at entry.
+	 * @param runtime The runtime, for its frames and its budget.
+	 * @return the number of values on the stack when the program ended.
+	 */
+	int run(int entry, byte[] locals, byte[] stack, int sp, Runtime runtime);
+}
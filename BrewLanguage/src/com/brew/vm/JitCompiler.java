@@ -0,0 +1,744 @@
+package com.brew.vm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class compiles a verified program to a JVM class, so that a hot program runs as code the JVM
+ * compiles to machine code itself rather than through the interpreter's dispatch loop.
+ *
+ * Every variable and every place on the operand stack becomes a local variable of a single JVM method,
+ * and every Brew instruction becomes a handful of JVM instructions on those locals, so the JVM is free to
+ * keep them all in registers. Values are truncated to a byte after every operation, exactly as the
+ * interpreter does. The method starts by loading the runtime's variables and the values already on the
+ * operand stack, jumps to the instruction it was asked to start at, and when the program ends it writes
+ * everything back. So the interpreter can hand over at the start of the program or at the top of any loop,
+ * which are the only places it switches.
+ *
+ * The class file is written by hand, there is no library to do it. It is defined as a hidden class when
+ * the JVM has them, or as an ordinary class next to this one when it doesn't. Programs that print debug
+ * output aren't compiled, and neither is anything too big for a single JVM method. If a compiled program
+ * throws, the variables and stack are left as they were when it was entered.
+ * @author Jonathan Force
+ */
+public class JitCompiler {
+	
+	/** The JVM instructions used. */
+	private static final int
+		ICONST_0 = 0x03, LCONST_1 = 0x0A, BIPUSH = 0x10, SIPUSH = 0x11,
+		ILOAD = 0x15, LLOAD = 0x16, ALOAD = 0x19, BALOAD = 0x33, ISTORE = 0x36, LSTORE = 0x37, BASTORE = 0x54,
+		IADD = 0x60, LADD = 0x61, ISUB = 0x64, LSUB = 0x65, IMUL = 0x68, IDIV = 0x6C, I2B = 0x91,
+		IFEQ = 0x99, IF_ICMPEQ = 0x9F, IF_ICMPNE = 0xA0, IF_ICMPLT = 0xA1, IF_ICMPGE = 0xA2, IF_ICMPGT = 0xA3, IF_ICMPLE = 0xA4,
+		GOTO = 0xA7, LOOKUPSWITCH = 0xAB, IRETURN = 0xAC, RETURN = 0xB1, GETFIELD = 0xB4, PUTFIELD = 0xB5,
+		INVOKEVIRTUAL = 0xB6, INVOKESPECIAL = 0xB7, INVOKESTATIC = 0xB8, ATHROW = 0xBF, WIDE = 0xC4;
+	
+	/** The locals of the generated run method : its parameters, then the instruction count, the program's
+	 * variables and the places on the operand stack. */
+	private static final int ENTRY = 1, LOCALS = 2, STACK = 3, SP = 4, RUNTIME = 5, COUNT = 6, VARIABLES = 8;
+	
+	private static final String RUNTIME_CLASS = "com/brew/vm/Runtime";
+	
+	/** Defines the generated classes, or null if this JVM can't define a class next to this one. */
+	private static final Method DEFINE;
+	/** The arguments that follow the class file when DEFINE is called. */
+	private static final Object[] DEFINE_OPTIONS;
+	private static final AtomicInteger classCount = new AtomicInteger();
+	
+	static {
+		Method define = null;
+		Object[] options = null;
+		try {
+			// Hidden classes are best, they can be unloaded as soon as the program is.
+			Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+			Object none = Array.newInstance(option, 0);
+			define = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, none.getClass());
+			options = new Object[] { true, none };
+		} catch (ReflectiveOperationException e) {
+			try {
+				define = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+				options = new Object[0];
+			} catch (ReflectiveOperationException e2) {
+				define = null;
+			}
+		}
+		DEFINE = define;
+		DEFINE_OPTIONS = options;
+	}
+	
+	private final VerifiedProgram program;
+	private final byte[] bytecode;
+	/** The JVM local of the first place on the operand stack. */
+	private final int stackLocals;
+	
+	private final ConstantPool pool = new ConstantPool();
+	private byte[] out = new byte[256];
+	private int position;
+	
+	/** Where each label was placed, or -1, and the branches waiting for them. */
+	private int[] labels = new int[64];
+	private int labelCount;
+	private int[] fixups = new int[64];
+	private int fixupCount;
+	
+	/** The labels of each Brew instruction, and of the code that ends the program with each stack depth. */
+	private final int[] instructionLabels, exitLabels;
+	/** The backward jumps, each of which first checks the budget : the label, the jump's pc, its target
+	 * and the depth of the stack after it. */
+	private int[] backwardJumps = new int[16];
+	private int backwardJumpCount;
+	
+	private JitCompiler(VerifiedProgram program) {
+		this.program = program;
+		this.bytecode = program.code;
+		this.stackLocals = VARIABLES + program.maxLocals;
+		this.instructionLabels = new int[bytecode.length];
+		this.exitLabels = new int[program.maxStack + 1];
+		Arrays.fill(exitLabels, -1);
+	}
+	
+	/** @return true if this JVM can load the classes the compiler makes. */
+	public static boolean isAvailable() {
+		return DEFINE != null;
+	}
+	
+	/** Compile the program to a JVM class.
+	 * @return the compiled program, or null if it can't be compiled. */
+	static JitCode compile(VerifiedProgram program) {
+		if (DEFINE == null)
+			return null;
+		byte[] classFile = new JitCompiler(program).assemble();
+		if (classFile == null)
+			return null;
+		
+		try {
+			Object[] arguments = new Object[DEFINE_OPTIONS.length + 1];
+			arguments[0] = classFile;
+			System.arraycopy(DEFINE_OPTIONS, 0, arguments, 1, DEFINE_OPTIONS.length);
+			Object defined = DEFINE.invoke(MethodHandles.lookup(), arguments);
+			Class<?> type = (defined instanceof Class)? (Class<?>) defined : ((MethodHandles.Lookup) defined).lookupClass();
+			return (JitCode) type.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+	
+	/** Called by compiled code when IF finds something other than 0 or 1. */
+	static RuntimeException invalidTruthValue(int value) {
+		return new RuntimeException("Invalid truth value : " + value);
+	}
+	
+	/** @return the class file, or null if the program can't be compiled. */
+	private byte[] assemble() {
+		if (program.wide || program.calls)
+			return null;
+		for (int pc = 0; pc < bytecode.length; pc += InstructionSet.lengthOf(bytecode[pc])) {
+			byte inst = bytecode[pc];
+			if (program.stackDepths[pc] != -1 && (inst == InstructionSet.DEBUG_OUT || inst == InstructionSet.DEBUG_STACK))
+				return null;
+		}
+		if (stackLocals + program.maxStack > 0xFFFF)
+			return null;
+		
+		byte[] run = assembleRun();
+		if (run == null)
+			return null;
+		byte[] constructor = new byte[] {
+				0x2A, // aload_0
+				(byte) INVOKESPECIAL, 0, 0,
+				(byte) RETURN };
+		int objectConstructor = pool.method("java/lang/Object", "<init>", "()V");
+		constructor[2] = (byte) (objectConstructor >> 8);
+		constructor[3] = (byte) objectConstructor;
+		
+		String name = "com/brew/vm/JitCode$Compiled" + classCount.incrementAndGet();
+		int thisClass = pool.type(name), superClass = pool.type("java/lang/Object"), jitCode = pool.type("com/brew/vm/JitCode");
+		int init = pool.utf8("<init>"), initType = pool.utf8("()V");
+		int runName = pool.utf8("run"), runType = pool.utf8("(I[B[BIL" + RUNTIME_CLASS + ";)I");
+		int codeAttribute = pool.utf8("Code");
+		
+		ClassFile file = new ClassFile();
+		file.u4(0xCAFEBABE);
+		// Version 49 doesn't need stack map frames, the JVM works out the types itself.
+		file.u2(0);
+		file.u2(49);
+		pool.writeTo(file);
+		file.u2(0x0031); // public final super
+		file.u2(thisClass);
+		file.u2(superClass);
+		file.u2(1);
+		file.u2(jitCode);
+		file.u2(0); // fields
+		file.u2(2); // methods
+		writeMethod(file, init, initType, codeAttribute, 1, 1, constructor);
+		writeMethod(file, runName, runType, codeAttribute, 6, stackLocals + program.maxStack, run);
+		file.u2(0); // attributes
+		return file.toByteArray();
+	}
+	
+	private static void writeMethod(ClassFile file, int name, int type, int codeAttribute, int maxStack, int maxLocals, byte[] code) {
+		file.u2(0x0001); // public
+		file.u2(name);
+		file.u2(type);
+		file.u2(1);
+		file.u2(codeAttribute);
+		file.u4(12 + code.length);
+		file.u2(maxStack);
+		file.u2(maxLocals);
+		file.u4(code.length);
+		file.bytes(code);
+		file.u2(0); // exception handlers
+		file.u2(0); // attributes
+	}
+	
+	/** @return the code of the run method, or null if it is too big. */
+	private byte[] assembleRun() {
+		int totalField = pool.field(RUNTIME_CLASS, "totalExecutedInstructions", "J");
+		
+		// Find the places the interpreter may hand over : the start, and every loop.
+		boolean[] isEntry = new boolean[bytecode.length + 1];
+		isEntry[0] = bytecode.length > 0;
+		for (int pc = 0; pc < bytecode.length; pc += InstructionSet.lengthOf(bytecode[pc])) {
+			instructionLabels[pc] = newLabel();
+			int target = targetOf(pc);
+			if (program.stackDepths[pc] != -1 && target != -1 && target <= pc)
+				isEntry[target] = true;
+		}
+		if (bytecode.length == 0)
+			isEntry[0] = false;
+		
+		// Load the count, the variables, and give every place on the stack a value so the JVM's verifier
+		// knows they are all ints.
+		op(ALOAD, RUNTIME);
+		op(GETFIELD);
+		u2(totalField);
+		op(LSTORE, COUNT);
+		for (int v = 0; v < program.maxLocals; v ++) {
+			op(ALOAD, LOCALS);
+			push(v);
+			op(BALOAD);
+			op(ISTORE, VARIABLES + v);
+		}
+		for (int k = 0; k < program.maxStack; k ++) {
+			op(ICONST_0);
+			op(ISTORE, stackLocals + k);
+		}
+		
+		// Jump to the entry, taking the values the program already has on the stack off the operand stack.
+		int entryCount = 0;
+		for (boolean entry : isEntry)
+			if (entry)
+				entryCount ++;
+		int[] entryLabels = new int[entryCount];
+		for (int i = 0; i < entryCount; i ++)
+			entryLabels[i] = newLabel();
+		int defaultLabel = (entryCount > 0)? entryLabels[0] : exit(0);
+		op(ILOAD, ENTRY);
+		int switchAt = position;
+		op(LOOKUPSWITCH);
+		while (position % 4 != 0)
+			u1(0);
+		branch4(switchAt, defaultLabel);
+		u4(entryCount);
+		for (int pc = 0, i = 0; pc < bytecode.length; pc ++)
+			if (isEntry[pc]) {
+				u4(pc);
+				branch4(switchAt, entryLabels[i ++]);
+			}
+		for (int pc = 0, i = 0; pc < bytecode.length; pc ++)
+			if (isEntry[pc]) {
+				place(entryLabels[i ++]);
+				int depth = program.stackDepths[pc];
+				for (int k = 0; k < depth; k ++) {
+					op(ALOAD, STACK);
+					op(ILOAD, SP);
+					push(k - depth);
+					op(IADD);
+					op(BALOAD);
+					op(ISTORE, stackLocals + k);
+				}
+				op(ILOAD, SP);
+				push(depth);
+				op(ISUB);
+				op(ISTORE, SP);
+				branch(GOTO, instructionLabels[pc]);
+			}
+		
+		for (int pc = 0; pc < bytecode.length; pc += InstructionSet.lengthOf(bytecode[pc])) {
+			int depth = program.stackDepths[pc];
+			if (depth == -1)
+				continue;
+			place(instructionLabels[pc]);
+			op(LLOAD, COUNT);
+			op(LCONST_1);
+			op(LADD);
+			op(LSTORE, COUNT);
+			translate(pc, depth);
+			int next = pc + InstructionSet.lengthOf(bytecode[pc]);
+			if (next == bytecode.length && bytecode[pc] != InstructionSet.GOTO)
+				branch(GOTO, exit(depthAfter(pc, depth)));
+		}
+		
+		// The budget is checked before every backward jump, just as the interpreter does.
+		for (int i = 0; i < backwardJumpCount; i ++) {
+			int at = i * 4, pc = backwardJumps[at + 1];
+			place(backwardJumps[at]);
+			op(ALOAD, RUNTIME);
+			op(LLOAD, COUNT);
+			op(LCONST_1);
+			op(LSUB);
+			op(PUTFIELD);
+			u2(totalField);
+			op(ALOAD, RUNTIME);
+			op(INVOKEVIRTUAL);
+			u2(pool.method(RUNTIME_CLASS, "budgetExhausted", "()Z"));
+			branch(IFEQ, instructionLabels[backwardJumps[at + 2]]);
+			op(ALOAD, RUNTIME);
+			push(pc);
+			op(INVOKEVIRTUAL);
+			u2(pool.method(RUNTIME_CLASS, "stop", "(I)V"));
+			branch(GOTO, exit(backwardJumps[at + 3]));
+		}
+		
+		// Write everything back and return where the stack ends.
+		for (int depth = 0; depth < exitLabels.length; depth ++) {
+			if (exitLabels[depth] == -1)
+				continue;
+			place(exitLabels[depth]);
+			for (int v = 0; v < program.maxLocals; v ++) {
+				op(ALOAD, LOCALS);
+				push(v);
+				op(ILOAD, VARIABLES + v);
+				op(BASTORE);
+			}
+			for (int k = 0; k < depth; k ++) {
+				op(ALOAD, STACK);
+				op(ILOAD, SP);
+				push(k);
+				op(IADD);
+				op(ILOAD, stackLocals + k);
+				op(BASTORE);
+			}
+			op(ALOAD, RUNTIME);
+			push(bytecode.length);
+			op(PUTFIELD);
+			u2(pool.field(RUNTIME_CLASS, "i", "I"));
+			op(ALOAD, RUNTIME);
+			op(LLOAD, COUNT);
+			op(PUTFIELD);
+			u2(totalField);
+			op(ILOAD, SP);
+			push(depth);
+			op(IADD);
+			op(IRETURN);
+		}
+		
+		if (position > 0xFFFF || !resolve())
+			return null;
+		return Arrays.copyOf(out, position);
+	}
+	
+	/** Translate the instruction at pc, which starts with the specified depth of stack. */
+	private void translate(int pc, int depth) {
+		int top = stackLocals + depth - 1, under = top - 1;
+		switch (bytecode[pc]) {
+		case InstructionSet.PUSH :
+			push(bytecode[pc + 1]);
+			op(ISTORE, top + 1);
+			break;
+		case InstructionSet.DUPLICATE :
+			op(ILOAD, top);
+			op(ISTORE, top + 1);
+			break;
+		case InstructionSet.ADD :
+		case InstructionSet.SUBTRACT :
+		case InstructionSet.MULTIPLY :
+		case InstructionSet.DIVIDE :
+			op(ILOAD, under);
+			op(ILOAD, top);
+			op(arithmeticOf(bytecode[pc]));
+			op(I2B);
+			op(ISTORE, under);
+			break;
+		case InstructionSet.ADD_CONSTANT :
+			op(ILOAD, top);
+			push(bytecode[pc + 1]);
+			op(IADD);
+			op(I2B);
+			op(ISTORE, top);
+			break;
+		case InstructionSet.GREATER_THAN :
+		case InstructionSet.GREATER_THAN_EQUAL :
+		case InstructionSet.LESS_THAN :
+		case InstructionSet.LESS_THAN_EQUAL :
+		case InstructionSet.EQUAL_TO : {
+			// The left hand side is on top.
+			int isFalse = newLabel(), done = newLabel();
+			op(ILOAD, top);
+			op(ILOAD, under);
+			branch(jumpUnlessOf(bytecode[pc]), isFalse);
+			op(ICONST_0 + 1);
+			branch(GOTO, done);
+			place(isFalse);
+			op(ICONST_0);
+			place(done);
+			op(ISTORE, under);
+			break;
+		}
+		case InstructionSet.IF : {
+			int isTrue = newLabel();
+			op(ILOAD, top);
+			branch(IFEQ, jumpTo(pc, depth - 1));
+			op(ILOAD, top);
+			op(ICONST_0 + 1);
+			branch(IF_ICMPEQ, isTrue);
+			op(ILOAD, top);
+			op(INVOKESTATIC);
+			u2(pool.method("com/brew/vm/JitCompiler", "invalidTruthValue", "(I)Ljava/lang/RuntimeException;"));
+			op(ATHROW);
+			place(isTrue);
+			break;
+		}
+		case InstructionSet.IF_VAR :
+			op(ILOAD, VARIABLES + program.slots[pc]);
+			push(bytecode[pc + 4]);
+			branch(jumpUnlessOf(bytecode[pc + 3]), jumpTo(pc, depth));
+			break;
+		case InstructionSet.GOTO :
+			branch(GOTO, jumpTo(pc, depth));
+			break;
+		case InstructionSet.PUSH_VAR :
+			op(ILOAD, top);
+			op(ISTORE, VARIABLES + program.slots[pc]);
+			break;
+		case InstructionSet.PULL_VAR :
+			op(ILOAD, VARIABLES + program.slots[pc]);
+			op(ISTORE, top + 1);
+			break;
+		case InstructionSet.PULL_VARS :
+			// The verifier keeps the second variable's slot where its first parameter is.
+			op(ILOAD, VARIABLES + program.slots[pc]);
+			op(ISTORE, top + 1);
+			op(ILOAD, VARIABLES + program.slots[pc + 1]);
+			op(ISTORE, top + 2);
+			break;
+		case InstructionSet.INCREMENT_VAR : {
+			int variable = VARIABLES + program.slots[pc];
+			op(ILOAD, variable);
+			push(bytecode[pc + 3]);
+			op(IADD);
+			op(I2B);
+			op(ISTORE, variable);
+			break;
+		}
+		case InstructionSet.PUSH_FRAME : {
+			// The new frame's variables start out as 0.
+			int base = 0, size = bytecode[pc + 1] & 0xFF;
+			for (int frame : program.frames[pc])
+				base += frame;
+			for (int v = base; v < base + size && v < program.maxLocals; v ++) {
+				op(ICONST_0);
+				op(ISTORE, VARIABLES + v);
+			}
+			op(ALOAD, RUNTIME);
+			push(bytecode[pc + 1]);
+			op(INVOKEVIRTUAL);
+			u2(pool.method(RUNTIME_CLASS, "pushFrame", "(B)V"));
+			break;
+		}
+		case InstructionSet.POP_FRAME :
+			op(ALOAD, RUNTIME);
+			op(INVOKEVIRTUAL);
+			u2(pool.method(RUNTIME_CLASS, "popFrame", "()V"));
+			break;
+		default :
+			throw new IllegalStateException("A verified program has an unknown instruction : " + bytecode[pc]);
+		}
+	}
+	
+	/** @return the label a jump at pc should branch to, leaving the specified depth of stack. Jumps
+	 * backwards go through a check of the budget first. */
+	private int jumpTo(int pc, int depth) {
+		int target = targetOf(pc);
+		if (target == bytecode.length)
+			return exit(depth);
+		if (target > pc)
+			return instructionLabels[target];
+		
+		if (backwardJumpCount * 4 == backwardJumps.length)
+			backwardJumps = Arrays.copyOf(backwardJumps, backwardJumps.length * 2);
+		int at = backwardJumpCount ++ * 4, label = newLabel();
+		backwardJumps[at] = label;
+		backwardJumps[at + 1] = pc;
+		backwardJumps[at + 2] = target;
+		backwardJumps[at + 3] = depth;
+		return label;
+	}
+	
+	/** @return the depth of the stack after the instruction at pc, which doesn't jump. */
+	private int depthAfter(int pc, int depth) {
+		switch (bytecode[pc]) {
+		case InstructionSet.PUSH :
+		case InstructionSet.DUPLICATE :
+		case InstructionSet.PULL_VAR :
+			return depth + 1;
+		case InstructionSet.PULL_VARS :
+			return depth + 2;
+		case InstructionSet.ADD :
+		case InstructionSet.SUBTRACT :
+		case InstructionSet.MULTIPLY :
+		case InstructionSet.DIVIDE :
+		case InstructionSet.GREATER_THAN :
+		case InstructionSet.GREATER_THAN_EQUAL :
+		case InstructionSet.LESS_THAN :
+		case InstructionSet.LESS_THAN_EQUAL :
+		case InstructionSet.EQUAL_TO :
+		case InstructionSet.PUSH_VAR :
+		case InstructionSet.IF :
+			return depth - 1;
+		default :
+			return depth;
+		}
+	}
+	
+	/** @return the index the jump at pc goes to, or -1 if the instruction at pc isn't a jump. */
+	private int targetOf(int pc) {
+		switch (bytecode[pc]) {
+		case InstructionSet.GOTO : return bytecode[pc + 1];
+		case InstructionSet.IF : return pc + 2 + bytecode[pc + 1];
+		case InstructionSet.IF_VAR : return pc + 6 + bytecode[pc + 5];
+		default : return -1;
+		}
+	}
+	
+	/** @return the label of the code that ends the program with the specified depth of stack. */
+	private int exit(int depth) {
+		if (exitLabels[depth] == -1)
+			exitLabels[depth] = newLabel();
+		return exitLabels[depth];
+	}
+	
+	private static int arithmeticOf(byte inst) {
+		switch (inst) {
+		case InstructionSet.ADD : return IADD;
+		case InstructionSet.SUBTRACT : return ISUB;
+		case InstructionSet.MULTIPLY : return IMUL;
+		default : return IDIV;
+		}
+	}
+	
+	/** @return the JVM branch that jumps when the comparison of the two ints on its stack is false. */
+	private static int jumpUnlessOf(byte comparison) {
+		switch (comparison) {
+		case InstructionSet.GREATER_THAN : return IF_ICMPLE;
+		case InstructionSet.GREATER_THAN_EQUAL : return IF_ICMPLT;
+		case InstructionSet.LESS_THAN : return IF_ICMPGE;
+		case InstructionSet.LESS_THAN_EQUAL : return IF_ICMPGT;
+		default : return IF_ICMPNE;
+		}
+	}
+	
+	private int newLabel() {
+		if (labelCount == labels.length)
+			labels = Arrays.copyOf(labels, labelCount * 2);
+		labels[labelCount] = -1;
+		return labelCount ++;
+	}
+	
+	private void place(int label) {
+		labels[label] = position;
+	}
+	
+	/** Emit a branch with a 2 byte offset to the label. */
+	private void branch(int opcode, int label) {
+		int at = position;
+		op(opcode);
+		fixup(at, label, 2);
+		u2(0);
+	}
+	
+	/** Emit a 4 byte offset from the instruction at to the label. */
+	private void branch4(int at, int label) {
+		fixup(at, label, 4);
+		u4(0);
+	}
+	
+	private void fixup(int at, int label, int size) {
+		if (fixupCount + 4 > fixups.length)
+			fixups = Arrays.copyOf(fixups, fixups.length * 2);
+		fixups[fixupCount ++] = at;
+		fixups[fixupCount ++] = position;
+		fixups[fixupCount ++] = label;
+		fixups[fixupCount ++] = size;
+	}
+	
+	/** Fill in the offset of every branch.
+	 * @return false if a branch is too far for its offset. */
+	private boolean resolve() {
+		for (int i = 0; i < fixupCount; i += 4) {
+			int at = fixups[i], patch = fixups[i + 1], size = fixups[i + 3];
+			int offset = labels[fixups[i + 2]] - at;
+			if (size == 2) {
+				if (offset != (short) offset)
+					return false;
+				out[patch] = (byte) (offset >> 8);
+				out[patch + 1] = (byte) offset;
+			} else {
+				for (int b = 0; b < 4; b ++)
+					out[patch + b] = (byte) (offset >> (24 - b * 8));
+			}
+		}
+		return true;
+	}
+	
+	/** Emit the instruction that pushes the constant. */
+	private void push(int value) {
+		if (value >= -1 && value <= 5)
+			op(ICONST_0 + value);
+		else if (value == (byte) value) {
+			op(BIPUSH);
+			u1(value);
+		} else {
+			op(SIPUSH);
+			u2(value);
+		}
+	}
+	
+	private void op(int opcode) {
+		u1(opcode);
+	}
+	
+	/** Emit an instruction that takes a local. */
+	private void op(int opcode, int local) {
+		if (local > 0xFF) {
+			u1(WIDE);
+			u1(opcode);
+			u2(local);
+		} else {
+			u1(opcode);
+			u1(local);
+		}
+	}
+	
+	private void u1(int value) {
+		if (position == out.length)
+			out = Arrays.copyOf(out, out.length * 2);
+		out[position ++] = (byte) value;
+	}
+	
+	private void u2(int value) {
+		u1(value >> 8);
+		u1(value);
+	}
+	
+	private void u4(int value) {
+		u2(value >> 16);
+		u2(value);
+	}
+	
+	/** The constant pool of the class being written. Each constant is only added once. */
+	private static class ConstantPool {
+		
+		private final ClassFile entries = new ClassFile();
+		private final Map<String, Integer> indices = new HashMap<>();
+		private int count = 1;
+		
+		int utf8(String value) {
+			Integer index = indices.get("U" + value);
+			if (index != null)
+				return index;
+			entries.u1(1);
+			entries.u2(value.length());
+			for (int i = 0; i < value.length(); i ++)
+				entries.u1(value.charAt(i));
+			return add("U" + value);
+		}
+		
+		int type(String name) {
+			Integer index = indices.get("C" + name);
+			if (index != null)
+				return index;
+			int utf8 = utf8(name);
+			entries.u1(7);
+			entries.u2(utf8);
+			return add("C" + name);
+		}
+		
+		int field(String owner, String name, String type) {
+			return member(9, owner, name, type);
+		}
+		
+		int method(String owner, String name, String type) {
+			return member(10, owner, name, type);
+		}
+		
+		private int member(int tag, String owner, String name, String type) {
+			String key = tag + owner + "." + name + type;
+			Integer index = indices.get(key);
+			if (index != null)
+				return index;
+			int ownerIndex = type(owner), nameAndType = nameAndType(name, type);
+			entries.u1(tag);
+			entries.u2(ownerIndex);
+			entries.u2(nameAndType);
+			return add(key);
+		}
+		
+		private int nameAndType(String name, String type) {
+			Integer index = indices.get("N" + name + " " + type);
+			if (index != null)
+				return index;
+			int nameIndex = utf8(name), typeIndex = utf8(type);
+			entries.u1(12);
+			entries.u2(nameIndex);
+			entries.u2(typeIndex);
+			return add("N" + name + " " + type);
+		}
+		
+		private int add(String key) {
+			indices.put(key, count);
+			return count ++;
+		}
+		
+		void writeTo(ClassFile file) {
+			file.u2(count);
+			file.bytes(entries.toByteArray());
+		}
+	}
+	
+	/** A growable array of big endian bytes, which is how class files are written. */
+	private static class ClassFile {
+		
+		private byte[] bytes = new byte[256];
+		private int size;
+		
+		void u1(int value) {
+			if (size == bytes.length)
+				bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			bytes[size ++] = (byte) value;
+		}
+		
+		void u2(int value) {
+			u1(value >> 8);
+			u1(value);
+		}
+		
+		void u4(int value) {
+			u2(value >> 16);
+			u2(value);
+		}
+		
+		void bytes(byte[] values) {
+			for (byte value : values)
+				u1(value);
+		}
+		
+		byte[] toByteArray() {
+			return Arrays.copyOf(bytes, size);
+		}
+	}
+}
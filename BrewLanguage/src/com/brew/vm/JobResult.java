@@ -0,0 +1,80 @@
+package com.brew.vm;
+
+import java.util.Arrays;
+
+/**
+ * This class is what a program run by the {@link ExecutionService} left behind : the way it ended, what it
+ * left on the operand stack, and the variables in every frame it hadn't popped. It is a copy, so it stays
+ * the same after the machine that ran the program goes on to run others.
+ * @author Jonathan Force
+ */
+public final class JobResult {
+	
+	private final ExecutionResult result;
+	private final byte[] stack;
+	private final byte[][] variables;
+	
+	JobResult(ExecutionResult result, byte[] stack, byte[][] variables) {
+		this.result = result;
+		this.stack = stack;
+		this.variables = variables;
+	}
+	
+	/** Copy what the program left on the machine's stack and in its runtime. */
+	static JobResult of(ExecutionResult result, OperandStack stack, Runtime runtime) {
+		byte[][] variables = new byte[runtime.frameCount()][];
+		for (int frame = 0; frame < variables.length; frame ++) {
+			variables[frame] = new byte[runtime.frameSize(frame)];
+			System.arraycopy(runtime.locals, runtime.frameBases[frame], variables[frame], 0, variables[frame].length);
+		}
+		return new JobResult(result, stack.toArray(), variables);
+	}
+	
+	/** @return the way the program ended. */
+	public ExecutionResult result() {
+		return result;
+	}
+	
+	/** @return the values the program left on the stack, the bottom of the stack first. */
+	public byte[] stack() {
+		return stack.clone();
+	}
+	
+	/** @return the number of values the program left on the stack. */
+	public int stackSize() {
+		return stack.length;
+	}
+	
+	/** @return the value on top of the stack. */
+	public byte top() {
+		if (stack.length == 0)
+			throw new RuntimeException("The program left nothing on the stack.");
+		return stack[stack.length - 1];
+	}
+	
+	/** @return the number of frames the program hadn't popped when it ended. */
+	public int frameCount() {
+		return variables.length;
+	}
+	
+	/** @return the variables in the specified frame, in the order of their ids. */
+	public byte[] variables(int frameID) {
+		if (frameID < 0 || frameID >= variables.length)
+			throw new RuntimeException("FrameID " + frameID + " is not valid. There were " + variables.length + " frames.");
+		return variables[frameID].clone();
+	}
+	
+	/** @return the value of a variable in the specified frame. */
+	public byte variable(int frameID, int id) {
+		if (frameID < 0 || frameID >= variables.length)
+			throw new RuntimeException("FrameID " + frameID + " is not valid. There were " + variables.length + " frames.");
+		else if (id < 0 || id >= variables[frameID].length)
+			throw new RuntimeException("Variable id " + id + " is not valid in frame " + frameID);
+		return variables[frameID][id];
+	}
+	
+	@Override
+	public String toString() {
+		return result + ", stack " + Arrays.toString(stack);
+	}
+}
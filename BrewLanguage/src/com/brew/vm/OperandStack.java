@@ -0,0 +1,146 @@
+package com.brew.vm;
+
+import java.util.Arrays;
+
+import com.brew.vm.exceptions.StackOverflowException;
+import com.brew.vm.exceptions.StackUnderflowException;
+
+/**
+ * This is the stack the Virtual Machine performs its operations on. Values are stored in a
+ * primitive array that grows as needed, so pushing and popping never boxes and never locks.
+ * It intentionally mirrors the parts of java.util.Stack the VM used to rely on so that code
+ * calling {@link VirtualMachine#stack()} keeps working.
+ * @author Jonathan Force
+ */
+public class OperandStack {
+	
+	/** The number of values the stack may hold before it overflows. */
+	public static final int DEFAULT_MAXIMUM_SIZE = 1 << 16;
+	
+	private static final int INITIAL_CAPACITY = 16;
+	
+	private final int maximumSize;
+	private byte[] elements;
+	private int size;
+	
+	public OperandStack() {
+		this(DEFAULT_MAXIMUM_SIZE);
+	}
+	
+	/** @param maximumSize The number of values the stack may hold before a StackOverflowException is thrown. */
+	public OperandStack(int maximumSize) {
+		if (maximumSize < 1)
+			throw new IllegalArgumentException("The maximum size of a stack must be positive.");
+		this.maximumSize = maximumSize;
+		this.elements = new byte[Math.min(INITIAL_CAPACITY, maximumSize)];
+		this.size = 0;
+	}
+	
+	/** Push the value onto the top of the stack. */
+	public void push(byte value) {
+		if (size == elements.length)
+			grow();
+		elements[size++] = value;
+	}
+	
+	/** @return the value on the top of the stack after removing it. */
+	public byte pop() {
+		if (size == 0)
+			throw new StackUnderflowException();
+		return elements[--size];
+	}
+	
+	/** @return the value on the top of the stack without removing it. */
+	public byte peek() {
+		if (size == 0)
+			throw new StackUnderflowException();
+		return elements[size - 1];
+	}
+	
+	/** Push the int onto the stack as 4 values, most significant byte first. */
+	public void pushInt(int value) {
+		pushWide(value, InstructionSet.INT_SIZE);
+	}
+	
+	/** @return the int made of the 4 values on the top of the stack after removing them. */
+	public int popInt() {
+		return (int) popWide(InstructionSet.INT_SIZE);
+	}
+	
+	/** Push the long onto the stack as 8 values, most significant byte first. */
+	public void pushLong(long value) {
+		pushWide(value, InstructionSet.LONG_SIZE);
+	}
+	
+	/** @return the long made of the 8 values on the top of the stack after removing them. */
+	public long popLong() {
+		return popWide(InstructionSet.LONG_SIZE);
+	}
+	
+	/** @return the i'th value from the bottom of the stack. */
+	public byte get(int i) {
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException("Index " + i + " is not valid for a stack of size " + size);
+		return elements[i];
+	}
+	
+	/** @return the number of values on the stack. */
+	public int size() {
+		return size;
+	}
+	
+	/** @return true if there are no values on the stack. */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/** Remove every value from the stack. The storage is kept so it can be reused. */
+	public void clear() {
+		size = 0;
+	}
+	
+	/** @return the values on the stack, bottom first. */
+	public byte[] toArray() {
+		byte[] copy = new byte[size];
+		System.arraycopy(elements, 0, copy, 0, size);
+		return copy;
+	}
+	
+	/** Make sure the stack can take the specified number of extra values without growing.
+	 * @return the array backing the stack. It stays valid until the stack grows again. */
+	byte[] reserve(int extra) {
+		if (size + extra > maximumSize)
+			throw new StackOverflowException(maximumSize);
+		if (size + extra > elements.length)
+			elements = Arrays.copyOf(elements, Math.min(Math.max(elements.length * 2, size + extra), maximumSize));
+		return elements;
+	}
+	
+	/** Set the number of values on the stack. Used by code that works on the backing array directly. */
+	void setSize(int size) {
+		this.size = size;
+	}
+	
+	/** Push the value as the specified number of bytes. */
+	void pushWide(long value, int size) {
+		while (size + this.size > elements.length)
+			grow();
+		InstructionSet.write(elements, this.size, size, value);
+		this.size += size;
+	}
+	
+	/** @return the value made of the specified number of bytes on the top of the stack after removing them. */
+	long popWide(int size) {
+		if (this.size < size)
+			throw new StackUnderflowException();
+		this.size -= size;
+		return InstructionSet.read(elements, this.size, size);
+	}
+	
+	/** Double the capacity of the stack, up to its maximum size. */
+	private void grow() {
+		if (elements.length >= maximumSize)
+			throw new StackOverflowException(maximumSize);
+		elements = Arrays.copyOf(elements, Math.min(elements.length * 2, maximumSize));
+	}
+}
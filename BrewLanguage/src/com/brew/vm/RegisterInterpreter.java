@@ -0,0 +1,220 @@
+package com.brew.vm;
+
+/**
+ * This class runs programs translated by the {@link RegisterTranslator}. It is another way to run a verified
+ * program, it leaves the operand stack and the variables exactly as the {@link Interpreter} would. It gets
+ * there in fewer instructions, because values are read from and written to their registers directly
+ * rather than being pushed and popped on the way. The number of instructions it reports, and counts
+ * against a budget, is the number of register instructions.
+ * @author Jonathan Force
+ */
+public class RegisterInterpreter {
+	
+	private final OperandStack stack;
+	private Runtime runtime = null;
+	
+	public RegisterInterpreter(OperandStack stack) {
+		this.stack = stack;
+	}
+	
+	/** Run the verified program. The program may run for as long as it likes.
+	 * @return the way the program ended. */
+	public ExecutionResult interpret(VerifiedProgram program) {
+		return interpret(program.registerProgram(), ExecutionBudget.UNLIMITED);
+	}
+	
+	/** Run the verified program until it ends or uses up its budget.
+	 * @return the way the program ended. */
+	public ExecutionResult interpret(VerifiedProgram program, ExecutionBudget budget) {
+		return interpret(program.registerProgram(), budget);
+	}
+	
+	/** Run the translated program until it ends or uses up its budget.
+	 * @return the way the program ended. If the budget ran out this says where, as an index in the bytecode. */
+	public ExecutionResult interpret(RegisterProgram program, ExecutionBudget budget) {
+		// The variables are the first registers, so the runtime's locals are the whole register file.
+		runtime = new Runtime(program.source.code, budget, program.registerCount, program.source.maxFrames, runtime);
+		System.arraycopy(program.constants, 0, runtime.locals, program.constantBase, program.constants.length);
+		run(program);
+		return runtime.result();
+	}
+	
+	/** @return the runtime of the last program run. Beware : may be null. */
+	public Runtime getRuntime() {
+		return runtime;
+	}
+	
+	private void run(RegisterProgram program) {
+		final int[] code = program.code;
+		final byte[] r = runtime.locals;
+		int ip = 0;
+		long count = 0;
+		
+		try {
+			while (true) {
+				int a = code[ip + 1], b = code[ip + 2], c = code[ip + 3];
+				switch (code[ip]) {
+				case RegisterProgram.MOVE :
+					r[a] = r[b];
+					ip += 4;
+					break;
+				case RegisterProgram.ADD :
+					r[a] = (byte) (r[b] + r[c]);
+					ip += 4;
+					break;
+				case RegisterProgram.SUBTRACT :
+					r[a] = (byte) (r[b] - r[c]);
+					ip += 4;
+					break;
+				case RegisterProgram.MULTIPLY :
+					r[a] = (byte) (r[b] * r[c]);
+					ip += 4;
+					break;
+				case RegisterProgram.DIVIDE :
+					r[a] = (byte) (r[b] / r[c]);
+					ip += 4;
+					break;
+				case RegisterProgram.GREATER_THAN :
+					r[a] = (byte) (r[b] > r[c]? 1 : 0);
+					ip += 4;
+					break;
+				case RegisterProgram.GREATER_THAN_EQUAL :
+					r[a] = (byte) (r[b] >= r[c]? 1 : 0);
+					ip += 4;
+					break;
+				case RegisterProgram.LESS_THAN :
+					r[a] = (byte) (r[b] < r[c]? 1 : 0);
+					ip += 4;
+					break;
+				case RegisterProgram.LESS_THAN_EQUAL :
+					r[a] = (byte) (r[b] <= r[c]? 1 : 0);
+					ip += 4;
+					break;
+				case RegisterProgram.EQUAL_TO :
+					r[a] = (byte) (r[b] == r[c]? 1 : 0);
+					ip += 4;
+					break;
+				case RegisterProgram.JUMP :
+					if (c <= ip && stopped(program, ip, count))
+						return;
+					ip = c;
+					break;
+				case RegisterProgram.IF_FALSE :
+					if (r[a] == 1)
+						ip += 4;
+					else if (r[a] == 0) {
+						if (c <= ip && stopped(program, ip, count))
+							return;
+						ip = c;
+					} else
+						throw new RuntimeException("Invalid truth value : " + r[a]);
+					break;
+				case RegisterProgram.JUMP_UNLESS_GREATER_THAN :
+					if (r[a] > r[b]) {
+						ip += 4;
+						break;
+					}
+					if (c <= ip && stopped(program, ip, count))
+						return;
+					ip = c;
+					break;
+				case RegisterProgram.JUMP_UNLESS_GREATER_THAN_EQUAL :
+					if (r[a] >= r[b]) {
+						ip += 4;
+						break;
+					}
+					if (c <= ip && stopped(program, ip, count))
+						return;
+					ip = c;
+					break;
+				case RegisterProgram.JUMP_UNLESS_LESS_THAN :
+					if (r[a] < r[b]) {
+						ip += 4;
+						break;
+					}
+					if (c <= ip && stopped(program, ip, count))
+						return;
+					ip = c;
+					break;
+				case RegisterProgram.JUMP_UNLESS_LESS_THAN_EQUAL :
+					if (r[a] <= r[b]) {
+						ip += 4;
+						break;
+					}
+					if (c <= ip && stopped(program, ip, count))
+						return;
+					ip = c;
+					break;
+				case RegisterProgram.JUMP_UNLESS_EQUAL_TO :
+					if (r[a] == r[b]) {
+						ip += 4;
+						break;
+					}
+					if (c <= ip && stopped(program, ip, count))
+						return;
+					ip = c;
+					break;
+				case RegisterProgram.PUSH_FRAME :
+					runtime.pushFrame((byte) a);
+					ip += 4;
+					break;
+				case RegisterProgram.POP_FRAME :
+					runtime.popFrame();
+					ip += 4;
+					break;
+				case RegisterProgram.DEBUG_OUT :
+					System.out.println("[DEBUG] " + r[a]);
+					ip += 4;
+					break;
+				case RegisterProgram.DEBUG_STACK : {
+					int size = stack.size();
+					copyStack(program, a);
+					printStack();
+					stack.setSize(size);
+					ip += 4;
+					break;
+				}
+				case RegisterProgram.EXIT :
+					copyStack(program, a);
+					runtime.i = program.source.code.length;
+					return;
+				default :
+					throw new RuntimeException("No such register instruction : " + code[ip]);
+				}
+				count ++;
+			}
+		} finally {
+			runtime.totalExecutedInstructions = count;
+		}
+	}
+	
+	/** Called when the instruction at ip jumps backwards. If the budget has run out this stops the program
+	 * there, putting the stack back the way the stack machine would have it.
+	 * @return true if the program was stopped. */
+	private boolean stopped(RegisterProgram program, int ip, long count) {
+		runtime.totalExecutedInstructions = count;
+		if (!runtime.budgetExhausted())
+			return false;
+		int instruction = ip / 4;
+		runtime.stop(program.pcs[instruction]);
+		copyStack(program, program.depths[instruction]);
+		return true;
+	}
+	
+	/** Push the stack registers below the depth onto the operand stack. */
+	private void copyStack(RegisterProgram program, int depth) {
+		int size = stack.size();
+		byte[] s = stack.reserve(depth);
+		System.arraycopy(runtime.locals, program.stackBase, s, size, depth);
+		stack.setSize(size + depth);
+	}
+	
+	/** Print every element on the Stack, and the variables. */
+	private void printStack() {
+		System.out.println("[DEBUG STACK]");
+		for (int i = 0; i < stack.size(); i ++)
+			System.out.println(i+": " + stack.get(i));
+		System.out.println("[STACK VARIABLES]");
+		runtime.printVariables();
+	}
+}
@@ -0,0 +1,88 @@
+package com.brew.vm;
+
+/**
+ * This class is a verified program translated for the {@link RegisterInterpreter}. Instead of pushing and
+ * popping an operand stack, every instruction names the registers it reads and writes. The registers are :
+ *
+ * The variables of every frame, at the slots the verifier gave them. These come first.
+ * One register for each place on the operand stack, holding values that couldn't stay where they came from.
+ * One register for each constant in the program, loaded before the program starts.
+ *
+ * Each instruction is 4 ints : the operation and three operands. Arithmetic and comparisons are
+ * OP destination left right. Jumps keep the index in the code they go to in the last operand.
+ * @author Jonathan Force
+ */
+public final class RegisterProgram {
+	
+	public static final int
+		/** MOVE destination source */
+		MOVE = 0,
+		
+		ADD = 1,
+		SUBTRACT = 2,
+		MULTIPLY = 3,
+		DIVIDE = 4,
+		
+		/** The comparisons set the destination to 1 if the comparison is true and 0 if it isn't. */
+		GREATER_THAN = 5,
+		GREATER_THAN_EQUAL = 6,
+		LESS_THAN = 7,
+		LESS_THAN_EQUAL = 8,
+		EQUAL_TO = 9,
+		
+		/** JUMP - - target */
+		JUMP = 10,
+		/** IF_FALSE condition - target : jump if the condition is 0, fail if it is anything but 0 or 1. */
+		IF_FALSE = 11,
+		/** JUMP_UNLESS_... left right target : compare and jump if the comparison is false. */
+		JUMP_UNLESS_GREATER_THAN = 12,
+		JUMP_UNLESS_GREATER_THAN_EQUAL = 13,
+		JUMP_UNLESS_LESS_THAN = 14,
+		JUMP_UNLESS_LESS_THAN_EQUAL = 15,
+		JUMP_UNLESS_EQUAL_TO = 16,
+		
+		/** PUSH_FRAME size */
+		PUSH_FRAME = 17,
+		POP_FRAME = 18,
+		/** DEBUG_OUT register */
+		DEBUG_OUT = 19,
+		/** DEBUG_STACK depth */
+		DEBUG_STACK = 20,
+		/** EXIT depth : copy the stack registers below the depth to the operand stack and stop. */
+		EXIT = 21;
+	
+	final int[] code;
+	/** The bytecode instruction each instruction came from. */
+	final int[] pcs;
+	/** How deep the operand stack is at each jump, so the stack can be put back if the program is stopped there. */
+	final int[] depths;
+	final byte[] constants;
+	final VerifiedProgram source;
+	final int stackBase, constantBase, registerCount;
+	
+	RegisterProgram(int[] code, int[] pcs, int[] depths, byte[] constants, VerifiedProgram source, int stackBase, int constantBase) {
+		this.code = code;
+		this.pcs = pcs;
+		this.depths = depths;
+		this.constants = constants;
+		this.source = source;
+		this.stackBase = stackBase;
+		this.constantBase = constantBase;
+		this.registerCount = constantBase + constants.length;
+	}
+	
+	/** @return the number of instructions in the program. */
+	public int length() {
+		return code.length / 4;
+	}
+	
+	/** @return the number of registers the program uses. */
+	public int registerCount() {
+		return registerCount;
+	}
+	
+	/** @return the verified program this was translated from. */
+	public VerifiedProgram source() {
+		return source;
+	}
+}
@@ -0,0 +1,306 @@
+package com.brew.vm;
+
+import java.util.Arrays;
+
+/**
+ * This class translates a verified program to a {@link RegisterProgram}. It walks the bytecode in order
+ * keeping track of where each value on the operand stack really is. PUSH and PULL_VAR don't produce an
+ * instruction at all, they just note that the value is in a constant's register or a variable's register.
+ * An operator reads straight from those registers, and PUSH_VAR makes the operator write straight to the
+ * variable. So x = x + 1, which is 4 instructions on the stack machine, is the single instruction
+ * ADD x x 1 here. A comparison followed by IF becomes a single compare and jump.
+ *
+ * Wherever paths meet, each value on the stack has to be in the register for its place on the stack, so
+ * every path agrees where to find it. Values are moved there before every jump and every jump target.
+ * @author Jonathan Force
+ */
+public class RegisterTranslator {
+	
+	private final VerifiedProgram program;
+	private final byte[] bytecode;
+	private final int stackBase, constantBase;
+	
+	/** The register each value on the operand stack is in, and the number of values. */
+	private final int[] stack;
+	private int depth;
+	
+	private int[] code, pcs, depths;
+	private int length;
+	/** The instruction that last wrote a stack register, or -1. PUSH_VAR can redirect it to the variable. */
+	private int lastProducer;
+	
+	/** The register of each constant, indexed by the constant's unsigned value, or -1. */
+	private final int[] constantRegisters;
+	private final byte[] constants;
+	private int constantCount;
+	
+	/** The jumps waiting for their targets : the instruction, and the bytecode index it jumps to. */
+	private int[] jumps, targets;
+	private int jumpCount;
+	
+	private RegisterTranslator(VerifiedProgram program) {
+		this.program = program;
+		this.bytecode = program.code;
+		this.stackBase = program.maxLocals;
+		this.constantBase = stackBase + program.maxStack;
+		this.stack = new int[program.maxStack];
+		this.code = new int[Math.max(bytecode.length, 4) * 4];
+		this.pcs = new int[Math.max(bytecode.length, 4)];
+		this.depths = new int[pcs.length];
+		this.constantRegisters = new int[256];
+		this.constants = new byte[256];
+		this.jumps = new int[Math.max(bytecode.length, 1)];
+		this.targets = new int[jumps.length];
+		Arrays.fill(constantRegisters, -1);
+	}
+	
+	/** Translate the program.
+	 * @return the program for the register interpreter. It does exactly what the verified program does. */
+	public static RegisterProgram translate(VerifiedProgram program) {
+		if (program.wide)
+			throw new UnsupportedOperationException("Programs with values wider than a byte can't be translated to register instructions.");
+		if (program.calls)
+			throw new UnsupportedOperationException("Programs with functions can't be translated to register instructions.");
+		return new RegisterTranslator(program).translate();
+	}
+	
+	private RegisterProgram translate() {
+		boolean[] isTarget = findTargets();
+		// Where each bytecode instruction's translation starts.
+		int[] translated = new int[bytecode.length];
+		boolean fallsThrough = false;
+		
+		int pc = 0;
+		while (pc < bytecode.length) {
+			byte inst = bytecode[pc];
+			int size = InstructionSet.lengthOf(inst);
+			
+			// Instructions that can never run don't need translating.
+			if (program.stackDepths[pc] == -1) {
+				pc += size;
+				continue;
+			}
+			if (isTarget[pc] || !fallsThrough) {
+				if (fallsThrough)
+					flush(pc);
+				depth = program.stackDepths[pc];
+				for (int i = 0; i < depth; i ++)
+					stack[i] = stackBase + i;
+				lastProducer = -1;
+			}
+			translated[pc] = length;
+			fallsThrough = true;
+			
+			switch (inst) {
+			case InstructionSet.PUSH :
+				stack[depth++] = constant(bytecode[pc + 1]);
+				break;
+			case InstructionSet.DUPLICATE :
+				stack[depth] = stack[depth - 1];
+				depth ++;
+				break;
+			case InstructionSet.PULL_VAR :
+				stack[depth++] = program.slots[pc];
+				break;
+			case InstructionSet.PULL_VARS :
+				stack[depth++] = program.slots[pc];
+				stack[depth++] = program.slots[pc + 1];
+				break;
+			case InstructionSet.ADD :
+			case InstructionSet.SUBTRACT :
+			case InstructionSet.MULTIPLY :
+			case InstructionSet.DIVIDE : {
+				int right = stack[--depth], left = stack[--depth];
+				produce(arithmeticOf(inst), left, right, pc);
+				break;
+			}
+			case InstructionSet.ADD_CONSTANT : {
+				int left = stack[--depth];
+				produce(RegisterProgram.ADD, left, constant(bytecode[pc + 1]), pc);
+				break;
+			}
+			case InstructionSet.GREATER_THAN :
+			case InstructionSet.GREATER_THAN_EQUAL :
+			case InstructionSet.LESS_THAN :
+			case InstructionSet.LESS_THAN_EQUAL :
+			case InstructionSet.EQUAL_TO : {
+				// The left hand side is on top.
+				int left = stack[--depth], right = stack[--depth];
+				int next = pc + 1;
+				if (next < bytecode.length && bytecode[next] == InstructionSet.IF && !isTarget[next]) {
+					// Compare and jump in one, the IF is translated along with the comparison.
+					flush(next);
+					jump(jumpUnlessOf(inst), left, right, next + 2 + bytecode[next + 1], next);
+					size += InstructionSet.lengthOf(InstructionSet.IF);
+				} else
+					produce(comparisonOf(inst), left, right, pc);
+				break;
+			}
+			case InstructionSet.IF : {
+				int condition = stack[--depth];
+				flush(pc);
+				jump(RegisterProgram.IF_FALSE, condition, 0, pc + 2 + bytecode[pc + 1], pc);
+				break;
+			}
+			case InstructionSet.IF_VAR :
+				flush(pc);
+				jump(jumpUnlessOf(bytecode[pc + 3]), program.slots[pc], constant(bytecode[pc + 4]), pc + 6 + bytecode[pc + 5], pc);
+				break;
+			case InstructionSet.GOTO :
+				flush(pc);
+				jump(RegisterProgram.JUMP, 0, 0, bytecode[pc + 1], pc);
+				fallsThrough = false;
+				break;
+			case InstructionSet.PUSH_VAR : {
+				int value = stack[--depth], slot = program.slots[pc];
+				// Values on the stack that are still in the variable have to be saved before it changes.
+				saveVariables(slot, slot + 1, pc);
+				if (value == stackBase + depth && lastProducer != -1 && lastProducer == length - 1 && code[lastProducer * 4 + 1] == value)
+					code[lastProducer * 4 + 1] = slot;
+				else if (value != slot)
+					emit(RegisterProgram.MOVE, slot, value, 0, pc);
+				break;
+			}
+			case InstructionSet.INCREMENT_VAR : {
+				int slot = program.slots[pc];
+				saveVariables(slot, slot + 1, pc);
+				emit(RegisterProgram.ADD, slot, slot, constant(bytecode[pc + 3]), pc);
+				break;
+			}
+			case InstructionSet.PUSH_FRAME :
+			case InstructionSet.POP_FRAME :
+				// The variables of a frame that is popped or pushed are about to be forgotten or cleared.
+				saveVariables(0, stackBase, pc);
+				if (inst == InstructionSet.PUSH_FRAME)
+					emit(RegisterProgram.PUSH_FRAME, bytecode[pc + 1], 0, 0, pc);
+				else
+					emit(RegisterProgram.POP_FRAME, 0, 0, 0, pc);
+				break;
+			case InstructionSet.DEBUG_OUT :
+				emit(RegisterProgram.DEBUG_OUT, stack[depth - 1], 0, 0, pc);
+				break;
+			case InstructionSet.DEBUG_STACK :
+				flush(pc);
+				emit(RegisterProgram.DEBUG_STACK, depth, 0, 0, pc);
+				break;
+			default :
+				throw new IllegalStateException("A verified program has an unknown instruction : " + inst);
+			}
+			
+			pc += size;
+		}
+		
+		if (fallsThrough) {
+			flush(bytecode.length);
+			emit(RegisterProgram.EXIT, depth, 0, 0, bytecode.length);
+		}
+		
+		// Now every target has been translated, point the jumps at them. Jumps to the end of the program
+		// each get their own EXIT, since they may leave different amounts on the stack.
+		for (int i = 0; i < jumpCount; i ++) {
+			int jump = jumps[i], target;
+			if (targets[i] == bytecode.length) {
+				target = length;
+				emit(RegisterProgram.EXIT, depths[jump], 0, 0, bytecode.length);
+			} else
+				target = translated[targets[i]];
+			code[jump * 4 + 3] = target * 4;
+		}
+		
+		return new RegisterProgram(Arrays.copyOf(code, length * 4), Arrays.copyOf(pcs, length), Arrays.copyOf(depths, length),
+				Arrays.copyOf(constants, constantCount), program, stackBase, constantBase);
+	}
+	
+	/** @return a table of every bytecode index that a reachable jump lands on. */
+	private boolean[] findTargets() {
+		boolean[] isTarget = new boolean[bytecode.length + 1];
+		for (int pc = 0; pc < bytecode.length; pc += InstructionSet.lengthOf(bytecode[pc])) {
+			if (program.stackDepths[pc] == -1)
+				continue;
+			switch (bytecode[pc]) {
+			case InstructionSet.GOTO : isTarget[bytecode[pc + 1]] = true; break;
+			case InstructionSet.IF : isTarget[pc + 2 + bytecode[pc + 1]] = true; break;
+			case InstructionSet.IF_VAR : isTarget[pc + 6 + bytecode[pc + 5]] = true; break;
+			}
+		}
+		return isTarget;
+	}
+	
+	/** Emit an operator that writes the register for its place on the stack, and push that register. */
+	private void produce(int operation, int left, int right, int pc) {
+		int destination = stackBase + depth;
+		lastProducer = emit(operation, destination, left, right, pc);
+		stack[depth++] = destination;
+	}
+	
+	/** Emit a jump whose target will be filled in once it has been translated. */
+	private void jump(int operation, int a, int b, int target, int pc) {
+		int jump = emit(operation, a, b, 0, pc);
+		depths[jump] = depth;
+		jumps[jumpCount] = jump;
+		targets[jumpCount ++] = target;
+	}
+	
+	/** Move every value on the stack to the register for its place on the stack. */
+	private void flush(int pc) {
+		for (int i = 0; i < depth; i ++)
+			if (stack[i] != stackBase + i) {
+				emit(RegisterProgram.MOVE, stackBase + i, stack[i], 0, pc);
+				stack[i] = stackBase + i;
+			}
+	}
+	
+	/** Move every value on the stack that is still in a variable between from and to (not including) to the
+	 * register for its place on the stack. */
+	private void saveVariables(int from, int to, int pc) {
+		for (int i = 0; i < depth; i ++)
+			if (stack[i] >= from && stack[i] < to) {
+				emit(RegisterProgram.MOVE, stackBase + i, stack[i], 0, pc);
+				stack[i] = stackBase + i;
+			}
+	}
+	
+	/** @return the register that holds the constant. */
+	private int constant(byte value) {
+		int index = value & 0xFF;
+		if (constantRegisters[index] == -1) {
+			constants[constantCount] = value;
+			constantRegisters[index] = constantBase + constantCount ++;
+		}
+		return constantRegisters[index];
+	}
+	
+	/** @return the index of the new instruction. */
+	private int emit(int operation, int a, int b, int c, int pc) {
+		if (length == pcs.length) {
+			code = Arrays.copyOf(code, code.length * 2);
+			pcs = Arrays.copyOf(pcs, pcs.length * 2);
+			depths = Arrays.copyOf(depths, depths.length * 2);
+		}
+		int at = length * 4;
+		code[at] = operation;
+		code[at + 1] = a;
+		code[at + 2] = b;
+		code[at + 3] = c;
+		pcs[length] = pc;
+		depths[length] = depth;
+		return length ++;
+	}
+	
+	private static int arithmeticOf(byte inst) {
+		switch (inst) {
+		case InstructionSet.ADD : return RegisterProgram.ADD;
+		case InstructionSet.SUBTRACT : return RegisterProgram.SUBTRACT;
+		case InstructionSet.MULTIPLY : return RegisterProgram.MULTIPLY;
+		default : return RegisterProgram.DIVIDE;
+		}
+	}
+	
+	private static int comparisonOf(byte inst) {
+		return RegisterProgram.GREATER_THAN + (inst - InstructionSet.GREATER_THAN);
+	}
+	
+	private static int jumpUnlessOf(byte comparison) {
+		return RegisterProgram.JUMP_UNLESS_GREATER_THAN + (comparison - InstructionSet.GREATER_THAN);
+	}
+}
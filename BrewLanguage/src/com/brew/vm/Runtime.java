@@ -1,66 +1,279 @@
 package com.brew.vm;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 
 public class Runtime {
 	
+	static final int INITIAL_LOCALS = 64, INITIAL_FRAMES = 8, INITIAL_CALLS = 8;
+	/** The most calls that can be in progress at once. Deeper recursion than this is a stack overflow. */
+	public static final int MAXIMUM_CALL_DEPTH = 1 << 16;
+	/** What each call keeps in calls : where the caller carries on, the caller's activation and the index
+	 * in locals it starts at, the depth of the operand stack the callee started with, and the number of
+	 * bytes the callee returns. */
+	private static final int
+		RETURN_ADDRESS = 0,
+		CALLER_ACTIVATION = 1,
+		CALLER_BASE = 2,
+		STACK_BASE = 3,
+		RESULT_SIZE = 4,
+		CALL_SIZE = 5;
+	
 	public final byte[] instructions;
-	public final ArrayList<Byte[]> frames;
 	
-	public int
-		i,
-		totalExecutedInstructions;
+	public final ExecutionBudget budget;
+	
+	public int i;
+	public long totalExecutedInstructions;
+	
+	/** The point in time the program must stop by, if the budget has a deadline. */
+	private final long deadline;
+	/** The number of backward branches taken. The clock and the thread are only looked at every so often. */
+	private int backwardBranches;
+	/** The instruction the program was stopped at, or -1 if it was never stopped. */
+	private int stoppedAt;
+	/** Whether the program was stopped because its thread was interrupted, rather than by its budget. */
+	private boolean cancelled;
+	/** Whether anything needs to be done every so often, besides counting instructions. */
+	private final boolean checkpoints;
+	
+	/** Every frame's variables, stored one frame after another. */
+	byte[] locals;
+	/** The index in locals that each frame starts at. */
+	int[] frameBases;
+	/** The number of frames, and the index in locals just past the last frame. */
+	private int frameCount, localsTop;
+	/** The first frame of the current activation, and the index in locals it starts at. Variables are
+	 * named by frames counted from the start of the activation, so a function sees its own frames the same
+	 * way however deep it is called. The program itself is activation 0, which starts at 0. */
+	private int activation, base;
+	/** The calls in progress, CALL_SIZE ints each, one after another without any objects. */
+	private int[] calls;
+	private int callDepth;
 	
 	public Runtime(byte[] instructions) {
+		this(instructions, ExecutionBudget.UNLIMITED);
+	}
+	
+	public Runtime(byte[] instructions, ExecutionBudget budget) {
+		this(instructions, budget, INITIAL_LOCALS, INITIAL_FRAMES);
+	}
+	
+	/** Make a runtime with room for the specified number of variables and frames. It will still grow
+	 * if the program needs more. */
+	public Runtime(byte[] instructions, ExecutionBudget budget, int localsCapacity, int framesCapacity) {
+		this(instructions, budget, localsCapacity, framesCapacity, null);
+	}
+	
+	/** Make a runtime with room for the specified number of variables and frames, taking over the space of
+	 * a runtime that is finished with where it is big enough. Every variable is cleared as its frame is
+	 * pushed, so nothing the old program left behind can be seen.
+	 * @param finished The runtime of the last program run, or null. It mustn't be used again. */
+	Runtime(byte[] instructions, ExecutionBudget budget, int localsCapacity, int framesCapacity, Runtime finished) {
 		this.i = 0;
-		this.frames = new ArrayList<Byte[]>();
+		localsCapacity = Math.max(localsCapacity, 1);
+		framesCapacity = Math.max(framesCapacity, 1);
+		this.locals = (finished != null && finished.locals.length >= localsCapacity)? finished.locals : new byte[localsCapacity];
+		this.frameBases = (finished != null && finished.frameBases.length >= framesCapacity)? finished.frameBases : new int[framesCapacity];
+		this.calls = (finished != null)? finished.calls : new int[INITIAL_CALLS * CALL_SIZE];
+		this.frameCount = this.localsTop = this.activation = this.base = this.callDepth = 0;
 		this.totalExecutedInstructions = 0;
 		this.instructions = instructions;
+		this.budget = budget;
+		this.deadline = budget.hasDeadline()? System.nanoTime() + budget.timeoutNanos() : 0;
+		this.backwardBranches = 0;
+		this.stoppedAt = -1;
+		this.cancelled = false;
+		this.checkpoints = budget.hasDeadline() || budget.isCooperative();
 	}
 	
+	/** Pop the most recently pushed frame, forgetting its variables. Only the current activation's frames
+	 * can be popped. */
 	public void popFrame() {
-		frames.remove(frames.size() - 1);
+		if (frameCount == activation)
+			throw new RuntimeException("There is no frame to pop.");
+		localsTop = frameBases[--frameCount];
+	}
+	
+	/** Push a stack frame of a specified size. Frames are used to store variables. Every
+	 * variable in a new frame starts out as 0.
+	 * @param frameSize The size, as an unsigned byte. */
+	public void pushFrame(byte frameSize) {
+		int size = frameSize & 0xFF;
+		if (frameCount == frameBases.length)
+			frameBases = Arrays.copyOf(frameBases, frameCount * 2);
+		if (localsTop + size > locals.length)
+			locals = Arrays.copyOf(locals, Math.max(locals.length * 2, localsTop + size));
+		
+		frameBases[frameCount++] = localsTop;
+		// The space may have been used by a frame that was popped, so clear it.
+		Arrays.fill(locals, localsTop, localsTop + size, (byte) 0);
+		localsTop += size;
+	}
+	
+	/** Start a new activation for a call. Its first frame is the next one pushed, and the caller's frames
+	 * can't be seen until it returns.
+	 * @param returnAddress Where the caller carries on once the call returns.
+	 * @param stackBase The depth of the operand stack the function starts with, once its arguments are off it.
+	 * @param resultSize The number of bytes the function returns.
+	 */
+	public void call(int returnAddress, int stackBase, int resultSize) {
+		if (callDepth == MAXIMUM_CALL_DEPTH)
+			throw new RuntimeException("Stack overflow, no more than " + MAXIMUM_CALL_DEPTH + " calls can be in progress at once.");
+		int at = callDepth * CALL_SIZE;
+		if (at == calls.length)
+			calls = Arrays.copyOf(calls, calls.length * 2);
+		calls[at + RETURN_ADDRESS] = returnAddress;
+		calls[at + CALLER_ACTIVATION] = activation;
+		calls[at + CALLER_BASE] = base;
+		calls[at + STACK_BASE] = stackBase;
+		calls[at + RESULT_SIZE] = resultSize;
+		callDepth ++;
+		activation = frameCount;
+		base = localsTop;
+	}
+	
+	/** End the current activation, popping every frame it pushed, and go back to the caller's.
+	 * @return where the caller carries on. */
+	public int returnFromCall() {
+		if (callDepth == 0)
+			throw new RuntimeException("There is no call to return from.");
+		callDepth --;
+		int at = callDepth * CALL_SIZE;
+		frameCount = activation;
+		localsTop = base;
+		activation = calls[at + CALLER_ACTIVATION];
+		base = calls[at + CALLER_BASE];
+		return calls[at + RETURN_ADDRESS];
+	}
+	
+	/** @return the number of calls in progress. */
+	public int callDepth() {
+		return callDepth;
+	}
+	
+	/** @return the depth of the operand stack the current call started with, or 0 outside of any call. */
+	public int stackBase() {
+		return (callDepth == 0)? 0 : calls[(callDepth - 1) * CALL_SIZE + STACK_BASE];
 	}
 	
-	/** Push a stack frame of a specified size. Frames are used to store variables. */
-	public void pushFrame(byte size) {
-		Byte[] frame = new Byte[size];
-		frames.add(frame);
+	/** @return the number of bytes the current call returns, or 0 outside of any call. */
+	public int resultSize() {
+		return (callDepth == 0)? 0 : calls[(callDepth - 1) * CALL_SIZE + RESULT_SIZE];
 	}
 	
-	/** Pull a variable off the specified stack frame. */
+	/** @return the index in locals the current activation starts at. The verifier's slots count from here. */
+	int base() {
+		return base;
+	}
+	
+	/** @return the number of frames currently on the stack. */
+	public int frameCount() {
+		return frameCount;
+	}
+	
+	/** @return the number of variables in the specified frame. Unlike variables, frames are counted here from
+	 * the bottom of the stack, whichever activation they belong to. */
+	public int frameSize(int frameID) {
+		int end = (frameID + 1 == frameCount)? localsTop : frameBases[frameID + 1];
+		return end - frameBases[frameID];
+	}
+	
+	/** Pull a variable off the specified stack frame. Frames are counted from the start of the current activation. */
 	public byte pullVar(byte frameID, byte id) {
-		// Beware bad input.
-		if (frameID >= frames.size() || frameID < 0)
-			throw new RuntimeException("FrameID " + frameID + " is not valid.");
-		else if (id >= frames.get(frameID).length || id < 0)
-			throw new RuntimeException("Variable id " + id + " is not valid in frame " + frameID);
-		
-		return frames.get(frameID)[id];
+		return locals[slotOf(frameID, id, InstructionSet.BYTE_SIZE)];
 	}
 	
 	/** This method pushes a variable onto the stack. It will override the value
 	 * of the variable if the variable doesn't exist. */
 	public void pushVar(byte frameID, byte id, byte value) {
+		locals[slotOf(frameID, id, InstructionSet.BYTE_SIZE)] = value;
+	}
+	
+	/** Pull the int variable whose first byte is at the id off the specified stack frame. */
+	public int pullInt(byte frameID, byte id) {
+		return (int) pullWide(frameID, id, InstructionSet.INT_SIZE);
+	}
+	
+	/** Pull the long variable whose first byte is at the id off the specified stack frame. */
+	public long pullLong(byte frameID, byte id) {
+		return pullWide(frameID, id, InstructionSet.LONG_SIZE);
+	}
+	
+	/** Pull the variable of the specified size, one of the sizes in {@link InstructionSet}, off the frame. */
+	public long pullWide(byte frameID, byte id, int size) {
+		return InstructionSet.read(locals, slotOf(frameID, id, size), size);
+	}
+	
+	/** Store the low bytes of the value, as many as the size, in the variable. */
+	public void pushWide(byte frameID, byte id, int size, long value) {
+		InstructionSet.write(locals, slotOf(frameID, id, size), size, value);
+	}
+	
+	/** @return the index in locals of the variable's first byte, once it is certain every byte of it
+	 * is inside the frame. */
+	int slotOf(byte frameID, byte id, int size) {
 		// Beware bad input.
-		if (frameID >= frames.size() || frameID < 0)
-			throw new RuntimeException("FrameID " + frameID + " is not valid. There are currently " + frames.size() + " frames.");
-		else if (id >= frames.get(frameID).length || id < 0)
-			throw new RuntimeException("Variable id " + id + " is not valid in frame " + frameID);
+		if (frameID >= frameCount - activation || frameID < 0)
+			throw new RuntimeException("FrameID " + frameID + " is not valid. There are currently " + (frameCount - activation) + " frames.");
+		else if ((id & 0xFF) + size > frameSize(activation + frameID))
+			throw new RuntimeException("Variable id " + (id & 0xFF) + " is not valid in frame " + frameID);
 		
-		frames.get(frameID)[id] = value;
+		return frameBases[activation + frameID] + (id & 0xFF);
 	}
 	
 	/** Print all the variables in the stack. */
 	public void printVariables() {
-		for (int a = 0; a < frames.size(); a ++)
-			for (int b = 0; b < frames.get(a).length; b ++)
-				System.out.println("Variable " + b + " in frame " + a + ". Value : " + frames.get(a)[b]);
+		for (int a = 0; a < frameCount; a ++)
+			for (int b = 0; b < frameSize(a); b ++)
+				System.out.println("Variable " + b + " in frame " + a + ". Value : " + locals[frameBases[a] + b]);
 	}
 	
 	/** @return true while there are still more instructions to execute. */
 	public boolean notFinished() {
-		return i < instructions.length && totalExecutedInstructions < 300;
+		return i < instructions.length;
+	}
+	
+	/** This method is called every time the program branches backwards, it is the only place the
+	 * budget is checked. If the budget is cooperative, every so often it also checks whether the thread
+	 * running the program was interrupted, and if it is yielding, gives up the processor.
+	 * @return true if the program has used up its budget or was cancelled, and should be stopped. */
+	public boolean budgetExhausted() {
+		if (totalExecutedInstructions >= budget.maximumInstructions())
+			return true;
+		// Reading the clock or the thread is far more expensive than a branch, so only do it every 256 loops.
+		return checkpoints && (++backwardBranches & 0xFF) == 0 && checkpoint();
+	}
+	
+	/** Called every 256 backward branches. Kept apart from the budget check so that stays small enough
+	 * to be inlined into the loop that calls it.
+	 * @return true if the program was cancelled or has run past its deadline. */
+	private boolean checkpoint() {
+		if (budget.isCooperative()) {
+			if (Thread.currentThread().isInterrupted()) {
+				cancelled = true;
+				return true;
+			}
+			// Yielding costs more again, a loop this long has had its turn.
+			if (budget.isYielding() && (backwardBranches & 0xFFF) == 0)
+				Thread.yield();
+		}
+		return budget.hasDeadline() && System.nanoTime() - deadline >= 0;
+	}
+	
+	/** Stop the program at the specified instruction. The interpreter will not execute anything after
+	 * the current instruction. */
+	public void stop(int pc) {
+		stoppedAt = pc;
+		i = instructions.length - 1;
+	}
+	
+	/** @return the way the program ended. Only meaningful once the interpreter has finished with it. */
+	public ExecutionResult result() {
+		if (stoppedAt >= 0 && cancelled)
+			return new ExecutionResult(ExecutionResult.Status.CANCELLED, stoppedAt, totalExecutedInstructions);
+		if (stoppedAt >= 0)
+			return new ExecutionResult(ExecutionResult.Status.BUDGET_EXHAUSTED, stoppedAt, totalExecutedInstructions);
+		return new ExecutionResult(ExecutionResult.Status.COMPLETED, i, totalExecutedInstructions);
 	}
 	
 	/** @return the current instruction; the instruction currently being executed. */
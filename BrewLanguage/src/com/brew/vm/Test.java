@@ -8,11 +8,76 @@ public class Test {
 		Test test = new Test();
 		//test.vm.interpreter().enableDebugMessages();
 		
-		test.variableTest();
+		if (args.length > 0 && args[0].equals("benchmark"))
+			test.benchmark();
+		else
+			test.variableTest();
+	}
+	
+	/** Time the doubler and the variable loop with their debug output removed. These two programs
+	 * exercise the operand stack on every instruction, so they show what the stack costs. */
+	private void benchmark() {
+		byte[] doubler = new byte[] {
+				InstructionSet.PUSH, 1,
+				InstructionSet.DUPLICATE,
+				InstructionSet.ADD,
+				
+				InstructionSet.DUPLICATE,
+				InstructionSet.PUSH, 32,
+				InstructionSet.GREATER_THAN,
+				InstructionSet.IF, 2,
+				InstructionSet.GOTO, 2,
+		};
+		byte[] variableLoop = new byte[] {
+				InstructionSet.PUSH_FRAME, 1,
+				InstructionSet.PUSH, 7,
+				InstructionSet.PUSH_VAR, 0, 0,
+				
+				InstructionSet.PULL_VAR, 0, 0,
+				InstructionSet.PULL_VAR, 0, 0,
+				InstructionSet.ADD,
+				InstructionSet.PUSH_VAR, 0, 0,
+				InstructionSet.GOTO, 7,
+		};
+		time("doubler", doubler, ExecutionBudget.UNLIMITED, 200000);
+		time("verified doubler", Verifier.verify(doubler), ExecutionBudget.UNLIMITED, 200000);
+		// The variable loop never ends, so run it for the 300 instructions the VM used to allow.
+		time("variable loop", variableLoop, ExecutionBudget.instructions(300), 200000);
+		time("verified variable loop", Verifier.verify(variableLoop), ExecutionBudget.instructions(300), 200000);
+	}
+	
+	private void time(String name, VerifiedProgram program, ExecutionBudget budget, int runs) {
+		for (int i = 0; i < runs; i ++) {
+			vm.interpreter().interpret(program, budget);
+			vm.stack().clear();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < runs; i ++) {
+			vm.interpreter().interpret(program, budget);
+			vm.stack().clear();
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.println(name + " : " + (elapsed / runs) + " ns per run");
+	}
+	
+	private void time(String name, byte[] program, ExecutionBudget budget, int runs) {
+		// Warm up first so the numbers describe compiled code rather than the bytecode interpreter.
+		for (int i = 0; i < runs; i ++) {
+			vm.interpreter().interpret(program, budget);
+			vm.stack().clear();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < runs; i ++) {
+			vm.interpreter().interpret(program, budget);
+			vm.stack().clear();
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.println(name + " : " + (elapsed / runs) + " ns per run");
 	}
 	
 	private void variableTest() {
-		vm.interpreter().interpret(new byte[] {
+		// This program never ends on its own, so give it a budget.
+		ExecutionResult result = vm.interpreter().interpret(new byte[] {
 				InstructionSet.PUSH_FRAME, 1,
 				InstructionSet.PUSH, 7,
 				InstructionSet.PUSH_VAR, 0, 0,
@@ -23,7 +88,8 @@ public class Test {
 				InstructionSet.DEBUG_OUT,
 				InstructionSet.PUSH_VAR, 0, 0,
 				InstructionSet.GOTO, 7,
-		});
+		}, ExecutionBudget.instructions(300));
+		System.out.println(result);
 	}
 	
 	private void basic() {
@@ -0,0 +1,132 @@
+package com.brew.vm;
+
+/**
+ * This class is a program that has passed the {@link Verifier}. It can only be made by the verifier, so
+ * holding one is proof that the program can't underflow the stack, jump into the middle of an instruction,
+ * or touch a variable that doesn't exist. The interpreter runs these on a fast path without those checks.
+ * @author Jonathan Force
+ */
+public final class VerifiedProgram {
+	
+	final byte[] code;
+	/** The depth of the stack before each instruction, or -1 where no instruction starts or none is reached. */
+	final int[] stackDepths;
+	/** The sizes of the frames before each instruction, or null where no instruction starts or none is reached. */
+	final int[][] frames;
+	/** The index in the runtime's locals of the variable used by each instruction that uses one, or -1.
+	 * PULL_VARS uses two, the second is kept at the index of its first parameter. */
+	final int[] slots;
+	final int maxStack, maxFrames, maxLocals;
+	/** Whether the program uses values wider than a byte, or wide jumps. Only the interpreter runs those. */
+	final boolean wide;
+	/** Whether the program calls functions. Only the interpreter runs those too. */
+	final boolean calls;
+	/** The program translated for the register interpreter, once somebody has asked for it. */
+	private volatile RegisterProgram registerProgram;
+	/** The program compiled for the closure interpreter, once somebody has asked for it. */
+	private volatile ClosureProgram closureProgram;
+	/** How many times the program has been started, at 0, and how many times each loop has been entered,
+	 * at the index the loop starts at. These are only a guide, threads may lose each other's counts. */
+	private final int[] hotness;
+	/** The program compiled to a JVM class, once it has become hot. */
+	private volatile JitCode jitCode;
+	private volatile boolean jitFailed;
+	
+	VerifiedProgram(byte[] code, int[] stackDepths, int[][] frames, int[] slots, int maxStack, int maxFrames, int maxLocals, boolean wide, boolean calls) {
+		this.code = code;
+		this.stackDepths = stackDepths;
+		this.frames = frames;
+		this.slots = slots;
+		this.maxStack = maxStack;
+		this.maxFrames = maxFrames;
+		this.maxLocals = maxLocals;
+		this.wide = wide;
+		this.calls = calls;
+		this.hotness = new int[Math.max(code.length, 1)];
+	}
+	
+	/** @return a copy of the program's instructions. */
+	public byte[] instructions() {
+		return code.clone();
+	}
+	
+	/** @return the number of bytes in the program. */
+	public int length() {
+		return code.length;
+	}
+	
+	/** @return true if the program has any of the instructions for values wider than a byte, or wide jumps.
+	 * The register and closure engines don't know those, so the program only runs on the stack engine. */
+	public boolean usesWideValues() {
+		return wide;
+	}
+	
+	/** @return true if the program has CALL or RETURN in it. The register and closure engines don't know
+	 * those either, so the program only runs on the stack engine. */
+	public boolean usesCalls() {
+		return calls;
+	}
+	
+	/** @return the most bytes the program ever has on the stack at once. A function's stack is counted from
+	 * where it starts, so this is the most any one call has on the stack. */
+	public int maxStack() {
+		return maxStack;
+	}
+	
+	/** @return the most frames the program, or any one call, ever has at once. */
+	public int maxFrames() {
+		return maxFrames;
+	}
+	
+	/** @return the most variables the program, or any one call, ever has at once, across all of its frames. */
+	public int maxLocals() {
+		return maxLocals;
+	}
+	
+	/** @return the program translated for the {@link RegisterInterpreter}. It is only translated once. */
+	RegisterProgram registerProgram() {
+		RegisterProgram translated = registerProgram;
+		if (translated == null)
+			registerProgram = translated = RegisterTranslator.translate(this);
+		return translated;
+	}
+	
+	/** @return the program compiled for the {@link ClosureInterpreter}. It is only compiled once. */
+	ClosureProgram closureProgram() {
+		ClosureProgram compiled = closureProgram;
+		if (compiled == null)
+			closureProgram = compiled = ClosureCompiler.compile(this);
+		return compiled;
+	}
+	
+	/** Count a visit to the start of the program, at 0, or to the start of a loop. Once either has been
+	 * visited more than the threshold, the program is compiled by the {@link JitCompiler}.
+	 * @return the compiled program, or null if it isn't hot yet or can't be compiled. */
+	JitCode hot(int pc, int threshold) {
+		JitCode compiled = jitCode;
+		if (compiled != null || jitFailed || ++hotness[pc] <= threshold)
+			return compiled;
+		return compile();
+	}
+	
+	private synchronized JitCode compile() {
+		if (jitCode == null && !jitFailed) {
+			JitCode compiled = JitCompiler.compile(this);
+			if (compiled == null)
+				jitFailed = true;
+			jitCode = compiled;
+		}
+		return jitCode;
+	}
+	
+	/** @return true if the program has been compiled to a JVM class. */
+	public boolean isCompiled() {
+		return jitCode != null;
+	}
+	
+	/** @return the depth of the stack just before the instruction at pc runs, or -1 if the instruction
+	 * can never run. */
+	public int stackDepthAt(int pc) {
+		return stackDepths[pc];
+	}
+}
@@ -0,0 +1,317 @@
+package com.brew.vm;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import com.brew.vm.exceptions.VerificationException;
+
+/**
+ * This class checks a program once, before it is run, so that the interpreter doesn't have to check it
+ * while it runs. The verifier follows every path through the program keeping track of how deep the stack
+ * is and which frames exist, without knowing any actual values. A program passes if :
+ *
+ * Every instruction is a real instruction and all of its parameters are present.
+ * Every GOTO and IF lands on the start of an instruction, or exactly on the end of the program.
+ * No instruction pops more values than are on the stack.
+ * Every path that reaches an instruction reaches it with the same stack depth and the same frames.
+ * Every PULL_VAR and PUSH_VAR names a frame that exists and a variable inside that frame.
+ * Every wide instruction finds a value of the right size, and every wide variable fits inside its frame.
+ * Every function is only called with one number of bytes of arguments and of result, returns exactly its
+ * result, and never runs off the end of the program. RETURN is only found inside functions.
+ *
+ * Depths and frame sizes are counted in bytes, so an int is 4 deep on the stack. Because frames are the same on every path, each variable lives at a fixed place in the runtime's
+ * locals, and the verifier records that place for every variable instruction.
+ *
+ * A function is checked as if it were a program of its own that starts at the CALL's target, with an
+ * empty stack and its arguments in its only frame. Its depths, frames and slots are all counted from the
+ * start of its activation, wherever that turns out to be when it runs.
+ * @author Jonathan Force
+ */
+public class Verifier {
+	
+	private static final int[] NO_FRAMES = new int[0];
+	
+	/** Verify the program.
+	 * @param instructions The program to verify. It is copied, so changing the array afterwards has no effect.
+	 * @return the verified program, ready to be run on the interpreter's fast path.
+	 * @throws VerificationException if the program could fail at runtime for any of the reasons listed above.
+	 */
+	public static VerifiedProgram verify(byte[] instructions) {
+		return verifyCode(instructions.clone());
+	}
+	
+	/** Verify the program in the buffer, from its position to its limit. The bytes are read straight into
+	 * the verified program, so a buffer that maps a file is never copied anywhere else first.
+	 * @param instructions The program to verify. Its position is left where it was.
+	 * @return the verified program, ready to be run on the interpreter's fast path.
+	 * @throws VerificationException if the program could fail at runtime for any of the reasons listed above.
+	 */
+	public static VerifiedProgram verify(ByteBuffer instructions) {
+		byte[] code = new byte[instructions.remaining()];
+		instructions.duplicate().get(code);
+		return verifyCode(code);
+	}
+	
+	/** Verify the program, which is kept by the verified program. */
+	private static VerifiedProgram verifyCode(byte[] code) {
+		boolean[] isInstruction = findInstructions(code);
+		
+		int[] depths = new int[code.length];
+		int[][] frames = new int[code.length][];
+		int[] slots = new int[code.length];
+		// The number of bytes the function each instruction belongs to returns, or -1 in the program itself.
+		int[] results = new int[code.length];
+		Arrays.fill(depths, -1);
+		Arrays.fill(slots, -1);
+		
+		int maxStack = 0, maxFrames = 0, maxLocals = 0;
+		boolean wide = false, calls = false;
+		
+		ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+		if (code.length > 0) {
+			depths[0] = 0;
+			frames[0] = NO_FRAMES;
+			results[0] = -1;
+			work.push(0);
+		}
+		
+		while (!work.isEmpty()) {
+			int pc = work.pop();
+			byte inst = code[pc];
+			int depth = depths[pc];
+			int[] frame = frames[pc];
+			int result = results[pc];
+			int next = pc + InstructionSet.lengthOf(inst);
+			wide |= InstructionSet.isWide(inst);
+			calls |= InstructionSet.isCall(inst);
+			
+			switch (inst) {
+			case InstructionSet.PUSH :
+				depth ++;
+				break;
+			case InstructionSet.DUPLICATE :
+				require(pc, depth, 1);
+				depth ++;
+				break;
+			case InstructionSet.DEBUG_OUT :
+				require(pc, depth, 1);
+				break;
+			case InstructionSet.DEBUG_STACK :
+				break;
+			case InstructionSet.ADD :
+			case InstructionSet.SUBTRACT :
+			case InstructionSet.DIVIDE :
+			case InstructionSet.MULTIPLY :
+			case InstructionSet.GREATER_THAN :
+			case InstructionSet.GREATER_THAN_EQUAL :
+			case InstructionSet.LESS_THAN :
+			case InstructionSet.LESS_THAN_EQUAL :
+			case InstructionSet.EQUAL_TO :
+				require(pc, depth, 2);
+				depth --;
+				break;
+			case InstructionSet.GOTO :
+				// GOTO never falls through to the next instruction.
+				next = -1;
+				flow(pc, code[pc + 1], depth, frame, result, isInstruction, depths, frames, results, work);
+				break;
+			case InstructionSet.IF :
+				require(pc, depth, 1);
+				depth --;
+				flow(pc, pc + 2 + code[pc + 1], depth, frame, result, isInstruction, depths, frames, results, work);
+				break;
+			case InstructionSet.PULL_VAR :
+				slots[pc] = slotOf(pc, code[pc + 1], code[pc + 2], frame);
+				depth ++;
+				break;
+			case InstructionSet.PUSH_VAR :
+				require(pc, depth, 1);
+				slots[pc] = slotOf(pc, code[pc + 1], code[pc + 2], frame);
+				depth --;
+				break;
+			case InstructionSet.PUSH_FRAME :
+				// Every size is valid, it is an unsigned byte.
+				frame = Arrays.copyOf(frame, frame.length + 1);
+				frame[frame.length - 1] = code[pc + 1] & 0xFF;
+				maxFrames = Math.max(maxFrames, frame.length);
+				maxLocals = Math.max(maxLocals, sum(frame));
+				break;
+			case InstructionSet.POP_FRAME :
+				if (frame.length == 0)
+					throw new VerificationException(pc, "There is no frame to pop.");
+				frame = Arrays.copyOf(frame, frame.length - 1);
+				break;
+			case InstructionSet.INCREMENT_VAR :
+				slots[pc] = slotOf(pc, code[pc + 1], code[pc + 2], frame);
+				break;
+			case InstructionSet.ADD_CONSTANT :
+				require(pc, depth, 1);
+				break;
+			case InstructionSet.IF_VAR :
+				if (!InstructionSet.isComparisonOperator(code[pc + 3]))
+					throw new VerificationException(pc, code[pc + 3] + " is not a comparison operator.");
+				slots[pc] = slotOf(pc, code[pc + 1], code[pc + 2], frame);
+				flow(pc, pc + 6 + code[pc + 5], depth, frame, result, isInstruction, depths, frames, results, work);
+				break;
+			case InstructionSet.PULL_VARS :
+				// There is only one slot per instruction, so the second variable's goes where its first parameter is.
+				slots[pc] = slotOf(pc, code[pc + 1], code[pc + 2], frame);
+				slots[pc + 1] = slotOf(pc, code[pc + 3], code[pc + 4], frame);
+				depth += 2;
+				break;
+			case InstructionSet.PUSH_INT :
+				depth += InstructionSet.INT_SIZE;
+				break;
+			case InstructionSet.PUSH_LONG :
+				depth += InstructionSet.LONG_SIZE;
+				break;
+			case InstructionSet.INT_MATH :
+			case InstructionSet.LONG_MATH : {
+				int size = (inst == InstructionSet.INT_MATH)? InstructionSet.INT_SIZE : InstructionSet.LONG_SIZE;
+				if (!InstructionSet.isArithmeticOperator(code[pc + 1]))
+					throw new VerificationException(pc, code[pc + 1] + " is not an arithmetic operator.");
+				require(pc, depth, 2 * size);
+				depth -= size;
+				break;
+			}
+			case InstructionSet.INT_COMPARE :
+			case InstructionSet.LONG_COMPARE : {
+				int size = (inst == InstructionSet.INT_COMPARE)? InstructionSet.INT_SIZE : InstructionSet.LONG_SIZE;
+				if (!InstructionSet.isComparisonOperator(code[pc + 1]))
+					throw new VerificationException(pc, code[pc + 1] + " is not a comparison operator.");
+				require(pc, depth, 2 * size);
+				// The truth value is a single byte.
+				depth -= 2 * size - 1;
+				break;
+			}
+			case InstructionSet.PULL_INT_VAR :
+			case InstructionSet.PULL_LONG_VAR : {
+				int size = (inst == InstructionSet.PULL_INT_VAR)? InstructionSet.INT_SIZE : InstructionSet.LONG_SIZE;
+				slots[pc] = slotOf(pc, code[pc + 1], code[pc + 2], size, frame);
+				depth += size;
+				break;
+			}
+			case InstructionSet.PUSH_INT_VAR :
+			case InstructionSet.PUSH_LONG_VAR : {
+				int size = (inst == InstructionSet.PUSH_INT_VAR)? InstructionSet.INT_SIZE : InstructionSet.LONG_SIZE;
+				require(pc, depth, size);
+				slots[pc] = slotOf(pc, code[pc + 1], code[pc + 2], size, frame);
+				depth -= size;
+				break;
+			}
+			case InstructionSet.CONVERT :
+				if (!InstructionSet.isValueSize(code[pc + 1]) || !InstructionSet.isValueSize(code[pc + 2]))
+					throw new VerificationException(pc, "Can't convert from " + code[pc + 1] + " bytes to " + code[pc + 2] + " bytes.");
+				require(pc, depth, code[pc + 1]);
+				depth += code[pc + 2] - code[pc + 1];
+				break;
+			case InstructionSet.GOTO_WIDE :
+				next = -1;
+				flow(pc, (int) InstructionSet.read(code, pc + 1, 2) & 0xFFFF, depth, frame, result, isInstruction, depths, frames, results, work);
+				break;
+			case InstructionSet.IF_WIDE :
+				require(pc, depth, 1);
+				depth --;
+				flow(pc, pc + 3 + (int) InstructionSet.read(code, pc + 1, 2), depth, frame, result, isInstruction, depths, frames, results, work);
+				break;
+			case InstructionSet.CALL : {
+				int arguments = code[pc + 3], returned = code[pc + 4];
+				if (arguments < 0)
+					throw new VerificationException(pc, "A function can't take " + arguments + " bytes of arguments.");
+				if (!InstructionSet.isValueSize(returned))
+					throw new VerificationException(pc, "A function can't return " + returned + " bytes.");
+				require(pc, depth, arguments);
+				// The function starts with nothing on its stack and its arguments in its only frame.
+				flow(pc, (int) InstructionSet.read(code, pc + 1, 2) & 0xFFFF, 0, new int[] { arguments }, returned,
+						isInstruction, depths, frames, results, work);
+				depth += returned - arguments;
+				break;
+			}
+			case InstructionSet.RETURN :
+				if (result == -1)
+					throw new VerificationException(pc, "RETURN is only allowed inside a function.");
+				if (depth != result)
+					throw new VerificationException(pc, "The function returns " + result + " bytes but the stack holds " + depth + ".");
+				next = -1;
+				break;
+			default :
+				throw new VerificationException(pc, "No such instruction : " + inst);
+			}
+			
+			maxStack = Math.max(maxStack, depth);
+			if (next != -1)
+				flow(pc, next, depth, frame, result, isInstruction, depths, frames, results, work);
+		}
+		
+		return new VerifiedProgram(code, depths, frames, slots, maxStack, maxFrames, maxLocals, wide, calls);
+	}
+	
+	/** Walk the program from start to end marking where each instruction starts. This also makes sure
+	 * every instruction exists and has all of its parameters. */
+	private static boolean[] findInstructions(byte[] code) {
+		boolean[] isInstruction = new boolean[code.length];
+		int pc = 0;
+		while (pc < code.length) {
+			int length = InstructionSet.lengthOf(code[pc]);
+			if (length == -1)
+				throw new VerificationException(pc, "No such instruction : " + code[pc]);
+			else if (pc + length > code.length)
+				throw new VerificationException(pc, "The instruction is missing " + (pc + length - code.length) + " of its parameters.");
+			isInstruction[pc] = true;
+			pc += length;
+		}
+		return isInstruction;
+	}
+	
+	/** Record that control can pass from the instruction at pc to the target with the given state.
+	 * @param result The number of bytes the function being followed returns, or -1 in the program itself. */
+	private static void flow(int pc, int target, int depth, int[] frame, int result,
+			boolean[] isInstruction, int[] depths, int[][] frames, int[] results, ArrayDeque<Integer> work) {
+		// Landing exactly on the end of the program just ends it, but a function has to return.
+		if (target == isInstruction.length && result != -1)
+			throw new VerificationException(pc, "A function runs off the end of the program.");
+		if (target == isInstruction.length)
+			return;
+		if (target < 0 || target > isInstruction.length || !isInstruction[target])
+			throw new VerificationException(pc, "Jump target " + target + " is not the start of an instruction.");
+		
+		if (depths[target] == -1) {
+			depths[target] = depth;
+			frames[target] = frame;
+			results[target] = result;
+			work.push(target);
+		} else if (depths[target] != depth)
+			throw new VerificationException(target, "The stack is " + depths[target] + " deep on one path and " + depth + " deep on another.");
+		else if (!Arrays.equals(frames[target], frame))
+			throw new VerificationException(target, "The frames are " + Arrays.toString(frames[target]) + " on one path and " + Arrays.toString(frame) + " on another.");
+		else if (results[target] != result)
+			throw new VerificationException(target, "The code is reached by functions that return different sizes, or by the program and a function.");
+	}
+	
+	/** @return the index in the runtime's locals of the variable, given the sizes of the frames at pc. */
+	private static int slotOf(int pc, byte frameID, byte id, int[] frame) {
+		return slotOf(pc, frameID, id, InstructionSet.BYTE_SIZE, frame);
+	}
+	
+	/** @return the index in the runtime's locals of the first byte of the variable of the specified size. */
+	private static int slotOf(int pc, byte frameID, byte id, int size, int[] frame) {
+		if (frameID < 0 || frameID >= frame.length)
+			throw new VerificationException(pc, "FrameID " + frameID + " is not valid. There are " + frame.length + " frames here.");
+		else if ((id & 0xFF) + size > frame[frameID])
+			throw new VerificationException(pc, "Variable id " + (id & 0xFF) + " is not valid in frame " + frameID);
+		return sum(Arrays.copyOf(frame, frameID)) + (id & 0xFF);
+	}
+	
+	private static void require(int pc, int depth, int needed) {
+		if (depth < needed)
+			throw new VerificationException(pc, "The instruction needs " + needed + " values but the stack only holds " + depth + ".");
+	}
+	
+	private static int sum(int[] values) {
+		int total = 0;
+		for (int value : values)
+			total += value;
+		return total;
+	}
+}
@@ -1,21 +1,42 @@
 package com.brew.vm;
 
-import java.util.Stack;
-
-import com.brew.vm.exceptions.StackUnderflowException;
-
 /** This class represents the compilation of the components that compose a virtual machine.
  * Its primary purpose is to interpret instructions and modify its own state.
+ * A machine can only run one program at a time. Threads that run programs at once should each have
+ * their own, which is what the {@link VirtualMachinePool} is for.
  * @author Jonathan Force
  */
 public class VirtualMachine {
 	
-	private Stack<Byte> stack;
+	/** The ways the machine can run a verified program. Every engine leaves exactly the same stack and variables. */
+	public enum Engine {
+		/** Run the bytecode on the {@link Interpreter}. */
+		STACK,
+		/** Translate the bytecode to register instructions and run those on the {@link RegisterInterpreter}. */
+		REGISTER,
+		/** Compile the bytecode to a tree of nodes and run that on the {@link ClosureInterpreter}. */
+		CLOSURE;
+		
+		/** @return whether the engine can run the program. Only the stack engine runs values wider than a byte,
+		 * and functions. */
+		public boolean canRun(VerifiedProgram program) {
+			return this == STACK || !(program.wide || program.calls);
+		}
+	}
+	
+	private OperandStack stack;
 	private Interpreter interpreter;
+	private RegisterInterpreter registerInterpreter;
+	private ClosureInterpreter closureInterpreter;
+	private Engine engine = Engine.STACK;
+	/** The runtime of the last program run through {@link #run}. */
+	private Runtime runtime;
 	
 	public VirtualMachine() {
-		stack = new Stack<Byte>();
+		stack = new OperandStack();
 		interpreter = new Interpreter(stack);
+		registerInterpreter = new RegisterInterpreter(stack);
+		closureInterpreter = new ClosureInterpreter(stack);
 	}
 	
 	/** Return the Virtual Machine's interpreter; the system which takes in and executes instructions. */
@@ -23,6 +44,62 @@ public class VirtualMachine {
 		return interpreter;
 	}
 	
+	/** @return the interpreter that runs programs translated to register instructions. */
+	public RegisterInterpreter registerInterpreter() {
+		return registerInterpreter;
+	}
+	
+	/** @return the interpreter that runs programs compiled to a tree of nodes. */
+	public ClosureInterpreter closureInterpreter() {
+		return closureInterpreter;
+	}
+	
+	/** Choose the engine {@link #run} uses. */
+	public void setEngine(Engine engine) {
+		if (engine == null)
+			throw new NullPointerException("The engine may not be null.");
+		this.engine = engine;
+	}
+	
+	/** @return the engine {@link #run} uses. */
+	public Engine getEngine() {
+		return engine;
+	}
+	
+	/** Run the verified program on the current engine. The program may run for as long as it likes.
+	 * @return the way the program ended. */
+	public ExecutionResult run(VerifiedProgram program) {
+		return run(program, ExecutionBudget.UNLIMITED);
+	}
+	
+	/** Run the verified program on the current engine until it ends or uses up its budget.
+	 * @return the way the program ended.
+	 * @throws UnsupportedOperationException if the engine can't run the program, see {@link Engine#canRun}. */
+	public ExecutionResult run(VerifiedProgram program, ExecutionBudget budget) {
+		if (!engine.canRun(program)) {
+			String what = (program.wide && program.calls)? "values wider than a byte or functions" : program.wide? "values wider than a byte" : "functions";
+			throw new UnsupportedOperationException("The " + engine + " engine can't run programs with " + what + ", run them on the " + Engine.STACK + " engine.");
+		}
+		ExecutionResult result;
+		if (engine == Engine.REGISTER) {
+			result = registerInterpreter.interpret(program, budget);
+			runtime = registerInterpreter.getRuntime();
+		} else if (engine == Engine.CLOSURE) {
+			result = closureInterpreter.interpret(program, budget);
+			runtime = closureInterpreter.getRuntime();
+		} else {
+			result = interpreter.interpret(program, budget);
+			runtime = interpreter.getRuntime();
+		}
+		return result;
+	}
+	
+	/** @return the runtime of the last program run through {@link #run}, where its variables can be read.
+	 * The next program run reuses its space, so read it before running another. Beware : may be null. */
+	public Runtime runtime() {
+		return runtime;
+	}
+	
 	/** Print every element is the VM's Stack. */
 	public void printStack() {
 		for (int i = 0; i < stack.size(); i ++)
@@ -31,7 +108,7 @@ public class VirtualMachine {
 	
 	/** @return the Virtual Machine's Stack. This is where the machine
 	 * performs it's operations. */
-	public Stack<Byte> stack() {
+	public OperandStack stack() {
 		return stack;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,97 @@
+package com.brew.vm;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class hands out virtual machines so many threads can run programs at once. A virtual machine is not
+ * thread safe, its stack and runtime belong to whoever is running a program on it, so each thread takes
+ * a machine of its own and gives it back when it is done. Machines that are given back are kept for the
+ * next thread, along with their stack and the space for their variables and frames, so a program run
+ * through the pool doesn't have to allocate them again.
+ *
+ * A verified program never changes once it has been made, so one program can be run by every machine in
+ * the pool at the same time.
+ * @author Jonathan Force
+ */
+public class VirtualMachinePool {
+	
+	/** The number of idle machines a pool keeps by default : enough for two threads per processor. */
+	public static final int DEFAULT_MAXIMUM_IDLE = java.lang.Runtime.getRuntime().availableProcessors() * 2;
+	
+	private final ConcurrentLinkedQueue<VirtualMachine> idle;
+	/** The number of machines in idle. Kept separately since counting the queue means walking it. */
+	private final AtomicInteger idleCount;
+	private final int maximumIdle;
+	private final VirtualMachine.Engine engine;
+	
+	public VirtualMachinePool() {
+		this(VirtualMachine.Engine.STACK, DEFAULT_MAXIMUM_IDLE);
+	}
+	
+	/** @param engine The engine every machine from the pool runs programs on.
+	 * @param maximumIdle The most machines the pool keeps while nobody is using them. Any more that are
+	 * given back are left for the garbage collector. */
+	public VirtualMachinePool(VirtualMachine.Engine engine, int maximumIdle) {
+		if (engine == null)
+			throw new NullPointerException("The engine may not be null.");
+		if (maximumIdle < 0)
+			throw new IllegalArgumentException("A pool can't keep " + maximumIdle + " machines.");
+		this.idle = new ConcurrentLinkedQueue<VirtualMachine>();
+		this.idleCount = new AtomicInteger();
+		this.maximumIdle = maximumIdle;
+		this.engine = engine;
+	}
+	
+	/** Take a machine from the pool, or make a new one if there are none left. Nobody else will use it
+	 * until it is given back with {@link #release}.
+	 * @return a machine with an empty stack. */
+	public VirtualMachine acquire() {
+		VirtualMachine vm = idle.poll();
+		if (vm == null) {
+			vm = new VirtualMachine();
+			vm.setEngine(engine);
+		} else
+			idleCount.decrementAndGet();
+		return vm;
+	}
+	
+	/** Give a machine back to the pool. Its stack is emptied and its engine put back the way the pool
+	 * set it, so the next thread gets it as good as new. The caller mustn't use it again. */
+	public void release(VirtualMachine vm) {
+		vm.stack().clear();
+		vm.setEngine(engine);
+		if (idleCount.incrementAndGet() <= maximumIdle)
+			idle.offer(vm);
+		else
+			idleCount.decrementAndGet();
+	}
+	
+	/** Run the program on a machine from the pool. The program may run for as long as it likes.
+	 * @return the way the program ended. */
+	public ExecutionResult run(VerifiedProgram program) {
+		return run(program, ExecutionBudget.UNLIMITED);
+	}
+	
+	/** Run the program on a machine from the pool until it ends or uses up its budget. Whatever the program
+	 * leaves on the stack is thrown away, use {@link #acquire} to look at it.
+	 * @return the way the program ended. */
+	public ExecutionResult run(VerifiedProgram program, ExecutionBudget budget) {
+		VirtualMachine vm = acquire();
+		try {
+			return vm.run(program, budget);
+		} finally {
+			release(vm);
+		}
+	}
+	
+	/** @return the number of machines waiting to be used. */
+	public int idleCount() {
+		return idleCount.get();
+	}
+	
+	/** @return the engine every machine from the pool runs programs on. */
+	public VirtualMachine.Engine getEngine() {
+		return engine;
+	}
+}
@@ -1,5 +1,7 @@
 package com.brew.vm.exceptions;
 
 public class StackOverflowException extends RuntimeException {
-
+	public StackOverflowException(int maximumSize) {
+		super("Stack Overflow Exception, the stack cannot hold more than " + maximumSize + " values");
+	}
 }
@@ -1,6 +1,10 @@
 package com.brew.vm.exceptions;
 
 public class StackUnderflowException extends RuntimeException {
+	public StackUnderflowException() {
+		super("Stack Underflow Exception");
+	}
+	
 	public StackUnderflowException(int i) {
 		super("Stack Underflow Exception at instruction " + i);
 	}
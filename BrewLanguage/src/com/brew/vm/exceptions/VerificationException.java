@@ -0,0 +1,18 @@
+package com.brew.vm.exceptions;
+
+public class VerificationException extends RuntimeException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private final int pc;
+	
+	public VerificationException(int pc, String message) {
+		super("Verification Exception at instruction " + pc + " : " + message);
+		this.pc = pc;
+	}
+	
+	/** @return the index of the instruction that failed verification. */
+	public int pc() {
+		return pc;
+	}
+}